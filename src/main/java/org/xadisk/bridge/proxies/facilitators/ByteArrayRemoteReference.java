@@ -40,4 +40,8 @@ public class ByteArrayRemoteReference extends OptimizedRemoteReference<byte[]> {
     public byte[] getResultObject() {
         return resultBytes;
     }
+
+    public int getLengthForUpdate() {
+        return lengthForUpdate;
+    }
 }
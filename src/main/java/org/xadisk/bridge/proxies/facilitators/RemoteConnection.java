@@ -0,0 +1,270 @@
+/*
+ Copyright © 2010-2014, Nitin Verma (project owner for XADisk https://xadisk.dev.java.net/). All rights reserved.
+
+ This source code is being made available to the public under the terms specified in the license
+ "Eclipse Public License 1.0" located at http://www.opensource.org/licenses/eclipse-1.0.php.
+ */
+package org.xadisk.bridge.proxies.facilitators;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.xadisk.bridge.proxies.facilitators.RemoteMethodInvoker.PendingInvocation;
+import org.xadisk.filesystem.exceptions.ConnectionException;
+
+/*
+ * A connection to an XADisk server, shared by the RemoteMethodInvokers pointing to that server (see
+ * RemoteConnectionPool). Each invoker carries on a conversation of its own over the connection: an
+ * invocation goes with the id of the conversation and an id of its own (the request-id), which the
+ * server sends back with the response. The server handles the invocations of different conversations
+ * concurrently, so their responses can arrive in any order.
+ * There is no thread dedicated to reading the responses. A thread waiting for a response reads the
+ * responses arriving, handing over the ones meant for the other threads, till its own arrives; unless
+ * another waiting thread is already doing so, in which case it waits to be handed over its response.
+ * Each waiting thread is woken up individually (through its own Condition), either to take its response
+ * or to take over the reading of the responses.
+ */
+class RemoteConnection {
+
+    private final String serverAddress;
+    private final int serverPort;
+    private final Socket socket;
+    private final OutputStream socketOS;
+    private final DataInputStream socketIS;
+    private final HashMap<Integer, PendingInvocation> awaitedResponses = new HashMap<Integer, PendingInvocation>();
+    private final ReentrantLock sendLock = new ReentrantLock(false);
+    private final ReentrantLock responsesLock = new ReentrantLock(false);
+    private final LinkedHashMap<PendingInvocation, Condition> waitingThreads = new LinkedHashMap<PendingInvocation, Condition>();
+    private boolean readingResponses = false;
+    private IOException failure = null;
+    private int nextRequestId = RemoteInvocationCodec.END_OF_CONVERSATION + 1;
+    private int nextConversationId = 1;
+    private int conversations = 0;
+
+    RemoteConnection(String serverAddress, int serverPort) throws IOException {
+        this.serverAddress = serverAddress;
+        this.serverPort = serverPort;
+        /*
+         * Not through a SocketChannel: the streams of a channel's socket share a lock, so a thread
+         * waiting to read the responses would hold up the threads sending their invocations.
+         */
+        this.socket = new Socket();
+        socket.connect(new InetSocketAddress(serverAddress, serverPort));
+        socket.setTcpNoDelay(true);
+        this.socketOS = socket.getOutputStream();
+        this.socketIS = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 8192));
+    }
+
+    String getServerAddress() {
+        return serverAddress;
+    }
+
+    int getServerPort() {
+        return serverPort;
+    }
+
+    /*
+     * The count of conversations is maintained by the RemoteConnectionPool, under its lock.
+     */
+    int getConversations() {
+        return conversations;
+    }
+
+    int startConversation() {
+        conversations++;
+        return nextConversationId++;
+    }
+
+    void conversationEnded() {
+        conversations--;
+    }
+
+    boolean isFailed() {
+        try {
+            responsesLock.lock();
+            return failure != null;
+        } finally {
+            responsesLock.unlock();
+        }
+    }
+
+    /*
+     * Sends the frame, with the conversation-id and a new request-id filled in at its offsets 4 and 8
+     * (after the length), and registers the invocation to receive the response.
+     */
+    void send(int conversationId, byte[] frame, PendingInvocation invocation) throws IOException {
+        try {
+            sendLock.lock();
+            int requestId;
+            try {
+                responsesLock.lock();
+                if (failure != null) {
+                    throw failure;
+                }
+                requestId = nextRequestId++;
+                if (nextRequestId == Integer.MAX_VALUE) {
+                    nextRequestId = RemoteInvocationCodec.END_OF_CONVERSATION + 1;
+                }
+                awaitedResponses.put(requestId, invocation);
+            } finally {
+                responsesLock.unlock();
+            }
+            putDataOutputCompliantInteger(frame, 4, conversationId);
+            putDataOutputCompliantInteger(frame, 8, requestId);
+            socketOS.write(frame);
+            socketOS.flush();
+        } catch (IOException ioe) {
+            fail(ioe);
+            throw ioe;
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /*
+     * Lets the server release what it holds for the conversation. The server doesn't respond to this.
+     */
+    void endConversation(int conversationId) {
+        byte[] frame = new byte[12];
+        putDataOutputCompliantInteger(frame, 0, 8);
+        putDataOutputCompliantInteger(frame, 4, conversationId);
+        putDataOutputCompliantInteger(frame, 8, RemoteInvocationCodec.END_OF_CONVERSATION);
+        try {
+            sendLock.lock();
+            if (isFailed()) {
+                return;
+            }
+            socketOS.write(frame);
+            socketOS.flush();
+        } catch (IOException ioe) {
+            fail(ioe);
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /*
+     * Returns once the response of the invocation has been received, or the connection has failed (in
+     * which case the invocation carries a ConnectionException as its error).
+     */
+    void awaitResponse(PendingInvocation invocation) {
+        try {
+            responsesLock.lock();
+            while (!invocation.isCompleted()) {
+                if (readingResponses) {
+                    Condition handedOver = responsesLock.newCondition();
+                    waitingThreads.put(invocation, handedOver);
+                    handedOver.awaitUninterruptibly();
+                    waitingThreads.remove(invocation);
+                    continue;
+                }
+                readingResponses = true;
+                responsesLock.unlock();
+                PendingInvocation received = null;
+                try {
+                    received = receiveResponse();
+                } catch (IOException ioe) {
+                    fail(ioe);
+                } finally {
+                    responsesLock.lock();
+                    readingResponses = false;
+                }
+                if (received != null && received != invocation) {
+                    Condition handedOver = waitingThreads.get(received);
+                    if (handedOver != null) {
+                        handedOver.signal();
+                    }
+                }
+            }
+            if (!readingResponses) {
+                Iterator<Condition> waiting = waitingThreads.values().iterator();
+                if (waiting.hasNext()) {
+                    waiting.next().signal();
+                }
+            }
+        } finally {
+            responsesLock.unlock();
+        }
+    }
+
+    /*
+     * The response to the invocation, if it arrives, will be discarded. Returns false if the response
+     * has already arrived (or is being handed over).
+     */
+    boolean forget(PendingInvocation invocation) {
+        try {
+            responsesLock.lock();
+            return awaitedResponses.values().remove(invocation);
+        } finally {
+            responsesLock.unlock();
+        }
+    }
+
+    /*
+     * Returns the invocation whose response got received, if it was still awaited.
+     */
+    private PendingInvocation receiveResponse() throws IOException {
+        int length = socketIS.readInt();
+        int requestId = socketIS.readInt();
+        byte[] response = new byte[length - 4];
+        socketIS.readFully(response);
+        PendingInvocation invocation;
+        try {
+            responsesLock.lock();
+            invocation = awaitedResponses.remove(requestId);
+        } finally {
+            responsesLock.unlock();
+        }
+        if (invocation != null) {
+            invocation.responseReceived(response);
+        }
+        return invocation;
+    }
+
+    /*
+     * Fails all the invocations awaiting their responses, and closes the connection. The invokers using
+     * this connection move to another one (see RemoteMethodInvoker.ensureConnected).
+     */
+    void fail(IOException cause) {
+        try {
+            responsesLock.lock();
+            if (failure != null) {
+                return;
+            }
+            failure = cause;
+            for (PendingInvocation invocation : awaitedResponses.values()) {
+                invocation.failed(new ConnectionException(cause));
+            }
+            awaitedResponses.clear();
+            for (Condition handedOver : waitingThreads.values()) {
+                handedOver.signal();
+            }
+        } finally {
+            responsesLock.unlock();
+        }
+        close();
+    }
+
+    void close() {
+        try {
+            socket.close();
+        } catch (IOException ioe) {
+            //no-op.
+        }
+    }
+
+    private static void putDataOutputCompliantInteger(byte[] b, int offset, int i) {
+        b[offset] = (byte) ((i >> 24) & 0xFF);
+        b[offset + 1] = (byte) ((i >> 16) & 0xFF);
+        b[offset + 2] = (byte) ((i >> 8) & 0xFF);
+        b[offset + 3] = (byte) (i & 0xFF);
+    }
+}
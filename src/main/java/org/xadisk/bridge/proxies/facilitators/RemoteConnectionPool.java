@@ -0,0 +1,105 @@
+/*
+ Copyright © 2010-2014, Nitin Verma (project owner for XADisk https://xadisk.dev.java.net/). All rights reserved.
+
+ This source code is being made available to the public under the terms specified in the license
+ "Eclipse Public License 1.0" located at http://www.opensource.org/licenses/eclipse-1.0.php.
+ */
+package org.xadisk.bridge.proxies.facilitators;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * The connections of this JVM to the XADisk servers, a few per server, shared by all the
+ * RemoteMethodInvokers (i.e. the conversations) pointing to a server. A new conversation goes to a new
+ * connection if there are fewer than MAX_CONNECTIONS_PER_SERVER, else to the connection carrying the
+ * fewest conversations. A connection is closed once it no longer carries any conversation.
+ */
+class RemoteConnectionPool {
+
+    private static final int MAX_CONNECTIONS_PER_SERVER = 4;
+    private static final HashMap<String, ArrayList<RemoteConnection>> connections =
+            new HashMap<String, ArrayList<RemoteConnection>>();
+    private static final ReentrantLock poolLock = new ReentrantLock(false);
+
+    private RemoteConnectionPool() {
+    }
+
+    /*
+     * Returns the connection the conversation is to go on, along with the id of the conversation.
+     */
+    static RemoteConnection startConversation(String serverAddress, int serverPort, int conversationId[])
+            throws IOException {
+        String server = serverAddress + ":" + serverPort;
+        while (true) {
+            try {
+                poolLock.lock();
+                ArrayList<RemoteConnection> serverConnections = connections.get(server);
+                RemoteConnection leastUsed = null;
+                if (serverConnections != null) {
+                    for (int i = serverConnections.size() - 1; i >= 0; i--) {
+                        RemoteConnection connection = serverConnections.get(i);
+                        if (connection.isFailed()) {
+                            serverConnections.remove(i);
+                        } else if (leastUsed == null || connection.getConversations() < leastUsed.getConversations()) {
+                            leastUsed = connection;
+                        }
+                    }
+                }
+                if (leastUsed != null && serverConnections.size() >= MAX_CONNECTIONS_PER_SERVER) {
+                    conversationId[0] = leastUsed.startConversation();
+                    return leastUsed;
+                }
+            } finally {
+                poolLock.unlock();
+            }
+            //connecting outside the lock, so that a server slow to accept doesn't hold up the others.
+            RemoteConnection newConnection = new RemoteConnection(serverAddress, serverPort);
+            try {
+                poolLock.lock();
+                ArrayList<RemoteConnection> serverConnections = connections.get(server);
+                if (serverConnections == null) {
+                    serverConnections = new ArrayList<RemoteConnection>(MAX_CONNECTIONS_PER_SERVER);
+                    connections.put(server, serverConnections);
+                }
+                if (serverConnections.size() < MAX_CONNECTIONS_PER_SERVER) {
+                    serverConnections.add(newConnection);
+                    conversationId[0] = newConnection.startConversation();
+                    return newConnection;
+                }
+            } finally {
+                poolLock.unlock();
+            }
+            //others opened enough connections meanwhile.
+            newConnection.close();
+        }
+    }
+
+    static void endConversation(RemoteConnection connection, int conversationId) {
+        boolean closeConnection;
+        try {
+            poolLock.lock();
+            connection.conversationEnded();
+            closeConnection = connection.getConversations() == 0;
+            if (closeConnection) {
+                ArrayList<RemoteConnection> serverConnections =
+                        connections.get(connection.getServerAddress() + ":" + connection.getServerPort());
+                if (serverConnections != null) {
+                    serverConnections.remove(connection);
+                    if (serverConnections.isEmpty()) {
+                        connections.remove(connection.getServerAddress() + ":" + connection.getServerPort());
+                    }
+                }
+            }
+        } finally {
+            poolLock.unlock();
+        }
+        if (closeConnection) {
+            connection.close();
+        } else {
+            connection.endConversation(conversationId);
+        }
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ Copyright © 2010-2014, Nitin Verma (project owner for XADisk https://xadisk.dev.java.net/). All rights reserved.
+
+ This source code is being made available to the public under the terms specified in the license
+ "Eclipse Public License 1.0" located at http://www.opensource.org/licenses/eclipse-1.0.php.
+ */
+package org.xadisk.bridge.proxies.facilitators;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.util.HashMap;
+import org.xadisk.bridge.proxies.impl.RemoteLock;
+import org.xadisk.bridge.proxies.impl.RemoteSession;
+import org.xadisk.bridge.proxies.impl.RemoteTransactionInformation;
+import org.xadisk.bridge.proxies.impl.RemoteXAFileInputStream;
+import org.xadisk.bridge.proxies.impl.RemoteXAFileOutputStream;
+import org.xadisk.filesystem.Lock;
+import org.xadisk.filesystem.TransactionInformation;
+
+/*
+ * The wire format of the remote method invocations (between RemoteMethodInvoker and
+ * RemoteMethodInvocationHandler), in both directions.
+ * An invocation is: the protocol version (byte), the target object-id (long), the method (a short id from
+ * METHOD_NAMES, or -1 followed by the name), the number of arguments (byte) and the arguments.
+ * A response is: whether it is an error (boolean), the returned value (or the exception thrown), the number
+ * of updated remote references (int) and those references.
+ * Each invocation goes in a frame: the length of the rest of the frame (int), the conversation-id (int),
+ * the request-id (int) and the invocation; a frame with the request-id END_OF_CONVERSATION carries nothing
+ * more, and ends the conversation. Each response goes in a frame: the length (int), the request-id of the
+ * invocation (int) and the response. See RemoteConnection.
+ * Each value is written as a type tag followed by the value, with hand-written codecs for the types which
+ * go over the wire most (primitives, strings, files, byte arrays, transaction identifiers, locks and the
+ * remote proxies). Java serialization is used only for the other types, mostly the exceptions.
+ * Both the sides must agree on PROTOCOL_VERSION; it has to be changed along with any change to the format,
+ * including the METHOD_NAMES.
+ */
+public class RemoteInvocationCodec {
+
+    public static final byte PROTOCOL_VERSION = 2;
+    public static final int END_OF_CONVERSATION = 0;
+    private static final String UTF8CharsetName = "UTF-8";
+    private static final String METHOD_NAMES[] = {"acquireFileLock", "acquireFileLocks", "afterDelivery",
+        "available", "awaitRecalledLocks", "beforeDelivery", "close", "commit", "completeReadOnlyTransaction",
+        "copyFile", "createEndpoint", "createFile", "createSessionForLocalTransaction", "createSessionForXATransaction",
+        "createXAFileInputStream", "createXAFileOutputStream", "deRegisterEndPointActivation",
+        "declareTransactionAsComplete", "deleteFile", "end", "escalateLocks", "fileExists",
+        "fileExistsAndIsDirectory", "flush", "forget", "getDefaultTransactionTimeout",
+        "getEventProcessingXAResourceForRecovery", "getFileLength", "getFileLockWaitTimeout",
+        "getIdentifiersForFailedTransactions", "getPublishFileStateChangeEventsOnCommit", "getSessionForTransaction",
+        "getTransactionTimeout", "interruptTransactionIfWaitingForResourceLock", "isClosed", "isDeliveryTransacted",
+        "isUsingReadOnlyOptimization", "listFiles", "moveFile", "notifySystemFailureAndContinue", "onFileSystemEvent",
+        "pinDirectoryForRename", "position", "prepare", "read", "recover", "registerEndPointActivation", "release",
+        "releaseLock", "releaseLocks", "releaseRenamePinOnDirectories", "releaseRenamePinOnDirectory", "rollback",
+        "setFileLockWaitTimeout", "setPublishFileStateChangeEventsOnCommit", "setTransactionTimeout", "skip", "start",
+        "truncateFile", "waitForBootup", "write"};
+    private static final HashMap<String, Short> METHOD_IDS = new HashMap<String, Short>(METHOD_NAMES.length * 2);
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_BOOLEAN = 1;
+    private static final byte TYPE_BYTE = 2;
+    private static final byte TYPE_INTEGER = 3;
+    private static final byte TYPE_LONG = 4;
+    private static final byte TYPE_STRING = 5;
+    private static final byte TYPE_FILE = 6;
+    private static final byte TYPE_BYTE_ARRAY = 7;
+    private static final byte TYPE_BOOLEAN_ARRAY = 8;
+    private static final byte TYPE_STRING_ARRAY = 9;
+    private static final byte TYPE_FILE_ARRAY = 10;
+    private static final byte TYPE_LOCK_ARRAY = 11;
+    private static final byte TYPE_TRANSACTION_INFORMATION = 12;
+    private static final byte TYPE_REMOTE_TRANSACTION_INFORMATION = 13;
+    private static final byte TYPE_REMOTE_LOCK = 14;
+    private static final byte TYPE_REMOTE_SESSION = 15;
+    private static final byte TYPE_REMOTE_INPUT_STREAM = 16;
+    private static final byte TYPE_REMOTE_OUTPUT_STREAM = 17;
+    private static final byte TYPE_BYTE_ARRAY_REFERENCE = 18;
+    private static final byte TYPE_SERIALIZED = 127;
+
+    static {
+        for (short i = 0; i < METHOD_NAMES.length; i++) {
+            METHOD_IDS.put(METHOD_NAMES[i], i);
+        }
+    }
+
+    private RemoteInvocationCodec() {
+    }
+
+    public static void writeInvocation(DataOutputStream out, long targetObjectId, String methodName, Object args[])
+            throws IOException {
+        out.writeByte(PROTOCOL_VERSION);
+        out.writeLong(targetObjectId);
+        short methodId = getMethodId(methodName);
+        if (methodId != -1) {
+            out.writeShort(methodId);
+        } else {
+            out.writeShort(-1);
+            writeString(out, methodName);
+        }
+        out.writeByte(args.length);
+        for (Object arg : args) {
+            writeValue(out, arg);
+        }
+    }
+
+    public static void checkProtocolVersion(DataInputStream in) throws IOException {
+        byte version = in.readByte();
+        if (version != PROTOCOL_VERSION) {
+            throw new StreamCorruptedException("Unsupported version of the remote invocation protocol: " + version
+                    + ". The version supported is " + PROTOCOL_VERSION + ".");
+        }
+    }
+
+    /*
+     * Returns the id of the method invoked, or -1 if the method is not in METHOD_NAMES, in which case
+     * the name follows and is read by readMethodName.
+     */
+    public static short readMethodId(DataInputStream in) throws IOException {
+        short methodId = in.readShort();
+        if (methodId < -1 || methodId >= METHOD_NAMES.length) {
+            throw new StreamCorruptedException("Unknown method-id: " + methodId);
+        }
+        return methodId;
+    }
+
+    public static String readMethodName(DataInputStream in) throws IOException {
+        return readString(in);
+    }
+
+    public static String getMethodName(short methodId) {
+        return METHOD_NAMES[methodId];
+    }
+
+    /*
+     * Returns the id of the method with the given name, or -1 if there is no id for it.
+     */
+    public static short getMethodId(String methodName) {
+        Short methodId = METHOD_IDS.get(methodName);
+        return methodId == null ? -1 : methodId;
+    }
+
+    public static int getMethodIdCount() {
+        return METHOD_NAMES.length;
+    }
+
+    public static Object[] readArguments(DataInputStream in) throws IOException, ClassNotFoundException {
+        Object args[] = new Object[in.readUnsignedByte()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = readValue(in);
+        }
+        return args;
+    }
+
+    public static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TYPE_NULL);
+            return;
+        }
+        Class<?> type = value.getClass();
+        if (type == Boolean.class) {
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (type == Byte.class) {
+            out.writeByte(TYPE_BYTE);
+            out.writeByte((Byte) value);
+        } else if (type == Integer.class) {
+            out.writeByte(TYPE_INTEGER);
+            out.writeInt((Integer) value);
+        } else if (type == Long.class) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) value);
+        } else if (type == String.class) {
+            out.writeByte(TYPE_STRING);
+            writeString(out, (String) value);
+        } else if (type == File.class) {
+            out.writeByte(TYPE_FILE);
+            writeString(out, ((File) value).getPath());
+        } else if (type == byte[].class) {
+            out.writeByte(TYPE_BYTE_ARRAY);
+            writeBytes(out, (byte[]) value);
+        } else if (type == boolean[].class) {
+            boolean booleans[] = (boolean[]) value;
+            out.writeByte(TYPE_BOOLEAN_ARRAY);
+            out.writeInt(booleans.length);
+            for (boolean b : booleans) {
+                out.writeBoolean(b);
+            }
+        } else if (type == String[].class) {
+            out.writeByte(TYPE_STRING_ARRAY);
+            writeValues(out, (Object[]) value);
+        } else if (type == File[].class) {
+            out.writeByte(TYPE_FILE_ARRAY);
+            writeValues(out, (Object[]) value);
+        } else if (type == Lock[].class) {
+            out.writeByte(TYPE_LOCK_ARRAY);
+            writeValues(out, (Object[]) value);
+        } else if (type == TransactionInformation.class) {
+            out.writeByte(TYPE_TRANSACTION_INFORMATION);
+            writeTransactionInformation(out, (TransactionInformation) value);
+        } else if (type == RemoteTransactionInformation.class) {
+            RemoteTransactionInformation xid = (RemoteTransactionInformation) value;
+            out.writeByte(TYPE_REMOTE_TRANSACTION_INFORMATION);
+            writeTransactionInformation(out, xid);
+            writeValue(out, xid.getServerAddress());
+            writeValue(out, xid.getServerPort());
+        } else if (type == RemoteLock.class) {
+            RemoteLock lock = (RemoteLock) value;
+            out.writeByte(TYPE_REMOTE_LOCK);
+            out.writeLong(lock.getRemoteObjectId());
+            writeValue(out, lock.getResource());
+            out.writeBoolean(lock.isExclusive());
+        } else if (type == RemoteSession.class) {
+            out.writeByte(TYPE_REMOTE_SESSION);
+            out.writeLong(((RemoteSession) value).getRemoteObjectId());
+        } else if (type == RemoteXAFileInputStream.class) {
+            out.writeByte(TYPE_REMOTE_INPUT_STREAM);
+            out.writeLong(((RemoteXAFileInputStream) value).getRemoteObjectId());
+        } else if (type == RemoteXAFileOutputStream.class) {
+            out.writeByte(TYPE_REMOTE_OUTPUT_STREAM);
+            out.writeLong(((RemoteXAFileOutputStream) value).getRemoteObjectId());
+        } else if (type == ByteArrayRemoteReference.class) {
+            ByteArrayRemoteReference reference = (ByteArrayRemoteReference) value;
+            out.writeByte(TYPE_BYTE_ARRAY_REFERENCE);
+            out.writeInt(reference.getLengthForUpdate());
+            writeValue(out, reference.getResultObject());
+        } else if (value instanceof Serializable) {
+            out.writeByte(TYPE_SERIALIZED);
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(baos);
+            oos.writeObject(value);
+            oos.flush();
+            writeBytes(out, baos.toByteArray());
+        } else {
+            throw new NotSerializableException(type.getName());
+        }
+    }
+
+    public static Object readValue(DataInputStream in) throws IOException, ClassNotFoundException {
+        byte type = in.readByte();
+        switch (type) {
+            case TYPE_NULL:
+                return null;
+            case TYPE_BOOLEAN:
+                return in.readBoolean();
+            case TYPE_BYTE:
+                return in.readByte();
+            case TYPE_INTEGER:
+                return in.readInt();
+            case TYPE_LONG:
+                return in.readLong();
+            case TYPE_STRING:
+                return readString(in);
+            case TYPE_FILE:
+                return new File(readString(in));
+            case TYPE_BYTE_ARRAY:
+                return readBytes(in);
+            case TYPE_BOOLEAN_ARRAY:
+                boolean booleans[] = new boolean[in.readInt()];
+                for (int i = 0; i < booleans.length; i++) {
+                    booleans[i] = in.readBoolean();
+                }
+                return booleans;
+            case TYPE_STRING_ARRAY:
+                return readValues(in, new String[in.readInt()]);
+            case TYPE_FILE_ARRAY:
+                return readValues(in, new File[in.readInt()]);
+            case TYPE_LOCK_ARRAY:
+                return readValues(in, new Lock[in.readInt()]);
+            case TYPE_TRANSACTION_INFORMATION:
+                return new TransactionInformation(readBytes(in), readBytes(in), in.readInt());
+            case TYPE_REMOTE_TRANSACTION_INFORMATION:
+                TransactionInformation xid = new TransactionInformation(readBytes(in), readBytes(in), in.readInt());
+                return new RemoteTransactionInformation(xid, (String) readValue(in), (Integer) readValue(in));
+            case TYPE_REMOTE_LOCK:
+                long lockObjectId = in.readLong();
+                return new RemoteLock(lockObjectId, (File) readValue(in), in.readBoolean());
+            case TYPE_REMOTE_SESSION:
+                return new RemoteSession(in.readLong(), null);
+            case TYPE_REMOTE_INPUT_STREAM:
+                return new RemoteXAFileInputStream(in.readLong(), null);
+            case TYPE_REMOTE_OUTPUT_STREAM:
+                return new RemoteXAFileOutputStream(in.readLong(), null);
+            case TYPE_BYTE_ARRAY_REFERENCE:
+                ByteArrayRemoteReference reference = new ByteArrayRemoteReference(null, 0, in.readInt());
+                reference.setResultObject((byte[]) readValue(in));
+                return reference;
+            case TYPE_SERIALIZED:
+                ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(readBytes(in)));
+                return ois.readObject();
+            default:
+                throw new StreamCorruptedException("Unknown type tag: " + type);
+        }
+    }
+
+    private static void writeTransactionInformation(DataOutputStream out, TransactionInformation xid) throws IOException {
+        writeBytes(out, xid.getGlobalTransactionId());
+        writeBytes(out, xid.getBranchQualifier());
+        out.writeInt(xid.getFormatId());
+    }
+
+    private static void writeValues(DataOutputStream out, Object values[]) throws IOException {
+        out.writeInt(values.length);
+        for (Object value : values) {
+            writeValue(out, value);
+        }
+    }
+
+    private static Object[] readValues(DataInputStream in, Object values[]) throws IOException, ClassNotFoundException {
+        for (int i = 0; i < values.length; i++) {
+            values[i] = readValue(in);
+        }
+        return values;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte bytes[]) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte bytes[] = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        writeBytes(out, s.getBytes(UTF8CharsetName));
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return new String(readBytes(in), UTF8CharsetName);
+    }
+}
@@ -6,29 +6,36 @@
  */
 package org.xadisk.bridge.proxies.facilitators;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
 import java.io.Serializable;
-import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
 import org.xadisk.filesystem.exceptions.ConnectionException;
 
+/*
+ * An invoker carries on a conversation with the server, over a connection it shares with the other
+ * invokers pointing to the same server (see RemoteConnectionPool). The objects hosted by the server for
+ * an invoker (sessions, streams...) belong to its conversation, which ends with disconnect().
+ */
 public class RemoteMethodInvoker implements Serializable {
 
     private static final long serialVersionUID = 1L;
+    private static final int MAX_PENDING_INVOCATIONS = 16;
     private final String serverAddress;
     private final int serverPort;
-    private transient SocketChannel channel;
-    private transient Socket socket;
-    private boolean connected = false;
-    private static final String UTF8CharsetName = "UTF-8";
+    private transient RemoteConnection connection;
+    private transient int conversationId;
+    private transient LinkedList<PendingInvocation> pendingInvocations;
+    private transient LinkedHashMap<Object, ArrayList<DeferredInvocations>> deferredInvocations;
+    private int streamReadAheadSize = 0;
+    private int streamWriteBehindSize = 0;
 
     public RemoteMethodInvoker(String serverAddress, int serverPort) {
         this.serverAddress = serverAddress;
@@ -43,94 +50,193 @@ public class RemoteMethodInvoker implements Serializable {
      return new RemoteMethodInvoker(serverAddress, serverPort);
      }*/
     public RemoteMethodInvoker makeCopy() {
-        return new RemoteMethodInvoker(serverAddress, serverPort);
+        RemoteMethodInvoker copy = new RemoteMethodInvoker(serverAddress, serverPort);
+        copy.streamReadAheadSize = this.streamReadAheadSize;
+        copy.streamWriteBehindSize = this.streamWriteBehindSize;
+        return copy;
     }
 
+    /*
+     * A conversation whose connection has failed is continued as a new conversation, on another
+     * connection; the objects hosted by the server for the old one are lost.
+     */
     public RemoteMethodInvoker ensureConnected() throws IOException {
-        if (connected) {
-            return this;
-        }
-        channel = SocketChannel.open(new InetSocketAddress(serverAddress, serverPort));
-        channel.configureBlocking(true);
-        channel.finishConnect();
-        socket = channel.socket();
-        connected = true;
+        if (connection != null) {
+            if (!connection.isFailed()) {
+                return this;
+            }
+            RemoteConnectionPool.endConversation(connection, conversationId);
+            connection = null;
+        }
+        int newConversationId[] = new int[1];
+        connection = RemoteConnectionPool.startConversation(serverAddress, serverPort, newConversationId);
+        conversationId = newConversationId[0];
+        pendingInvocations = new LinkedList<PendingInvocation>();
         return this;
     }
 
     public void disconnect() throws IOException {
-        if (connected) {
-            socket.close();
-            connected = false;
+        if (connection == null) {
+            return;
         }
+        ConnectionException closed = new ConnectionException(
+                new IOException("The connection was closed before the response was received."));
+        while (!pendingInvocations.isEmpty()) {
+            PendingInvocation invocation = pendingInvocations.removeFirst();
+            if (connection.forget(invocation)) {
+                invocation.failed(closed);
+            } else {
+                connection.awaitResponse(invocation);
+            }
+        }
+        RemoteConnectionPool.endConversation(connection, conversationId);
+        connection = null;
     }
 
     public boolean isConnected() {
-        return connected;
+        return connection != null;
     }
 
     public Object invokeRemoteMethod(long targetObjectId, String method, Serializable... args) throws Throwable {
-        boolean isError;
-        Object returnObject;
+        ArrayList<OptimizedRemoteReference<?>> remoteReferences = new ArrayList<OptimizedRemoteReference<?>>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i] instanceof OptimizedRemoteReference) {
+                remoteReferences.add((OptimizedRemoteReference<?>) args[i]);
+            }
+        }
+        PendingInvocation invocation = new PendingInvocation(remoteReferences);
         try {
             ensureConnected();
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            ObjectOutputStream oos = new ObjectOutputStream(baos);
-            oos.writeLong(targetObjectId);
-            byte[] methodNameBytes = method.getBytes(UTF8CharsetName);
-            oos.writeInt(methodNameBytes.length);
-            oos.write(methodNameBytes);
-            oos.writeInt(args.length);
-            ArrayList<OptimizedRemoteReference> remoteReferences = new ArrayList<OptimizedRemoteReference>();
-            for (int i = 0; i < args.length; i++) {
-                if (args[i] instanceof OptimizedRemoteReference) {
-                    remoteReferences.add((OptimizedRemoteReference) args[i]);
-                }
-                oos.writeObject(args[i]);
+            sendDeferredInvocations();
+            sendInvocation(invocation, targetObjectId, method, args);
+            while (!pendingInvocations.isEmpty()) {
+                connection.awaitResponse(pendingInvocations.removeFirst());
             }
-            oos.flush();
-
-            byte[] toSend = baos.toByteArray();
-            int lengthOfInvocation = toSend.length;
-
-            OutputStream socketOS = new BufferedOutputStream(
-                    socket.getOutputStream(), 1024);
-            socketOS.write(getDataOutputCompliantBytesFromInteger(lengthOfInvocation));
-            socketOS.write(toSend);
-            socketOS.flush();
-
-            BufferedInputStream bis = new BufferedInputStream(socket.getInputStream(), 1024);
-            ObjectInputStream ois = new ObjectInputStream(bis);
-            isError = ois.readBoolean();
-            int numOutputs = ois.readInt();
-            returnObject = ois.readObject();
-            for (int i = 1; i < numOutputs; i++) {
-                OptimizedRemoteReference updatedRef = (OptimizedRemoteReference) ois.readObject();
-                if (updatedRef instanceof ByteArrayRemoteReference) {
-                    ByteArrayRemoteReference barr = (ByteArrayRemoteReference) remoteReferences.get(i - 1);
-                    ByteArrayRemoteReference updatedBarr = (ByteArrayRemoteReference) updatedRef;
-                    barr.mergeWithRemoteObject(updatedBarr.getResultObject());
-                }
+            connection.awaitResponse(invocation);
+        } catch (IOException ioe) {
+            throw new ConnectionException(ioe);
+        }
+        if (invocation.isError) {
+            throw (Throwable) invocation.returnObject;
+        }
+        return invocation.returnObject;
+    }
+
+    /*
+     * Sends the invocation without waiting for its response, which is received later, along with the
+     * response of the next (synchronous) invocation through this invoker or once too many invocations are
+     * pending. The caller finds out the outcome from the returned PendingInvocation. Meant for the
+     * invocations which don't return anything the caller waits for, like the writes of a
+     * RemoteXAFileOutputStream; the server handles the invocations of a conversation in the order they
+     * are sent.
+     */
+    public PendingInvocation invokeRemoteMethodAsynchronously(long targetObjectId, String method, Serializable... args) {
+        PendingInvocation invocation = new PendingInvocation(null);
+        try {
+            ensureConnected();
+            if (pendingInvocations.size() >= MAX_PENDING_INVOCATIONS) {
+                connection.awaitResponse(pendingInvocations.removeFirst());
             }
+            sendInvocation(invocation, targetObjectId, method, args);
+            pendingInvocations.add(invocation);
         } catch (IOException ioe) {
-            this.disconnect();
             throw new ConnectionException(ioe);
-        } catch (ClassNotFoundException cnfe) {
-            throw new InternalXASystemException(cnfe);
         }
-        if (isError) {
-            throw (Throwable) returnObject;
+        return invocation;
+    }
+
+    /*
+     * The holders of deferred invocations, like the output streams buffering the writes, get to send them
+     * before each synchronous invocation through this invoker, so that the invocations reach the server
+     * in the order the application made them. The holders are kept by the transaction they work for (its
+     * xid, or the session proxy of a local transaction), as the transaction can be prepared or committed
+     * through any session proxy sharing this invoker (see RemoteSession.completeWriteBehind).
+     */
+    public void addDeferredInvocations(Object transaction, DeferredInvocations holder) {
+        if (deferredInvocations == null) {
+            deferredInvocations = new LinkedHashMap<Object, ArrayList<DeferredInvocations>>(2);
+        }
+        ArrayList<DeferredInvocations> holders = deferredInvocations.get(transaction);
+        if (holders == null) {
+            holders = new ArrayList<DeferredInvocations>(2);
+            deferredInvocations.put(transaction, holders);
+        }
+        holders.add(holder);
+    }
+
+    public void removeDeferredInvocations(Object transaction, DeferredInvocations holder) {
+        if (deferredInvocations == null) {
+            return;
+        }
+        ArrayList<DeferredInvocations> holders = deferredInvocations.get(transaction);
+        if (holders != null) {
+            holders.remove(holder);
+            if (holders.isEmpty()) {
+                deferredInvocations.remove(transaction);
+            }
+        }
+    }
+
+    public List<DeferredInvocations> getDeferredInvocations(Object transaction) {
+        ArrayList<DeferredInvocations> holders = deferredInvocations == null ? null : deferredInvocations.get(transaction);
+        if (holders == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<DeferredInvocations>(holders);
+    }
+
+    /*
+     * Called once the transaction has been committed or rolled back, through whichever session proxy.
+     */
+    public void transactionCompleted(Object transaction) {
+        if (deferredInvocations != null) {
+            deferredInvocations.remove(transaction);
+        }
+    }
+
+    private void sendDeferredInvocations() {
+        if (deferredInvocations == null) {
+            return;
+        }
+        for (ArrayList<DeferredInvocations> holders : deferredInvocations.values()) {
+            for (int i = 0; i < holders.size(); i++) {
+                holders.get(i).sendDeferredInvocations();
+            }
         }
-        return returnObject;
     }
 
-    private byte[] getDataOutputCompliantBytesFromInteger(int i) {
-        byte[] b = new byte[4];
+    /*
+     * Receives the responses of all the invocations sent asynchronously and still pending.
+     */
+    public void receivePendingResponses() {
+        while (pendingInvocations != null && !pendingInvocations.isEmpty()) {
+            connection.awaitResponse(pendingInvocations.removeFirst());
+        }
+    }
+
+    /*
+     * The frame carries, after its length, the conversation-id and the request-id (filled in by the
+     * RemoteConnection), and then the invocation.
+     */
+    private void sendInvocation(PendingInvocation invocation, long targetObjectId, String method, Serializable[] args)
+            throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(256);
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(0);//the length, filled below.
+        dos.writeInt(0);//the conversation-id.
+        dos.writeInt(0);//the request-id.
+        RemoteInvocationCodec.writeInvocation(dos, targetObjectId, method, args);
+        dos.flush();
+        byte[] toSend = baos.toByteArray();
+        putDataOutputCompliantInteger(toSend, toSend.length - 4);
+        connection.send(conversationId, toSend, invocation);
+    }
+
+    private static void putDataOutputCompliantInteger(byte[] b, int i) {
         b[0] = (byte) ((i >> 24) & 0xFF);
         b[1] = (byte) ((i >> 16) & 0xFF);
         b[2] = (byte) ((i >> 8) & 0xFF);
         b[3] = (byte) (i & 0xFF);
-        return b;
     }
 
     @Override
@@ -155,4 +261,93 @@ public class RemoteMethodInvoker implements Serializable {
     public int getServerPort() {
         return serverPort;
     }
+
+    /*
+     * The maximum number of bytes the remote input streams, opened through this invoker, read ahead of
+     * the application; 0 if they don't read ahead. See RemoteXAFileInputStream.
+     */
+    public int getStreamReadAheadSize() {
+        return streamReadAheadSize;
+    }
+
+    public void setStreamReadAheadSize(int streamReadAheadSize) {
+        this.streamReadAheadSize = streamReadAheadSize;
+    }
+
+    /*
+     * The number of bytes the remote output streams, opened through this invoker, buffer before sending
+     * them; 0 if they don't buffer. See RemoteXAFileOutputStream.
+     */
+    public int getStreamWriteBehindSize() {
+        return streamWriteBehindSize;
+    }
+
+    public void setStreamWriteBehindSize(int streamWriteBehindSize) {
+        this.streamWriteBehindSize = streamWriteBehindSize;
+    }
+
+    public static class PendingInvocation {
+
+        private volatile boolean completed = false;
+        private boolean isError;
+        private Object returnObject;
+        private final ArrayList<OptimizedRemoteReference<?>> remoteReferences;
+
+        private PendingInvocation(ArrayList<OptimizedRemoteReference<?>> remoteReferences) {
+            this.remoteReferences = remoteReferences;
+        }
+
+        /*
+         * Called by the RemoteConnection, in the thread which read the response.
+         */
+        void responseReceived(byte[] response) {
+            try {
+                DataInputStream responseIS = new DataInputStream(new ByteArrayInputStream(response));
+                isError = responseIS.readBoolean();
+                returnObject = RemoteInvocationCodec.readValue(responseIS);
+                int numUpdatedReferences = responseIS.readInt();
+                for (int i = 0; i < numUpdatedReferences; i++) {
+                    OptimizedRemoteReference<?> updatedRef =
+                            (OptimizedRemoteReference<?>) RemoteInvocationCodec.readValue(responseIS);
+                    if (updatedRef instanceof ByteArrayRemoteReference) {
+                        ByteArrayRemoteReference barr = (ByteArrayRemoteReference) remoteReferences.get(i);
+                        ByteArrayRemoteReference updatedBarr = (ByteArrayRemoteReference) updatedRef;
+                        barr.mergeWithRemoteObject(updatedBarr.getResultObject());
+                    }
+                }
+            } catch (IOException ioe) {
+                isError = true;
+                returnObject = new InternalXASystemException(ioe);
+            } catch (ClassNotFoundException cnfe) {
+                isError = true;
+                returnObject = new InternalXASystemException(cnfe);
+            }
+            completed = true;
+        }
+
+        void failed(Throwable error) {
+            isError = true;
+            returnObject = error;
+            completed = true;
+        }
+
+        public boolean isCompleted() {
+            return completed;
+        }
+
+        /*
+         * Returns what the method threw, or null if it hasn't (or the response hasn't been received yet).
+         */
+        public Throwable getError() {
+            return completed && isError ? (Throwable) returnObject : null;
+        }
+    }
+
+    public interface DeferredInvocations {
+
+        /*
+         * Sends the deferred invocations, through invokeRemoteMethodAsynchronously.
+         */
+        public void sendDeferredInvocations();
+    }
 }
@@ -0,0 +1,70 @@
+/*
+ Copyright © 2010-2014, Nitin Verma (project owner for XADisk https://xadisk.dev.java.net/). All rights reserved.
+
+ This source code is being made available to the public under the terms specified in the license
+ "Eclipse Public License 1.0" located at http://www.opensource.org/licenses/eclipse-1.0.php.
+ */
+package org.xadisk.bridge.proxies.impl;
+
+import java.io.File;
+import org.xadisk.filesystem.Lock;
+import org.xadisk.filesystem.TransactionInformation;
+
+/*
+ * A shared lock granted by a cluster slave itself, under a lease it holds from the master (see LockLeases).
+ * Once the lease is given up, the lock is backed by a lock taken at the master (masterLock), in the
+ * conversation of the give-up (takeOver), through which it has to be released.
+ */
+public class LeasedLock implements Lock {
+
+    private static final long serialVersionUID = 1L;
+    private final File resource;
+    private final TransactionInformation owner;
+    private final transient LockLeases.Lease lease;
+    private transient Lock masterLock = null;
+    private transient LockLeases.TakeOver takeOver = null;
+    private boolean released = false;
+
+    LeasedLock(File resource, TransactionInformation owner, LockLeases.Lease lease) {
+        this.resource = resource;
+        this.owner = owner;
+        this.lease = lease;
+    }
+
+    public File getResource() {
+        return resource;
+    }
+
+    public boolean isExclusive() {
+        return false;
+    }
+
+    TransactionInformation getOwner() {
+        return owner;
+    }
+
+    LockLeases.Lease getLease() {
+        return lease;
+    }
+
+    Lock getMasterLock() {
+        return masterLock;
+    }
+
+    LockLeases.TakeOver getTakeOver() {
+        return takeOver;
+    }
+
+    void setMasterLock(Lock masterLock, LockLeases.TakeOver takeOver) {
+        this.masterLock = masterLock;
+        this.takeOver = takeOver;
+    }
+
+    boolean isReleased() {
+        return released;
+    }
+
+    void markReleased() {
+        released = true;
+    }
+}
@@ -0,0 +1,395 @@
+/*
+ Copyright © 2010-2014, Nitin Verma (project owner for XADisk https://xadisk.dev.java.net/). All rights reserved.
+
+ This source code is being made available to the public under the terms specified in the license
+ "Eclipse Public License 1.0" located at http://www.opensource.org/licenses/eclipse-1.0.php.
+ */
+package org.xadisk.bridge.proxies.impl;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+import org.xadisk.filesystem.Lock;
+import org.xadisk.filesystem.NativeSession;
+import org.xadisk.filesystem.TransactionInformation;
+import org.xadisk.filesystem.exceptions.DeadLockVictimizedException;
+import org.xadisk.filesystem.exceptions.LockingFailedException;
+import org.xadisk.filesystem.exceptions.TransactionRolledbackException;
+import org.xadisk.filesystem.exceptions.TransactionTimeoutException;
+
+/*
+ * The shared leases a cluster slave holds from the master, each over the subtree of a directory. A lease
+ * is a shared escalated lock of the master, owned by a transaction-id standing for this slave. While the
+ * slave holds a lease, the shared locks its transactions ask for in the subtree are granted locally
+ * (as LeasedLocks), without a round trip to the master.
+ * A lease is asked for once the slave's transactions have taken a few shared locks, at the master, over
+ * the files in a directory. The master grants it only if no other transaction holds an exclusive lock in
+ * the subtree; afterwards, the transactions wanting such a lock wait at the master for the lease to be
+ * released, and recall it. The LockLeaseKeeper keeps a call waiting at the master for the recalls of this
+ * slave's leases (awaitRecalls), which returns as soon as one gets recalled, and gives those leases up.
+ * Before a lease is given up, the locks granted locally under it are taken at the master on behalf of
+ * their transactions, in a conversation of the give-up's own (see TakeOver).
+ * The slave also gives up its leases before asking for a lock (or pin) conflicting with them, and when
+ * they remain unused for a while.
+ * The other calls to the master, which don't wait, go over masterConnection (under connectionLock).
+ */
+public class LockLeases {
+
+    private static final int SHARED_LOCKS_BEFORE_LEASE = 8;
+    private static final int MAX_DIRECTORIES_COUNTED = 1000;
+    private static final long LEASE_IDLE_TIME = 10000;
+    private static final int LEASE_HOLDER_FORMAT_ID = 102;
+    private final String masterAddress;
+    private final int masterPort;
+    private final long lockTimeOut;
+    private final RemoteConcurrencyControl masterConnection;
+    private final RemoteConcurrencyControl recallsConnection;
+    private final TransactionInformation leaseHolder;
+    private final HashMap<File, Lease> leases = new HashMap<File, Lease>();
+    private final HashMap<File, Integer> sharedLocksPerDirectory = new HashMap<File, Integer>();
+    private final HashSet<File> leasesBeingTaken = new HashSet<File>();
+    private final HashSet<File> recalledWhileBeingTaken = new HashSet<File>();
+    private final ReentrantLock leasesLock = new ReentrantLock(false);
+    private final ReentrantLock connectionLock = new ReentrantLock(false);
+
+    /*
+     * The locks granted locally under a lease are taken at the master, when giving it up, waiting for at
+     * most lockTimeOut (milliseconds).
+     */
+    public LockLeases(String masterAddress, int masterPort, long lockTimeOut) {
+        this.masterAddress = masterAddress;
+        this.masterPort = masterPort;
+        this.lockTimeOut = lockTimeOut;
+        this.masterConnection = new RemoteConcurrencyControl(masterAddress, masterPort);
+        this.recallsConnection = new RemoteConcurrencyControl(masterAddress, masterPort);
+        UUID uuid = UUID.randomUUID();
+        ByteBuffer gid = ByteBuffer.allocate(16);
+        gid.putLong(uuid.getMostSignificantBits());
+        gid.putLong(uuid.getLeastSignificantBits());
+        this.leaseHolder = new TransactionInformation(gid.array(), new byte[0], LEASE_HOLDER_FORMAT_ID);
+    }
+
+    /*
+     * Returns a lock granted locally under a lease covering the file, or null if there is no such lease.
+     */
+    Lock acquireLocally(TransactionInformation requestor, File f) {
+        try {
+            leasesLock.lock();
+            Lease lease = findLease(f);
+            if (lease == null) {
+                return null;
+            }
+            LeasedLock leasedLock = new LeasedLock(f, requestor, lease);
+            lease.localLocks.add(leasedLock);
+            lease.lastUsed = System.currentTimeMillis();
+            return leasedLock;
+        } finally {
+            leasesLock.unlock();
+        }
+    }
+
+    /*
+     * Called after a shared lock over the file has been taken at the master; asks for a lease over the
+     * file's directory once enough of such locks have been taken in it.
+     */
+    void sharedLockAcquiredAtMaster(File f) {
+        File dir = f.getParentFile();
+        if (dir == null) {
+            return;
+        }
+        try {
+            leasesLock.lock();
+            if (findLease(f) != null || leasesBeingTaken.contains(dir)) {
+                return;
+            }
+            Integer count = sharedLocksPerDirectory.get(dir);
+            count = count == null ? 1 : count + 1;
+            if (count < SHARED_LOCKS_BEFORE_LEASE) {
+                if (sharedLocksPerDirectory.size() >= MAX_DIRECTORIES_COUNTED) {
+                    sharedLocksPerDirectory.clear();
+                }
+                sharedLocksPerDirectory.put(dir, count);
+                return;
+            }
+            sharedLocksPerDirectory.remove(dir);
+            leasesBeingTaken.add(dir);
+        } finally {
+            leasesLock.unlock();
+        }
+        Lock leaseLock = null;
+        boolean recalled;
+        try {
+            try {
+                connectionLock.lock();
+                leaseLock = masterConnection.escalateLocks(leaseHolder, dir, false);
+            } finally {
+                connectionLock.unlock();
+            }
+        } finally {
+            try {
+                leasesLock.lock();
+                leasesBeingTaken.remove(dir);
+                recalled = recalledWhileBeingTaken.remove(dir);
+                if (leaseLock != null && !recalled) {
+                    leases.put(dir, new Lease(dir, leaseLock));
+                }
+            } finally {
+                leasesLock.unlock();
+            }
+        }
+        if (leaseLock != null && recalled) {
+            releaseAtMaster(leaseHolder, leaseLock);
+        }
+    }
+
+    /*
+     * Gives up the leases which would conflict with an exclusive lock over the given file/directory, i.e.
+     * the ones over its ancestors and, if the lock is for the whole subtree of the directory (a pin), also
+     * the ones over the directory itself and its descendants.
+     */
+    void giveUpLeasesConflictingWith(File f, boolean wholeSubtree) {
+        ArrayList<Lease> conflictingLeases = new ArrayList<Lease>(2);
+        try {
+            leasesLock.lock();
+            if (leases.isEmpty()) {
+                return;
+            }
+            for (Lease lease : leases.values()) {
+                if (isAncestor(lease.dir, f) || (wholeSubtree && (lease.dir.equals(f) || isAncestor(f, lease.dir)))) {
+                    conflictingLeases.add(lease);
+                }
+            }
+        } finally {
+            leasesLock.unlock();
+        }
+        for (Lease lease : conflictingLeases) {
+            giveUp(lease);
+        }
+    }
+
+    void release(LeasedLock leasedLock) {
+        Lock masterLock;
+        TakeOver takeOver;
+        try {
+            leasesLock.lock();
+            leasedLock.markReleased();
+            masterLock = leasedLock.getMasterLock();
+            takeOver = leasedLock.getTakeOver();
+            if (masterLock == null) {
+                leasedLock.getLease().localLocks.remove(leasedLock);
+            }
+        } finally {
+            leasesLock.unlock();
+        }
+        if (masterLock != null) {
+            takeOver.release(leasedLock.getOwner(), masterLock);
+        }
+    }
+
+    /*
+     * Called by the LockLeaseKeeper, in a loop. Waits (for at most the given time, in milliseconds) for the
+     * master to recall some of the leases, and gives up those along with the ones which have remained
+     * unused for a while. A recall arriving for a lease still being taken gives up that lease as soon as
+     * it is taken.
+     */
+    public void awaitRecalls(long time) throws InterruptedException {
+        File recalledDirs[] = recallsConnection.awaitRecalledLocks(leaseHolder, time);
+        ArrayList<Lease> toGiveUp = new ArrayList<Lease>(recalledDirs.length);
+        try {
+            leasesLock.lock();
+            for (File dir : recalledDirs) {
+                Lease lease = leases.get(dir);
+                if (lease != null) {
+                    toGiveUp.add(lease);
+                } else if (leasesBeingTaken.contains(dir)) {
+                    recalledWhileBeingTaken.add(dir);
+                }
+            }
+            long now = System.currentTimeMillis();
+            for (Lease lease : leases.values()) {
+                if (lease.localLocks.isEmpty() && now - lease.lastUsed >= LEASE_IDLE_TIME && !toGiveUp.contains(lease)) {
+                    toGiveUp.add(lease);
+                }
+            }
+        } finally {
+            leasesLock.unlock();
+        }
+        for (Lease lease : toGiveUp) {
+            giveUp(lease);
+        }
+    }
+
+    /*
+     * Called by the LockLeaseKeeper once it stops calling awaitRecalls.
+     */
+    public void stopAwaitingRecalls() {
+        recallsConnection.shutdown();
+    }
+
+    public void release() {
+        ArrayList<Lease> allLeases;
+        try {
+            leasesLock.lock();
+            allLeases = new ArrayList<Lease>(leases.values());
+        } finally {
+            leasesLock.unlock();
+        }
+        for (Lease lease : allLeases) {
+            giveUp(lease);
+        }
+        masterConnection.disconnect();
+    }
+
+    /*
+     * The locks granted locally under the lease are taken at the master before the lease is released there.
+     * If that fails for a lock (or doesn't succeed within the lock time out), its transaction can't remain
+     * isolated any more, and is rolled back.
+     */
+    private void giveUp(Lease lease) {
+        ArrayList<LeasedLock> localLocks;
+        try {
+            leasesLock.lock();
+            if (leases.get(lease.dir) != lease) {
+                return;
+            }
+            leases.remove(lease.dir);
+            localLocks = new ArrayList<LeasedLock>(lease.localLocks);
+            lease.localLocks.clear();
+        } finally {
+            leasesLock.unlock();
+        }
+        if (!localLocks.isEmpty()) {
+            TakeOver takeOver = new TakeOver(new RemoteConcurrencyControl(masterAddress, masterPort));
+            for (LeasedLock leasedLock : localLocks) {
+                Lock masterLock;
+                try {
+                    masterLock = takeOver.acquire(leasedLock.getOwner(), leasedLock.getResource(), lockTimeOut);
+                } catch (Throwable t) {
+                    NativeSession session = leasedLock.getOwner().getOwningSession();
+                    if (session != null) {
+                        session.rollbackAsynchronously(t);
+                    }
+                    continue;
+                }
+                boolean released;
+                try {
+                    leasesLock.lock();
+                    released = leasedLock.isReleased();
+                    if (!released) {
+                        leasedLock.setMasterLock(masterLock, takeOver);
+                    }
+                } finally {
+                    leasesLock.unlock();
+                }
+                if (released) {
+                    takeOver.release(leasedLock.getOwner(), masterLock);
+                }
+            }
+            takeOver.done();
+        }
+        releaseAtMaster(leaseHolder, lease.leaseLock);
+    }
+
+    private void releaseAtMaster(TransactionInformation releasor, Lock lock) {
+        try {
+            connectionLock.lock();
+            masterConnection.releaseLock(releasor, lock);
+        } finally {
+            connectionLock.unlock();
+        }
+    }
+
+    private Lease findLease(File f) {
+        if (leases.isEmpty()) {
+            return null;
+        }
+        for (File dir = f.getParentFile(); dir != null; dir = dir.getParentFile()) {
+            Lease lease = leases.get(dir);
+            if (lease != null) {
+                return lease;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isAncestor(File dir, File f) {
+        for (File ancestor = f.getParentFile(); ancestor != null; ancestor = ancestor.getParentFile()) {
+            if (ancestor.equals(dir)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static class Lease {
+
+        private final File dir;
+        private final Lock leaseLock;
+        private final HashSet<LeasedLock> localLocks = new HashSet<LeasedLock>();
+        private long lastUsed = System.currentTimeMillis();
+
+        private Lease(File dir, Lock leaseLock) {
+            this.dir = dir;
+            this.leaseLock = leaseLock;
+        }
+    }
+
+    /*
+     * The conversation with the master in which the locks granted locally under a lease are taken, when
+     * giving it up. Such a lock has to be released in the same conversation, so the conversation is kept
+     * till the give-up is done and all the locks taken in it have been released. The waits for these locks
+     * hold up only this conversation.
+     */
+    static class TakeOver {
+
+        private final RemoteConcurrencyControl connection;
+        private final ReentrantLock conversationLock = new ReentrantLock(false);
+        private int users = 1;//the give-up itself, and a lock taken in the conversation, each.
+
+        private TakeOver(RemoteConcurrencyControl connection) {
+            this.connection = connection;
+        }
+
+        private Lock acquire(TransactionInformation requestor, File f, long time) throws LockingFailedException,
+                InterruptedException, TransactionRolledbackException, DeadLockVictimizedException,
+                TransactionTimeoutException {
+            try {
+                conversationLock.lock();
+                Lock lock = connection.acquireFileLock(requestor, f, time, false);
+                users++;
+                return lock;
+            } finally {
+                conversationLock.unlock();
+            }
+        }
+
+        private void release(TransactionInformation releasor, Lock lock) {
+            try {
+                conversationLock.lock();
+                connection.releaseLock(releasor, lock);
+            } finally {
+                unuse();
+                conversationLock.unlock();
+            }
+        }
+
+        private void done() {
+            try {
+                conversationLock.lock();
+                unuse();
+            } finally {
+                conversationLock.unlock();
+            }
+        }
+
+        private void unuse() {
+            if (--users == 0) {
+                connection.shutdown();
+            }
+        }
+    }
+}
@@ -23,13 +23,22 @@ import org.xadisk.filesystem.exceptions.TransactionTimeoutException;
 public class RemoteConcurrencyControl extends RemoteObjectProxy implements ConcurrencyControl {
 
     private static final long serialVersionUID = 1L;
+    private final transient LockLeases leases;
 
     public RemoteConcurrencyControl(String serverAddress, int serverPort) {
+        this(serverAddress, serverPort, null);
+    }
+
+    /*
+     * With leases, the shared locks covered by the leases held by this slave are granted locally (see LockLeases).
+     */
+    public RemoteConcurrencyControl(String serverAddress, int serverPort, LockLeases leases) {
         super(1, new RemoteMethodInvoker(serverAddress, serverPort));
+        this.leases = leases;
     }
 
     public RemoteConcurrencyControl getNewInstance() {
-        return new RemoteConcurrencyControl(this.invoker.getServerAddress(), this.invoker.getServerPort());
+        return new RemoteConcurrencyControl(this.invoker.getServerAddress(), this.invoker.getServerPort(), leases);
     }
 
     private RemoteTransactionInformation convertToRemoteTransactionInformation(TransactionInformation transactionInformation) {
@@ -39,8 +48,50 @@ public class RemoteConcurrencyControl extends RemoteObjectProxy implements Concu
     public Lock acquireFileLock(TransactionInformation requestor, File f, long time, boolean exclusive) throws
             LockingFailedException, InterruptedException, TransactionRolledbackException,
             DeadLockVictimizedException, TransactionTimeoutException {
+        if (leases != null) {
+            if (!exclusive) {
+                Lock leasedLock = leases.acquireLocally(requestor, f);
+                if (leasedLock != null) {
+                    return leasedLock;
+                }
+            } else {
+                leases.giveUpLeasesConflictingWith(f, false);
+            }
+        }
         try {
-            return (Lock) invokeRemoteMethod("acquireFileLock", convertToRemoteTransactionInformation(requestor), f, time, exclusive);
+            Lock lock = (Lock) invokeRemoteMethod("acquireFileLock", convertToRemoteTransactionInformation(requestor), f, time, exclusive);
+            if (leases != null && !exclusive) {
+                leases.sharedLockAcquiredAtMaster(f);
+            }
+            return lock;
+        } catch (LockingFailedException lfe) {
+            throw lfe;
+        } catch (InterruptedException ie) {
+            throw ie;
+        } catch (TransactionRolledbackException tre) {
+            throw tre;
+        } catch (DeadLockVictimizedException dlve) {
+            throw dlve;
+        } catch (TransactionTimeoutException tte) {
+            throw tte;
+        } catch (Throwable t) {
+            throw assertExceptionHandling(t);
+        }
+    }
+
+    public Lock[] acquireFileLocks(TransactionInformation requestor, File files[], long time, boolean exclusive[])
+            throws LockingFailedException, InterruptedException, TransactionRolledbackException,
+            DeadLockVictimizedException, TransactionTimeoutException {
+        if (leases != null) {
+            for (int i = 0; i < files.length; i++) {
+                if (exclusive[i]) {
+                    leases.giveUpLeasesConflictingWith(files[i], false);
+                }
+            }
+        }
+        try {
+            return (Lock[]) invokeRemoteMethod("acquireFileLocks", convertToRemoteTransactionInformation(requestor), files,
+                    time, exclusive);
         } catch (LockingFailedException lfe) {
             throw lfe;
         } catch (InterruptedException ie) {
@@ -58,6 +109,9 @@ public class RemoteConcurrencyControl extends RemoteObjectProxy implements Concu
 
     public void pinDirectoryForRename(File dir, TransactionInformation requestor) throws
             DirectoryPinningFailedException, AncestorPinnedException {
+        if (leases != null) {
+            leases.giveUpLeasesConflictingWith(dir, true);
+        }
         try {
             invokeRemoteMethod("pinDirectoryForRename", dir, convertToRemoteTransactionInformation(requestor));
         } catch (DirectoryPinningFailedException dpfe) {
@@ -69,7 +123,33 @@ public class RemoteConcurrencyControl extends RemoteObjectProxy implements Concu
         }
     }
 
+    public Lock escalateLocks(TransactionInformation requestor, File dir, boolean exclusive) {
+        if (leases != null && exclusive) {
+            leases.giveUpLeasesConflictingWith(dir, true);
+        }
+        try {
+            return (Lock) invokeRemoteMethod("escalateLocks", convertToRemoteTransactionInformation(requestor), dir,
+                    exclusive);
+        } catch (Throwable t) {
+            throw assertExceptionHandling(t);
+        }
+    }
+
+    public File[] awaitRecalledLocks(TransactionInformation owner, long time) throws InterruptedException {
+        try {
+            return (File[]) invokeRemoteMethod("awaitRecalledLocks", convertToRemoteTransactionInformation(owner), time);
+        } catch (InterruptedException ie) {
+            throw ie;
+        } catch (Throwable t) {
+            throw assertExceptionHandling(t);
+        }
+    }
+
     public void releaseLock(TransactionInformation releasor, Lock lock) {
+        if (lock instanceof LeasedLock) {
+            leases.release((LeasedLock) lock);
+            return;
+        }
         try {
             invokeRemoteMethod("releaseLock", convertToRemoteTransactionInformation(releasor), lock);
         } catch (Throwable t) {
@@ -77,6 +157,28 @@ public class RemoteConcurrencyControl extends RemoteObjectProxy implements Concu
         }
     }
 
+    public void releaseLocks(TransactionInformation releasor, Lock locks[]) {
+        if (leases != null) {
+            ArrayList<Lock> masterLocks = new ArrayList<Lock>(locks.length);
+            for (Lock lock : locks) {
+                if (lock instanceof LeasedLock) {
+                    leases.release((LeasedLock) lock);
+                } else {
+                    masterLocks.add(lock);
+                }
+            }
+            if (masterLocks.isEmpty()) {
+                return;
+            }
+            locks = masterLocks.toArray(new Lock[masterLocks.size()]);
+        }
+        try {
+            invokeRemoteMethod("releaseLocks", convertToRemoteTransactionInformation(releasor), locks);
+        } catch (Throwable t) {
+            throw assertExceptionHandling(t);
+        }
+    }
+
     public void releaseRenamePinOnDirectory(File dir) {
         try {
             invokeRemoteMethod("releaseRenamePinOnDirectory", dir);
@@ -9,7 +9,10 @@ package org.xadisk.bridge.proxies.impl;
 import org.xadisk.bridge.proxies.facilitators.RemoteMethodInvoker;
 import org.xadisk.bridge.proxies.facilitators.RemoteObjectProxy;
 import java.io.File;
+import java.util.ArrayList;
+import javax.transaction.xa.Xid;
 import org.xadisk.filesystem.SessionCommonness;
+import org.xadisk.filesystem.exceptions.ClosedStreamException;
 import org.xadisk.filesystem.exceptions.DirectoryNotEmptyException;
 import org.xadisk.filesystem.exceptions.FileAlreadyExistsException;
 import org.xadisk.filesystem.exceptions.FileNotExistsException;
@@ -17,20 +20,95 @@ import org.xadisk.filesystem.exceptions.FileUnderUseException;
 import org.xadisk.filesystem.exceptions.InsufficientPermissionOnFileException;
 import org.xadisk.filesystem.exceptions.LockingFailedException;
 import org.xadisk.filesystem.exceptions.NoTransactionAssociatedException;
+import org.xadisk.filesystem.exceptions.TransactionRolledbackException;
 
 public class RemoteSession extends RemoteObjectProxy implements SessionCommonness {
 
     private static final long serialVersionUID = 1L;
+    private transient ArrayList<RemoteXAFileInputStream> readingAheadStreams;
+    private transient Xid xid;
 
     public RemoteSession(long objectId, RemoteMethodInvoker invoker) {
         super(objectId, invoker);
     }
 
+    /*
+     * Set on the proxies of the session of an XA transaction, as the transaction can be prepared and
+     * committed through a proxy other than the one its streams were opened through.
+     */
+    void setXid(Xid xid) {
+        this.xid = xid;
+    }
+
+    /*
+     * The key under which the invoker keeps the deferred writes of the transaction's streams.
+     */
+    Object getTransaction() {
+        return xid != null ? xid : this;
+    }
+
+    void readingAheadStreamOpened(RemoteXAFileInputStream xafis) {
+        if (readingAheadStreams == null) {
+            readingAheadStreams = new ArrayList<RemoteXAFileInputStream>(2);
+        }
+        readingAheadStreams.add(xafis);
+    }
+
+    void readingAheadStreamClosed(RemoteXAFileInputStream xafis) {
+        if (readingAheadStreams != null) {
+            readingAheadStreams.remove(xafis);
+        }
+    }
+
+    /*
+     * Called before the transaction gets prepared or committed, so that a failed write doesn't go unnoticed,
+     * whichever proxy (sharing the invoker) the writes were made through. The transaction, missing a
+     * write, gets rolled back.
+     */
+    private void completeWriteBehind() throws NoTransactionAssociatedException {
+        for (RemoteMethodInvoker.DeferredInvocations holder : invoker.getDeferredInvocations(getTransaction())) {
+            try {
+                ((RemoteXAFileOutputStream) holder).completeWrites();
+            } catch (ClosedStreamException cse) {
+                try {
+                    rollback();
+                } catch (NoTransactionAssociatedException note) {
+                    //no-op.
+                }
+                throw new TransactionRolledbackException(cse);
+            }
+        }
+    }
+
+    /*
+     * The streams get closed along with the transaction. On a rollback, this is called before the rollback
+     * is invoked, so that the writes still buffered aren't sent for nothing.
+     */
+    private void transactionCompleted() {
+        invoker.transactionCompleted(getTransaction());
+        readingAheadStreams = null;
+    }
+
+    /*
+     * Called before an operation which may modify the contents of a file, or complete the transaction.
+     */
+    void discardReadAheadContents() {
+        if (readingAheadStreams == null) {
+            return;
+        }
+        for (RemoteXAFileInputStream xafis : readingAheadStreams) {
+            xafis.markReadAheadStale();
+        }
+    }
+
     public RemoteXAFileInputStream createXAFileInputStream(File f, boolean lockExclusively) throws
             FileNotExistsException, InsufficientPermissionOnFileException, LockingFailedException,
             NoTransactionAssociatedException, InterruptedException {
         try {
-            return (RemoteXAFileInputStream) invokeRemoteMethod("createXAFileInputStream", f, lockExclusively);
+            RemoteXAFileInputStream xafis = (RemoteXAFileInputStream) invokeRemoteMethod("createXAFileInputStream", f,
+                    lockExclusively);
+            xafis.setSession(this);
+            return xafis;
         } catch (FileNotExistsException fnee) {
             throw fnee;
         } catch (InsufficientPermissionOnFileException ipfe) {
@@ -50,7 +128,9 @@ public class RemoteSession extends RemoteObjectProxy implements SessionCommonnes
             FileNotExistsException, InsufficientPermissionOnFileException, LockingFailedException,
             NoTransactionAssociatedException, InterruptedException {
         try {
-            return (RemoteXAFileInputStream) invokeRemoteMethod("createXAFileInputStream", f);
+            RemoteXAFileInputStream xafis = (RemoteXAFileInputStream) invokeRemoteMethod("createXAFileInputStream", f);
+            xafis.setSession(this);
+            return xafis;
         } catch (FileNotExistsException fnee) {
             throw fnee;
         } catch (InsufficientPermissionOnFileException ipfe) {
@@ -70,7 +150,10 @@ public class RemoteSession extends RemoteObjectProxy implements SessionCommonnes
             FileUnderUseException, InsufficientPermissionOnFileException, LockingFailedException,
             NoTransactionAssociatedException, InterruptedException {
         try {
-            return (RemoteXAFileOutputStream) invokeRemoteMethod("createXAFileOutputStream", f, heavyWrite);
+            RemoteXAFileOutputStream xafos = (RemoteXAFileOutputStream) invokeRemoteMethod("createXAFileOutputStream", f,
+                    heavyWrite);
+            xafos.setSession(this);
+            return xafos;
         } catch (FileNotExistsException fnee) {
             throw fnee;
         } catch (FileUnderUseException fuue) {
@@ -92,6 +175,7 @@ public class RemoteSession extends RemoteObjectProxy implements SessionCommonnes
             InsufficientPermissionOnFileException, LockingFailedException,
             NoTransactionAssociatedException, InterruptedException {
         try {
+            discardReadAheadContents();
             invokeRemoteMethod("copyFile", src, dest);
         } catch (FileAlreadyExistsException faee) {
             throw faee;
@@ -136,6 +220,7 @@ public class RemoteSession extends RemoteObjectProxy implements SessionCommonnes
             InsufficientPermissionOnFileException, LockingFailedException, NoTransactionAssociatedException,
             InterruptedException {
         try {
+            discardReadAheadContents();
             invokeRemoteMethod("deleteFile", f);
         } catch (DirectoryNotEmptyException dnee) {
             throw dnee;
@@ -304,6 +389,7 @@ public class RemoteSession extends RemoteObjectProxy implements SessionCommonnes
             FileUnderUseException, InsufficientPermissionOnFileException, LockingFailedException,
             NoTransactionAssociatedException, InterruptedException {
         try {
+            discardReadAheadContents();
             invokeRemoteMethod("moveFile", src, dest);
         } catch (FileAlreadyExistsException faee) {
             throw faee;
@@ -328,6 +414,7 @@ public class RemoteSession extends RemoteObjectProxy implements SessionCommonnes
             InsufficientPermissionOnFileException, LockingFailedException, NoTransactionAssociatedException,
             InterruptedException {
         try {
+            discardReadAheadContents();
             invokeRemoteMethod("truncateFile", f, newLength);
         } catch (FileNotExistsException fnee) {
             throw fnee;
@@ -346,6 +433,7 @@ public class RemoteSession extends RemoteObjectProxy implements SessionCommonnes
 
     public void prepare() throws NoTransactionAssociatedException {
         try {
+            completeWriteBehind();
             invokeRemoteMethod("prepare");
         } catch (NoTransactionAssociatedException note) {
             throw note;
@@ -360,7 +448,10 @@ public class RemoteSession extends RemoteObjectProxy implements SessionCommonnes
 
     public void commit(boolean onePhase) throws NoTransactionAssociatedException {
         try {
+            completeWriteBehind();
+            discardReadAheadContents();
             invokeRemoteMethod("commit", onePhase);
+            transactionCompleted();
         } catch (NoTransactionAssociatedException note) {
             throw note;
         } catch (Throwable t) {
@@ -370,6 +461,8 @@ public class RemoteSession extends RemoteObjectProxy implements SessionCommonnes
 
     public void rollback() throws NoTransactionAssociatedException {
         try {
+            discardReadAheadContents();
+            transactionCompleted();
             invokeRemoteMethod("rollback");
         } catch (NoTransactionAssociatedException note) {
             throw note;
@@ -436,7 +529,9 @@ public class RemoteSession extends RemoteObjectProxy implements SessionCommonnes
 
     public void completeReadOnlyTransaction() throws NoTransactionAssociatedException {
         try {
+            discardReadAheadContents();
             invokeRemoteMethod("completeReadOnlyTransaction");
+            transactionCompleted();
         } catch (NoTransactionAssociatedException note) {
             throw note;
         } catch (Throwable t) {
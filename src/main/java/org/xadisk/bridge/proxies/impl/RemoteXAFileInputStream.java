@@ -6,6 +6,9 @@
  */
 package org.xadisk.bridge.proxies.impl;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import org.xadisk.bridge.proxies.facilitators.ByteArrayRemoteReference;
 import org.xadisk.bridge.proxies.facilitators.RemoteMethodInvoker;
 import org.xadisk.bridge.proxies.facilitators.RemoteObjectProxy;
@@ -13,15 +16,60 @@ import org.xadisk.bridge.proxies.interfaces.XAFileInputStream;
 import org.xadisk.filesystem.exceptions.ClosedStreamException;
 import org.xadisk.filesystem.exceptions.NoTransactionAssociatedException;
 
+/*
+ * When reading ahead is enabled (see RemoteXAFileSystem.setStreamReadAheadSize), the stream fetches the
+ * contents in chunks into readAheadBuffer, and serves the reads, skips and positioning within the chunk
+ * locally. The chunk size starts at INITIAL_READ_AHEAD_SIZE and doubles (upto the size enabled) with each
+ * chunk fetched in full, i.e. while the file is being read sequentially; a reposition outside the chunk
+ * brings it back to the initial size.
+ * remotePosition is the position of the stream at the remote end, which is beyond the position seen by
+ * the application by the bytes remaining in the chunk. The session marks the chunk stale when it modifies
+ * any file; the remote stream is then brought back to the application's position before its next use.
+ */
 public class RemoteXAFileInputStream extends RemoteObjectProxy implements XAFileInputStream {
 
     private static final long serialVersionUID = 1L;
+    private static final int TRANSFER_CHUNK_SIZE = 65536;
+    private static final int INITIAL_READ_AHEAD_SIZE = 4096;
+    private transient RemoteSession session;
+    private transient int maxReadAheadSize = -1;
+    private transient int readAheadSize;
+    private transient byte readAheadBuffer[];
+    private transient int bufferedFrom = 0;
+    private transient int bufferedTill = 0;
+    private transient long remotePosition = 0;
+    private transient boolean stale = false;
 
     public RemoteXAFileInputStream(long objectId, RemoteMethodInvoker invoker) {
         super(objectId, invoker);
     }
 
+    void setSession(RemoteSession session) {
+        this.session = session;
+        if (isReadingAhead()) {
+            session.readingAheadStreamOpened(this);
+        }
+    }
+
+    private boolean isReadingAhead() {
+        if (maxReadAheadSize == -1) {
+            maxReadAheadSize = invoker.getStreamReadAheadSize();
+            readAheadSize = Math.min(INITIAL_READ_AHEAD_SIZE, maxReadAheadSize);
+        }
+        return maxReadAheadSize > 0;
+    }
+
+    void markReadAheadStale() {
+        stale = true;
+    }
+
     public int available() throws NoTransactionAssociatedException, ClosedStreamException {
+        if (isReadingAhead()) {
+            refreshIfStale();
+            if (bufferedTill > bufferedFrom) {
+                return bufferedTill - bufferedFrom;
+            }
+        }
         try {
             return (Integer) invokeRemoteMethod("available");
         } catch (NoTransactionAssociatedException tre) {
@@ -41,6 +89,13 @@ public class RemoteXAFileInputStream extends RemoteObjectProxy implements XAFile
         } catch (Throwable t) {
             throw assertExceptionHandling(t);
         }
+        if (isReadingAhead()) {
+            bufferedFrom = bufferedTill = 0;
+            readAheadBuffer = null;
+            if (session != null) {
+                session.readingAheadStreamClosed(this);
+            }
+        }
     }
 
     public boolean isClosed() {
@@ -52,6 +107,23 @@ public class RemoteXAFileInputStream extends RemoteObjectProxy implements XAFile
     }
 
     public void position(long n) throws NoTransactionAssociatedException, ClosedStreamException {
+        if (isReadingAhead()) {
+            long bufferStartPosition = remotePosition - bufferedTill;
+            if (!stale && n >= bufferStartPosition && n <= remotePosition) {
+                bufferedFrom = (int) (n - bufferStartPosition);
+                return;
+            }
+        }
+        positionRemotely(n);
+        if (isReadingAhead()) {
+            bufferedFrom = bufferedTill = 0;
+            stale = false;
+            remotePosition = n;
+            readAheadSize = Math.min(INITIAL_READ_AHEAD_SIZE, maxReadAheadSize);
+        }
+    }
+
+    private void positionRemotely(long n) throws NoTransactionAssociatedException, ClosedStreamException {
         try {
             invokeRemoteMethod("position", n);
         } catch (NoTransactionAssociatedException tre) {
@@ -64,6 +136,9 @@ public class RemoteXAFileInputStream extends RemoteObjectProxy implements XAFile
     }
 
     public long position() {
+        if (isReadingAhead()) {
+            return remotePosition - (bufferedTill - bufferedFrom);
+        }
         try {
             return (Long) invokeRemoteMethod("position");
         } catch (Throwable t) {
@@ -72,6 +147,13 @@ public class RemoteXAFileInputStream extends RemoteObjectProxy implements XAFile
     }
 
     public int read() throws ClosedStreamException, NoTransactionAssociatedException {
+        if (isReadingAhead()) {
+            refreshIfStale();
+            if (bufferedFrom == bufferedTill && readAhead() == -1) {
+                return -1;
+            }
+            return readAheadBuffer[bufferedFrom++] & 0xFF;
+        }
         try {
             return (Integer) invokeRemoteMethod("read");
         } catch (NoTransactionAssociatedException tre) {
@@ -84,19 +166,36 @@ public class RemoteXAFileInputStream extends RemoteObjectProxy implements XAFile
     }
 
     public int read(byte[] b) throws ClosedStreamException, NoTransactionAssociatedException {
-        try {
-            ByteArrayRemoteReference ref = new ByteArrayRemoteReference(b, 0, b.length);
-            return (Integer) invokeRemoteMethod("read", ref);
-        } catch (NoTransactionAssociatedException tre) {
-            throw tre;
-        } catch (ClosedStreamException cse) {
-            throw cse;
-        } catch (Throwable t) {
-            throw assertExceptionHandling(t);
-        }
+        return read(b, 0, b.length);
     }
 
     public int read(byte[] b, int off, int len) throws ClosedStreamException, NoTransactionAssociatedException {
+        if (!isReadingAhead()) {
+            return readRemotely(b, off, len);
+        }
+        refreshIfStale();
+        int buffered = bufferedTill - bufferedFrom;
+        if (buffered == 0) {
+            if (len >= readAheadSize) {
+                //no point in copying through the buffer.
+                int numRead = readRemotely(b, off, len);
+                if (numRead > 0) {
+                    remotePosition += numRead;
+                }
+                return numRead;
+            }
+            if (readAhead() == -1) {
+                return -1;
+            }
+            buffered = bufferedTill - bufferedFrom;
+        }
+        int numRead = Math.min(buffered, len);
+        System.arraycopy(readAheadBuffer, bufferedFrom, b, off, numRead);
+        bufferedFrom += numRead;
+        return numRead;
+    }
+
+    private int readRemotely(byte[] b, int off, int len) throws ClosedStreamException, NoTransactionAssociatedException {
         try {
             ByteArrayRemoteReference ref = new ByteArrayRemoteReference(b, off, len);
             return (Integer) invokeRemoteMethod("read", ref);
@@ -109,7 +208,60 @@ public class RemoteXAFileInputStream extends RemoteObjectProxy implements XAFile
         }
     }
 
+    /*
+     * Called with no bytes remaining in the buffer. Returns the number of bytes fetched, or -1 on EOF.
+     */
+    private int readAhead() throws ClosedStreamException, NoTransactionAssociatedException {
+        if (readAheadBuffer == null || readAheadBuffer.length < readAheadSize) {
+            readAheadBuffer = new byte[readAheadSize];
+        }
+        int numRead = readRemotely(readAheadBuffer, 0, readAheadSize);
+        if (numRead == -1) {
+            return -1;
+        }
+        bufferedFrom = 0;
+        bufferedTill = numRead;
+        remotePosition += numRead;
+        if (numRead == readAheadSize) {
+            readAheadSize = (int) Math.min(2L * readAheadSize, maxReadAheadSize);
+        }
+        return numRead;
+    }
+
+    private void refreshIfStale() throws ClosedStreamException, NoTransactionAssociatedException {
+        if (!stale) {
+            return;
+        }
+        int buffered = bufferedTill - bufferedFrom;
+        if (buffered > 0) {
+            positionRemotely(remotePosition - buffered);
+            remotePosition -= buffered;
+        }
+        bufferedFrom = bufferedTill = 0;
+        stale = false;
+    }
+
     public long skip(long n) throws NoTransactionAssociatedException, ClosedStreamException {
+        if (isReadingAhead()) {
+            if (n < 0) {
+                throw new IllegalArgumentException("Argument should be a non-negative integer.");
+            }
+            refreshIfStale();
+            int buffered = bufferedTill - bufferedFrom;
+            if (n <= buffered) {
+                bufferedFrom += n;
+                return n;
+            }
+            long skipped = skipRemotely(n - buffered);
+            bufferedFrom = bufferedTill = 0;
+            remotePosition += skipped;
+            readAheadSize = Math.min(INITIAL_READ_AHEAD_SIZE, maxReadAheadSize);
+            return buffered + skipped;
+        }
+        return skipRemotely(n);
+    }
+
+    private long skipRemotely(long n) throws NoTransactionAssociatedException, ClosedStreamException {
         try {
             return (Long) invokeRemoteMethod("skip", n);
         } catch (NoTransactionAssociatedException tre) {
@@ -120,4 +272,35 @@ public class RemoteXAFileInputStream extends RemoteObjectProxy implements XAFile
             throw assertExceptionHandling(t);
         }
     }
+
+    /*
+     * The target channel is local to this JVM, so the contents are brought here with the usual
+     * remote reads and then written to the target.
+     */
+    public long transferTo(WritableByteChannel target, long count) throws IOException,
+            NoTransactionAssociatedException, ClosedStreamException {
+        if (count < 0) {
+            throw new IllegalArgumentException("Argument should be a non-negative integer.");
+        }
+        byte b[] = new byte[(int) Math.min(count, TRANSFER_CHUNK_SIZE)];
+        long transferred = 0;
+        while (transferred < count) {
+            int numRead = read(b, 0, (int) Math.min(b.length, count - transferred));
+            if (numRead == -1) {
+                break;
+            }
+            ByteBuffer content = ByteBuffer.wrap(b, 0, numRead);
+            while (content.hasRemaining()) {
+                if (target.write(content) == 0) {
+                    break;
+                }
+            }
+            transferred += numRead - content.remaining();
+            if (content.hasRemaining()) {
+                position(position() - content.remaining());
+                break;
+            }
+        }
+        return transferred;
+    }
 }
@@ -6,22 +6,81 @@
  */
 package org.xadisk.bridge.proxies.impl;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
 import org.xadisk.bridge.proxies.facilitators.RemoteMethodInvoker;
+import org.xadisk.bridge.proxies.facilitators.RemoteMethodInvoker.PendingInvocation;
 import org.xadisk.bridge.proxies.facilitators.RemoteObjectProxy;
 import org.xadisk.bridge.proxies.interfaces.XAFileOutputStream;
 import org.xadisk.filesystem.exceptions.ClosedStreamException;
 import org.xadisk.filesystem.exceptions.NoTransactionAssociatedException;
 
-public class RemoteXAFileOutputStream extends RemoteObjectProxy implements XAFileOutputStream {
+/*
+ * When writing behind is enabled (see RemoteXAFileSystem.setStreamWriteBehindSize), the writes are collected
+ * in writeBehindBuffer and sent, as one write, without waiting for the response (see
+ * RemoteMethodInvoker.invokeRemoteMethodAsynchronously), once the buffer fills up or before any other
+ * invocation through the same invoker (i.e. by the session, or its other streams). The writes so sent
+ * remain in pendingWrites till their outcome has been checked. The error of the first of them to have
+ * failed is kept in writeFailure, and thrown by the operations on this stream from then on, and by the
+ * prepare/commit of the transaction through any of its session proxies sharing the invoker (the invoker
+ * keeps this stream, as its DeferredInvocations, by the transaction).
+ */
+public class RemoteXAFileOutputStream extends RemoteObjectProxy implements XAFileOutputStream,
+        RemoteMethodInvoker.DeferredInvocations {
 
     private static final long serialVersionUID = 1L;
+    private transient RemoteSession session;
+    private transient int writeBehindSize = -1;
+    private transient byte writeBehindBuffer[];
+    private transient int buffered = 0;
+    private transient LinkedList<PendingInvocation> pendingWrites;
+    private transient Throwable writeFailure;
 
     public RemoteXAFileOutputStream(long objectId, RemoteMethodInvoker invoker) {
         super(objectId, invoker);
     }
 
+    void setSession(RemoteSession session) {
+        this.session = session;
+        isWritingBehind();
+    }
+
+    private Object getTransaction() {
+        return session != null ? session.getTransaction() : this;
+    }
+
+    private boolean isWritingBehind() {
+        if (writeBehindSize == -1) {
+            writeBehindSize = invoker.getStreamWriteBehindSize();
+            if (writeBehindSize > 0) {
+                writeBehindBuffer = new byte[writeBehindSize];
+                pendingWrites = new LinkedList<PendingInvocation>();
+                invoker.addDeferredInvocations(getTransaction(), this);
+            }
+        }
+        return writeBehindSize > 0;
+    }
+
+    private void discardReadAheadContents() {
+        if (session != null) {
+            session.discardReadAheadContents();
+        }
+    }
+
     public void write(int b) throws ClosedStreamException, NoTransactionAssociatedException {
+        if (isWritingBehind()) {
+            discardReadAheadContents();
+            throwIfWriteFailed();
+            if (buffered == writeBehindSize) {
+                sendWriteBehindContents();
+            }
+            writeBehindBuffer[buffered++] = (byte) b;
+            return;
+        }
         try {
+            discardReadAheadContents();
             invokeRemoteMethod("write", b);
         } catch (NoTransactionAssociatedException tre) {
             throw tre;
@@ -33,7 +92,12 @@ public class RemoteXAFileOutputStream extends RemoteObjectProxy implements XAFil
     }
 
     public void write(byte[] b) throws ClosedStreamException, NoTransactionAssociatedException {
+        if (isWritingBehind()) {
+            write(b, 0, b.length);
+            return;
+        }
         try {
+            discardReadAheadContents();
             invokeRemoteMethod("write", b);
         } catch (NoTransactionAssociatedException tre) {
             throw tre;
@@ -45,9 +109,26 @@ public class RemoteXAFileOutputStream extends RemoteObjectProxy implements XAFil
     }
 
     public void write(byte[] b, int off, int len) throws ClosedStreamException, NoTransactionAssociatedException {
+        if (isWritingBehind()) {
+            discardReadAheadContents();
+            throwIfWriteFailed();
+            if (len > writeBehindSize - buffered) {
+                sendWriteBehindContents();
+            }
+            if (len >= writeBehindSize) {
+                byte[] onWire = new byte[len];
+                System.arraycopy(b, off, onWire, 0, len);
+                pendingWrites.add(invoker.invokeRemoteMethodAsynchronously(remoteObjectId, "write", onWire));
+            } else {
+                System.arraycopy(b, off, writeBehindBuffer, buffered, len);
+                buffered += len;
+            }
+            return;
+        }
         try {
             byte[] onWire = new byte[len];
             System.arraycopy(b, off, onWire, 0, len);
+            discardReadAheadContents();
             invokeRemoteMethod("write", b, off, len);
         } catch (NoTransactionAssociatedException tre) {
             throw tre;
@@ -58,8 +139,81 @@ public class RemoteXAFileOutputStream extends RemoteObjectProxy implements XAFil
         }
     }
 
+    public void write(ByteBuffer src) throws ClosedStreamException, NoTransactionAssociatedException {
+        byte[] onWire = new byte[src.remaining()];
+        src.get(onWire);
+        write(onWire);
+    }
+
+    public void write(ByteBuffer[] srcs) throws ClosedStreamException, NoTransactionAssociatedException {
+        int totalLength = 0;
+        for (ByteBuffer src : srcs) {
+            totalLength += src.remaining();
+        }
+        byte[] onWire = new byte[totalLength];
+        int off = 0;
+        for (ByteBuffer src : srcs) {
+            int len = src.remaining();
+            src.get(onWire, off, len);
+            off += len;
+        }
+        write(onWire);
+    }
+
+    public void sendDeferredInvocations() {
+        sendWriteBehindContents();
+    }
+
+    /*
+     * Sends the bytes buffered, if any. The buffer itself can be sent when full, as the invocation gets
+     * encoded before this method returns.
+     */
+    private void sendWriteBehindContents() {
+        if (buffered == 0) {
+            return;
+        }
+        byte[] onWire = buffered == writeBehindSize ? writeBehindBuffer : Arrays.copyOf(writeBehindBuffer, buffered);
+        buffered = 0;
+        pendingWrites.add(invoker.invokeRemoteMethodAsynchronously(remoteObjectId, "write", onWire));
+    }
+
+    /*
+     * Sends the bytes buffered, waits for the outcome of all the writes sent, and throws the error of the
+     * first one which failed.
+     */
+    void completeWrites() throws ClosedStreamException, NoTransactionAssociatedException {
+        sendWriteBehindContents();
+        invoker.receivePendingResponses();
+        throwIfWriteFailed();
+    }
+
+    private void throwIfWriteFailed() throws ClosedStreamException, NoTransactionAssociatedException {
+        Iterator<PendingInvocation> writes = pendingWrites.iterator();
+        while (writes.hasNext()) {
+            PendingInvocation write = writes.next();
+            if (!write.isCompleted()) {
+                break;
+            }
+            writes.remove();
+            if (writeFailure == null) {
+                writeFailure = write.getError();
+            }
+        }
+        if (writeFailure instanceof NoTransactionAssociatedException) {
+            throw (NoTransactionAssociatedException) writeFailure;
+        } else if (writeFailure instanceof ClosedStreamException) {
+            throw (ClosedStreamException) writeFailure;
+        } else if (writeFailure != null) {
+            throw assertExceptionHandling(writeFailure);
+        }
+    }
+
     public void flush() throws ClosedStreamException, NoTransactionAssociatedException {
+        if (isWritingBehind()) {
+            completeWrites();
+        }
         try {
+            discardReadAheadContents();
             invokeRemoteMethod("flush");
         } catch (NoTransactionAssociatedException tre) {
             throw tre;
@@ -71,7 +225,16 @@ public class RemoteXAFileOutputStream extends RemoteObjectProxy implements XAFil
     }
 
     public void close() throws NoTransactionAssociatedException {
+        if (isWritingBehind()) {
+            try {
+                completeWrites();
+                invoker.removeDeferredInvocations(getTransaction(), this);
+            } catch (ClosedStreamException cse) {
+                //stays with the invoker, for the prepare/commit of the transaction to report the failure.
+            }
+        }
         try {
+            discardReadAheadContents();
             invokeRemoteMethod("close");
         } catch (NoTransactionAssociatedException tre) {
             throw tre;
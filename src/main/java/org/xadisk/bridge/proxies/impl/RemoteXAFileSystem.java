@@ -15,6 +15,7 @@ import javax.transaction.xa.XAException;
 import javax.transaction.xa.XAResource;
 import javax.transaction.xa.Xid;
 import org.xadisk.bridge.proxies.facilitators.RemoteXADiskActivationSpecImpl;
+import org.xadisk.bridge.proxies.interfaces.XAFileOutputStream;
 import org.xadisk.bridge.proxies.interfaces.XAFileSystem;
 import org.xadisk.bridge.proxies.interfaces.XASession;
 import org.xadisk.connector.inbound.EndPointActivation;
@@ -63,7 +64,7 @@ public class RemoteXAFileSystem extends RemoteObjectProxy implements XAFileSyste
 
     public Session createSessionForXATransaction(Xid xid) {
         try {
-            return (Session) invokeRemoteMethod("createSessionForXATransaction", (Serializable) xid);
+            return withXid((RemoteSession) invokeRemoteMethod("createSessionForXATransaction", (Serializable) xid), xid);
         } catch (Throwable t) {
             throw assertExceptionHandling(t);
         }
@@ -88,12 +89,19 @@ public class RemoteXAFileSystem extends RemoteObjectProxy implements XAFileSyste
 
     public Session getSessionForTransaction(Xid xid) {
         try {
-            return (Session) invokeRemoteMethod("getSessionForTransaction", (Serializable) xid);
+            return withXid((RemoteSession) invokeRemoteMethod("getSessionForTransaction", (Serializable) xid), xid);
         } catch (Throwable t) {
             throw assertExceptionHandling(t);
         }
     }
 
+    private static RemoteSession withXid(RemoteSession session, Xid xid) {
+        if (session != null) {
+            session.setXid(xid);
+        }
+        return session;
+    }
+
     public void notifySystemFailureAndContinue(Throwable t) {
         try {
             invokeRemoteMethod("notifySystemFailureAndContinue", t);
@@ -132,6 +140,47 @@ public class RemoteXAFileSystem extends RemoteObjectProxy implements XAFileSyste
         disconnect();
     }
 
+    /**
+     * Sets the maximum number of bytes which the input streams, opened (after this call) through the
+     * sessions of this remote XAFileSystem reference, read ahead of the application.
+     * <p> Such a stream fetches the contents of the file in chunks, starting at 4KB and growing (upto
+     * the size set here) while the file is being read sequentially, and serves the reads, skips and
+     * positioning within the fetched contents without going to the remote XADisk instance. The contents
+     * fetched are discarded when the session (or one of its output streams) modifies any file, or completes.
+     * <p> The default is 0, i.e. the streams don't read ahead and each operation on them is a call to
+     * the remote XADisk instance.
+     * @param maxReadAheadSize the maximum size, in bytes, of a chunk read ahead; 0 to disable reading ahead.
+     * @since 1.3
+     */
+    public void setStreamReadAheadSize(int maxReadAheadSize) {
+        if (maxReadAheadSize < 0) {
+            throw new IllegalArgumentException("Argument should be a non-negative integer.");
+        }
+        invoker.setStreamReadAheadSize(maxReadAheadSize);
+    }
+
+    /**
+     * Sets the number of bytes which the output streams, opened (after this call) through the sessions of
+     * this remote XAFileSystem reference, buffer before sending them to the remote XADisk instance.
+     * <p> Such a stream sends the buffered bytes in one go, without waiting for the remote XADisk instance
+     * to write them before the application continues. The bytes buffered are sent when the buffer fills up,
+     * on {@link XAFileOutputStream#flush() flush} and {@link XAFileOutputStream#close() close} of the
+     * stream, and before any other operation through this remote XAFileSystem reference (including the
+     * operations of its sessions and their streams). An error in writing the bytes so sent gets
+     * thrown by the next operation on the stream, or by the commit (or prepare) of the session, whichever
+     * comes first.
+     * <p> The default is 0, i.e. the streams don't buffer and each write is a call to the remote XADisk
+     * instance, which returns after the bytes have been written.
+     * @param writeBehindSize the size, in bytes, of the buffer; 0 to disable buffering.
+     * @since 1.3
+     */
+    public void setStreamWriteBehindSize(int writeBehindSize) {
+        if (writeBehindSize < 0) {
+            throw new IllegalArgumentException("Argument should be a non-negative integer.");
+        }
+        invoker.setStreamWriteBehindSize(writeBehindSize);
+    }
+
     public void waitForBootup(long timeout) throws InterruptedException {
         try {
             invokeRemoteMethod("waitForBootup", timeout);
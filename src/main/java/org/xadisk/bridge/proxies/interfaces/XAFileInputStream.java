@@ -6,7 +6,10 @@
  */
 package org.xadisk.bridge.proxies.interfaces;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import org.xadisk.additional.XAFileInputStreamWrapper;
 import org.xadisk.filesystem.exceptions.ClosedStreamException;
 import org.xadisk.filesystem.exceptions.NoTransactionAssociatedException;
@@ -75,6 +78,28 @@ public interface XAFileInputStream {
      */
     public long skip(long n) throws NoTransactionAssociatedException, ClosedStreamException;
 
+    /**
+     * Transfers upto <i>count</i> bytes, starting at the current position of this stream, to
+     * the channel <i>target</i>, and advances the position of this stream by the number of bytes
+     * transferred.
+     * <p> Contents residing in the physical file are transferred using {@link FileChannel#transferTo},
+     * and contents held in memory by the transaction are written to <i>target</i> directly, so that no
+     * copy into a byte array is required.
+     * <p> For a remote XADisk instance, the contents are read over the network and then
+     * written to <i>target</i>.
+     * @param target the channel to which the bytes will be written.
+     * @param count a non-negative integer representing the maximum number of bytes to transfer.
+     * @return number of bytes actually transferred. This can be less than <i>count</i> only if
+     * EOF has been reached, or if <i>target</i> is a non-blocking channel which did not
+     * accept more bytes.
+     * @throws IOException if an error occurs while writing to <i>target</i>.
+     * @throws NoTransactionAssociatedException
+     * @throws ClosedStreamException
+     * @since 1.3
+     */
+    public long transferTo(WritableByteChannel target, long count) throws IOException,
+            NoTransactionAssociatedException, ClosedStreamException;
+
     /**
      * Positions the <i>pointer</i> inside the stream from where the next bytes will be read.
      * @param n the new position; should be within 0 and fileLength, both inclusive.
@@ -7,6 +7,7 @@
 package org.xadisk.bridge.proxies.interfaces;
 
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import org.xadisk.additional.XAFileOutputStreamWrapper;
 import org.xadisk.filesystem.exceptions.ClosedStreamException;
 import org.xadisk.filesystem.exceptions.NoTransactionAssociatedException;
@@ -49,6 +50,28 @@ public interface XAFileOutputStream {
      */
     public void write(byte[] b, int off, int length) throws ClosedStreamException, NoTransactionAssociatedException;
 
+    /**
+     * Writes all the remaining bytes of the buffer <i>src</i>, i.e. those between its position and
+     * its limit, into the file. The position of <i>src</i> is advanced to its limit.
+     * <p> Large contents are handed to the transaction as a whole, instead of being copied into the
+     * internal buffer of this stream piece by piece.
+     * @param src the buffer containing the bytes to write.
+     * @throws ClosedStreamException
+     * @throws NoTransactionAssociatedException
+     * @since 1.3
+     */
+    public void write(ByteBuffer src) throws ClosedStreamException, NoTransactionAssociatedException;
+
+    /**
+     * Writes all the remaining bytes of the buffers in <i>srcs</i>, in order, into the file.
+     * This is equivalent to calling {@link #write(ByteBuffer)} for each of the buffers.
+     * @param srcs the buffers containing the bytes to write.
+     * @throws ClosedStreamException
+     * @throws NoTransactionAssociatedException
+     * @since 1.3
+     */
+    public void write(ByteBuffer[] srcs) throws ClosedStreamException, NoTransactionAssociatedException;
+
     /**
      * Flushes the buffer of this stream. This does not imply that the data gets written
      * to the disk. A guarantee for the buffered data to get persisted is made only after
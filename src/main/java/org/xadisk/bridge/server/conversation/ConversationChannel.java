@@ -0,0 +1,107 @@
+/*
+ Copyright © 2010-2014, Nitin Verma (project owner for XADisk https://xadisk.dev.java.net/). All rights reserved.
+
+ This source code is being made available to the public under the terms specified in the license
+ "Eclipse Public License 1.0" located at http://www.opensource.org/licenses/eclipse-1.0.php.
+ */
+package org.xadisk.bridge.server.conversation;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.resource.spi.work.WorkException;
+import org.xadisk.bridge.proxies.facilitators.RemoteInvocationCodec;
+import org.xadisk.filesystem.NativeXAFileSystem;
+
+/*
+ * A connection from a client, carrying any number of conversations (one per RemoteMethodInvoker on the
+ * client side). The frames read from the connection are routed, by their conversation-id, to the
+ * ConversationContext of the conversation; a context is set up when the first frame of its conversation
+ * arrives. The conversations are handled independently of each other, and their responses are written
+ * to the connection (under responsesLock) in the order they get ready.
+ */
+public class ConversationChannel {
+
+    private final SocketChannel socketChannel;
+    private final NativeXAFileSystem xaFileSystem;
+    private final HashMap<Integer, ConversationContext> conversations = new HashMap<Integer, ConversationContext>();
+    private final ReentrantLock responsesLock = new ReentrantLock(false);
+    private int currentFrameLength = -1;
+    private ByteBuffer currentFrameLengthBytes = ByteBuffer.allocate(4);
+    private ByteBuffer currentFrameBuffer;
+
+    public ConversationChannel(SocketChannel socketChannel, NativeXAFileSystem xaFileSystem) {
+        this.socketChannel = socketChannel;
+        this.xaFileSystem = xaFileSystem;
+    }
+
+    public SocketChannel getSocketChannel() {
+        return socketChannel;
+    }
+
+    ReentrantLock getResponsesLock() {
+        return responsesLock;
+    }
+
+    /*
+     * The buffer may carry any number of (pieces of) frames, as the client can send its invocations
+     * without waiting for the responses to the earlier ones (see RemoteMethodInvoker). Called only by the
+     * ConversationGateway thread.
+     */
+    public void updateWithConversation(ByteBuffer buffer) throws WorkException, IOException {
+        while (buffer.hasRemaining()) {
+            if (currentFrameLength == -1) {
+                byte[] t = new byte[Math.min(currentFrameLengthBytes.remaining(), buffer.remaining())];
+                buffer.get(t);
+                currentFrameLengthBytes.put(t);
+                if (currentFrameLengthBytes.position() == 4) {
+                    currentFrameLengthBytes.flip();
+                    currentFrameLength = currentFrameLengthBytes.getInt();
+                }
+            }
+            if (currentFrameLength != -1) {
+                if (currentFrameBuffer == null) {
+                    currentFrameBuffer = ByteBuffer.allocate(currentFrameLength);
+                }
+                int limit = buffer.limit();
+                buffer.limit(buffer.position() + Math.min(buffer.remaining(), currentFrameBuffer.remaining()));
+                currentFrameBuffer.put(buffer);
+                buffer.limit(limit);
+
+                if (currentFrameBuffer.position() == currentFrameLength) {
+                    byte[] frame = currentFrameBuffer.array();
+                    clearLastFrame();
+                    frameReceived(frame);
+                }
+            }
+        }
+    }
+
+    /*
+     * The frame (after its length) carries the conversation-id and the request-id, followed by the
+     * invocation; see RemoteInvocationCodec.
+     */
+    private void frameReceived(byte[] frame) throws WorkException, IOException {
+        ByteBuffer header = ByteBuffer.wrap(frame);
+        int conversationId = header.getInt(0);
+        int requestId = header.getInt(4);
+        if (requestId == RemoteInvocationCodec.END_OF_CONVERSATION) {
+            conversations.remove(conversationId);
+            return;
+        }
+        ConversationContext context = conversations.get(conversationId);
+        if (context == null) {
+            context = new ConversationContext(this, xaFileSystem);
+            conversations.put(conversationId, context);
+        }
+        context.invocationReceived(frame);
+    }
+
+    private void clearLastFrame() {
+        currentFrameLength = -1;
+        currentFrameLengthBytes.clear();
+        currentFrameBuffer = null;
+    }
+}
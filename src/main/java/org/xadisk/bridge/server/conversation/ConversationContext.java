@@ -7,9 +7,9 @@
 package org.xadisk.bridge.server.conversation;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.resource.spi.endpoint.MessageEndpoint;
 import javax.resource.spi.work.Work;
 import javax.resource.spi.work.WorkException;
@@ -25,19 +25,23 @@ import org.xadisk.bridge.proxies.impl.RemoteXAFileOutputStream;
 import org.xadisk.filesystem.Lock;
 import org.xadisk.filesystem.NativeSession;
 
+/*
+ * The objects hosted for a conversation (see RemoteMethodInvoker), and its invocations waiting to be
+ * handled. A conversation goes over a ConversationChannel, along with the other conversations of the
+ * same client.
+ */
 public class ConversationContext {
 
-    private final SocketChannel conversationChannel;
-    private int currentMethodInvocationLength = -1;
-    private ByteBuffer currentInvocationLengthBytes = ByteBuffer.allocate(4);
-    private ByteBuffer currentMethodInvocationBuffer;
-    private byte[] currentMethodInvocation;
+    private final ConversationChannel conversationChannel;
+    private final LinkedList<byte[]> pendingInvocations = new LinkedList<byte[]>();
+    private boolean invocationInProgress = false;
+    private final ReentrantLock invocationsLock = new ReentrantLock(false);
     private final HostedContext conversationalHostedContext;
     private final HostedContext globalHostedContext;
     private final ArrayList<NativeSession> allSessionsInsideThisConversation = new ArrayList<NativeSession>();
     private final NativeXAFileSystem xaFileSystem;
 
-    public ConversationContext(SocketChannel conversationChannel, NativeXAFileSystem xaFileSystem) {
+    public ConversationContext(ConversationChannel conversationChannel, NativeXAFileSystem xaFileSystem) {
         this.xaFileSystem = xaFileSystem;
         this.conversationChannel = conversationChannel;
         this.conversationalHostedContext = new ConversationalHostedContext();
@@ -54,46 +58,47 @@ public class ConversationContext {
         }
     }
 
-    public SocketChannel getConversationChannel() {
+    public ConversationChannel getConversationChannel() {
         return conversationChannel;
     }
 
-    public byte[] getCurrentMethodInvocation() {
-        return currentMethodInvocation;
-    }
-
-    public void updateWithConversation(ByteBuffer buffer) throws WorkException, IOException {
-        if (currentMethodInvocationLength == -1) {
-            byte[] t = new byte[Math.min(currentInvocationLengthBytes.remaining(), buffer.remaining())];
-            buffer.get(t);
-            currentInvocationLengthBytes.put(t);
-            if (currentInvocationLengthBytes.position() == 4) {
-                currentInvocationLengthBytes.flip();
-                currentMethodInvocationLength = getIntegerFromDataOutputCompliantBytes(currentInvocationLengthBytes);
+    /*
+     * The invocations of a conversation are handled one at a time, in the order they were sent, so that
+     * the writes sent one after another by a stream get applied in that order. The invocations of
+     * different conversations are handled concurrently.
+     */
+    void invocationReceived(byte[] methodInvocation) throws WorkException, IOException {
+        try {
+            invocationsLock.lock();
+            if (invocationInProgress) {
+                pendingInvocations.add(methodInvocation);
+                return;
             }
+            invocationInProgress = true;
+        } finally {
+            invocationsLock.unlock();
         }
-        if (currentMethodInvocationLength != -1) {
-            if (currentMethodInvocationBuffer == null) {
-                currentMethodInvocationBuffer = ByteBuffer.allocate(currentMethodInvocationLength);
-            }
-            currentMethodInvocationBuffer.put(buffer);
-
-            if (currentMethodInvocationBuffer.position() == currentMethodInvocationLength) {
-                currentMethodInvocation = new byte[currentMethodInvocationLength];
-                currentMethodInvocationBuffer.flip();
-                currentMethodInvocationBuffer.get(currentMethodInvocation);
-                clearLastConversation();
+        Work handleRemoteMethodInvocation = new RemoteMethodInvocationHandler(this, methodInvocation, xaFileSystem);
+        xaFileSystem.startWork(handleRemoteMethodInvocation);
+    }
 
-                Work handleRemoteMethodInvocation = new RemoteMethodInvocationHandler(this, xaFileSystem);
-                xaFileSystem.startWork(handleRemoteMethodInvocation);
+    /*
+     * Called by the RemoteMethodInvocationHandler once it has sent the response.
+     */
+    void invocationHandled() throws WorkException, IOException {
+        byte[] methodInvocation;
+        try {
+            invocationsLock.lock();
+            methodInvocation = pendingInvocations.poll();
+            if (methodInvocation == null) {
+                invocationInProgress = false;
+                return;
             }
+        } finally {
+            invocationsLock.unlock();
         }
-    }
-
-    private void clearLastConversation() {
-        currentMethodInvocationLength = -1;
-        currentInvocationLengthBytes.clear();
-        currentMethodInvocationBuffer = null;
+        Work handleRemoteMethodInvocation = new RemoteMethodInvocationHandler(this, methodInvocation, xaFileSystem);
+        xaFileSystem.startWork(handleRemoteMethodInvocation);
     }
 
     Object convertToProxyResponseIfRequired(Object response) {
@@ -118,11 +123,15 @@ public class ConversationContext {
                 return new RemoteLock(conversationalHostedContext.hostObject(response),
                         lock.getResource(), lock.isExclusive());
             }
+            if (response instanceof Lock[]) {
+                Lock locks[] = (Lock[]) response;
+                Lock remoteLocks[] = new Lock[locks.length];
+                for (int i = 0; i < locks.length; i++) {
+                    remoteLocks[i] = (Lock) convertToProxyResponseIfRequired(locks[i]);
+                }
+                return remoteLocks;
+            }
         }
         return response;
     }
-
-    private int getIntegerFromDataOutputCompliantBytes(ByteBuffer b) {
-        return (((b.get() & 0xff) << 24) | ((b.get() & 0xff) << 16) | ((b.get() & 0xff) << 8) | (b.get() & 0xff));
-    }
 }
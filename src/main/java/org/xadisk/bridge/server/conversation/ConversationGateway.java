@@ -36,6 +36,11 @@ public class ConversationGateway implements Work {
 
     public void delegateConversation(SocketChannel clientChannel) throws IOException, InterruptedException {
         clientChannel.configureBlocking(false);
+        /*
+         * The responses to the invocations a client sends without waiting (see RemoteMethodInvoker)
+         * go back one after another, and must not wait for the acknowledgement of the previous ones.
+         */
+        clientChannel.socket().setTcpNoDelay(true);
         channelsToRegister.add(clientChannel);
         selector.wakeup();
     }
@@ -50,16 +55,16 @@ public class ConversationGateway implements Work {
                     if (newConversationChannel == null) {
                         break;
                     }
-                    ConversationContext context = new ConversationContext(newConversationChannel, xaFileSystem);
-                    newConversationChannel.register(selector, SelectionKey.OP_READ, context);
+                    ConversationChannel conversationChannel = new ConversationChannel(newConversationChannel, xaFileSystem);
+                    newConversationChannel.register(selector, SelectionKey.OP_READ, conversationChannel);
                 }
                 if (n == 0) {
                     continue;
                 }
                 Set<SelectionKey> selectedReadable = selector.selectedKeys();
                 for (SelectionKey selectionKey : selectedReadable) {
-                    ConversationContext context = (ConversationContext) selectionKey.attachment();
-                    SocketChannel channel = context.getConversationChannel();
+                    ConversationChannel conversationChannel = (ConversationChannel) selectionKey.attachment();
+                    SocketChannel channel = conversationChannel.getSocketChannel();
 
                     buffer.clear();
                     try {
@@ -68,7 +73,7 @@ public class ConversationGateway implements Work {
                             throw new EOFException();
                         }
                         buffer.flip();
-                        context.updateWithConversation(buffer);
+                        conversationChannel.updateWithConversation(buffer);
                     } catch (IOException ioe) {
                         closeClientConversation(selectionKey, channel);
                     }
@@ -0,0 +1,123 @@
+/*
+ Copyright © 2010-2014, Nitin Verma (project owner for XADisk https://xadisk.dev.java.net/). All rights reserved.
+
+ This source code is being made available to the public under the terms specified in the license
+ "Eclipse Public License 1.0" located at http://www.opensource.org/licenses/eclipse-1.0.php.
+ */
+package org.xadisk.bridge.server.conversation;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import org.xadisk.bridge.proxies.facilitators.RemoteInvocationCodec;
+
+/*
+ * The public methods of a class of the objects hosted for the remote clients (sessions, streams, the
+ * XAResources, the concurrency control...), arranged by the method-ids of the RemoteInvocationCodec and
+ * resolved to MethodHandles, once per class. An invocation is then dispatched by finding, among the few
+ * methods with its method-id, the one whose parameter types are the same as those of the arguments; the
+ * same rule as Class.getMethod, but without any lookup or allocation.
+ */
+class MethodDispatchTable {
+
+    private static final ConcurrentHashMap<Class<?>, MethodDispatchTable> tables =
+            new ConcurrentHashMap<Class<?>, MethodDispatchTable>();
+    private static final MethodType DISPATCH_TYPE = MethodType.methodType(Object.class, Object.class, Object[].class);
+    private final Entry entriesByMethodId[][];
+
+    private MethodDispatchTable(Class<?> targetClass) {
+        ArrayList<ArrayList<Entry>> entries = new ArrayList<ArrayList<Entry>>(RemoteInvocationCodec.getMethodIdCount());
+        for (int i = 0; i < RemoteInvocationCodec.getMethodIdCount(); i++) {
+            entries.add(new ArrayList<Entry>(1));
+        }
+        for (Method method : targetClass.getMethods()) {
+            short methodId = RemoteInvocationCodec.getMethodId(method.getName());
+            if (methodId != -1) {
+                entries.get(methodId).add(new Entry(method));
+            }
+        }
+        this.entriesByMethodId = new Entry[entries.size()][];
+        for (int i = 0; i < entriesByMethodId.length; i++) {
+            entriesByMethodId[i] = entries.get(i).toArray(new Entry[0]);
+        }
+    }
+
+    static MethodDispatchTable forClass(Class<?> targetClass) {
+        MethodDispatchTable table = tables.get(targetClass);
+        if (table == null) {
+            table = new MethodDispatchTable(targetClass);
+            MethodDispatchTable existingTable = tables.putIfAbsent(targetClass, table);
+            if (existingTable != null) {
+                table = existingTable;
+            }
+        }
+        return table;
+    }
+
+    /*
+     * Returns null if the class has no such method.
+     */
+    Entry find(short methodId, Class<?> argTypes[]) {
+        for (Entry entry : entriesByMethodId[methodId]) {
+            if (entry.accepts(argTypes)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    static class Entry {
+
+        private final Method method;
+        private final Class<?> parameterTypes[];
+        private final MethodHandle handle;
+
+        private Entry(Method method) {
+            this.method = method;
+            this.parameterTypes = method.getParameterTypes();
+            MethodHandle methodHandle;
+            try {
+                methodHandle = MethodHandles.publicLookup().unreflect(method)
+                        .asSpreader(Object[].class, parameterTypes.length).asType(DISPATCH_TYPE);
+            } catch (IllegalAccessException iae) {
+                //e.g. a public method of a non-public class; such methods are invoked reflectively.
+                methodHandle = null;
+            }
+            this.handle = methodHandle;
+        }
+
+        private boolean accepts(Class<?> argTypes[]) {
+            if (argTypes.length != parameterTypes.length) {
+                return false;
+            }
+            for (int i = 0; i < argTypes.length; i++) {
+                if (argTypes[i] != parameterTypes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        Method getMethod() {
+            return method;
+        }
+
+        /*
+         * As with Method.invoke, whatever the method throws is wrapped in an InvocationTargetException.
+         */
+        Object invoke(Object target, Object args[]) throws InvocationTargetException, IllegalAccessException {
+            if (handle == null) {
+                return method.invoke(target, args);
+            }
+            try {
+                return (Object) handle.invokeExact(target, args);
+            } catch (Throwable t) {
+                throw new InvocationTargetException(t);
+            }
+        }
+    }
+}
@@ -10,9 +10,9 @@ import org.xadisk.filesystem.pools.PooledSelector;
 import org.xadisk.filesystem.pools.SelectorPool;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
@@ -29,6 +29,7 @@ import org.xadisk.filesystem.NativeXAFileSystem;
 import org.xadisk.bridge.proxies.facilitators.ByteArrayRemoteReference;
 import org.xadisk.bridge.proxies.facilitators.MethodSerializabler;
 import org.xadisk.bridge.proxies.facilitators.OptimizedRemoteReference;
+import org.xadisk.bridge.proxies.facilitators.RemoteInvocationCodec;
 import org.xadisk.bridge.proxies.facilitators.SerializedMethod;
 import org.xadisk.bridge.proxies.impl.RemoteLock;
 import org.xadisk.bridge.proxies.impl.RemoteTransactionInformation;
@@ -36,20 +37,24 @@ import org.xadisk.filesystem.DirectoryModificationEvent;
 import org.xadisk.filesystem.FileSystemStateChangeEvent;
 import org.xadisk.filesystem.Lock;
 import org.xadisk.filesystem.TransactionInformation;
+import org.xadisk.filesystem.utilities.Logger;
 
 public class RemoteMethodInvocationHandler implements Work {
 
+    private static final Method MESSAGE_ENDPOINT_RELEASE = getMessageEndpointReleaseMethod();
     private ConversationContext context;
-    private static final String UTF8CharsetName = "UTF-8";
+    private final byte[] methodInvocation;
     private final PooledSelector pooledWriteSelector;
     private final Selector writeSelector;
     private volatile boolean enabled = true;
     private final SelectorPool selectorPool;
     private final NativeXAFileSystem xaFileSystem;
 
-    public RemoteMethodInvocationHandler(ConversationContext context, NativeXAFileSystem xaFileSystem) throws IOException {
+    public RemoteMethodInvocationHandler(ConversationContext context, byte[] methodInvocation,
+            NativeXAFileSystem xaFileSystem) throws IOException {
         this.xaFileSystem = xaFileSystem;
         this.context = context;
+        this.methodInvocation = methodInvocation;
         this.selectorPool = xaFileSystem.getSelectorPool();
         this.pooledWriteSelector = selectorPool.checkOut();
         if (pooledWriteSelector == null) {
@@ -61,13 +66,17 @@ public class RemoteMethodInvocationHandler implements Work {
 
     public void run() {
         byte[] methodInvocationResponse;
+        int requestId = ByteBuffer.wrap(methodInvocation).getInt(4);
         try {
-            methodInvocationResponse = handleRemoteInvocation(context.getCurrentMethodInvocation());
+            methodInvocationResponse = handleRemoteInvocation(methodInvocation);
         } catch (Throwable t) {
-            methodInvocationResponse = handleInvocationFailedSystemError(t);
+            methodInvocationResponse = handleInvocationFailedSystemError(requestId, t);
         }
+        ConversationChannel conversationChannel = context.getConversationChannel();
         try {
-            SocketChannel channel = context.getConversationChannel();
+            //the responses of the other conversations over the channel must not get mixed with this one.
+            conversationChannel.getResponsesLock().lock();
+            SocketChannel channel = conversationChannel.getSocketChannel();
             channel.register(writeSelector, SelectionKey.OP_WRITE);
             ByteBuffer toSend = ByteBuffer.wrap(methodInvocationResponse);
             while (toSend.remaining() > 0 && enabled) {
@@ -88,59 +97,98 @@ public class RemoteMethodInvocationHandler implements Work {
             //can't do anything here...can't even send the "t" to the remote client itself, as the error
             //above is related to sending (though something else) only.
         } finally {
+            conversationChannel.getResponsesLock().unlock();
             try {
                 selectorPool.checkIn(pooledWriteSelector);
             } catch (Throwable t) {
                 //no-op.
             }
         }
+        try {
+            context.invocationHandled();
+        } catch (Throwable t) {
+            xaFileSystem.getLogger().logThrowable(t, Logger.WARNING);
+            //the next invocation can't be handled; closing the conversation lets the client know.
+            try {
+                conversationChannel.getSocketChannel().socket().close();
+            } catch (Throwable th) {
+                //no-op.
+            }
+        }
     }
 
-    private byte[] handleInvocationFailedSystemError(Throwable t) {
+    private byte[] handleInvocationFailedSystemError(int requestId, Throwable t) {
         try {
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            ObjectOutputStream oos = new ObjectOutputStream(baos);
-            oos.writeBoolean(true);
-            oos.writeInt(1);
-            oos.writeObject(t);
-            return baos.toByteArray();
+            DataOutputStream dos = new DataOutputStream(baos);
+            dos.writeInt(0);//the length, filled in by toResponseBytes.
+            dos.writeInt(requestId);
+            dos.writeBoolean(true);
+            RemoteInvocationCodec.writeValue(dos, t);
+            dos.writeInt(0);
+            return toResponseBytes(baos);
         } catch (Throwable th) {
             throw new AssertionError(th);
         }
     }
 
+    private static byte[] toResponseBytes(ByteArrayOutputStream baos) {
+        byte[] response = baos.toByteArray();
+        int length = response.length - 4;
+        response[0] = (byte) ((length >> 24) & 0xFF);
+        response[1] = (byte) ((length >> 16) & 0xFF);
+        response[2] = (byte) ((length >> 8) & 0xFF);
+        response[3] = (byte) (length & 0xFF);
+        return response;
+    }
+
     byte[] handleRemoteInvocation(byte[] invocation) throws IOException,
             ClassNotFoundException,
             NoSuchMethodException,
             IllegalAccessException,
             ContextOutOfSyncException {
-        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(invocation));
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(invocation));
 
-        long targetObjectId = ois.readLong();
+        dis.readInt();//the conversation-id, used by the ConversationChannel.
+        int requestId = dis.readInt();
+        RemoteInvocationCodec.checkProtocolVersion(dis);
+        long targetObjectId = dis.readLong();
         Object targetObject = context.getLocalObjectFromProxy(targetObjectId);
         if (targetObject == null) {
             throw new ContextOutOfSyncException("No object with id " + targetObjectId);
         }
 
-        byte[] methodNameBytes = new byte[ois.readInt()];
-        ois.read(methodNameBytes);
-        String methodName = new String(methodNameBytes, UTF8CharsetName);
+        short methodId = RemoteInvocationCodec.readMethodId(dis);
+        String methodName = methodId == -1 ? RemoteInvocationCodec.readMethodName(dis)
+                : RemoteInvocationCodec.getMethodName(methodId);
 
-        int numOfArgs = ois.readInt();
-        Object args[] = new Object[numOfArgs];
+        Object args[] = RemoteInvocationCodec.readArguments(dis);
+        int numOfArgs = args.length;
         Class argTypes[] = new Class[numOfArgs];
         ArrayList<OptimizedRemoteReference> remoteReferences = new ArrayList<OptimizedRemoteReference>();
         ArrayList<Object> regenerateObjects = new ArrayList<Object>();
         for (int i = 0; i < numOfArgs; i++) {
-            args[i] = ois.readObject();
             argTypes[i] = args[i].getClass();
         }
         processMethodArguments(args, argTypes, remoteReferences, regenerateObjects);
-        Method method = targetObject.getClass().getMethod(methodName, argTypes);
+        MethodDispatchTable.Entry dispatchEntry = null;
+        Method method;
+        if (methodId != -1) {
+            dispatchEntry = MethodDispatchTable.forClass(targetObject.getClass()).find(methodId, argTypes);
+        }
+        if (dispatchEntry != null) {
+            method = dispatchEntry.getMethod();
+        } else {
+            method = targetObject.getClass().getMethod(methodName, argTypes);
+        }
         boolean isError = false;
         Object response;
         try {
-            response = method.invoke(targetObject, args);
+            if (dispatchEntry != null) {
+                response = dispatchEntry.invoke(targetObject, args);
+            } else {
+                response = method.invoke(targetObject, args);
+            }
             processOptimizedRemoteReferences(response, remoteReferences, regenerateObjects);
             //note that in case of method thrown exception, the remote arguments are not geting updated. That would be fine for current applications.
             response = context.convertToProxyResponseIfRequired(response);
@@ -149,15 +197,17 @@ public class RemoteMethodInvocationHandler implements Work {
             response = ite.getCause();
             isError = true;
         }
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ObjectOutputStream oos = new ObjectOutputStream(baos);
-        oos.writeBoolean(isError);
-        oos.writeInt(1 + remoteReferences.size());
-        oos.writeObject(response);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(256);
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(0);//the length, filled in by toResponseBytes.
+        dos.writeInt(requestId);
+        dos.writeBoolean(isError);
+        RemoteInvocationCodec.writeValue(dos, response);
+        dos.writeInt(remoteReferences.size());
         for (OptimizedRemoteReference ref : remoteReferences) {
-            oos.writeObject(ref);
+            RemoteInvocationCodec.writeValue(dos, ref);
         }
-        return baos.toByteArray();
+        return toResponseBytes(baos);
     }
 
     private void processMethodArguments(Object args[], Class argTypes[], ArrayList<OptimizedRemoteReference> remoteReferences,
@@ -182,6 +232,14 @@ public class RemoteMethodInvocationHandler implements Work {
                     args[i] = context.getLocalObjectFromProxy(remoteLock.getRemoteObjectId());
                     argTypes[i] = args[i].getClass();
                 }
+                if (args[i] instanceof Lock[]) {
+                    Lock locks[] = (Lock[]) args[i];
+                    for (int j = 0; j < locks.length; j++) {
+                        if (locks[j] instanceof RemoteLock) {
+                            locks[j] = (Lock) context.getLocalObjectFromProxy(((RemoteLock) locks[j]).getRemoteObjectId());
+                        }
+                    }
+                }
             }
             argTypes[i] = getSpecificClassTypeIfRequired(args[i]);
             argTypes[i] = getPrimitiveClassIfRequired(argTypes[i]);
@@ -209,15 +267,23 @@ public class RemoteMethodInvocationHandler implements Work {
         }
     }
 
-    private void postInvocation(Object targetObject, Method method) throws NoSuchMethodException {
+    private void postInvocation(Object targetObject, Method method) {
         if (xaFileSystem.getHandleGeneralRemoteInvocations()) {
-            if (method.equals(MessageEndpoint.class.getMethod("release", new Class[0]))) {
+            if (method.equals(MESSAGE_ENDPOINT_RELEASE)) {
                 HostedContext globalCallbackContext = xaFileSystem.getGlobalCallbackContext();
                 globalCallbackContext.deHostObject(targetObject);
             }
         }
     }
 
+    private static Method getMessageEndpointReleaseMethod() {
+        try {
+            return MessageEndpoint.class.getMethod("release", new Class[0]);
+        } catch (NoSuchMethodException nsme) {
+            throw new AssertionError(nsme);
+        }
+    }
+
     public void release() {
         enabled = false;
         if (writeSelector.isOpen()) {
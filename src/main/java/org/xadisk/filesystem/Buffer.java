@@ -154,7 +154,7 @@ public class Buffer {
             logChannelIndex = logIndex;
         }
         logFileChannel.position(onDiskInfo.getLocation() + headerLength + offsetToReadFrom);
-        target.limit(fileContentLength - offsetToReadFrom);
+        target.limit(Math.min(target.limit(), fileContentLength - offsetToReadFrom));
         int numRead = 0;
         while (numRead == 0) {
             numRead = logFileChannel.read(target);
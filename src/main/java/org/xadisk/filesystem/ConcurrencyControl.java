@@ -22,8 +22,18 @@ public interface ConcurrencyControl {
             throws LockingFailedException, InterruptedException, TransactionRolledbackException,
             DeadLockVictimizedException, TransactionTimeoutException;
 
+    public Lock[] acquireFileLocks(TransactionInformation requestor, File files[], long time, boolean exclusive[])
+            throws LockingFailedException, InterruptedException, TransactionRolledbackException,
+            DeadLockVictimizedException, TransactionTimeoutException;
+
+    public Lock escalateLocks(TransactionInformation requestor, File dir, boolean exclusive);
+
+    public File[] awaitRecalledLocks(TransactionInformation owner, long time) throws InterruptedException;
+
     public void releaseLock(TransactionInformation releasor, Lock lock);
 
+    public void releaseLocks(TransactionInformation releasor, Lock locks[]);
+
     public void releaseRenamePinOnDirectories(ArrayList<File> dirs);
 
     public void releaseRenamePinOnDirectory(File dir);
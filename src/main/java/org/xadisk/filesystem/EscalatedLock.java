@@ -0,0 +1,71 @@
+/*
+ Copyright © 2010-2014, Nitin Verma (project owner for XADisk https://xadisk.dev.java.net/). All rights reserved.
+
+ This source code is being made available to the public under the terms specified in the license
+ "Eclipse Public License 1.0" located at http://www.opensource.org/licenses/eclipse-1.0.php.
+ */
+package org.xadisk.filesystem;
+
+import java.io.File;
+
+/*
+ * A lock, held by one transaction, over everything below a directory, taken in place of the many
+ * locks the transaction would otherwise hold over the files in that directory (lock escalation).
+ * It lives inside the directory's NativeLock, but is independent of the lock on the directory itself.
+ * An exclusive escalated lock conflicts with all the locks of other transactions in the subtree, and
+ * a shared one with their exclusive locks only.
+ * A transaction which has to wait for the release of an escalated lock recalls it; the owner of a lock
+ * lease (see LockLeases), which is such a lock, is notified of the recall and gives the lease up. The
+ * recall state is guarded by the recallsLock of the NativeConcurrencyControl.
+ */
+public class EscalatedLock implements Lock {
+
+    private static final long serialVersionUID = 1L;
+    private final NativeLock directoryLock;
+    private final TransactionInformation owner;
+    private final boolean exclusive;
+    private boolean recalled = false;
+    private boolean released = false;
+
+    EscalatedLock(NativeLock directoryLock, TransactionInformation owner, boolean exclusive) {
+        this.directoryLock = directoryLock;
+        this.owner = owner;
+        this.exclusive = exclusive;
+    }
+
+    public File getResource() {
+        return directoryLock.getResource();
+    }
+
+    public boolean isExclusive() {
+        return exclusive;
+    }
+
+    NativeLock getDirectoryLock() {
+        return directoryLock;
+    }
+
+    TransactionInformation getOwner() {
+        return owner;
+    }
+
+    void recall() {
+        recalled = true;
+    }
+
+    boolean isRecalled() {
+        return recalled;
+    }
+
+    void markReleased() {
+        released = true;
+    }
+
+    boolean isReleased() {
+        return released;
+    }
+
+    boolean conflictsWith(TransactionInformation requestor, boolean exclusiveRequest) {
+        return !owner.equals(requestor) && (exclusive || exclusiveRequest);
+    }
+}
@@ -53,6 +53,14 @@ public class FileSystemConfiguration implements Serializable {
     private Boolean enableClusterMode = false;
     private String clusterMasterAddress;
     private Integer clusterMasterPort;
+    private Boolean enableGroupCommit = false;
+    private Integer groupCommitMaxWait = 0;
+    private Integer groupCommitMaxBatchSize = 100;
+    private Boolean enableMemoryMappedReads = false;
+    private Integer memoryMappedReadWindowSize = 67108864;
+    private Boolean preallocateTransactionLogs = false;
+    private Integer lockEscalationThreshold = 0;
+    private Boolean enableClusterLockLeases = false;
 
     /**
      * A constructor called by the JavaEE Container while deploying XADisk JCA Resource Adapter. The
@@ -368,6 +376,8 @@ public class FileSystemConfiguration implements Serializable {
      * Returns the value of deadLockDetectorInterval.
      * <p> This is the time interval (in seconds) in which the deadlock detection mechanism gets
      * triggered to detect deadlocks in the system and to take appropriate action to remedy them.
+     * <p> Since XADisk 1.3, deadlocks are detected as soon as a transaction starts waiting for a lock,
+     * and this periodic detection only remains as a safety net, for the (large) cycles missed there.
      * <p> Default value is 30 seconds.
      * @return value of deadLockDetectorInterval, in seconds.
      */
@@ -379,6 +389,8 @@ public class FileSystemConfiguration implements Serializable {
      * Sets the value of deadLockDetectorInterval.
      * <p> This is the time interval (in seconds) in which the deadlock detection mechanism gets
      * triggered to detect deadlocks in the system and to take appropriate action to remedy them.
+     * <p> Since XADisk 1.3, deadlocks are detected as soon as a transaction starts waiting for a lock,
+     * and this periodic detection only remains as a safety net, for the (large) cycles missed there.
      * <p> Default value is 30 seconds.
      * @param deadLockDetectorInterval new value of deadLockDetectorInterval.
      */
@@ -662,6 +674,278 @@ public class FileSystemConfiguration implements Serializable {
         this.enableClusterMode = enableClusterMode;
     }
 
+    /**
+     * Returns the value of enableGroupCommit (a performance tuning property).
+     * <p> Every transaction writes a few small records to the transaction log (at commit, at prepare,
+     * and on completion) which must reach the disk before the transaction can proceed. By default,
+     * each such record is written and forced to the disk on its own.
+     * <p> If this flag is set to true, such records from concurrent transactions are queued up and
+     * a single thread writes all of them together and forces the transaction log only once for
+     * the whole group. This reduces the number of disk syncs when many small transactions are
+     * committing concurrently.
+     * <p> See also {@link #getGroupCommitMaxWait() groupCommitMaxWait} and
+     * {@link #getGroupCommitMaxBatchSize() groupCommitMaxBatchSize}.
+     * <p> Default value is false.
+     * @return value of enableGroupCommit.
+     * @since 1.3
+     */
+    public Boolean getEnableGroupCommit() {
+        return enableGroupCommit;
+    }
+
+    /**
+     * Sets the value of enableGroupCommit (a performance tuning property).
+     * <p> Every transaction writes a few small records to the transaction log (at commit, at prepare,
+     * and on completion) which must reach the disk before the transaction can proceed. By default,
+     * each such record is written and forced to the disk on its own.
+     * <p> If this flag is set to true, such records from concurrent transactions are queued up and
+     * a single thread writes all of them together and forces the transaction log only once for
+     * the whole group. This reduces the number of disk syncs when many small transactions are
+     * committing concurrently.
+     * <p> See also {@link #getGroupCommitMaxWait() groupCommitMaxWait} and
+     * {@link #getGroupCommitMaxBatchSize() groupCommitMaxBatchSize}.
+     * <p> Default value is false.
+     * @param enableGroupCommit new value of enableGroupCommit.
+     * @since 1.3
+     */
+    public void setEnableGroupCommit(Boolean enableGroupCommit) {
+        this.enableGroupCommit = enableGroupCommit;
+    }
+
+    /**
+     * Returns the value of groupCommitMaxWait (a performance tuning property).
+     * <p> This property is used only when {@link #getEnableGroupCommit() enableGroupCommit} is true.
+     * It is the maximum time (in microseconds) for which the thread writing a group of
+     * log records waits for more records to join the group before writing it. The wait ends
+     * earlier if the group reaches {@link #getGroupCommitMaxBatchSize() groupCommitMaxBatchSize}.
+     * <p> A value of 0 means no waiting; the group then consists of the records which arrived while
+     * the previous group was being written.
+     * <p> Default value is 0.
+     * @return value of groupCommitMaxWait, in microseconds.
+     * @since 1.3
+     */
+    public Integer getGroupCommitMaxWait() {
+        return groupCommitMaxWait;
+    }
+
+    /**
+     * Sets the value of groupCommitMaxWait (a performance tuning property).
+     * <p> This property is used only when {@link #getEnableGroupCommit() enableGroupCommit} is true.
+     * It is the maximum time (in microseconds) for which the thread writing a group of
+     * log records waits for more records to join the group before writing it. The wait ends
+     * earlier if the group reaches {@link #getGroupCommitMaxBatchSize() groupCommitMaxBatchSize}.
+     * <p> A value of 0 means no waiting; the group then consists of the records which arrived while
+     * the previous group was being written.
+     * <p> Default value is 0.
+     * @param groupCommitMaxWait new value of groupCommitMaxWait, in microseconds.
+     * @since 1.3
+     */
+    public void setGroupCommitMaxWait(Integer groupCommitMaxWait) {
+        this.groupCommitMaxWait = groupCommitMaxWait;
+    }
+
+    /**
+     * Returns the value of groupCommitMaxBatchSize (a performance tuning property).
+     * <p> This property is used only when {@link #getEnableGroupCommit() enableGroupCommit} is true.
+     * It is the maximum number of log records written to the disk together with a single
+     * force of the transaction log.
+     * <p> Default value is 100.
+     * @return value of groupCommitMaxBatchSize.
+     * @since 1.3
+     */
+    public Integer getGroupCommitMaxBatchSize() {
+        return groupCommitMaxBatchSize;
+    }
+
+    /**
+     * Sets the value of groupCommitMaxBatchSize (a performance tuning property).
+     * <p> This property is used only when {@link #getEnableGroupCommit() enableGroupCommit} is true.
+     * It is the maximum number of log records written to the disk together with a single
+     * force of the transaction log.
+     * <p> Default value is 100.
+     * @param groupCommitMaxBatchSize new value of groupCommitMaxBatchSize.
+     * @since 1.3
+     */
+    public void setGroupCommitMaxBatchSize(Integer groupCommitMaxBatchSize) {
+        this.groupCommitMaxBatchSize = groupCommitMaxBatchSize;
+    }
+
+    /**
+     * Returns the value of enableMemoryMappedReads (a performance tuning property).
+     * <p> By default, the contents of a file which are not modified by the reading transaction itself
+     * are read from the physical file through the stream's buffer (of size {@link #getBufferSize() bufferSize}),
+     * one buffer-full at a time.
+     * <p> If this flag is set to true, such contents are instead read from a memory-mapped window of the physical
+     * file, of size {@link #getMemoryMappedReadWindowSize() memoryMappedReadWindowSize}. This saves a system call
+     * and a copy per buffer-full when scanning through large files. The stream falls back to normal reads
+     * for a file being modified (in heavy-write mode) by the same transaction, or if the mapping fails.
+     * <p> A window is unmapped only when it gets garbage collected, not when the stream is closed or moves
+     * to another window, as Java has no way to unmap it explicitly. Until then, the physical file stays
+     * mapped; on some platforms (e.g. Windows), this makes a delete or a rename of that file fail, even
+     * when done by the commit of a transaction. So this flag is best left false where files which are
+     * read are soon deleted or moved.
+     * <p> Default value is false.
+     * @return value of enableMemoryMappedReads.
+     * @since 1.3
+     */
+    public Boolean getEnableMemoryMappedReads() {
+        return enableMemoryMappedReads;
+    }
+
+    /**
+     * Sets the value of enableMemoryMappedReads (a performance tuning property).
+     * <p> By default, the contents of a file which are not modified by the reading transaction itself
+     * are read from the physical file through the stream's buffer (of size {@link #getBufferSize() bufferSize}),
+     * one buffer-full at a time.
+     * <p> If this flag is set to true, such contents are instead read from a memory-mapped window of the physical
+     * file, of size {@link #getMemoryMappedReadWindowSize() memoryMappedReadWindowSize}. This saves a system call
+     * and a copy per buffer-full when scanning through large files. The stream falls back to normal reads
+     * for a file being modified (in heavy-write mode) by the same transaction, or if the mapping fails.
+     * <p> A window is unmapped only when it gets garbage collected, not when the stream is closed or moves
+     * to another window, as Java has no way to unmap it explicitly. Until then, the physical file stays
+     * mapped; on some platforms (e.g. Windows), this makes a delete or a rename of that file fail, even
+     * when done by the commit of a transaction. So this flag is best left false where files which are
+     * read are soon deleted or moved.
+     * <p> Default value is false.
+     * @param enableMemoryMappedReads new value of enableMemoryMappedReads.
+     * @since 1.3
+     */
+    public void setEnableMemoryMappedReads(Boolean enableMemoryMappedReads) {
+        this.enableMemoryMappedReads = enableMemoryMappedReads;
+    }
+
+    /**
+     * Returns the value of memoryMappedReadWindowSize (a performance tuning property).
+     * <p> This property is used only when {@link #getEnableMemoryMappedReads() enableMemoryMappedReads} is true.
+     * It is the maximum size (in bytes) of the window of the physical file which an input stream maps
+     * into memory at a time.
+     * <p> Default value is 67108864 (64 MB).
+     * @return value of memoryMappedReadWindowSize, in bytes.
+     * @since 1.3
+     */
+    public Integer getMemoryMappedReadWindowSize() {
+        return memoryMappedReadWindowSize;
+    }
+
+    /**
+     * Sets the value of memoryMappedReadWindowSize (a performance tuning property).
+     * <p> This property is used only when {@link #getEnableMemoryMappedReads() enableMemoryMappedReads} is true.
+     * It is the maximum size (in bytes) of the window of the physical file which an input stream maps
+     * into memory at a time.
+     * <p> Default value is 67108864 (64 MB).
+     * @param memoryMappedReadWindowSize new value of memoryMappedReadWindowSize, in bytes.
+     * @since 1.3
+     */
+    public void setMemoryMappedReadWindowSize(Integer memoryMappedReadWindowSize) {
+        this.memoryMappedReadWindowSize = memoryMappedReadWindowSize;
+    }
+
+    /**
+     * Returns the value of preallocateTransactionLogs (a performance tuning property).
+     * <p> If this flag is set to true, XADisk keeps a zero-filled transaction log file of size
+     * {@link #getTransactionLogFileMaxSize() transactionLogFileMaxSize} ready in the background, and
+     * switches to it when the current transaction log fills up. Transaction logs which are no longer
+     * required are kept (at most two of them) for reuse in place of being deleted. This avoids the
+     * file creation/deletion and the growing of the log file on the commit path, at the cost of
+     * keeping up to three such files on the disk.
+     * <p> Default value is false.
+     * @return value of preallocateTransactionLogs.
+     * @since 1.3
+     */
+    public Boolean getPreallocateTransactionLogs() {
+        return preallocateTransactionLogs;
+    }
+
+    /**
+     * Sets the value of preallocateTransactionLogs (a performance tuning property).
+     * <p> If this flag is set to true, XADisk keeps a zero-filled transaction log file of size
+     * {@link #getTransactionLogFileMaxSize() transactionLogFileMaxSize} ready in the background, and
+     * switches to it when the current transaction log fills up. Transaction logs which are no longer
+     * required are kept (at most two of them) for reuse in place of being deleted. This avoids the
+     * file creation/deletion and the growing of the log file on the commit path, at the cost of
+     * keeping up to three such files on the disk.
+     * <p> Default value is false.
+     * @param preallocateTransactionLogs new value of preallocateTransactionLogs.
+     * @since 1.3
+     */
+    public void setPreallocateTransactionLogs(Boolean preallocateTransactionLogs) {
+        this.preallocateTransactionLogs = preallocateTransactionLogs;
+    }
+
+    /**
+     * Returns the value of lockEscalationThreshold (a performance tuning property).
+     * <p> Once a transaction holds more than this many locks over the files/directories directly inside
+     * a directory, XADisk tries to replace them by a single lock over that directory's subtree (lock
+     * escalation); this lock is shared if all those locks are shared, and exclusive otherwise. The
+     * escalation succeeds only if no other transaction holds a conflicting lock in the subtree at that
+     * moment, and is retried later if it does not. Afterwards, the transaction needs no further locks
+     * in the subtree, while other transactions wanting conflicting locks there wait for the transaction
+     * to complete.
+     * <p> A value of 0 disables lock escalation.
+     * <p> Default value is 0.
+     * @return value of lockEscalationThreshold.
+     * @since 1.3
+     */
+    public Integer getLockEscalationThreshold() {
+        return lockEscalationThreshold;
+    }
+
+    /**
+     * Sets the value of lockEscalationThreshold (a performance tuning property).
+     * <p> Once a transaction holds more than this many locks over the files/directories directly inside
+     * a directory, XADisk tries to replace them by a single lock over that directory's subtree (lock
+     * escalation); this lock is shared if all those locks are shared, and exclusive otherwise. The
+     * escalation succeeds only if no other transaction holds a conflicting lock in the subtree at that
+     * moment, and is retried later if it does not. Afterwards, the transaction needs no further locks
+     * in the subtree, while other transactions wanting conflicting locks there wait for the transaction
+     * to complete.
+     * <p> A value of 0 disables lock escalation.
+     * <p> Default value is 0.
+     * @param lockEscalationThreshold new value of lockEscalationThreshold.
+     * @since 1.3
+     */
+    public void setLockEscalationThreshold(Integer lockEscalationThreshold) {
+        this.lockEscalationThreshold = lockEscalationThreshold;
+    }
+
+    /**
+     * Returns the value of enableClusterLockLeases (a performance tuning property).
+     * <p> This property applies only to the instances in an XADisk cluster (see
+     * {@link #getEnableClusterMode() enableClusterMode}) other than the master instance. If this flag is set
+     * to true, such an instance, after its transactions have taken a few shared locks over the files in a
+     * directory, asks the master for a shared lease over that directory's subtree. As long as it holds the
+     * lease, it grants the shared locks inside that subtree by itself, without contacting the master.
+     * <p> A transaction asking for a conflicting lock waits at the master till the lease is given up; the
+     * instance checks for such requests every second, and then gives up the lease after taking (at the
+     * master) the shared locks it had granted under the lease. Leases remaining unused for some time
+     * are given up too.
+     * <p> Default value is false.
+     * @return value of enableClusterLockLeases.
+     * @since 1.3
+     */
+    public Boolean getEnableClusterLockLeases() {
+        return enableClusterLockLeases;
+    }
+
+    /**
+     * Sets the value of enableClusterLockLeases (a performance tuning property).
+     * <p> This property applies only to the instances in an XADisk cluster (see
+     * {@link #getEnableClusterMode() enableClusterMode}) other than the master instance. If this flag is set
+     * to true, such an instance, after its transactions have taken a few shared locks over the files in a
+     * directory, asks the master for a shared lease over that directory's subtree. As long as it holds the
+     * lease, it grants the shared locks inside that subtree by itself, without contacting the master.
+     * <p> A transaction asking for a conflicting lock waits at the master till the lease is given up; the
+     * instance checks for such requests every second, and then gives up the lease after taking (at the
+     * master) the shared locks it had granted under the lease. Leases remaining unused for some time
+     * are given up too.
+     * <p> Default value is false.
+     * @param enableClusterLockLeases new value of enableClusterLockLeases.
+     * @since 1.3
+     */
+    public void setEnableClusterLockLeases(Boolean enableClusterLockLeases) {
+        this.enableClusterLockLeases = enableClusterLockLeases;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj instanceof FileSystemConfiguration) {
@@ -0,0 +1,201 @@
+/*
+ Copyright © 2010-2014, Nitin Verma (project owner for XADisk https://xadisk.dev.java.net/). All rights reserved.
+
+ This source code is being made available to the public under the terms specified in the license
+ "Eclipse Public License 1.0" located at http://www.opensource.org/licenses/eclipse-1.0.php.
+ */
+package org.xadisk.filesystem;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Collects statistics about the waits for locks in the NativeConcurrencyControl; a wait gets recorded
+ * when it ends (see ResourceDependencyGraph.Node for where it starts). Only the waits are recorded, and
+ * never the locks granted right away, so the cost is paid on the slow path only.
+ * The statistics are kept per path waited for, and per lock mode. To bound the memory used, the paths
+ * seen after MAX_PATHS distinct ones are all counted together, against OTHER_PATHS.
+ */
+public class LockContentionProfiler implements LockContentionProfilerMBean {
+
+    public static final byte MODE_SHARED = 0;
+    public static final byte MODE_EXCLUSIVE = 1;
+    public static final byte MODE_SUBTREE = 2;
+    public static final byte OUTCOME_ACQUIRED = 0;
+    public static final byte OUTCOME_TIMED_OUT = 1;
+    public static final byte OUTCOME_DEADLOCK_VICTIM = 2;
+    public static final byte OUTCOME_TRANSACTION_TIMEOUT = 3;
+    public static final byte OUTCOME_INTERRUPTED = 4;
+    private static final String MODE_NAMES[] = {"shared", "exclusive", "subtree"};
+    private static final long HISTOGRAM_BOUNDS_MILLIS[] = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000};
+    private static final int MAX_PATHS = 4096;
+    private static final String OTHER_PATHS = "(other paths)";
+    private final ConcurrentHashMap<String, PathStatistics> statisticsPerPath =
+            new ConcurrentHashMap<String, PathStatistics>(256);
+    private volatile WaitStatistics overall = new WaitStatistics();
+
+    public void recordWait(File resource, byte mode, long waitedNanos, byte outcome) {
+        String path = resource.getAbsolutePath();
+        PathStatistics pathStatistics = statisticsPerPath.get(path);
+        if (pathStatistics == null) {
+            if (statisticsPerPath.size() >= MAX_PATHS) {
+                path = OTHER_PATHS;
+            }
+            pathStatistics = new PathStatistics();
+            PathStatistics existing = statisticsPerPath.putIfAbsent(path, pathStatistics);
+            if (existing != null) {
+                pathStatistics = existing;
+            }
+        }
+        pathStatistics.perMode[mode].record(waitedNanos, outcome);
+        overall.record(waitedNanos, outcome);
+    }
+
+    public long getWaits() {
+        return overall.waits.get();
+    }
+
+    public long getWaitTimeMillis() {
+        return overall.waitedNanos.get() / 1000000;
+    }
+
+    public long getTimeouts() {
+        return overall.outcomes.get(OUTCOME_TIMED_OUT);
+    }
+
+    public long getDeadlockVictims() {
+        return overall.outcomes.get(OUTCOME_DEADLOCK_VICTIM);
+    }
+
+    public long getTransactionTimeouts() {
+        return overall.outcomes.get(OUTCOME_TRANSACTION_TIMEOUT);
+    }
+
+    public long[] getWaitTimeHistogramBoundsMillis() {
+        return HISTOGRAM_BOUNDS_MILLIS.clone();
+    }
+
+    public long[] getWaitTimeHistogram() {
+        return overall.getHistogram();
+    }
+
+    public String[] reportHottestPaths(int count) {
+        ArrayList<ReportLine> lines = new ArrayList<ReportLine>();
+        for (Map.Entry<String, PathStatistics> entry : statisticsPerPath.entrySet()) {
+            WaitStatistics perMode[] = entry.getValue().perMode;
+            for (byte mode = 0; mode < perMode.length; mode++) {
+                if (perMode[mode].waits.get() > 0) {
+                    lines.add(new ReportLine(entry.getKey(), mode, perMode[mode]));
+                }
+            }
+        }
+        Collections.sort(lines, new Comparator<ReportLine>() {
+
+            public int compare(ReportLine line1, ReportLine line2) {
+                return line1.waitedNanos > line2.waitedNanos ? -1 : (line1.waitedNanos == line2.waitedNanos ? 0 : 1);
+            }
+        });
+        String report[] = new String[Math.min(Math.max(count, 0), lines.size())];
+        for (int i = 0; i < report.length; i++) {
+            report[i] = lines.get(i).toString();
+        }
+        return report;
+    }
+
+    public void reset() {
+        statisticsPerPath.clear();
+        overall = new WaitStatistics();
+    }
+
+    private static int findHistogramBucket(long waitedNanos) {
+        long waitedMillis = waitedNanos / 1000000;
+        for (int i = 0; i < HISTOGRAM_BOUNDS_MILLIS.length; i++) {
+            if (waitedMillis < HISTOGRAM_BOUNDS_MILLIS[i]) {
+                return i;
+            }
+        }
+        return HISTOGRAM_BOUNDS_MILLIS.length;
+    }
+
+    private static class PathStatistics {
+
+        private final WaitStatistics perMode[] = new WaitStatistics[MODE_NAMES.length];
+
+        private PathStatistics() {
+            for (int i = 0; i < perMode.length; i++) {
+                perMode[i] = new WaitStatistics();
+            }
+        }
+    }
+
+    private static class WaitStatistics {
+
+        private final AtomicLong waits = new AtomicLong(0);
+        private final AtomicLong waitedNanos = new AtomicLong(0);
+        private final AtomicLong maxWaitedNanos = new AtomicLong(0);
+        private final AtomicLongArray outcomes = new AtomicLongArray(OUTCOME_INTERRUPTED + 1);
+        private final AtomicLongArray histogram = new AtomicLongArray(HISTOGRAM_BOUNDS_MILLIS.length + 1);
+
+        private void record(long nanos, byte outcome) {
+            waits.incrementAndGet();
+            waitedNanos.addAndGet(nanos);
+            long max = maxWaitedNanos.get();
+            while (nanos > max && !maxWaitedNanos.compareAndSet(max, nanos)) {
+                max = maxWaitedNanos.get();
+            }
+            outcomes.incrementAndGet(outcome);
+            histogram.incrementAndGet(findHistogramBucket(nanos));
+        }
+
+        private long[] getHistogram() {
+            long counts[] = new long[histogram.length()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = histogram.get(i);
+            }
+            return counts;
+        }
+    }
+
+    /*
+     * A snapshot, so that the sorting doesn't see the numbers changing.
+     */
+    private static class ReportLine {
+
+        private final String path;
+        private final byte mode;
+        private final long waits;
+        private final long waitedNanos;
+        private final long maxWaitedNanos;
+        private final long timeouts;
+        private final long deadlockVictims;
+        private final long transactionTimeouts;
+        private final long histogram[];
+
+        private ReportLine(String path, byte mode, WaitStatistics statistics) {
+            this.path = path;
+            this.mode = mode;
+            this.waits = statistics.waits.get();
+            this.waitedNanos = statistics.waitedNanos.get();
+            this.maxWaitedNanos = statistics.maxWaitedNanos.get();
+            this.timeouts = statistics.outcomes.get(OUTCOME_TIMED_OUT);
+            this.deadlockVictims = statistics.outcomes.get(OUTCOME_DEADLOCK_VICTIM);
+            this.transactionTimeouts = statistics.outcomes.get(OUTCOME_TRANSACTION_TIMEOUT);
+            this.histogram = statistics.getHistogram();
+        }
+
+        @Override
+        public String toString() {
+            return path + " [" + MODE_NAMES[mode] + "] waits=" + waits + " waitTimeMillis=" + waitedNanos / 1000000
+                    + " maxWaitTimeMillis=" + maxWaitedNanos / 1000000 + " timeouts=" + timeouts
+                    + " deadlockVictims=" + deadlockVictims + " transactionTimeouts=" + transactionTimeouts
+                    + " histogram=" + Arrays.toString(histogram);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ Copyright © 2010-2014, Nitin Verma (project owner for XADisk https://xadisk.dev.java.net/). All rights reserved.
+
+ This source code is being made available to the public under the terms specified in the license
+ "Eclipse Public License 1.0" located at http://www.opensource.org/licenses/eclipse-1.0.php.
+ */
+package org.xadisk.filesystem;
+
+/**
+ * The management interface, published over JMX, of the statistics an XADisk instance keeps about the waits
+ * for locks inside it. The statistics are kept only by the instance managing the locks, i.e. the master
+ * instance in case of an XADisk cluster.
+ * <p> The object name is "org.xadisk:type=LockContentionProfiler,instance=&lt;instanceId&gt;".
+ *
+ * @since 1.3
+ */
+public interface LockContentionProfilerMBean {
+
+    /**
+     * Returns the number of waits for locks, including the ones which ended without the lock.
+     * @return number of waits.
+     */
+    public long getWaits();
+
+    /**
+     * Returns the total time spent in the waits for locks, in milliseconds.
+     * @return total wait time.
+     */
+    public long getWaitTimeMillis();
+
+    /**
+     * Returns the number of waits which ended because the lock wait timeout expired.
+     * @return number of lock wait timeouts.
+     */
+    public long getTimeouts();
+
+    /**
+     * Returns the number of waits which ended because the waiting transaction was chosen as
+     * the victim for breaking a deadlock.
+     * @return number of deadlock victims.
+     */
+    public long getDeadlockVictims();
+
+    /**
+     * Returns the number of waits which ended because the waiting transaction timed out.
+     * @return number of transaction timeouts during waits.
+     */
+    public long getTransactionTimeouts();
+
+    /**
+     * Returns the upper bounds, in milliseconds, of the buckets of the wait time histograms. The last
+     * bucket of a histogram (one more than the bounds) counts the waits longer than the last bound.
+     * @return bucket bounds.
+     */
+    public long[] getWaitTimeHistogramBoundsMillis();
+
+    /**
+     * Returns the histogram of the times of all the waits for locks.
+     * @return counts of waits in each bucket.
+     */
+    public long[] getWaitTimeHistogram();
+
+    /**
+     * Returns the statistics for the paths with the highest total wait time, one line per path and lock
+     * mode waited for (shared, exclusive, or release of a lock over a whole subtree).
+     * @param count number of lines to return.
+     * @return the report lines, hottest first.
+     */
+    public String[] reportHottestPaths(int count);
+
+    /**
+     * Discards all the statistics collected till now.
+     */
+    public void reset();
+}
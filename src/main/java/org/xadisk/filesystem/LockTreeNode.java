@@ -7,9 +7,8 @@
 package org.xadisk.filesystem;
 
 import java.io.File;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
-import java.util.ArrayList;
-import java.util.Collection;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -17,19 +16,32 @@ public class LockTreeNode {
 
     private final File path;
     private NativeLock lock;
-    private final ConcurrentHashMap<String, WeakReference<LockTreeNode>> children =
-            new ConcurrentHashMap<String, WeakReference<LockTreeNode>>();
+    private final ConcurrentHashMap<String, NodeReference> children =
+            new ConcurrentHashMap<String, NodeReference>();
     private final AtomicReference<TransactionInformation> pinHolder = new AtomicReference<TransactionInformation>(null);
+    private final ConcurrentHashMap<TransactionInformation, Integer> intentions =
+            new ConcurrentHashMap<TransactionInformation, Integer>(4);
+    private final ConcurrentHashMap<TransactionInformation, Integer> exclusiveIntentions =
+            new ConcurrentHashMap<TransactionInformation, Integer>(4);
     private final LockTreeNode parentNode;//to keep a "strong" ref to all the ancestors to protect them from gc.
+    private final NodeReference reference;
+    private final ReferenceQueue<LockTreeNode> collectedNodes;
 
-    LockTreeNode(File path, boolean withExclusiveLock, LockTreeNode parentNode) {
+    LockTreeNode(File path, boolean withExclusiveLock, LockTreeNode parentNode, String name,
+            ReferenceQueue<LockTreeNode> collectedNodes) {
         this.path = path;
         this.lock = new NativeLock(withExclusiveLock, path, this);
         this.parentNode = parentNode;
+        this.collectedNodes = collectedNodes;
+        if (parentNode == null) {
+            this.reference = null;
+        } else {
+            this.reference = new NodeReference(this, parentNode, name, collectedNodes);
+        }
     }
 
     LockTreeNode getChild(String name) {
-        WeakReference<LockTreeNode> nodeWR = children.get(name);
+        NodeReference nodeWR = children.get(name);
         LockTreeNode node;
         if (nodeWR != null) {
             node = nodeWR.get();
@@ -37,14 +49,12 @@ public class LockTreeNode {
                 return node;
             }
         }
-        node = new LockTreeNode(new File(path, name), false, this);
-        WeakReference<LockTreeNode> newNodeWR =
-                new WeakReference<LockTreeNode>(node);
+        node = new LockTreeNode(new File(path, name), false, this, name, collectedNodes);
         boolean success;
         if (nodeWR == null) {
-            success = children.putIfAbsent(name, newNodeWR) == null;
+            success = children.putIfAbsent(name, node.reference) == null;
         } else {
-            success = children.replace(name, nodeWR, newNodeWR);
+            success = children.replace(name, nodeWR, node.reference);
             //replace wont work with args null, so needed if-else.
         }
         if (success) {
@@ -54,18 +64,11 @@ public class LockTreeNode {
         }
     }
 
-    Collection<LockTreeNode> getAllChildren() {
-        Collection<WeakReference<LockTreeNode>> childrenRef =
-                children.values();
-        ArrayList<LockTreeNode> childrenList =
-                new ArrayList<LockTreeNode>(childrenRef.size());
-        for (WeakReference<LockTreeNode> childRef : childrenRef) {
-            LockTreeNode child = childRef.get();
-            if (child != null) {
-                childrenList.add(child);
-            }
-        }
-        return childrenList;
+    /*
+     * Called once the node referred by the given reference has been garbage collected.
+     */
+    void removeChild(NodeReference childReference) {
+        children.remove(childReference.name, childReference);
     }
 
     boolean isPinnedByOtherTransaction(TransactionInformation thisTransaction) {
@@ -85,6 +88,79 @@ public class LockTreeNode {
         pinHolder.set(null);
     }
 
+    /*
+     * Intention locks: every lock (and pin) held by a transaction is also recorded, as a count per
+     * transaction, on the node of the locked file and on all its ancestors. A pin on a directory
+     * conflicts with the intentions of all other transactions on that one node, so that pinning
+     * need not visit the subtree, while a lock request only checks the pins of its ancestors.
+     * The exclusive locks are additionally counted as exclusive (IX) intentions; these are what a
+     * shared escalated lock (see EscalatedLock) conflicts with.
+     */
+    void addIntention(TransactionInformation xid, boolean exclusive) {
+        incrementCount(intentions, xid);
+        if (exclusive) {
+            incrementCount(exclusiveIntentions, xid);
+        }
+    }
+
+    /*
+     * For a lock upgraded from shared to exclusive mode, whose (shared) intention is already there.
+     */
+    void addExclusiveIntention(TransactionInformation xid) {
+        incrementCount(exclusiveIntentions, xid);
+    }
+
+    void removeIntention(TransactionInformation xid, boolean exclusive) {
+        decrementCount(intentions, xid);
+        if (exclusive) {
+            decrementCount(exclusiveIntentions, xid);
+        }
+    }
+
+    void removeExclusiveIntention(TransactionInformation xid) {
+        decrementCount(exclusiveIntentions, xid);
+    }
+
+    boolean hasIntentionsOfOtherTransactions(TransactionInformation thisTransaction, boolean onlyExclusive) {
+        for (TransactionInformation xid : (onlyExclusive ? exclusiveIntentions : intentions).keySet()) {
+            if (!xid.equals(thisTransaction)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void incrementCount(ConcurrentHashMap<TransactionInformation, Integer> counts,
+            TransactionInformation xid) {
+        while (true) {
+            Integer count = counts.get(xid);
+            if (count == null) {
+                if (counts.putIfAbsent(xid, 1) == null) {
+                    return;
+                }
+            } else if (counts.replace(xid, count, count + 1)) {
+                return;
+            }
+        }
+    }
+
+    private static void decrementCount(ConcurrentHashMap<TransactionInformation, Integer> counts,
+            TransactionInformation xid) {
+        while (true) {
+            Integer count = counts.get(xid);
+            if (count == null) {
+                return;
+            }
+            if (count == 1 ? counts.remove(xid, count) : counts.replace(xid, count, count - 1)) {
+                return;
+            }
+        }
+    }
+
+    TransactionInformation getPinHolder() {
+        return pinHolder.get();
+    }
+
     NativeLock getLock() {
         return lock;
     }
@@ -92,4 +168,40 @@ public class LockTreeNode {
     File getPath() {
         return path;
     }
+
+    LockTreeNode getParentNode() {
+        return parentNode;
+    }
+
+    NodeReference getReference() {
+        return reference;
+    }
+
+    /*
+     * The (only) weak reference to a node, held by its parent's children map and by the resolved
+     * paths cache of the concurrency control. It carries what is needed to remove it from both of
+     * these once the node has been garbage collected and the reference shows up in the queue.
+     */
+    static class NodeReference extends WeakReference<LockTreeNode> {
+
+        private final LockTreeNode parentNode;
+        private final String name;
+        private final String path;
+
+        private NodeReference(LockTreeNode node, LockTreeNode parentNode, String name,
+                ReferenceQueue<LockTreeNode> collectedNodes) {
+            super(node, collectedNodes);
+            this.parentNode = parentNode;
+            this.name = name;
+            this.path = node.path.getPath();
+        }
+
+        LockTreeNode getParentNode() {
+            return parentNode;
+        }
+
+        String getPath() {
+            return path;
+        }
+    }
 }
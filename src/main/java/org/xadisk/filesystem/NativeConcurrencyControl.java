@@ -7,11 +7,19 @@
 package org.xadisk.filesystem;
 
 import java.io.File;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashSet;
-import java.util.List;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.resource.spi.work.WorkException;
 import javax.resource.spi.work.WorkListener;
 import javax.resource.spi.work.WorkManager;
@@ -23,6 +31,7 @@ import org.xadisk.filesystem.exceptions.LockingFailedException;
 import org.xadisk.filesystem.exceptions.LockingTimedOutException;
 import org.xadisk.filesystem.exceptions.TransactionRolledbackException;
 import org.xadisk.filesystem.exceptions.TransactionTimeoutException;
+import org.xadisk.filesystem.utilities.Logger;
 import org.xadisk.filesystem.workers.DeadLockDetector;
 
 public class NativeConcurrencyControl implements ConcurrencyControl {
@@ -33,15 +42,43 @@ public class NativeConcurrencyControl implements ConcurrencyControl {
     private final LockTreeNode rootNode;
     private final ConcurrentHashMap<File, LockTreeNode> pinnedDirectories =
             new ConcurrentHashMap<File, LockTreeNode>();
+    private final ConcurrentHashMap<String, LockTreeNode.NodeReference> resolvedPaths =
+            new ConcurrentHashMap<String, LockTreeNode.NodeReference>(1000);
+    private final ReferenceQueue<LockTreeNode> collectedNodes = new ReferenceQueue<LockTreeNode>();
+    private final LockContentionProfiler contentionProfiler = new LockContentionProfiler();
+    private final HashMap<TransactionInformation, ArrayList<EscalatedLock>> recalledEscalations =
+            new HashMap<TransactionInformation, ArrayList<EscalatedLock>>();
+    private final ReentrantLock recallsLock = new ReentrantLock(false);
+    private final Condition escalationRecalled = recallsLock.newCondition();
+    private final ObjectName contentionProfilerName;
+    private final NativeXAFileSystem nativeXAFileSystem;
 
     public NativeConcurrencyControl(FileSystemConfiguration configuration, WorkManager workManager,
             WorkListener workListener, NativeXAFileSystem nativeXAFileSystem) throws WorkException {
         resourceDependencyGraph = new ResourceDependencyGraph();
+        this.workManager = workManager;
+        this.rootNode = new LockTreeNode(null, false, null, null, collectedNodes);
+        //only a safety net, for the cycles the bounded search done as a wait begins could not see.
         deadLockDetector = new DeadLockDetector(configuration.getDeadLockDetectorInterval(), resourceDependencyGraph,
                 nativeXAFileSystem, this);
-        this.workManager = workManager;
-        this.rootNode = new LockTreeNode(null, false, null);
         this.workManager.startWork(deadLockDetector, WorkManager.INDEFINITE, null, workListener);
+        this.nativeXAFileSystem = nativeXAFileSystem;
+        this.contentionProfilerName = registerContentionProfiler(configuration.getInstanceId());
+    }
+
+    /*
+     * Failing to publish the statistics over JMX is not a reason to fail the boot.
+     */
+    private ObjectName registerContentionProfiler(String instanceId) {
+        try {
+            ObjectName name = new ObjectName("org.xadisk:type=LockContentionProfiler,instance="
+                    + ObjectName.quote(instanceId));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(contentionProfiler, name);
+            return name;
+        } catch (JMException jme) {
+            nativeXAFileSystem.getLogger().logThrowable(jme, Logger.WARNING);
+            return null;
+        }
     }
 
     public Lock acquireFileLock(TransactionInformation requestor, File f, long time, boolean exclusive) throws
@@ -54,64 +91,194 @@ public class NativeConcurrencyControl implements ConcurrencyControl {
         }
     }
 
+    /*
+     * Acquires the locks over the given (distinct) files in the order of their paths, so that transactions
+     * asking for overlapping sets of locks this way do not deadlock over them. Either all the locks get
+     * acquired, or none of them: on a failure, the locks acquired till then are released, and the ones
+     * upgraded are taken back to shared mode. The returned locks are in the order of the given files.
+     */
+    public Lock[] acquireFileLocks(TransactionInformation requestor, final File files[], long time, boolean exclusive[])
+            throws LockingFailedException, InterruptedException, TransactionRolledbackException,
+            DeadLockVictimizedException, TransactionTimeoutException {
+        Integer order[] = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer i1, Integer i2) {
+                return files[i1].getAbsolutePath().compareTo(files[i2].getAbsolutePath());
+            }
+        });
+        Lock locks[] = new Lock[files.length];
+        boolean upgraded[] = new boolean[files.length];
+        boolean success = false;
+        try {
+            for (int i : order) {
+                NativeLock lock = (NativeLock) acquireFileLock(requestor, files[i], time, exclusive[i]);
+                upgraded[i] = lock.isUpgraded();
+                locks[i] = lock;
+            }
+            success = true;
+            return locks;
+        } finally {
+            if (!success) {
+                for (int i = 0; i < files.length; i++) {
+                    if (upgraded[i]) {
+                        undoUpgrade((NativeLock) locks[i], requestor);
+                    } else if (locks[i] != null) {
+                        releaseLock(requestor, locks[i]);
+                    }
+                }
+            }
+        }
+    }
+
     private LockTreeNode traverseDownToFileNode(File f, boolean checkForPins, TransactionInformation requestor) throws AncestorPinnedException {
-        List<String> pathElements = new ArrayList<String>();
-        File currentFile = f;
-        while (currentFile != null) {
-            File parentFile = currentFile.getParentFile();
-            if (parentFile == null) {
-                pathElements.add(currentFile.getAbsolutePath());
-            } else {
-                pathElements.add(currentFile.getName());
+        expungeCollectedNodes();
+        LockTreeNode fileNode = resolveNode(f);
+        if (checkForPins) {
+            LockTreeNode pinnedNode = findPinnedAncestor(fileNode, requestor);
+            if (pinnedNode != null) {
+                throw new AncestorPinnedException(f.getAbsolutePath(), pinnedNode.getPath().getAbsolutePath());
             }
-            currentFile = parentFile;
         }
+        return fileNode;
+    }
 
-        LockTreeNode currentNode = rootNode;
-        List<LockTreeNode> nodesOnPath = new ArrayList<LockTreeNode>();
-        for (int i = pathElements.size() - 1; i >= 0; i--) {
-            currentNode = currentNode.getChild(pathElements.get(i));
-            nodesOnPath.add(currentNode);
+    /*
+     * Returns the top-most node, among the given node and its ancestors, pinned by some other transaction.
+     */
+    private LockTreeNode findPinnedAncestor(LockTreeNode node, TransactionInformation requestor) {
+        LockTreeNode pinnedNode = null;
+        for (LockTreeNode nodeOnPath = node; nodeOnPath != rootNode; nodeOnPath = nodeOnPath.getParentNode()) {
+            if (nodeOnPath.isPinnedByOtherTransaction(requestor)) {
+                pinnedNode = nodeOnPath;
+            }
         }
-        if (checkForPins) {
-            for (LockTreeNode nodeOnPath : nodesOnPath) {
-                if (nodeOnPath.isPinnedByOtherTransaction(requestor)) {
-                    throw new AncestorPinnedException(f.getAbsolutePath(), nodeOnPath.getPath().getAbsolutePath());
-                }
+        return pinnedNode;
+    }
+
+    /*
+     * Returns the escalated lock, held by some other transaction on an ancestor of the given node,
+     * which conflicts with a lock (in the given mode) over the node.
+     */
+    private EscalatedLock findConflictingEscalation(LockTreeNode node, TransactionInformation requestor, boolean exclusive) {
+        for (LockTreeNode nodeOnPath = node.getParentNode(); nodeOnPath != rootNode; nodeOnPath = nodeOnPath.getParentNode()) {
+            EscalatedLock escalatedLock = nodeOnPath.getLock().getEscalation();
+            if (escalatedLock != null && escalatedLock.conflictsWith(requestor, exclusive)) {
+                return escalatedLock;
+            }
+        }
+        return null;
+    }
+
+    private void addIntentions(LockTreeNode node, TransactionInformation requestor, boolean exclusive) {
+        for (LockTreeNode nodeOnPath = node; nodeOnPath != rootNode; nodeOnPath = nodeOnPath.getParentNode()) {
+            nodeOnPath.addIntention(requestor, exclusive);
+        }
+    }
+
+    private void removeIntentions(LockTreeNode node, TransactionInformation requestor, boolean exclusive) {
+        for (LockTreeNode nodeOnPath = node; nodeOnPath != rootNode; nodeOnPath = nodeOnPath.getParentNode()) {
+            nodeOnPath.removeIntention(requestor, exclusive);
+        }
+    }
+
+    private void addExclusiveIntentions(LockTreeNode node, TransactionInformation requestor) {
+        for (LockTreeNode nodeOnPath = node; nodeOnPath != rootNode; nodeOnPath = nodeOnPath.getParentNode()) {
+            nodeOnPath.addExclusiveIntention(requestor);
+        }
+    }
+
+    private void removeExclusiveIntentions(LockTreeNode node, TransactionInformation requestor) {
+        for (LockTreeNode nodeOnPath = node; nodeOnPath != rootNode; nodeOnPath = nodeOnPath.getParentNode()) {
+            nodeOnPath.removeExclusiveIntention(requestor);
+        }
+    }
+
+    /*
+     * Looks up the node for the path in the resolvedPaths cache, and only on a miss walks down the tree
+     * (from the closest ancestor found in the cache), caching the nodes on the way.
+     */
+    private LockTreeNode resolveNode(File f) {
+        LockTreeNode.NodeReference nodeReference = resolvedPaths.get(f.getAbsolutePath());
+        if (nodeReference != null) {
+            LockTreeNode node = nodeReference.get();
+            if (node != null) {
+                return node;
             }
         }
-        return currentNode;
+        File parentFile = f.getParentFile();
+        LockTreeNode node;
+        if (parentFile == null) {
+            node = rootNode.getChild(f.getAbsolutePath());
+        } else {
+            node = resolveNode(parentFile).getChild(f.getName());
+        }
+        resolvedPaths.put(node.getReference().getPath(), node.getReference());
+        return node;
+    }
+
+    private void expungeCollectedNodes() {
+        Reference<? extends LockTreeNode> collected;
+        while ((collected = collectedNodes.poll()) != null) {
+            LockTreeNode.NodeReference nodeReference = (LockTreeNode.NodeReference) collected;
+            resolvedPaths.remove(nodeReference.getPath(), nodeReference);
+            nodeReference.getParentNode().removeChild(nodeReference);
+        }
     }
 
     private Lock acquireSharedLock(TransactionInformation requestor, File f, long time) throws
             LockingFailedException, InterruptedException, TransactionRolledbackException,
             DeadLockVictimizedException, TransactionTimeoutException {
-        LockTreeNode fileNode = traverseDownToFileNode(f, true, requestor);
-        NativeLock lock = fileNode.getLock();
+        while (true) {
+            LockTreeNode fileNode = traverseDownToFileNode(f, true, requestor);
+            NativeLock lock = fileNode.getLock();
+            if (!lock.tryAcquireShared()) {
+                waitForSharedLock(requestor, lock, f, time);
+            }
+            EscalatedLock escalatedLock = resolveConcurrenyWithDirectoryPin(lock, fileNode, requestor, false);
+            if (escalatedLock == null) {
+                return lock;
+            }
+            waitForEscalationRelease(requestor, escalatedLock, f, time);
+        }
+    }
 
+    /*
+     * The slow path; the requestor gets into the resource dependency graph only here, when it
+     * has to wait for the lock.
+     */
+    private void waitForSharedLock(TransactionInformation requestor, NativeLock lock, File f, long time) throws
+            LockingFailedException, InterruptedException, TransactionRolledbackException,
+            DeadLockVictimizedException, TransactionTimeoutException {
         try {
             lock.startSynchBlock();
+            lock.addWaiter();
+            if (lock.tryAcquireShared()) {
+                return;
+            }
             long remainingTime = time;
             boolean indefiniteWait = (time == 0);
-            resourceDependencyGraph.addDependency(requestor, lock);
-            while (lock.isExclusive()) {
+            addDependencyToRDG(requestor, lock, null, LockContentionProfiler.MODE_SHARED);
+            while (true) {
                 try {
                     long now1 = System.currentTimeMillis();
                     lock.waitTillReadable(remainingTime);
-                    if (!lock.isExclusive()) {
+                    if (lock.tryAcquireShared()) {
                         break;
                     }
                     long now2 = System.currentTimeMillis();
                     if (!indefiniteWait) {
                         remainingTime = remainingTime - (now2 - now1);
                         if (remainingTime <= 0) {
-                            removeDependencyFromRDG(requestor);
+                            removeDependencyFromRDG(requestor, LockContentionProfiler.OUTCOME_TIMED_OUT);
                             throw new LockingTimedOutException(f.getAbsolutePath());
                         }
                     }
                 } catch (InterruptedException ie) {
                     byte interruptCause = requestor.getNodeInResourceDependencyGraph().getInterruptCause();
-                    removeDependencyFromRDG(requestor);
+                    removeDependencyFromRDG(requestor, getOutcomeOfInterruptedWait(interruptCause));
                     if (interruptCause == ResourceDependencyGraph.Node.INTERRUPTED_DUE_TO_DEADLOCK) {
                         throw new DeadLockVictimizedException(f.getAbsolutePath());
                     } else if (interruptCause == ResourceDependencyGraph.Node.INTERRUPTED_DUE_TO_TIMEOUT) {
@@ -120,56 +287,115 @@ public class NativeConcurrencyControl implements ConcurrencyControl {
                     throw ie;
                 }
             }
-            removeDependencyFromRDG(requestor);
-            resolveConcurrenyWithDirectoryPin(lock, fileNode, requestor);
-            return lock;
+            removeDependencyFromRDG(requestor, LockContentionProfiler.OUTCOME_ACQUIRED);
         } finally {
+            lock.removeWaiter();
             lock.endSynchBlock();
         }
     }
 
-    private void resolveConcurrenyWithDirectoryPin(NativeLock lock, LockTreeNode fileNode, TransactionInformation requestor) throws AncestorPinnedException {
+    /*
+     * The intentions are recorded before checking for the pins, while pinning records the pin before
+     * checking for the intentions; so at least one of the two sides sees the other. The same holds
+     * for the escalated locks.
+     * If an escalated lock of some other transaction conflicts with this lock, the lock is released
+     * and the escalated lock is returned, for the requestor to wait for its release and try again.
+     */
+    private EscalatedLock resolveConcurrenyWithDirectoryPin(NativeLock lock, LockTreeNode fileNode,
+            TransactionInformation requestor, boolean exclusive) throws AncestorPinnedException {
         lock.addHolder(requestor);
-        if (fileNode.isPinnedByOtherTransaction(requestor)) {
-            lock.removeHolder(requestor);
-            throw new AncestorPinnedException(fileNode.getPath().getAbsolutePath(), "<unknown>");
+        addIntentions(fileNode, requestor, exclusive);
+        LockTreeNode pinnedNode = findPinnedAncestor(fileNode, requestor);
+        if (pinnedNode != null) {
+            releaseLock(requestor, lock);
+            throw new AncestorPinnedException(fileNode.getPath().getAbsolutePath(), pinnedNode.getPath().getAbsolutePath());
+        }
+        EscalatedLock escalatedLock = findConflictingEscalation(fileNode, requestor, exclusive);
+        if (escalatedLock != null) {
+            releaseLock(requestor, lock);
+        }
+        return escalatedLock;
+    }
+
+    /*
+     * For the upgrade case, lock was already acquired (in shared mode); no need to handle directory
+     * pinning case. But a shared escalated lock of some other transaction may have come up meanwhile,
+     * in which case the upgrade is taken back.
+     */
+    private EscalatedLock resolveConcurrencyWithEscalationForUpgrade(NativeLock lock, LockTreeNode fileNode,
+            TransactionInformation requestor) {
+        addExclusiveIntentions(fileNode, requestor);
+        EscalatedLock escalatedLock = findConflictingEscalation(fileNode, requestor, true);
+        if (escalatedLock == null) {
+            return null;
+        }
+        undoUpgrade(lock, requestor);
+        return escalatedLock;
+    }
+
+    private void undoUpgrade(NativeLock lock, TransactionInformation requestor) {
+        removeExclusiveIntentions(lock.getNode(), requestor);
+        lock.downgradeToShared();
+        try {
+            lock.startSynchBlock();
+            lock.notifyReadWritable();
+        } finally {
+            lock.endSynchBlock();
         }
     }
 
     private Lock acquireExclusiveLock(TransactionInformation requestor, File f, long time)
             throws LockingFailedException, InterruptedException, TransactionRolledbackException,
             DeadLockVictimizedException, TransactionTimeoutException {
-        LockTreeNode fileNode = traverseDownToFileNode(f, true, requestor);
-        NativeLock lock = fileNode.getLock();
+        while (true) {
+            LockTreeNode fileNode = traverseDownToFileNode(f, true, requestor);
+            NativeLock lock = fileNode.getLock();
+            if (!lock.tryAcquireExclusive(requestor)) {
+                waitForExclusiveLock(requestor, lock, f, time);
+            }
+            EscalatedLock escalatedLock;
+            if (lock.isUpgraded()) {
+                escalatedLock = resolveConcurrencyWithEscalationForUpgrade(lock, fileNode, requestor);
+            } else {
+                escalatedLock = resolveConcurrenyWithDirectoryPin(lock, fileNode, requestor, true);
+            }
+            if (escalatedLock == null) {
+                return lock;
+            }
+            waitForEscalationRelease(requestor, escalatedLock, f, time);
+        }
+    }
+
+    private void waitForExclusiveLock(TransactionInformation requestor, NativeLock lock, File f, long time)
+            throws LockingFailedException, InterruptedException, TransactionRolledbackException,
+            DeadLockVictimizedException, TransactionTimeoutException {
         try {
             lock.startSynchBlock();
-            if (canUpgradeLock(lock, requestor)) {
-                //upgrade case, so lock was already acquired; no need to handle directory pinning case.
-                lock.setExclusive(true);
-                lock.markUpgraded();
-                return lock;
+            lock.addWaiter();
+            if (lock.tryAcquireExclusive(requestor)) {
+                return;
             }
             long remainingTime = time;
             boolean indefiniteWait = (time == 0);
-            resourceDependencyGraph.addDependency(requestor, lock);
-            while (!(lock.getNumHolders() == 0 || canUpgradeLock(lock, requestor))) {
+            addDependencyToRDG(requestor, lock, null, LockContentionProfiler.MODE_EXCLUSIVE);
+            while (true) {
                 try {
                     long now1 = System.currentTimeMillis();
                     lock.waitTillWritable(remainingTime);
-                    if (lock.getNumHolders() == 0 || canUpgradeLock(lock, requestor)) {
+                    if (lock.tryAcquireExclusive(requestor)) {
                         break;
                     }
                     long now2 = System.currentTimeMillis();
                     if (!indefiniteWait) {
                         remainingTime = remainingTime - (now2 - now1);
                         if (remainingTime <= 0) {
-                            removeDependencyFromRDG(requestor);
+                            removeDependencyFromRDG(requestor, LockContentionProfiler.OUTCOME_TIMED_OUT);
                             throw new LockingTimedOutException(f.getAbsolutePath());
                         }
                     }
                 } catch (InterruptedException ie) {
                     byte interruptCause = requestor.getNodeInResourceDependencyGraph().getInterruptCause();
-                    removeDependencyFromRDG(requestor);
+                    removeDependencyFromRDG(requestor, getOutcomeOfInterruptedWait(interruptCause));
                     if (interruptCause == ResourceDependencyGraph.Node.INTERRUPTED_DUE_TO_DEADLOCK) {
                         throw new DeadLockVictimizedException(f.getAbsolutePath());
                     } else if (interruptCause == ResourceDependencyGraph.Node.INTERRUPTED_DUE_TO_TIMEOUT) {
@@ -178,28 +404,169 @@ public class NativeConcurrencyControl implements ConcurrencyControl {
                     throw ie;
                 }
             }
-            removeDependencyFromRDG(requestor);
-            //don't maky any changes in lock's state before "resolveCorrency" so that we don't need to clean them up.
-            if (canUpgradeLock(lock, requestor)) {
-                lock.markUpgraded();
-            } else {
-                resolveConcurrenyWithDirectoryPin(lock, fileNode, requestor);
+            removeDependencyFromRDG(requestor, LockContentionProfiler.OUTCOME_ACQUIRED);
+        } finally {
+            lock.removeWaiter();
+            lock.endSynchBlock();
+        }
+    }
+
+    private void waitForEscalationRelease(TransactionInformation requestor, EscalatedLock escalatedLock, File f, long time)
+            throws LockingFailedException, InterruptedException, TransactionRolledbackException,
+            DeadLockVictimizedException, TransactionTimeoutException {
+        NativeLock lock = escalatedLock.getDirectoryLock();
+        try {
+            lock.startSynchBlock();
+            lock.addWaiter();
+            if (lock.getEscalation() != escalatedLock) {
+                return;
+            }
+            recallEscalation(escalatedLock);
+            long remainingTime = time;
+            boolean indefiniteWait = (time == 0);
+            addDependencyToRDG(requestor, lock, escalatedLock, LockContentionProfiler.MODE_SUBTREE);
+            while (true) {
+                try {
+                    long now1 = System.currentTimeMillis();
+                    lock.waitTillEscalationReleased(remainingTime);
+                    if (lock.getEscalation() != escalatedLock) {
+                        break;
+                    }
+                    long now2 = System.currentTimeMillis();
+                    if (!indefiniteWait) {
+                        remainingTime = remainingTime - (now2 - now1);
+                        if (remainingTime <= 0) {
+                            removeDependencyFromRDG(requestor, LockContentionProfiler.OUTCOME_TIMED_OUT);
+                            throw new LockingTimedOutException(f.getAbsolutePath());
+                        }
+                    }
+                } catch (InterruptedException ie) {
+                    byte interruptCause = requestor.getNodeInResourceDependencyGraph().getInterruptCause();
+                    removeDependencyFromRDG(requestor, getOutcomeOfInterruptedWait(interruptCause));
+                    if (interruptCause == ResourceDependencyGraph.Node.INTERRUPTED_DUE_TO_DEADLOCK) {
+                        throw new DeadLockVictimizedException(f.getAbsolutePath());
+                    } else if (interruptCause == ResourceDependencyGraph.Node.INTERRUPTED_DUE_TO_TIMEOUT) {
+                        throw new TransactionTimeoutException();
+                    }
+                    throw ie;
+                }
             }
-            lock.setExclusive(true);
-            return lock;
+            removeDependencyFromRDG(requestor, LockContentionProfiler.OUTCOME_ACQUIRED);
         } finally {
+            lock.removeWaiter();
             lock.endSynchBlock();
         }
     }
 
+    /*
+     * Lock escalation: an attempt to take a lock over the whole subtree of the given directory, in
+     * place of the locks the requestor holds over the files in it (which the requestor can then release).
+     * Such a lock is granted only if no other transaction holds a conflicting lock (or any pin) in
+     * the subtree, as seen from the intentions on the directory's node; no wait is done for it. Returns
+     * null if it could not be granted.
+     */
+    public Lock escalateLocks(TransactionInformation requestor, File dir, boolean exclusive) {
+        expungeCollectedNodes();
+        LockTreeNode dirNode = resolveNode(dir);
+        NativeLock directoryLock = dirNode.getLock();
+        EscalatedLock escalatedLock = new EscalatedLock(directoryLock, requestor, exclusive);
+        if (!directoryLock.tryEscalate(escalatedLock)) {
+            return null;
+        }
+        addIntentions(dirNode, requestor, exclusive);
+        if (dirNode.hasIntentionsOfOtherTransactions(requestor, !exclusive)
+                || findPinnedAncestor(dirNode, requestor) != null
+                || findConflictingEscalation(dirNode, requestor, exclusive) != null) {
+            releaseEscalatedLock(requestor, escalatedLock);
+            return null;
+        }
+        return escalatedLock;
+    }
+
+    /*
+     * Waits (for at most the given time, in milliseconds) till some of the escalated locks of the owner get
+     * recalled, and returns the directories of those recalled since the last call; an empty array if none
+     * got recalled in the meantime. Each recall is returned once.
+     */
+    public File[] awaitRecalledLocks(TransactionInformation owner, long time) throws InterruptedException {
+        try {
+            recallsLock.lock();
+            long remainingNanos = TimeUnit.MILLISECONDS.toNanos(time);
+            ArrayList<EscalatedLock> recalled = recalledEscalations.remove(owner);
+            while (recalled == null) {
+                if (remainingNanos <= 0) {
+                    return new File[0];
+                }
+                remainingNanos = escalationRecalled.awaitNanos(remainingNanos);
+                recalled = recalledEscalations.remove(owner);
+            }
+            File dirs[] = new File[recalled.size()];
+            for (int i = 0; i < dirs.length; i++) {
+                dirs[i] = recalled.get(i).getResource();
+            }
+            return dirs;
+        } finally {
+            recallsLock.unlock();
+        }
+    }
+
+    private void recallEscalation(EscalatedLock escalatedLock) {
+        try {
+            recallsLock.lock();
+            if (escalatedLock.isRecalled() || escalatedLock.isReleased()) {
+                return;
+            }
+            escalatedLock.recall();
+            TransactionInformation owner = escalatedLock.getOwner();
+            ArrayList<EscalatedLock> recalled = recalledEscalations.get(owner);
+            if (recalled == null) {
+                recalled = new ArrayList<EscalatedLock>(2);
+                recalledEscalations.put(owner, recalled);
+            }
+            recalled.add(escalatedLock);
+            escalationRecalled.signalAll();
+        } finally {
+            recallsLock.unlock();
+        }
+    }
+
+    /*
+     * The recalls of the escalated locks not owned by lease holders are never awaited; they are dropped
+     * here, along with the ones not yet returned by awaitRecalledLocks.
+     */
+    private void withdrawRecall(EscalatedLock escalatedLock) {
+        try {
+            recallsLock.lock();
+            escalatedLock.markReleased();
+            if (!escalatedLock.isRecalled()) {
+                return;
+            }
+            TransactionInformation owner = escalatedLock.getOwner();
+            ArrayList<EscalatedLock> recalled = recalledEscalations.get(owner);
+            if (recalled != null && recalled.remove(escalatedLock) && recalled.isEmpty()) {
+                recalledEscalations.remove(owner);
+            }
+        } finally {
+            recallsLock.unlock();
+        }
+    }
+
     public void releaseLock(TransactionInformation releasor, Lock lock) {
+        if (lock instanceof EscalatedLock) {
+            releaseEscalatedLock(releasor, (EscalatedLock) lock);
+            return;
+        }
         NativeLock nativeLock = (NativeLock) lock;
+        //TODO: write a good code to delete unnecessary entries from the fileLocks map.
+        boolean wasExclusive = nativeLock.isExclusive();
+        boolean notifyWaiters = nativeLock.release(releasor);
+        removeIntentions(nativeLock.getNode(), releasor, wasExclusive);
+        if (!notifyWaiters) {
+            return;
+        }
         try {
             nativeLock.startSynchBlock();
-            //TODO: write a good code to delete unnecessary entries from the fileLocks map.
-            nativeLock.removeHolder(releasor);
-            if (nativeLock.isExclusive()) {
-                nativeLock.reset();
+            if (wasExclusive) {
                 nativeLock.notifyReadWritable();
             } else {
                 nativeLock.notifyWritable();
@@ -209,6 +576,27 @@ public class NativeConcurrencyControl implements ConcurrencyControl {
         }
     }
 
+    public void releaseLocks(TransactionInformation releasor, Lock locks[]) {
+        for (Lock lock : locks) {
+            releaseLock(releasor, lock);
+        }
+    }
+
+    private void releaseEscalatedLock(TransactionInformation releasor, EscalatedLock escalatedLock) {
+        withdrawRecall(escalatedLock);
+        NativeLock directoryLock = escalatedLock.getDirectoryLock();
+        removeIntentions(directoryLock.getNode(), releasor, escalatedLock.isExclusive());
+        if (!directoryLock.releaseEscalation(escalatedLock)) {
+            return;
+        }
+        try {
+            directoryLock.startSynchBlock();
+            directoryLock.notifyEscalationReleased();
+        } finally {
+            directoryLock.endSynchBlock();
+        }
+    }
+
     public void releaseRenamePinOnDirectories(ArrayList<File> dirs) {
         for (File dir : dirs) {
             releaseRenamePinOnDirectory(dir);
@@ -217,74 +605,60 @@ public class NativeConcurrencyControl implements ConcurrencyControl {
 
     public void releaseRenamePinOnDirectory(File dir) {
         LockTreeNode dirNode = pinnedDirectories.remove(dir);
-        unpinDirectoryTree(dirNode);
-    }
-
-    private void unpinDirectoryTree(LockTreeNode dirNode) {
-        dirNode.releasePin();
-        Collection<LockTreeNode> children = dirNode.getAllChildren();
-        for (LockTreeNode child : children) {
-            child.releasePin();
-            unpinDirectoryTree(child);
+        if (dirNode == null) {
+            return;
         }
+        removeIntentions(dirNode, dirNode.getPinHolder(), true);
+        dirNode.releasePin();
     }
 
+    /*
+     * The pin is taken on the directory's node alone. It conflicts with the locks/pins held by other
+     * transactions anywhere in the directory's subtree, which show up as intentions on this node.
+     */
     public void pinDirectoryForRename(File dir, TransactionInformation requestor)
             throws DirectoryPinningFailedException, AncestorPinnedException {
         LockTreeNode dirNode = traverseDownToFileNode(dir, true, requestor);
-        pinDirectoryTree(dirNode, requestor, dir.getAbsolutePath());
-        pinnedDirectories.put(dir, dirNode);//to keep a "strong" ref to this dirNode.
-    }
-
-    private void pinDirectoryTree(LockTreeNode dirNode, TransactionInformation requestor, String dirToRename)
-            throws DirectoryPinningFailedException {
-        pinLockTreeNode(dirNode, requestor, dirToRename);
-        Collection<LockTreeNode> children = dirNode.getAllChildren();
-        try {
-            for (LockTreeNode child : children) {
-                try {
-                    pinDirectoryTree(child, requestor, dirToRename);
-                } catch (DirectoryPinningFailedException dpfe) {
-                    child.releasePin();
-                    throw dpfe;
-                }
-            }
-        } catch (DirectoryPinningFailedException dpfe) {
-            dirNode.releasePin();
-            throw dpfe;
+        if (requestor.equals(dirNode.getPinHolder())) {
+            return;
         }
-    }
-
-    private void pinLockTreeNode(LockTreeNode node, TransactionInformation requestor, String dirToRename) throws DirectoryPinningFailedException {
-        if (node.isPinnedByOtherTransaction(requestor)) {
-            throw new DirectoryPinningFailedException(dirToRename, node.getPath().getAbsolutePath());
-        }
-        if (!node.attemptPinning(requestor)) {
-            throw new DirectoryPinningFailedException(dirToRename, node.getPath().getAbsolutePath());
-        }
-        NativeLock lock = node.getLock();
-        TransactionInformation holders[];
-        try {
-            lock.startSynchBlock();
-            HashSet<TransactionInformation> holdersSet = lock.getHolders();
-            holders = holdersSet.toArray(new TransactionInformation[0]);
-        } finally {
-            lock.endSynchBlock();
+        if (!dirNode.attemptPinning(requestor)) {
+            throw new DirectoryPinningFailedException(dir.getAbsolutePath(), dirNode.getPath().getAbsolutePath());
         }
-        for (int i = 0; i < holders.length; i++) {
-            if (!holders[i].equals(requestor)) {
-                node.releasePin();
-                throw new DirectoryPinningFailedException(dirToRename, node.getPath().getAbsolutePath());
+        addIntentions(dirNode, requestor, true);
+        LockTreeNode pinnedNode = findPinnedAncestor(dirNode, requestor);
+        if (pinnedNode != null || dirNode.hasIntentionsOfOtherTransactions(requestor, false)
+                || findConflictingEscalation(dirNode, requestor, true) != null) {
+            removeIntentions(dirNode, requestor, true);
+            dirNode.releasePin();
+            if (pinnedNode != null) {
+                throw new AncestorPinnedException(dir.getAbsolutePath(), pinnedNode.getPath().getAbsolutePath());
             }
+            throw new DirectoryPinningFailedException(dir.getAbsolutePath(), dirNode.getPath().getAbsolutePath());
         }
+        pinnedDirectories.put(dir, dirNode);//to keep a "strong" ref to this dirNode.
     }
 
-    private boolean canUpgradeLock(NativeLock lock, TransactionInformation requestor) {
-        return lock.getNumHolders() == 1 && lock.isAHolder(requestor);
+    /*
+     * Deadlocks are detected right when a wait-for edge gets added; the victim, which may be the requestor
+     * itself, gets interrupted out of its wait.
+     */
+    private void addDependencyToRDG(TransactionInformation requestor, NativeLock lock, EscalatedLock escalatedLock,
+            byte waitMode) {
+        resourceDependencyGraph.addDependency(requestor, lock, escalatedLock, waitMode);
+        TransactionInformation victim = resourceDependencyGraph.findDeadLockVictim(requestor);
+        if (victim != null) {
+            interruptTransactionIfWaitingForResourceLock(victim, ResourceDependencyGraph.Node.INTERRUPTED_DUE_TO_DEADLOCK);
+        }
     }
 
-    private void removeDependencyFromRDG(TransactionInformation requestor) {
+    /*
+     * The wait, whichever way it ended (see LockContentionProfiler.OUTCOME_*), gets recorded by the profiler.
+     */
+    private void removeDependencyFromRDG(TransactionInformation requestor, byte waitOutcome) {
         ResourceDependencyGraph.Node node = requestor.getNodeInResourceDependencyGraph();
+        contentionProfiler.recordWait(node.getResourceWaitingFor().getResource(), node.getWaitMode(),
+                System.nanoTime() - node.getWaitStartTime(), waitOutcome);
         synchronized (node.getInterruptFlagLock()) {
             resourceDependencyGraph.removeDependency(requestor);
             if (node.getInterruptCause() != 0) {
@@ -293,12 +667,32 @@ public class NativeConcurrencyControl implements ConcurrencyControl {
         }
     }
 
+    private static byte getOutcomeOfInterruptedWait(byte interruptCause) {
+        if (interruptCause == ResourceDependencyGraph.Node.INTERRUPTED_DUE_TO_DEADLOCK) {
+            return LockContentionProfiler.OUTCOME_DEADLOCK_VICTIM;
+        } else if (interruptCause == ResourceDependencyGraph.Node.INTERRUPTED_DUE_TO_TIMEOUT) {
+            return LockContentionProfiler.OUTCOME_TRANSACTION_TIMEOUT;
+        }
+        return LockContentionProfiler.OUTCOME_INTERRUPTED;
+    }
+
+    public LockContentionProfiler getContentionProfiler() {
+        return contentionProfiler;
+    }
+
     public ResourceDependencyGraph getResourceDependencyGraph() {
         return resourceDependencyGraph;
     }
 
     public void shutdown() {
         deadLockDetector.release();
+        if (contentionProfilerName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(contentionProfilerName);
+            } catch (JMException jme) {
+                nativeXAFileSystem.getLogger().logThrowable(jme, Logger.WARNING);
+            }
+        }
     }
 
     public void interruptTransactionIfWaitingForResourceLock(TransactionInformation xid, byte cause) {
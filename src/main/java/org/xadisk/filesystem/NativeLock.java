@@ -7,50 +7,125 @@
 package org.xadisk.filesystem;
 
 import java.io.File;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
+/*
+ * The lock state is a single word: the number of transactions holding the lock in shared mode, or
+ * EXCLUSIVE. An acquisition/release which doesn't have to wait only does a CAS on this word (and
+ * updates the holders set); the synchLock and its conditions are used only by the threads which
+ * have to wait for the lock, and by the releasing threads when there are such waiters.
+ * A holder is added to the holders set after its CAS on the state word, and removed before it.
+ * The lock on a directory also carries the escalated lock (see EscalatedLock), if any, over the
+ * directory's subtree; the threads waiting for its release wait on the synchLock too.
+ */
 public class NativeLock implements Lock {
 
     private static final long serialVersionUID = 1L;
+    private static final int EXCLUSIVE = -1;
     private final File resource;
-    private boolean exclusive = false;
-    private boolean upgraded = false;
-    private int numHolders = 0;
-    private final HashSet<TransactionInformation> holders = new HashSet<TransactionInformation>(10);
+    private final AtomicInteger state;
+    private final AtomicInteger numWaiters = new AtomicInteger(0);
+    private volatile boolean upgraded = false;
+    private final Set<TransactionInformation> holders =
+            Collections.newSetFromMap(new ConcurrentHashMap<TransactionInformation, Boolean>(4));
+    private final AtomicReference<EscalatedLock> escalation = new AtomicReference<EscalatedLock>(null);
     private final ReentrantLock synchLock = new ReentrantLock(false);
     private final Condition mayBeReadable = synchLock.newCondition();
     private final Condition mayBeWritable = synchLock.newCondition();
+    private final Condition mayBeEscalationReleased = synchLock.newCondition();
     private final LockTreeNode node;//to keep a "strong" ref to this node, session->allAcquiredLocks->node.
 
     NativeLock(boolean exclusive, File resource, LockTreeNode node) {
-        this.exclusive = exclusive;
+        this.state = new AtomicInteger(exclusive ? EXCLUSIVE : 0);
         this.resource = resource;
         this.node = node;
     }
 
-    int getNumHolders() {
-        return numHolders;
+    public boolean isExclusive() {
+        return state.get() == EXCLUSIVE;
+    }
+
+    boolean tryAcquireShared() {
+        while (true) {
+            int current = state.get();
+            if (current == EXCLUSIVE) {
+                return false;
+            }
+            if (state.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
     }
 
-    public boolean isExclusive() {
-        return exclusive;
+    /*
+     * Acquires the lock in exclusive mode if it is free, or upgrades it if the given transaction
+     * is its only holder (in which case the lock gets marked as upgraded).
+     */
+    boolean tryAcquireExclusive(TransactionInformation xid) {
+        if (state.compareAndSet(0, EXCLUSIVE)) {
+            return true;
+        }
+        if (isAHolder(xid)) {
+            if (state.get() == EXCLUSIVE || state.compareAndSet(1, EXCLUSIVE)) {
+                upgraded = true;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Takes back an upgrade of the lock (by its only holder) to exclusive mode.
+     */
+    void downgradeToShared() {
+        upgraded = false;
+        state.set(1);
+    }
+
+    boolean tryEscalate(EscalatedLock escalatedLock) {
+        return escalation.compareAndSet(null, escalatedLock);
+    }
+
+    /*
+     * Returns true if there are threads waiting (for this lock, or for the release of the escalated lock),
+     * which then need to be notified.
+     */
+    boolean releaseEscalation(EscalatedLock escalatedLock) {
+        escalation.compareAndSet(escalatedLock, null);
+        return numWaiters.get() > 0;
+    }
+
+    EscalatedLock getEscalation() {
+        return escalation.get();
     }
 
     void addHolder(TransactionInformation xid) {
-        numHolders++;
         holders.add(xid);
     }
 
-    void removeHolder(TransactionInformation xid) {
-        numHolders--;
+    /*
+     * Releases the lock held by the given transaction, in whichever mode it is held. Returns true
+     * if there are threads waiting for the lock, which then need to be notified.
+     */
+    boolean release(TransactionInformation xid) {
         holders.remove(xid);
+        if (state.get() == EXCLUSIVE) {
+            upgraded = false;
+            state.set(0);
+        } else {
+            state.decrementAndGet();
+        }
+        return numWaiters.get() > 0;
     }
 
-    public HashSet<TransactionInformation> getHolders() {
-        assert synchLock.isHeldByCurrentThread();
+    public Set<TransactionInformation> getHolders() {
         return holders;
     }
 
@@ -58,25 +133,14 @@ public class NativeLock implements Lock {
         return holders.contains(xid);
     }
 
-    void reset() {
-        exclusive = false;
-        upgraded = false;
-        numHolders = 0;
-        holders.clear();
-    }
-
-    void setExclusive(boolean exclusive) {
-        this.exclusive = exclusive;
+    LockTreeNode getNode() {
+        return node;
     }
 
     public File getResource() {
         return resource;
     }
 
-    void markUpgraded() {
-        this.upgraded = true;
-    }
-
     boolean isUpgraded() {
         return upgraded;
     }
@@ -89,6 +153,15 @@ public class NativeLock implements Lock {
         synchLock.unlock();
     }
 
+    void addWaiter() {
+        assert synchLock.isHeldByCurrentThread();
+        numWaiters.incrementAndGet();
+    }
+
+    void removeWaiter() {
+        numWaiters.decrementAndGet();
+    }
+
     void waitTillReadable(long time) throws InterruptedException {
         if (time > 0) {
             mayBeReadable.await(time, TimeUnit.MILLISECONDS);
@@ -105,6 +178,18 @@ public class NativeLock implements Lock {
         }
     }
 
+    void waitTillEscalationReleased(long time) throws InterruptedException {
+        if (time > 0) {
+            mayBeEscalationReleased.await(time, TimeUnit.MILLISECONDS);
+        } else {
+            mayBeEscalationReleased.await();
+        }
+    }
+
+    void notifyEscalationReleased() {
+        mayBeEscalationReleased.signalAll();
+    }
+
     void notifyWritable() {
         mayBeWritable.signal();
     }
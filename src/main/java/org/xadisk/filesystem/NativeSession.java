@@ -18,6 +18,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -40,10 +41,16 @@ import org.xadisk.filesystem.exceptions.internal.XASystemIOException;
 import org.xadisk.filesystem.exceptions.XASystemNoMoreAvailableException;
 import org.xadisk.filesystem.utilities.FileIOUtility;
 import org.xadisk.filesystem.utilities.MiscUtils;
+import org.xadisk.filesystem.workers.TransactionTimeoutDetector;
 
 public class NativeSession implements SessionCommonness {
 
+    private static final int MAX_OPEN_FILES_DURING_COMMIT = 100;
+
     private final HashMap<File, Lock> allAcquiredLocks = new HashMap<File, Lock>(1000);
+    private final HashMap<File, Lock> allEscalatedLocks = new HashMap<File, Lock>(2);
+    private final HashMap<File, DirectoryLockCounts> lockCountsPerDirectory = new HashMap<File, DirectoryLockCounts>();
+    private int lockEscalationThreshold = 0;
     private final ArrayList<NativeXAFileInputStream> allAcquiredInputStreams = new ArrayList<NativeXAFileInputStream>(5);
     private final ArrayList<NativeXAFileOutputStream> allAcquiredOutputStreams = new ArrayList<NativeXAFileOutputStream>(5);
     private final NativeXAFileSystem xaFileSystem;
@@ -64,6 +71,8 @@ public class NativeSession implements SessionCommonness {
     private ArrayList<FileSystemStateChangeEvent> fileStateChangeEventsToRaise = new ArrayList<FileSystemStateChangeEvent>(10);
     private final ArrayList<File> directoriesPinnedInThisSession = new ArrayList<File>(5);
     private final long timeOfEntryToTransaction;
+    private TransactionTimeoutDetector.Deadline timeoutDeadline = null;
+    private final ReentrantLock timeoutDeadlineLock = new ReentrantLock(false);
     private final ReentrantLock asynchronousRollbackLock = new ReentrantLock(false);
     private final ArrayList<Long> transactionLogPositions = new ArrayList<Long>(25);
     private final ArrayList<Buffer> transactionInMemoryBuffers = new ArrayList<Buffer>(25);
@@ -87,9 +96,11 @@ public class NativeSession implements SessionCommonness {
         } else {
             this.transactionTimeout = xaFileSystem.getDefaultTransactionTimeout();
             this.fileLockWaitTimeout = this.xaFileSystem.getLockTimeOut();
+            this.lockEscalationThreshold = this.xaFileSystem.getLockEscalationThreshold();
             view = new TransactionVirtualView(xid, this, xaFileSystem, diskSession);
             timeOfEntryToTransaction = System.currentTimeMillis();
             xaFileSystem.assignSessionToTransaction(xid, this);
+            rescheduleTimeout();
         }
     }
 
@@ -295,8 +306,7 @@ public class NativeSession implements SessionCommonness {
         try {
             asynchronousRollbackLock.lock();
             checkIfCanContinue();
-            newLocks[0] = acquireLockIfRequired(src, true);
-            newLocks[1] = acquireLockIfRequired(dest, true);
+            newLocks = acquireLocksIfRequired(new File[]{src, dest}, new boolean[]{true, true});
             File srcParentFile = src.getParentFile();
             checkValidParent(src);
             File destParentFile = dest.getParentFile();
@@ -353,8 +363,7 @@ public class NativeSession implements SessionCommonness {
         try {
             asynchronousRollbackLock.lock();
             checkIfCanContinue();
-            newLocks[0] = acquireLockIfRequired(src, false);
-            newLocks[1] = acquireLockIfRequired(dest, true);
+            newLocks = acquireLocksIfRequired(new File[]{src, dest}, new boolean[]{false, true});
             File destParentFile = dest.getParentFile();
             checkValidParent(src);
             checkValidParent(dest);
@@ -617,6 +626,7 @@ public class NativeSession implements SessionCommonness {
 
     public void commit(boolean onePhase) throws NoTransactionAssociatedException {
         ArrayList<FileInputStream> logInputStreams = new ArrayList<FileInputStream>();
+        RedoApplyChannels redoChannels = new RedoApplyChannels(MAX_OPEN_FILES_DURING_COMMIT);
         try {
             asynchronousRollbackLock.lock();
             checkIfCanContinue();
@@ -675,7 +685,7 @@ public class NativeSession implements SessionCommonness {
                     }
                     logReaderChannel = logReaderChannels.get(logFileIndex);
                     logReaderChannel.position(localPosition);
-                    logEntry = TransactionLogEntry.getNextTransactionLogEntry(logReaderChannel, localPosition, false);
+                    logEntry = readLogEntry(logReaderChannel, logFileIndex, localPosition);
                 }
                 try {
                     if (logEntry.getOperationType() == TransactionLogEntry.FILE_APPEND) {
@@ -683,15 +693,16 @@ public class NativeSession implements SessionCommonness {
                         if (filesDirectlyWrittenToDisk.contains(f)) {
                             continue;
                         }
-                        checkPointDuringModificationAgainstCopy(i - 2, f, srcFilesCopied, srcFilesMoved);
-                        commitFileAppend(logEntry, temp, logReaderChannel, logFileIndex, localPosition);
+                        checkPointDuringModificationAgainstCopy(i - 2, f, srcFilesCopied, srcFilesMoved, redoChannels);
+                        commitFileAppend(logEntry, temp, logReaderChannel, logFileIndex, localPosition, redoChannels);
                     } else if (logEntry.getOperationType() == TransactionLogEntry.FILE_DELETE) {
                         String fileName = logEntry.getFileName();
                         File f = new File(fileName);
                         if (filesDirectlyWrittenToDisk.contains(f)) {
                             continue;
                         }
-                        checkPointDuringModificationAgainstCopy(i - 2, f, srcFilesCopied, srcFilesMoved);
+                        checkPointDuringModificationAgainstCopy(i - 2, f, srcFilesCopied, srcFilesMoved, redoChannels);
+                        redoChannels.release(fileName);
                         commitDeleteFile(fileName, filesDirectlyWrittenToDisk);
                     } else if (logEntry.getOperationType() == TransactionLogEntry.FILE_CREATE) {
                         String fileName = logEntry.getFileName();
@@ -699,18 +710,21 @@ public class NativeSession implements SessionCommonness {
                         if (filesDirectlyWrittenToDisk.contains(f)) {
                             continue;
                         }
-                        checkPointDuringCreationAgainstMove(i - 2, f, srcFilesCopied, srcFilesMoved);
+                        checkPointDuringCreationAgainstMove(i - 2, f, srcFilesCopied, srcFilesMoved, redoChannels);
+                        redoChannels.release(fileName);
                         commitCreateFile(fileName);
                     } else if (logEntry.getOperationType() == TransactionLogEntry.DIR_CREATE) {
                         String dirName = logEntry.getFileName();
-                        checkPointDuringCreationAgainstMove(i - 2, new File(dirName), srcFilesCopied, srcFilesMoved);
+                        checkPointDuringCreationAgainstMove(i - 2, new File(dirName), srcFilesCopied, srcFilesMoved, redoChannels);
                         commitCreateDir(dirName);
                     } else if (logEntry.getOperationType() == TransactionLogEntry.FILE_COPY) {
                         File dest = new File(logEntry.getDestFileName());
                         if (filesDirectlyWrittenToDisk.contains(dest)) {
                             continue;
                         }
-                        checkPointDuringCreationAgainstMove(i - 2, dest, srcFilesCopied, srcFilesMoved);
+                        checkPointDuringCreationAgainstMove(i - 2, dest, srcFilesCopied, srcFilesMoved, redoChannels);
+                        redoChannels.release(logEntry.getFileName());
+                        redoChannels.release(logEntry.getDestFileName());
                         commitFileCopy(logEntry, srcFilesCopied);
                     } else if (logEntry.getOperationType() == TransactionLogEntry.FILE_MOVE) {
                         File src = new File(logEntry.getFileName());
@@ -720,13 +734,16 @@ public class NativeSession implements SessionCommonness {
                         }
                         boolean isDirectoryMove = src.isDirectory();
                         if (isDirectoryMove) {
-                            declareCheckPoint(i - 2, srcFilesCopied, srcFilesMoved);
+                            declareCheckPoint(i - 2, srcFilesCopied, srcFilesMoved, redoChannels);
+                            redoChannels.releaseAll();
                             commitMove(logEntry);
-                            declareCheckPoint(i - 2, srcFilesCopied, srcFilesMoved);
+                            declareCheckPoint(i - 2, srcFilesCopied, srcFilesMoved, redoChannels);
                         } else {
-                            if (!checkPointDuringModificationAgainstCopy(i - 2, src, srcFilesCopied, srcFilesMoved)) {
-                                checkPointDuringCreationAgainstMove(i - 2, dest, srcFilesCopied, srcFilesMoved);
+                            if (!checkPointDuringModificationAgainstCopy(i - 2, src, srcFilesCopied, srcFilesMoved, redoChannels)) {
+                                checkPointDuringCreationAgainstMove(i - 2, dest, srcFilesCopied, srcFilesMoved, redoChannels);
                             }
+                            redoChannels.release(logEntry.getFileName());
+                            redoChannels.release(logEntry.getDestFileName());
                             commitFileMove(logEntry, srcFilesMoved);
                         }
                     } else if (logEntry.getOperationType() == TransactionLogEntry.FILE_TRUNCATE) {
@@ -734,14 +751,16 @@ public class NativeSession implements SessionCommonness {
                         if (filesDirectlyWrittenToDisk.contains(f)) {
                             continue;
                         }
-                        checkPointDuringModificationAgainstCopy(i - 2, f, srcFilesCopied, srcFilesMoved);
-                        commitFileTruncate(logEntry);
+                        checkPointDuringModificationAgainstCopy(i - 2, f, srcFilesCopied, srcFilesMoved, redoChannels);
+                        commitFileTruncate(logEntry, redoChannels);
                     } else if (logEntry.getOperationType() == TransactionLogEntry.FILE_SPECIAL_MOVE) {
                         File src = new File(logEntry.getFileName());
                         File dest = new File(logEntry.getDestFileName());
-                        if (!checkPointDuringModificationAgainstCopy(i - 2, src, srcFilesCopied, srcFilesMoved)) {
-                            checkPointDuringCreationAgainstMove(i - 2, dest, srcFilesCopied, srcFilesMoved);
+                        if (!checkPointDuringModificationAgainstCopy(i - 2, src, srcFilesCopied, srcFilesMoved, redoChannels)) {
+                            checkPointDuringCreationAgainstMove(i - 2, dest, srcFilesCopied, srcFilesMoved, redoChannels);
                         }
+                        redoChannels.release(logEntry.getFileName());
+                        redoChannels.release(logEntry.getDestFileName());
                         commitFileSpecialMove(logEntry, srcFilesMoved);
                     }
                 } catch (XASystemIOException xasioe) {
@@ -753,6 +772,12 @@ public class NativeSession implements SessionCommonness {
                     throw new TransactionFailedException(ioe, xid);
                 }
             }
+            try {
+                redoChannels.releaseAll();
+            } catch (IOException ioe) {
+                xaFileSystem.notifyTransactionFailure(xid);
+                throw new TransactionFailedException(ioe, xid);
+            }
             diskSession.forceToDisk();
             xaFileSystem.getTheGatheringDiskWriter().transactionCompletes(xid, true);
             for (FileInputStream logInputStream : logInputStreams) {
@@ -765,6 +790,7 @@ public class NativeSession implements SessionCommonness {
         } catch (IOException ioe) {
             xaFileSystem.notifySystemFailure(ioe);
         } finally {
+            redoChannels.closeAllQuietly();
             for (FileInputStream logInputStream : logInputStreams) {
                 MiscUtils.closeAll(logInputStream);
             }
@@ -773,24 +799,28 @@ public class NativeSession implements SessionCommonness {
     }
 
     private boolean checkPointDuringModificationAgainstCopy(int currentLogPosition, File fileBeingModified,
-            HashSet<File> srcFilesCopied, HashSet<File> srcFilesMoved) throws IOException {
+            HashSet<File> srcFilesCopied, HashSet<File> srcFilesMoved, RedoApplyChannels redoChannels) throws IOException {
         if (srcFilesCopied.contains(fileBeingModified)) {
-            declareCheckPoint(currentLogPosition, srcFilesCopied, srcFilesMoved);
+            declareCheckPoint(currentLogPosition, srcFilesCopied, srcFilesMoved, redoChannels);
             return true;
         }
         return false;
     }
 
     private boolean checkPointDuringCreationAgainstMove(int currentLogPosition, File fileBeingCreated,
-            HashSet<File> srcFilesCopied, HashSet<File> srcFilesMoved) throws IOException {
+            HashSet<File> srcFilesCopied, HashSet<File> srcFilesMoved, RedoApplyChannels redoChannels) throws IOException {
         if (srcFilesMoved.contains(fileBeingCreated)) {
-            declareCheckPoint(currentLogPosition, srcFilesCopied, srcFilesMoved);
+            declareCheckPoint(currentLogPosition, srcFilesCopied, srcFilesMoved, redoChannels);
             return true;
         }
         return false;
     }
 
-    private void declareCheckPoint(int currentLogPosition, HashSet<File> srcFilesCopied, HashSet<File> srcFilesMoved) throws IOException {
+    private void declareCheckPoint(int currentLogPosition, HashSet<File> srcFilesCopied, HashSet<File> srcFilesMoved,
+            RedoApplyChannels redoChannels) throws IOException {
+        //everything applied till the check-point must be on the disk, including the appends/truncates
+        //still sitting in the open channels.
+        redoChannels.forceAll();
         diskSession.forceToDisk();
         try {
             ByteBuffer logEntryBytes = ByteBuffer.wrap(TransactionLogEntry.getLogEntry(xid, currentLogPosition));
@@ -830,39 +860,46 @@ public class NativeSession implements SessionCommonness {
         }
     }
 
+    /*
+     * A recovered transaction can have its entries in a log left by an older release (see
+     * CrashRecoveryWorker), which are in the older format.
+     */
+    private TransactionLogEntry readLogEntry(FileChannel logReaderChannel, int logFileIndex, long localPosition)
+            throws IOException {
+        if (createdForRecovery && xaFileSystem.getRecoveryWorker().isLegacyLog(logFileIndex)) {
+            return TransactionLogEntry.getNextLegacyTransactionLogEntry(logReaderChannel, localPosition);
+        }
+        return TransactionLogEntry.getNextTransactionLogEntry(logReaderChannel, localPosition, false);
+    }
+
     private void commitFileAppend(TransactionLogEntry logEntry, ByteBuffer inMemoryLogEntry,
-            FileChannel logReaderChannel, int logFileIndex, long localPosition)
+            FileChannel logReaderChannel, int logFileIndex, long localPosition, RedoApplyChannels redoChannels)
             throws IOException {
         String fileName = logEntry.getFileName();
-        if (!new File(fileName).exists()) {
+        if (!redoChannels.isOpen(fileName) && !new File(fileName).exists()) {
             return;
         }
 
-        FileOutputStream fos = null;
-        try {
-            fos = new FileOutputStream(fileName, true);
-            long contentLength = logEntry.getFileContentLength();
-            FileChannel fc = fos.getChannel();
-            if (logFileIndex == -1) {
-                long num = 0;
-                inMemoryLogEntry.position(logEntry.getHeaderLength());
-                while (num < contentLength) {
-                    num += fc.write(inMemoryLogEntry, logEntry.getFilePosition());
-                }
+        //the channel is kept open for the subsequent entries for this file, and is forced once
+        //at the end of commit (or at a check-point).
+        long contentLength = logEntry.getFileContentLength();
+        FileChannel fc = redoChannels.getChannel(fileName);
+        if (logFileIndex == -1) {
+            long num = 0;
+            inMemoryLogEntry.position(logEntry.getHeaderLength());
+            while (num < contentLength) {
+                num += fc.write(inMemoryLogEntry, logEntry.getFilePosition() + num);
+            }
 
-            } else {
-                logReaderChannel.position(localPosition + logEntry.getHeaderLength());
-                long num = 0;
-                if (logEntry.getFilePosition() <= fc.size()) {
-                    while (num < contentLength) {
-                        num += fc.transferFrom(logReaderChannel, num + logEntry.getFilePosition(),
-                                NativeXAFileSystem.maxTransferToChannel(contentLength - num));
-                    }
+        } else {
+            logReaderChannel.position(localPosition + logEntry.getHeaderLength());
+            long num = 0;
+            if (logEntry.getFilePosition() <= fc.size()) {
+                while (num < contentLength) {
+                    num += fc.transferFrom(logReaderChannel, num + logEntry.getFilePosition(),
+                            NativeXAFileSystem.maxTransferToChannel(contentLength - num));
                 }
             }
-            fc.force(false);
-        } finally {
-            MiscUtils.closeAll(fos);
         }
     }
 
@@ -938,21 +975,14 @@ public class NativeSession implements SessionCommonness {
         diskSession.renameTo(src, dest);
     }
 
-    private void commitFileTruncate(TransactionLogEntry logEntry) throws IOException {
+    private void commitFileTruncate(TransactionLogEntry logEntry, RedoApplyChannels redoChannels) throws IOException {
         String fileName = logEntry.getFileName();
-        if (!new File(fileName).exists()) {
+        if (!redoChannels.isOpen(fileName) && !new File(fileName).exists()) {
             return;
         }
 
-        FileOutputStream fos = null;
-        try {
-            fos = new FileOutputStream(fileName, true);
-            FileChannel fc = fos.getChannel();
-            fc.truncate(logEntry.getNewLength());
-            fc.force(false);
-        } finally {
-            MiscUtils.closeAll(fos);
-        }
+        FileChannel fc = redoChannels.getChannel(fileName);
+        fc.truncate(logEntry.getNewLength());
     }
 
     private void commitFileSpecialMove(TransactionLogEntry logEntry, HashSet<File> srcFilesMoved) throws IOException {
@@ -1026,8 +1056,7 @@ public class NativeSession implements SessionCommonness {
 
                     logReaderChannel = logReaderChannels.get(logFileIndex);
                     logReaderChannel.position(localPosition);
-                    logEntry =
-                            TransactionLogEntry.getNextTransactionLogEntry(logReaderChannel, localPosition, false);
+                    logEntry = readLogEntry(logReaderChannel, logFileIndex, localPosition);
                 }
 
                 FileOutputStream fos = null;
@@ -1086,6 +1115,9 @@ public class NativeSession implements SessionCommonness {
     private void cleanup() throws IOException {
         this.sessionIsUseless = true;
         this.operationsCanContinue = false;
+        if (!createdForRecovery) {
+            cancelTimeout();
+        }
         if (createdForRecovery) {
             xaFileSystem.getRecoveryWorker().cleanupTransactionInfo(xid);
         } else {
@@ -1114,11 +1146,19 @@ public class NativeSession implements SessionCommonness {
         }
     }
 
+    /*
+     * All the locks are released in one call, which is a single message to the master in cluster mode.
+     */
     private void releaseAllLocks() {
-        for (Lock lock : allAcquiredLocks.values()) {
-            concurrencyControl.releaseLock(xid, lock);
-        }
+        ArrayList<Lock> allLocks = new ArrayList<Lock>(allAcquiredLocks.size() + allEscalatedLocks.size());
+        allLocks.addAll(allAcquiredLocks.values());
+        allLocks.addAll(allEscalatedLocks.values());
         allAcquiredLocks.clear();
+        allEscalatedLocks.clear();
+        lockCountsPerDirectory.clear();
+        if (!allLocks.isEmpty()) {
+            concurrencyControl.releaseLocks(xid, allLocks.toArray(new Lock[allLocks.size()]));
+        }
     }
 
     private void releaseAllStreams() throws NoTransactionAssociatedException {
@@ -1139,9 +1179,44 @@ public class NativeSession implements SessionCommonness {
 
     public boolean setTransactionTimeout(int transactionTimeout) {
         this.transactionTimeout = transactionTimeout;
+        if (!createdForRecovery) {
+            rescheduleTimeout();
+        }
         return true;
     }
 
+    /*
+     * The timeout is counted from the time of entry to the transaction, also when it is changed later.
+     */
+    private void rescheduleTimeout() {
+        TransactionTimeoutDetector timeoutDetector = xaFileSystem.getTransactionTimeoutDetector();
+        try {
+            timeoutDeadlineLock.lock();
+            if (timeoutDeadline != null) {
+                timeoutDetector.cancelTimeout(timeoutDeadline);
+                timeoutDeadline = null;
+            }
+            if (transactionTimeout > 0 && !sessionIsUseless) {
+                timeoutDeadline = timeoutDetector.scheduleTimeout(this,
+                        timeOfEntryToTransaction + transactionTimeout * 1000L);
+            }
+        } finally {
+            timeoutDeadlineLock.unlock();
+        }
+    }
+
+    private void cancelTimeout() {
+        try {
+            timeoutDeadlineLock.lock();
+            if (timeoutDeadline != null) {
+                xaFileSystem.getTransactionTimeoutDetector().cancelTimeout(timeoutDeadline);
+                timeoutDeadline = null;
+            }
+        } finally {
+            timeoutDeadlineLock.unlock();
+        }
+    }
+
     private void checkPermission(PermissionType operation, File f) throws FileNotExistsException,
             InsufficientPermissionOnFileException {
         switch (operation) {
@@ -1172,7 +1247,8 @@ public class NativeSession implements SessionCommonness {
     private Lock acquireLockIfRequired(File f, boolean exclusive) throws LockingFailedException,
             InterruptedException, TransactionRolledbackException {
         Lock newLock = null;
-        if (!alreadyHaveALock(f, exclusive)) {
+        if (!alreadyHaveALock(f, exclusive) && !isUnderEscalatedLock(f, exclusive)) {
+            boolean upgrade = allAcquiredLocks.containsKey(f);
             try {
                 newLock = concurrencyControl.acquireFileLock(xid, f, fileLockWaitTimeout, exclusive);
                 if (exclusive) {
@@ -1187,10 +1263,139 @@ public class NativeSession implements SessionCommonness {
             }
             allAcquiredLocks.put(f, newLock);
             //above includes the case of lock upgrade by doing a "redundant put" of the same "value".
+            countLockForEscalation(f, upgrade, exclusive);
         }
         return newLock;
     }
 
+    /*
+     * Acquires the required ones among the locks over the given files in one call to the concurrency control,
+     * which acquires all or none of them. The returned array has the new lock (or null) for each file.
+     */
+    private Lock[] acquireLocksIfRequired(File files[], boolean exclusive[]) throws LockingFailedException,
+            InterruptedException, TransactionRolledbackException {
+        Lock newLocks[] = new Lock[files.length];
+        ArrayList<File> requiredFiles = new ArrayList<File>(files.length);
+        ArrayList<Boolean> requiredModes = new ArrayList<Boolean>(files.length);
+        for (int i = 0; i < files.length; i++) {
+            int existing = requiredFiles.indexOf(files[i]);
+            if (existing >= 0) {
+                requiredModes.set(existing, requiredModes.get(existing) || exclusive[i]);
+            } else if (!alreadyHaveALock(files[i], exclusive[i]) && !isUnderEscalatedLock(files[i], exclusive[i])) {
+                requiredFiles.add(files[i]);
+                requiredModes.add(exclusive[i]);
+            }
+        }
+        if (requiredFiles.isEmpty()) {
+            return newLocks;
+        }
+        boolean modes[] = new boolean[requiredModes.size()];
+        boolean upgrades[] = new boolean[requiredModes.size()];
+        for (int j = 0; j < modes.length; j++) {
+            modes[j] = requiredModes.get(j);
+            upgrades[j] = allAcquiredLocks.containsKey(requiredFiles.get(j));
+        }
+        Lock acquiredLocks[];
+        try {
+            acquiredLocks = concurrencyControl.acquireFileLocks(xid, requiredFiles.toArray(new File[modes.length]),
+                    fileLockWaitTimeout, modes);
+        } catch (DeadLockVictimizedException dlve) {
+            rollbackPrematurely(dlve);
+            throw new TransactionRolledbackException(dlve);
+        } catch (TransactionTimeoutException tte) {
+            rollbackPrematurely(tte);
+            throw new TransactionRolledbackException(tte);
+        }
+        for (int j = 0; j < acquiredLocks.length; j++) {
+            File f = requiredFiles.get(j);
+            if (modes[j]) {
+                xid.incrementNumOwnedExclusiveLocks();
+            }
+            allAcquiredLocks.put(f, acquiredLocks[j]);
+            newLocks[Arrays.asList(files).indexOf(f)] = acquiredLocks[j];
+            countLockForEscalation(f, upgrades[j], modes[j]);
+        }
+        return newLocks;
+    }
+
+    private boolean isUnderEscalatedLock(File f, boolean exclusive) {
+        if (allEscalatedLocks.isEmpty()) {
+            return false;
+        }
+        for (File dir = f.getParentFile(); dir != null; dir = dir.getParentFile()) {
+            Lock escalatedLock = allEscalatedLocks.get(dir);
+            if (escalatedLock != null && (escalatedLock.isExclusive() || !exclusive)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void countLockForEscalation(File f, boolean upgrade, boolean exclusive) {
+        File dir = f.getParentFile();
+        if (lockEscalationThreshold <= 0 || dir == null) {
+            return;
+        }
+        DirectoryLockCounts counts = lockCountsPerDirectory.get(dir);
+        if (counts == null) {
+            counts = new DirectoryLockCounts(lockEscalationThreshold);
+            lockCountsPerDirectory.put(dir, counts);
+        }
+        if (!upgrade) {
+            counts.locks++;
+        }
+        if (exclusive) {
+            counts.exclusiveLocks++;
+        }
+        if (counts.locks > counts.escalationThreshold) {
+            escalateLocks(dir, counts);
+        }
+    }
+
+    private void uncountLockForEscalation(Lock lock) {
+        DirectoryLockCounts counts = lockCountsPerDirectory.get(lock.getResource().getParentFile());
+        if (counts != null) {
+            counts.locks--;
+            if (lock.isExclusive()) {
+                counts.exclusiveLocks--;
+            }
+        }
+    }
+
+    /*
+     * Replaces the locks held over the files in the directory (and in its subtree) by a single escalated
+     * lock over the subtree. If other transactions hold conflicting locks there, the escalation is
+     * attempted again only after the number of locks in the directory has doubled.
+     */
+    private void escalateLocks(File dir, DirectoryLockCounts counts) {
+        Lock escalatedLock = concurrencyControl.escalateLocks(xid, dir, counts.exclusiveLocks > 0);
+        if (escalatedLock == null) {
+            counts.escalationThreshold = counts.escalationThreshold > Integer.MAX_VALUE / 2
+                    ? Integer.MAX_VALUE : counts.escalationThreshold * 2;
+            return;
+        }
+        Iterator<Lock> locks = allAcquiredLocks.values().iterator();
+        while (locks.hasNext()) {
+            Lock lock = locks.next();
+            if ((escalatedLock.isExclusive() || !lock.isExclusive()) && isInSubtree(dir, lock.getResource())) {
+                locks.remove();
+                uncountLockForEscalation(lock);
+                concurrencyControl.releaseLock(xid, lock);
+            }
+        }
+        lockCountsPerDirectory.remove(dir);
+        allEscalatedLocks.put(dir, escalatedLock);
+    }
+
+    private static boolean isInSubtree(File dir, File f) {
+        for (File ancestor = f.getParentFile(); ancestor != null; ancestor = ancestor.getParentFile()) {
+            if (ancestor.equals(dir)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private boolean alreadyHaveALock(File f, boolean exclusive) {
         Lock existingLock = allAcquiredLocks.get(f);
         if (existingLock == null) {
@@ -1210,16 +1415,15 @@ public class NativeSession implements SessionCommonness {
 
     private void releaseLocks(Lock locks[]) {
         for (Lock lock : locks) {
-            if (lock != null) {
-                allAcquiredLocks.remove(lock.getResource());
-                concurrencyControl.releaseLock(xid, lock);
-            }
+            releaseLocks(lock);
         }
     }
 
     private void releaseLocks(Lock lock) {
-        if (lock != null) {
+        //the lock may have been released already, when it got replaced by an escalated lock.
+        if (lock != null && allAcquiredLocks.get(lock.getResource()) == lock) {
             allAcquiredLocks.remove(lock.getResource());
+            uncountLockForEscalation(lock);
             concurrencyControl.releaseLock(xid, lock);
         }
     }
@@ -1378,4 +1582,19 @@ public class NativeSession implements SessionCommonness {
     public boolean isUsingReadOnlyOptimization() {
         return usingReadOnlyOptimization;
     }
+
+    /*
+     * The number of locks (and of exclusive ones among them) held by the transaction over the files
+     * directly inside a directory, for deciding on lock escalation.
+     */
+    private static class DirectoryLockCounts {
+
+        private int locks = 0;
+        private int exclusiveLocks = 0;
+        private int escalationThreshold;
+
+        private DirectoryLockCounts(int escalationThreshold) {
+            this.escalationThreshold = escalationThreshold;
+        }
+    }
 }
@@ -16,7 +16,9 @@ import org.xadisk.filesystem.standalone.StandaloneWorkManager;
 import org.xadisk.filesystem.workers.CrashRecoveryWorker;
 import org.xadisk.filesystem.workers.FileSystemEventDelegator;
 import org.xadisk.filesystem.workers.GatheringDiskWriter;
+import org.xadisk.filesystem.workers.LockLeaseKeeper;
 import org.xadisk.filesystem.workers.ObjectPoolReliever;
+import org.xadisk.filesystem.workers.TransactionLogSegments;
 import org.xadisk.filesystem.workers.TransactionTimeoutDetector;
 import java.io.File;
 import java.io.IOException;
@@ -39,6 +41,7 @@ import org.xadisk.connector.inbound.EndPointActivation;
 import org.xadisk.filesystem.exceptions.RecoveryInProgressException;
 import org.xadisk.filesystem.exceptions.XASystemException;
 import org.xadisk.bridge.proxies.facilitators.RemoteMethodInvoker;
+import org.xadisk.bridge.proxies.impl.LockLeases;
 import org.xadisk.bridge.proxies.impl.RemoteConcurrencyControl;
 import org.xadisk.bridge.proxies.impl.RemoteMessageEndpointFactory;
 import org.xadisk.bridge.proxies.impl.RemoteXAFileSystem;
@@ -69,6 +72,7 @@ public class NativeXAFileSystem implements XAFileSystemCommonness {
     private boolean returnedAllPreparedTransactions = false;
     private final WorkManager workManager;
     private final GatheringDiskWriter gatheringDiskWriter;
+    private final TransactionLogSegments transactionLogSegments;
     private final CrashRecoveryWorker recoveryWorker;
     private final ObjectPoolReliever bufferPoolReliever;
     private final ObjectPoolReliever selectorPoolReliever;
@@ -88,6 +92,8 @@ public class NativeXAFileSystem implements XAFileSystemCommonness {
     private final GlobalHostedContext globalCallbackContext = new GlobalHostedContext();
     private final AtomicLong totalNonPooledBufferSize = new AtomicLong(0);
     private final ConcurrencyControl concurrencyControl;
+    private LockLeases lockLeases = null;
+    private LockLeaseKeeper lockLeaseKeeper = null;
     private final boolean handleGeneralRemoteInvocations;
     private final boolean handleClusterRemoteInvocations;
     private final ConcurrentLinkedQueue<TransactionInformation> failedTransactions =
@@ -135,13 +141,16 @@ public class NativeXAFileSystem implements XAFileSystemCommonness {
                     configuration.getBufferSize(), configuration.getDirectBufferIdleTime(),
                     configuration.getNonDirectBufferIdleTime(), this);
             selectorPool = new SelectorPool(1000);
+            transactionLogSegments = new TransactionLogSegments(transactionLogFileBaseName,
+                    configuration.getTransactionLogFileMaxSize(), configuration.getPreallocateTransactionLogs(), this);
             gatheringDiskWriter = new GatheringDiskWriter(configuration.getCumulativeBufferSizeForDiskWrite(),
                     configuration.getTransactionLogFileMaxSize(), configuration.getMaxNonPooledBufferSize(),
-                    transactionLogFileBaseName, this);
+                    transactionLogFileBaseName, configuration.getEnableGroupCommit(),
+                    configuration.getGroupCommitMaxWait(), configuration.getGroupCommitMaxBatchSize(), transactionLogSegments, this);
             recoveryWorker = new CrashRecoveryWorker(this);
             bufferPoolReliever = new ObjectPoolReliever(bufferPool, configuration.getBufferPoolRelieverInterval(), this);
             selectorPoolReliever = new ObjectPoolReliever(selectorPool, 1000, this);
-            transactionTimeoutDetector = new TransactionTimeoutDetector(1, this);
+            transactionTimeoutDetector = new TransactionTimeoutDetector(this);
             this.fileSystemEventQueue = new LinkedBlockingQueue<FileSystemStateChangeEvent>();
             this.fileSystemEventDelegator = new FileSystemEventDelegator(this, configuration.getMaximumConcurrentEventDeliveries());
             this.workListener = new CriticalWorkersListener(this);
@@ -160,7 +169,11 @@ public class NativeXAFileSystem implements XAFileSystemCommonness {
                         concurrencyControl = getXAFileSystem(clusterMasterInstanceId).getConcurrencyControl();
                     } else {
                         Integer clusterMasterPort = configuration.getClusterMasterPort();
-                        concurrencyControl = new RemoteConcurrencyControl(clusterMasterAddress, clusterMasterPort);
+                        if (configuration.getEnableClusterLockLeases()) {
+                            lockLeases = new LockLeases(clusterMasterAddress, clusterMasterPort, configuration.getLockTimeOut());
+                            lockLeaseKeeper = new LockLeaseKeeper(lockLeases, this);
+                        }
+                        concurrencyControl = new RemoteConcurrencyControl(clusterMasterAddress, clusterMasterPort, lockLeases);
                     }
                 } else {
                     handleClusterRemoteInvocations = true;
@@ -175,6 +188,9 @@ public class NativeXAFileSystem implements XAFileSystemCommonness {
             workManager.startWork(selectorPoolReliever, WorkManager.INDEFINITE, null, workListener);
             workManager.startWork(fileSystemEventDelegator, WorkManager.INDEFINITE, null, workListener);
             workManager.startWork(transactionTimeoutDetector, WorkManager.INDEFINITE, null, workListener);
+            if (lockLeaseKeeper != null) {
+                workManager.startWork(lockLeaseKeeper, WorkManager.INDEFINITE, null, workListener);
+            }
 
             handleGeneralRemoteInvocations = configuration.getEnableRemoteInvocations();
             if (handleClusterRemoteInvocations || handleGeneralRemoteInvocations) {
@@ -185,7 +201,12 @@ public class NativeXAFileSystem implements XAFileSystemCommonness {
             }
 
             recoveryWorker.collectRecoveryData();
+            if (recoveryWorker.getNumLogsScanned() > 0) {
+                logger.logInfo(recoveryWorker.getRecoveryStatistics());
+            }
+            transactionLogSegments.initialize();
             gatheringDiskWriter.initialize();
+            workManager.startWork(transactionLogSegments, WorkManager.INDEFINITE, null, workListener);
             workManager.startWork(gatheringDiskWriter, WorkManager.INDEFINITE, null, workListener);
             workManager.startWork(recoveryWorker, WorkManager.INDEFINITE, null, workListener);
 
@@ -422,6 +443,10 @@ public class NativeXAFileSystem implements XAFileSystemCommonness {
         return gatheringDiskWriter;
     }
 
+    public TransactionLogSegments getTransactionLogSegments() {
+        return transactionLogSegments;
+    }
+
     public String getTransactionLogFileBaseName() {
         return transactionLogFileBaseName;
     }
@@ -434,10 +459,22 @@ public class NativeXAFileSystem implements XAFileSystemCommonness {
         return recoveryWorker;
     }
 
+    TransactionTimeoutDetector getTransactionTimeoutDetector() {
+        return transactionTimeoutDetector;
+    }
+
     public int getConfiguredBufferSize() {
         return configuration.getBufferSize();
     }
 
+    public boolean isMemoryMappedReadsEnabled() {
+        return configuration.getEnableMemoryMappedReads();
+    }
+
+    public int getMemoryMappedReadWindowSize() {
+        return configuration.getMemoryMappedReadWindowSize();
+    }
+
     public WorkManager getWorkManager() {
         return workManager;
     }
@@ -461,7 +498,7 @@ public class NativeXAFileSystem implements XAFileSystemCommonness {
         return lastTransactionId.getAndIncrement();
     }
 
-    Logger getLogger() {
+    public Logger getLogger() {
         return logger;
     }
 
@@ -477,10 +514,15 @@ public class NativeXAFileSystem implements XAFileSystemCommonness {
 
         bufferPoolReliever.release();
         selectorPoolReliever.release();
+        if (lockLeaseKeeper != null) {
+            lockLeaseKeeper.release();
+            lockLeases.release();
+        }
         concurrencyControl.shutdown();
         recoveryWorker.release();
         gatheringDiskWriter.release();
         gatheringDiskWriter.deInitialize();
+        transactionLogSegments.release();
         fileSystemEventDelegator.release();
         transactionTimeoutDetector.release();
         if (getHandleGeneralRemoteInvocations() || getHandleClusterRemoteInvocations()) {
@@ -499,6 +541,10 @@ public class NativeXAFileSystem implements XAFileSystemCommonness {
         return configuration.getLockTimeOut();
     }
 
+    int getLockEscalationThreshold() {
+        return configuration.getLockEscalationThreshold();
+    }
+
     public File getNextBackupFileName() throws IOException {
         File savedCurrentBackupDir = this.currentBackupDirPath;
 
@@ -0,0 +1,94 @@
+/*
+ Copyright © 2010-2014, Nitin Verma (project owner for XADisk https://xadisk.dev.java.net/). All rights reserved.
+
+ This source code is being made available to the public under the terms specified in the license
+ "Eclipse Public License 1.0" located at http://www.opensource.org/licenses/eclipse-1.0.php.
+ */
+package org.xadisk.filesystem;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.xadisk.filesystem.utilities.MiscUtils;
+
+/*
+ * Keeps the target files of a commit open while the redo entries are being applied, so that
+ * a file receiving many appends/truncates is opened once and forced once, instead of once per
+ * log entry. At most maxOpenChannels files are kept open; the least recently used one
+ * is forced and closed when this limit is reached.
+ */
+class RedoApplyChannels {
+
+    private final LinkedHashMap<String, FileOutputStream> openStreams;
+    private final int maxOpenChannels;
+
+    RedoApplyChannels(int maxOpenChannels) {
+        this.maxOpenChannels = maxOpenChannels;
+        this.openStreams = new LinkedHashMap<String, FileOutputStream>(16, 0.75f, true);
+    }
+
+    boolean isOpen(String fileName) {
+        return openStreams.containsKey(fileName);
+    }
+
+    FileChannel getChannel(String fileName) throws IOException {
+        FileOutputStream fos = openStreams.get(fileName);
+        if (fos == null) {
+            if (openStreams.size() >= maxOpenChannels) {
+                Iterator<Map.Entry<String, FileOutputStream>> eldest = openStreams.entrySet().iterator();
+                FileOutputStream eldestStream = eldest.next().getValue();
+                eldest.remove();
+                forceAndClose(eldestStream);
+            }
+            fos = new FileOutputStream(fileName, true);
+            openStreams.put(fileName, fos);
+        }
+        return fos.getChannel();
+    }
+
+    void release(String fileName) throws IOException {
+        FileOutputStream fos = openStreams.remove(fileName);
+        if (fos != null) {
+            forceAndClose(fos);
+        }
+    }
+
+    void forceAll() throws IOException {
+        for (FileOutputStream fos : openStreams.values()) {
+            fos.getChannel().force(false);
+        }
+    }
+
+    void releaseAll() throws IOException {
+        ArrayList<FileOutputStream> streams = new ArrayList<FileOutputStream>(openStreams.values());
+        openStreams.clear();
+        try {
+            for (FileOutputStream fos : streams) {
+                fos.getChannel().force(false);
+            }
+        } finally {
+            for (FileOutputStream fos : streams) {
+                MiscUtils.closeAll(fos);
+            }
+        }
+    }
+
+    void closeAllQuietly() {
+        for (FileOutputStream fos : openStreams.values()) {
+            MiscUtils.closeAll(fos);
+        }
+        openStreams.clear();
+    }
+
+    private static void forceAndClose(FileOutputStream fos) throws IOException {
+        try {
+            fos.getChannel().force(false);
+        } finally {
+            MiscUtils.closeAll(fos);
+        }
+    }
+}
@@ -6,18 +6,31 @@
  */
 package org.xadisk.filesystem;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class ResourceDependencyGraph {
 
+    private static final int MAX_NODES_FOR_CYCLE_CHECK = 1000;
     private final ConcurrentHashMap<TransactionInformation, Node> nodes = new ConcurrentHashMap<TransactionInformation, Node>(1000);
 
     ResourceDependencyGraph() {
     }
 
-    void addDependency(TransactionInformation dependent, NativeLock resource) {
+    /*
+     * The escalationWaitingFor is the escalated lock, carried by the given resource, whose release is
+     * being waited for; null when waiting for the resource itself. The waitMode is one of the
+     * LockContentionProfiler.MODE_* constants.
+     */
+    void addDependency(TransactionInformation dependent, NativeLock resource, EscalatedLock escalationWaitingFor,
+            byte waitMode) {
         Node node = new Node(dependent, 0, resource, Thread.currentThread());
+        node.escalationWaitingFor = escalationWaitingFor;
+        node.waitMode = waitMode;
         nodes.put(dependent, node);
         dependent.setNodeInResourceDependencyGraph(node);
     }
@@ -25,10 +38,62 @@ public class ResourceDependencyGraph {
     void removeDependency(TransactionInformation dependent) {
         Node source = dependent.getNodeInResourceDependencyGraph();
         source.setResourceWaitingFor(null);
+        source.escalationWaitingFor = null;
         nodes.remove(dependent);
         dependent.setNodeInResourceDependencyGraph(null);
     }
 
+    /*
+     * Called just after the given transaction has started waiting (addDependency). Searches, along the
+     * edges from waiting transactions to the holders of the locks they wait for, for a cycle through this
+     * transaction; a new cycle can only be closed by such a new edge. The search is bounded by
+     * MAX_NODES_FOR_CYCLE_CHECK nodes; a cycle it misses is left to the periodic DeadLockDetector.
+     * Returns the victim for breaking the cycle found, chosen the way DeadLockDetector does it (the
+     * transaction in the cycle owning the least exclusive locks), or null.
+     */
+    TransactionInformation findDeadLockVictim(TransactionInformation waiter) {
+        Node start = nodes.get(waiter);
+        if (start == null) {
+            return null;
+        }
+        HashMap<Node, Node> parents = new HashMap<Node, Node>();
+        ArrayDeque<Node> nodesToExplore = new ArrayDeque<Node>();
+        nodesToExplore.add(start);
+        while (!nodesToExplore.isEmpty() && parents.size() < MAX_NODES_FOR_CYCLE_CHECK) {
+            Node nodeBeingExplored = nodesToExplore.poll();
+            for (TransactionInformation holder : nodeBeingExplored.getHoldersWaitedOn()) {
+                if (holder.equals(nodeBeingExplored.getId())) {
+                    continue;
+                }
+                Node neighbor = nodes.get(holder);
+                if (neighbor == null) {
+                    continue;
+                }
+                if (neighbor == start) {
+                    return chooseVictim(nodeBeingExplored, start, parents);
+                }
+                if (!parents.containsKey(neighbor)) {
+                    parents.put(neighbor, nodeBeingExplored);
+                    nodesToExplore.add(neighbor);
+                }
+            }
+        }
+        return null;
+    }
+
+    private static TransactionInformation chooseVictim(Node lastInCycle, Node start, HashMap<Node, Node> parents) {
+        Node victim = start;
+        int minimumLocks = start.getId().getNumOwnedExclusiveLocks();
+        for (Node node = lastInCycle; node != start; node = parents.get(node)) {
+            int currentLocksCount = node.getId().getNumOwnedExclusiveLocks();
+            if (currentLocksCount < minimumLocks) {
+                minimumLocks = currentLocksCount;
+                victim = node;
+            }
+        }
+        return victim.getId();
+    }
+
     public Node[] getNodes() {
         return nodes.values().toArray(new Node[0]);
     }
@@ -58,6 +123,9 @@ public class ResourceDependencyGraph {
         private Node parent = null;
         private int nextNeighborToProcess = 0;
         private volatile NativeLock resourceWaitingFor;
+        private volatile EscalatedLock escalationWaitingFor;
+        private final long waitStartTime = System.nanoTime();
+        private byte waitMode;
 
         private Node(TransactionInformation id, int defaultMark, NativeLock resourceWaitingFor, Thread threadWaitingForLock) {
             this.id = id;
@@ -135,6 +203,30 @@ public class ResourceDependencyGraph {
             return resourceWaitingFor;
         }
 
+        long getWaitStartTime() {
+            return waitStartTime;
+        }
+
+        byte getWaitMode() {
+            return waitMode;
+        }
+
+        /*
+         * The transactions holding the resource this node is waiting for, in a mode (or over the subtree)
+         * conflicting with the one being waited for. Empty if not waiting.
+         */
+        public Collection<TransactionInformation> getHoldersWaitedOn() {
+            NativeLock resource = resourceWaitingFor;
+            if (resource == null) {
+                return Collections.emptyList();
+            }
+            EscalatedLock escalation = escalationWaitingFor;
+            if (escalation == null) {
+                return resource.getHolders();
+            }
+            return Collections.singletonList(escalation.getOwner());
+        }
+
         public Thread getThreadWaitingForLock() {
             return threadWaitingForLock;
         }
@@ -7,6 +7,7 @@
 package org.xadisk.filesystem;
 
 import org.xadisk.filesystem.utilities.FileIOUtility;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
@@ -16,6 +17,7 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.zip.CRC32;
 import org.xadisk.bridge.proxies.facilitators.RemoteMethodInvoker;
 import org.xadisk.bridge.proxies.facilitators.RemoteXADiskActivationSpecImpl;
 import org.xadisk.bridge.proxies.impl.RemoteMessageEndpointFactory;
@@ -46,6 +48,23 @@ public class TransactionLogEntry {
     public static final byte REMOTE_ENDPOINT_ACTIVATES = 22;
     public static final byte REMOTE_ENDPOINT_DEACTIVATES = 23;
     public static final String UTF8Charset = "UTF8";
+    /*
+     * Every entry starts with: header-length (int), content-length (int), operation-type (byte),
+     * the generation (int) of the log segment it was written to (see TransactionLogSegments),
+     * a checksum (int) of the header and a checksum (int) of the content. The header checksum
+     * covers all of the header except itself, including the content checksum. Both are CRC32s, and
+     * are filled in just before the entry is written to the log.
+     */
+    private static final int GENERATION_OFFSET = 9;
+    private static final int HEADER_CHECKSUM_OFFSET = 13;
+    private static final int CONTENT_CHECKSUM_OFFSET = 17;
+    private static final int MINIMUM_HEADER_LENGTH = 21;
+    private static final int CONTENT_VERIFICATION_CHUNK_SIZE = 65536;
+    /*
+     * The entries in the logs written by the releases before 1.3 lack the generation and the checksums;
+     * the operation-type is followed directly by the rest of the header.
+     */
+    private static final int LEGACY_MINIMUM_HEADER_LENGTH = 9;
     private TransactionInformation xid;
     private byte operationType;
     private String fileName;
@@ -58,6 +77,7 @@ public class TransactionLogEntry {
     private ArrayList<FileSystemStateChangeEvent> eventList;
     private int checkPointPosition = -1;
     private EndPointActivation remoteActivation;
+    private int generation;
 
     static byte[] getUTF8Bytes(String str) {
         try {
@@ -86,6 +106,9 @@ public class TransactionLogEntry {
         buffer.putInt(0);
         buffer.putInt((int) fileContentLength);
         buffer.put(appendOrUndoTruncate);
+        buffer.putInt(0);
+        buffer.putInt(0);
+        buffer.putInt(0);
         buffer.put(xid.getBytes());
 
         buffer.putInt(filePathLength);
@@ -108,6 +131,9 @@ public class TransactionLogEntry {
         buffer.putInt(0);
         buffer.putInt(0);
         buffer.put(createFileOrDirOrDeleteOrUndoCreate);
+        buffer.putInt(0);
+        buffer.putInt(0);
+        buffer.putInt(0);
         buffer.put(xid.getBytes());
 
         buffer.putInt(filePathLength);
@@ -129,6 +155,9 @@ public class TransactionLogEntry {
         buffer.putInt(0);
         buffer.putInt(0);
         buffer.put(truncateOrUndoAppend);
+        buffer.putInt(0);
+        buffer.putInt(0);
+        buffer.putInt(0);
         buffer.put(xid.getBytes());
 
         buffer.putInt(filePathLength);
@@ -154,6 +183,9 @@ public class TransactionLogEntry {
         buffer.putInt(0);
         buffer.putInt(0);
         buffer.put(moveOrCopyOrUndoDelete);
+        buffer.putInt(0);
+        buffer.putInt(0);
+        buffer.putInt(0);
         buffer.put(xid.getBytes());
         buffer.putInt(srcFilePathLength);
         buffer.put(sourceFilePathBytes);
@@ -174,6 +206,9 @@ public class TransactionLogEntry {
         buffer.putInt(0);
         buffer.putInt(0);
         buffer.put(commitStatus);
+        buffer.putInt(0);
+        buffer.putInt(0);
+        buffer.putInt(0);
         buffer.put(xid.getBytes());
 
         buffer.putInt(0, buffer.position());
@@ -189,6 +224,9 @@ public class TransactionLogEntry {
         buffer.putInt(0);
         buffer.putInt(0);
         buffer.put(CHECKPOINT_AVOIDING_COPY_OR_MOVE_REDO);
+        buffer.putInt(0);
+        buffer.putInt(0);
+        buffer.putInt(0);
         buffer.put(xid.getBytes());
         buffer.putInt(checkPointPosition);
 
@@ -216,6 +254,9 @@ public class TransactionLogEntry {
         buffer.putInt(0);
         buffer.putInt(0);
         buffer.put(FILES_ALREADY_ONDISK);
+        buffer.putInt(0);
+        buffer.putInt(0);
+        buffer.putInt(0);
         buffer.put(xid.getBytes());
         buffer.putInt(files.size());
         for (i = 0; i < filePathsBytes.length; i++) {
@@ -242,6 +283,9 @@ public class TransactionLogEntry {
         buffer.putInt(0);
         buffer.putInt(0);
         buffer.put(enQ_deQ_prepareDequeue);
+        buffer.putInt(0);
+        buffer.putInt(0);
+        buffer.putInt(0);
         buffer.put(xid.getBytes());
         buffer.putInt(events.size());
         for (int i = 0; i < eventsBytes.length; i++) {
@@ -273,11 +317,14 @@ public class TransactionLogEntry {
             for (int i = 0; i < 3; i++) {
                 variableBytesLength += variableBytes[i].length;
             }
-            ByteBuffer buffer = ByteBuffer.allocate(41 + variableBytesLength);
+            ByteBuffer buffer = ByteBuffer.allocate(53 + variableBytesLength);
 
             buffer.putInt(0);
             buffer.putInt(0);
             buffer.put(activation_deActivation);
+            buffer.putInt(0);
+            buffer.putInt(0);
+            buffer.putInt(0);
             //we always come here for "areFilesRemote = true".
             buffer.putInt(variableBytes[0].length);
             buffer.put(variableBytes[0]);
@@ -311,12 +358,21 @@ public class TransactionLogEntry {
     }
 
     static TransactionLogEntry parseLogEntry(ByteBuffer buffer) {
+        return parseLogEntry(buffer, false);
+    }
+
+    private static TransactionLogEntry parseLogEntry(ByteBuffer buffer, boolean legacyFormat) {
         TransactionLogEntry temp = new TransactionLogEntry();
         int position = buffer.position();
         buffer.position(0);
         temp.headerLength = buffer.getInt();
         buffer.getInt();
         temp.operationType = buffer.get();
+        if (!legacyFormat) {
+            temp.generation = buffer.getInt();
+            buffer.getInt();
+            buffer.getInt();
+        }
         if (temp.operationType != REMOTE_ENDPOINT_ACTIVATES
                 && temp.operationType != REMOTE_ENDPOINT_DEACTIVATES) {
             temp.xid = new TransactionInformation(buffer);
@@ -465,14 +521,166 @@ public class TransactionLogEntry {
         buffer.putInt(4, contentLength);
     }
 
+    /*
+     * Tells whether the two FILE_APPEND entries (in their serialized form, as prepared by the output
+     * stream) are from the same transaction and for the same file; such entries differ only in the
+     * content-length, the generation, the checksums and the file-position fields of the header.
+     */
+    public static boolean isAppendToSameFile(ByteBuffer entry1, int headerLength1, ByteBuffer entry2, int headerLength2) {
+        if (headerLength1 != headerLength2 || headerLength1 < MINIMUM_HEADER_LENGTH + 8) {
+            return false;
+        }
+        if (entry1.get(8) != FILE_APPEND || entry2.get(8) != FILE_APPEND) {
+            return false;
+        }
+        for (int i = MINIMUM_HEADER_LENGTH; i < headerLength1 - 8; i++) {
+            if (entry1.get(i) != entry2.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Creates the header for a FILE_APPEND entry carrying the contents of a series of contiguous
+     * FILE_APPEND entries, the first of which is passed here.
+     */
+    public static byte[] getCoalescedAppendHeader(ByteBuffer firstEntry, int headerLength, int totalContentLength) {
+        byte header[] = new byte[headerLength];
+        for (int i = 0; i < headerLength; i++) {
+            header[i] = firstEntry.get(i);
+        }
+        ByteBuffer.wrap(header).putInt(4, totalContentLength);
+        return header;
+    }
+
+    /*
+     * Fills in the generation of the log segment, to which the entry is about to be written, and the
+     * checksums; the entry's content follows its header in the same buffer. During recovery, an
+     * entry carrying some other generation is known to be a leftover from an earlier use of a
+     * recycled segment, and an entry with a wrong checksum is known to be torn; either marks the end
+     * of the segment's valid entries.
+     */
+    public static void prepareForLog(ByteBuffer entry, int generation) {
+        int start = entry.position();
+        ByteBuffer content = entry.duplicate();
+        content.position(start + entry.getInt(start));
+        content.limit(content.position() + entry.getInt(start + 4));
+        CRC32 contentChecksum = new CRC32();
+        contentChecksum.update(content);
+        prepareForLog(entry, generation, (int) contentChecksum.getValue());
+    }
+
+    /*
+     * Same as above, for an entry whose content is written separately.
+     */
+    public static void prepareForLog(ByteBuffer entryHeader, int generation, int contentChecksum) {
+        int start = entryHeader.position();
+        entryHeader.putInt(start + GENERATION_OFFSET, generation);
+        entryHeader.putInt(start + CONTENT_CHECKSUM_OFFSET, contentChecksum);
+        entryHeader.putInt(start + HEADER_CHECKSUM_OFFSET, getHeaderChecksum(entryHeader, start, entryHeader.getInt(start)));
+    }
+
+    private static int getHeaderChecksum(ByteBuffer entryHeader, int start, int headerLength) {
+        CRC32 checksum = new CRC32();
+        ByteBuffer temp = entryHeader.duplicate();
+        temp.limit(start + HEADER_CHECKSUM_OFFSET);
+        temp.position(start);
+        checksum.update(temp);
+        temp.limit(start + headerLength);
+        temp.position(start + CONTENT_CHECKSUM_OFFSET);
+        checksum.update(temp);
+        return (int) checksum.getValue();
+    }
+
+    private static boolean isContentIntact(FileChannel logChannel, long contentPosition, int contentLength,
+            int expectedChecksum) throws IOException {
+        CRC32 checksum = new CRC32();
+        ByteBuffer chunk = ByteBuffer.allocate(Math.min(contentLength, CONTENT_VERIFICATION_CHUNK_SIZE));
+        long position = contentPosition;
+        long contentEnd = contentPosition + contentLength;
+        while (position < contentEnd) {
+            chunk.clear();
+            chunk.limit((int) Math.min(chunk.capacity(), contentEnd - position));
+            while (chunk.hasRemaining()) {
+                int numRead = logChannel.read(chunk, position + chunk.position());
+                if (numRead == -1) {
+                    return false;
+                }
+            }
+            chunk.flip();
+            checksum.update(chunk);
+            position += chunk.limit();
+        }
+        return (int) checksum.getValue() == expectedChecksum;
+    }
+
     public static TransactionLogEntry getNextTransactionLogEntry(FileChannel logChannel, long position,
             boolean onlyCompletionEntry) throws IOException {
-        ByteBuffer header = ByteBuffer.allocate(500);
+        return getNextTransactionLogEntry(logChannel, position, onlyCompletionEntry, -1, false, false,
+                ByteBuffer.allocate(500));
+    }
+
+    public static TransactionLogEntry getNextLegacyTransactionLogEntry(FileChannel logChannel, long position)
+            throws IOException {
+        return getNextLegacyTransactionLogEntry(logChannel, position, ByteBuffer.allocate(500));
+    }
+
+    /*
+     * For reading the entries of a log written by a release before 1.3 (see LEGACY_MINIMUM_HEADER_LENGTH).
+     * Such entries carry no generation or checksums, so the end of the log's valid entries (possibly a
+     * torn entry) is known only from lengths running past the end of the log; an EOFException is thrown
+     * when no more entries can be found at the given position.
+     */
+    public static TransactionLogEntry getNextLegacyTransactionLogEntry(FileChannel logChannel, long position,
+            ByteBuffer headerBuffer) throws IOException {
+        return getNextTransactionLogEntry(logChannel, position, false, -1, false, true, headerBuffer);
+    }
+
+    /*
+     * For scanning a log till its end (as during recovery); an EOFException is thrown when no more valid
+     * entries can be found at the given position. The entry's header is always checked against its
+     * checksum, its content only if verifyContent is true; the content is never parsed.
+     * The headerBuffer is used for reading the header, unless the header doesn't fit in it.
+     */
+    public static TransactionLogEntry getNextTransactionLogEntry(FileChannel logChannel, long position,
+            int segmentGeneration, boolean verifyContent, ByteBuffer headerBuffer) throws IOException {
+        return getNextTransactionLogEntry(logChannel, position, false, segmentGeneration, verifyContent, false,
+                headerBuffer);
+    }
+
+    private static TransactionLogEntry getNextTransactionLogEntry(FileChannel logChannel, long position,
+            boolean onlyCompletionEntry, int segmentGeneration, boolean verifyContent, boolean legacyFormat,
+            ByteBuffer headerBuffer) throws IOException {
+        ByteBuffer header = headerBuffer;
+        header.clear();
         logChannel.position(position);
 
         FileIOUtility.readFromChannel(logChannel, header, 0, 4);
 
         int logEntryHeaderLength = header.getInt(0);
+        if (legacyFormat) {
+            if (logEntryHeaderLength < LEGACY_MINIMUM_HEADER_LENGTH || logEntryHeaderLength > logChannel.size() - position) {
+                throw new EOFException();
+            }
+            header.limit(header.capacity());
+            FileIOUtility.readFromChannel(logChannel, header, 4, 4);
+            int logEntryContentLength = header.getInt(4);
+            if (logEntryContentLength < 0 || logEntryContentLength > logChannel.size() - position - logEntryHeaderLength) {
+                throw new EOFException();
+            }
+        } else if (segmentGeneration != -1) {
+            if (logEntryHeaderLength < MINIMUM_HEADER_LENGTH || logEntryHeaderLength > logChannel.size() - position) {
+                throw new EOFException();
+            }
+            header.limit(header.capacity());
+            FileIOUtility.readFromChannel(logChannel, header, 4, MINIMUM_HEADER_LENGTH - 4);
+            int logEntryContentLength = header.getInt(4);
+            if (header.getInt(GENERATION_OFFSET) != segmentGeneration || logEntryContentLength < 0
+                    || logEntryContentLength > logChannel.size() - position - logEntryHeaderLength) {
+                throw new EOFException();
+            }
+        }
         if (logEntryHeaderLength > header.capacity()) {
             header = ByteBuffer.allocate(logEntryHeaderLength);
         }
@@ -481,12 +689,28 @@ public class TransactionLogEntry {
         FileIOUtility.readFromChannel(logChannel, header, 0, logEntryHeaderLength);
         header.flip();
 
+        if (segmentGeneration != -1) {
+            if (getHeaderChecksum(header, 0, logEntryHeaderLength) != header.getInt(HEADER_CHECKSUM_OFFSET)) {
+                throw new EOFException();
+            }
+            if (verifyContent && !isContentIntact(logChannel, position + logEntryHeaderLength, header.getInt(4),
+                    header.getInt(CONTENT_CHECKSUM_OFFSET))) {
+                throw new EOFException();
+            }
+        }
+
         if (onlyCompletionEntry) {
             TransactionLogEntry logEntry = new TransactionLogEntry();
             logEntry.headerLength = header.getInt();
             logEntry.fileContentLength = header.getInt();
-            logEntry.xid = new TransactionInformation(header);
             logEntry.operationType = header.get();
+            logEntry.generation = header.getInt();
+            header.getInt();
+            header.getInt();
+            if (logEntry.operationType != REMOTE_ENDPOINT_ACTIVATES
+                    && logEntry.operationType != REMOTE_ENDPOINT_DEACTIVATES) {
+                logEntry.xid = new TransactionInformation(header);
+            }
 
             logChannel.position(position + logEntry.headerLength + logEntry.fileContentLength);
 
@@ -497,12 +721,16 @@ public class TransactionLogEntry {
             }
             return null;
         } else {
-            TransactionLogEntry logEntry = parseLogEntry(header);
+            TransactionLogEntry logEntry = parseLogEntry(header, legacyFormat);
             logChannel.position(position + logEntry.headerLength + logEntry.fileContentLength);
             return logEntry;
         }
     }
 
+    public int getGeneration() {
+        return generation;
+    }
+
     public HashSet<File> getFileList() {
         return fileList;
     }
@@ -521,6 +749,28 @@ public class TransactionLogEntry {
                 || operationType == TransactionLogEntry.UNDOABLE_FILE_TRUNCATE);
     }
 
+    /*
+     * Tells whether this entry changes the status of a transaction (or of a remote endpoint activation)
+     * as seen by the recovery.
+     */
+    public boolean isTransactionStatusEntry() {
+        switch (operationType) {
+            case COMMIT_BEGINS:
+            case TXN_COMMIT_DONE:
+            case TXN_ROLLBACK_DONE:
+            case PREPARE_COMPLETES:
+            case TXN_USES_UNDO_LOGS:
+            case EVENT_ENQUEUE:
+            case EVENT_DEQUEUE:
+            case PREPARE_COMPLETES_FOR_EVENT_DEQUEUE:
+            case REMOTE_ENDPOINT_ACTIVATES:
+            case REMOTE_ENDPOINT_DEACTIVATES:
+                return true;
+            default:
+                return false;
+        }
+    }
+
     public boolean isRedoLogEntry() {
         return operationType < 12;
     }
@@ -10,8 +10,8 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Map;
-import org.xadisk.filesystem.DurableDiskSession;
 import org.xadisk.filesystem.TransactionInformation;
+import org.xadisk.filesystem.workers.TransactionLogSegments;
 
 public class TransactionLogsUtility {
 
@@ -28,7 +28,7 @@ public class TransactionLogsUtility {
 
     public static void deleteLogsIfPossible(TransactionInformation xid, Map<TransactionInformation, ArrayList<Integer>> transactionsAndLogsOccupied,
             Map<Integer, Integer> transactionLogsAndOpenTransactions, int currentLogIndex,
-            String transactionLogBaseName, DurableDiskSession durableDiskSession) throws IOException {
+            String transactionLogBaseName, TransactionLogSegments transactionLogSegments) throws IOException {
         ArrayList<Integer> logsOccupied = transactionsAndLogsOccupied.get(xid);
         if (logsOccupied == null) {
             return;
@@ -40,7 +40,7 @@ public class TransactionLogsUtility {
             }
             numTxns--;
             if (numTxns == 0 && currentLogIndex != logFileIndex) {
-                durableDiskSession.deleteFileDurably(new File(transactionLogBaseName + "_" + logFileIndex));
+                transactionLogSegments.releaseSegment(new File(transactionLogBaseName + "_" + logFileIndex));
                 transactionLogsAndOpenTransactions.remove(logFileIndex);
             } else {
                 transactionLogsAndOpenTransactions.put(logFileIndex, numTxns);
@@ -49,10 +49,10 @@ public class TransactionLogsUtility {
     }
 
     public static void deleteLastLogIfPossible(int logFileIndex, Map<Integer, Integer> transactionLogsAndOpenTransactions,
-            String transactionLogBaseName, DurableDiskSession durableDiskSession) throws IOException {
+            String transactionLogBaseName, TransactionLogSegments transactionLogSegments) throws IOException {
         Integer numTxns = transactionLogsAndOpenTransactions.get(logFileIndex);
         if (numTxns != null && numTxns == 0) {
-            durableDiskSession.deleteFileDurably(new File(transactionLogBaseName + "_" + logFileIndex));
+            transactionLogSegments.releaseSegment(new File(transactionLogBaseName + "_" + logFileIndex));
             transactionLogsAndOpenTransactions.remove(logFileIndex);
         }
     }
@@ -13,7 +13,9 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.concurrent.locks.ReentrantLock;
 import org.xadisk.bridge.proxies.interfaces.XAFileInputStream;
 import org.xadisk.filesystem.Buffer;
@@ -38,6 +40,9 @@ public class NativeXAFileInputStream implements XAFileInputStream {
     private final NativeSession owningSession;
     private final ReentrantLock asynchronousRollbackLock;
     private final PooledBuffer pooledBuffer;
+    private boolean useMemoryMappedReads = false;
+    private MappedByteBuffer mappedWindow;
+    private long mappedWindowStart;
 
     public NativeXAFileInputStream(VirtualViewFile vvf, NativeSession owningSession, NativeXAFileSystem xaFileSystem)
             throws FileNotExistsException {
@@ -64,6 +69,7 @@ public class NativeXAFileInputStream implements XAFileInputStream {
             } catch (FileNotFoundException fnfe) {
                 throw new FileNotExistsException(vvf.getFileName().getAbsolutePath());
             }
+            this.useMemoryMappedReads = xaFileSystem.isMemoryMappedReadsEnabled();
         }
     }
 
@@ -71,6 +77,7 @@ public class NativeXAFileInputStream implements XAFileInputStream {
         try {
             asynchronousRollbackLock.lock();
             checkIfCanContinue();
+            discardMappedContentIfStale();
             if (!filledAtleastOnce) {
                 return 0;
             }
@@ -95,6 +102,8 @@ public class NativeXAFileInputStream implements XAFileInputStream {
                 }
             }
             vvf.reduceBeingRead();
+            byteBuffer = cachedWritableByteBuffer;
+            mappedWindow = null;//the mapping goes away when the buffer gets garbage collected.
             if (pooledBuffer != null) {
                 xaFileSystem.getBufferPool().checkIn(pooledBuffer);
             }
@@ -109,6 +118,7 @@ public class NativeXAFileInputStream implements XAFileInputStream {
             int eofMark;
             asynchronousRollbackLock.lock();
             checkIfCanContinue();
+            discardMappedContentIfStale();
             if (!filledAtleastOnce) {
                 eofMark = refillBuffer();
                 if (eofMark == -1) {
@@ -140,6 +150,7 @@ public class NativeXAFileInputStream implements XAFileInputStream {
             int eofMark;
             asynchronousRollbackLock.lock();
             checkIfCanContinue();
+            discardMappedContentIfStale();
             if (!filledAtleastOnce) {
                 eofMark = refillBuffer();
                 if (eofMark == -1) {
@@ -171,6 +182,7 @@ public class NativeXAFileInputStream implements XAFileInputStream {
             if (n < 0) {
                 throw new IllegalArgumentException("Argument should be a non-negative integer.");
             }
+            discardMappedContentIfStale();
             long filesize = vvf.getLength();
             int bufferedBytesRemaining = 0;
             if (filledAtleastOnce) {
@@ -192,6 +204,7 @@ public class NativeXAFileInputStream implements XAFileInputStream {
         try {
             asynchronousRollbackLock.lock();
             checkIfCanContinue();
+            discardMappedContentIfStale();
 
             long filesize = vvf.getLength();
             if (n < 0 || n > filesize) {
@@ -226,6 +239,102 @@ public class NativeXAFileInputStream implements XAFileInputStream {
         }
     }
 
+    public long transferTo(WritableByteChannel target, long count) throws IOException,
+            NoTransactionAssociatedException, ClosedStreamException {
+        try {
+            asynchronousRollbackLock.lock();
+            checkIfCanContinue();
+            discardMappedContentIfStale();
+            if (count < 0) {
+                throw new IllegalArgumentException("Argument should be a non-negative integer.");
+            }
+            long transferred = 0;
+            if (filledAtleastOnce && byteBuffer.hasRemaining()) {
+                ByteBuffer buffered = byteBuffer.duplicate();
+                buffered.limit(buffered.position() + (int) Math.min(buffered.remaining(), count));
+                transferred = writeFully(buffered, target);
+                byteBuffer.position(byteBuffer.position() + (int) transferred);
+                if (byteBuffer.hasRemaining() || transferred == count) {
+                    return transferred;
+                }
+            }
+            //nothing is buffered now, and "position" is the position of the next byte to be read.
+            byteBuffer = cachedWritableByteBuffer;
+            byteBuffer.clear();
+            byteBuffer.limit(0);
+            this.headerLengthInByteBuffer = 0;
+            filledAtleastOnce = true;
+            while (transferred < count) {
+                long numTransferred = transferFromPosition(target, count - transferred);
+                if (numTransferred <= 0) {
+                    break;
+                }
+                position += numTransferred;
+                transferred += numTransferred;
+            }
+            return transferred;
+        } finally {
+            asynchronousRollbackLock.unlock();
+        }
+    }
+
+    /*
+     * Transfers the contents starting at "position" from wherever they reside: the physical file
+     * (using FileChannel.transferTo), the in-memory buffers (written as they are) or the transaction
+     * logs (via the stream's buffer). Returns -1 at EOF and 0 if the target did not accept more bytes.
+     */
+    private long transferFromPosition(WritableByteChannel target, long maxBytes) throws IOException {
+        if (vvf.isUsingHeavyWriteOptimization()) {
+            long available = vvf.getLength() - position;
+            if (available <= 0) {
+                return -1;
+            }
+            return vvf.transferContentsFromChannel(position, Math.min(available, maxBytes), target);
+        }
+
+        if (position <= vvf.getMappedToThePhysicalFileTill() - 1) {
+            long available = vvf.getMappedToThePhysicalFileTill() - position;
+            return physicalFileChannel.transferTo(position, Math.min(available, maxBytes), target);
+        }
+
+        Buffer contentBuffer = vvf.getInMemoryContentBuffer(position);
+        if (contentBuffer == null) {
+            return -1;
+        }
+        contentBuffer = contentBuffer.createReadOnlyClone();
+        int offsetInContentBuffer = (int) (position - contentBuffer.getFileContentPosition());
+        ByteBuffer content;
+        if (contentBuffer.getBuffer() == null) {
+            content = cachedWritableByteBuffer;
+            content.clear();
+            contentBuffer.regenerateContentFromDisk(content, offsetInContentBuffer);
+        } else {
+            content = contentBuffer.getBuffer();
+            content.limit(contentBuffer.getHeaderLength() + contentBuffer.getFileContentLength());
+            content.position(contentBuffer.getHeaderLength() + offsetInContentBuffer);
+        }
+        if (content.remaining() > maxBytes) {
+            content.limit(content.position() + (int) maxBytes);
+        }
+        long numWritten = writeFully(content, target);
+        if (content == cachedWritableByteBuffer) {
+            content.limit(0);
+        }
+        return numWritten;
+    }
+
+    private static long writeFully(ByteBuffer source, WritableByteChannel target) throws IOException {
+        long numWritten = 0;
+        while (source.hasRemaining()) {
+            int n = target.write(source);
+            if (n == 0) {
+                break;
+            }
+            numWritten += n;
+        }
+        return numWritten;
+    }
+
     //could not throw those rich exception below due to the wrapping by InputStream.mark method.
     public long position() {
         try {
@@ -257,6 +366,9 @@ public class NativeXAFileInputStream implements XAFileInputStream {
             }
 
             if (position <= vvf.getMappedToThePhysicalFileTill() - 1) {
+                if (useMemoryMappedReads && refillFromMappedWindow()) {
+                    return byteBuffer.remaining();
+                }
                 long maxAmountToBeRead = vvf.getMappedToThePhysicalFileTill() - position;
                 if (maxAmountToBeRead < byteBuffer.limit()) {
                     byteBuffer.limit((int) maxAmountToBeRead);
@@ -310,6 +422,61 @@ public class NativeXAFileInputStream implements XAFileInputStream {
         }
     }
 
+    /*
+     * Serves the committed region of the physical file from a memory-mapped window, which is
+     * (re)mapped starting at the current position when the position falls outside it. Returns
+     * false (after which this stream uses normal reads only) if the mapping cannot be made, e.g. if
+     * the physical file has become shorter than what the view expects.
+     * A window dropped here (or at close) stays mapped until garbage collected; see the limitation
+     * documented at FileSystemConfiguration.getEnableMemoryMappedReads.
+     */
+    private boolean refillFromMappedWindow() {
+        long mappedTill = vvf.getMappedToThePhysicalFileTill();
+        if (mappedWindow == null || position < mappedWindowStart
+                || position >= mappedWindowStart + mappedWindow.capacity()) {
+            mappedWindow = null;
+            long windowSize = Math.min(xaFileSystem.getMemoryMappedReadWindowSize(), mappedTill - position);
+            try {
+                mappedWindow = physicalFileChannel.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
+                mappedWindowStart = position;
+            } catch (IOException ioe) {
+                useMemoryMappedReads = false;
+                return false;
+            }
+        }
+        long windowEnd = Math.min(mappedWindowStart + mappedWindow.capacity(), mappedTill);
+        mappedWindow.limit((int) (windowEnd - mappedWindowStart));
+        mappedWindow.position((int) (position - mappedWindowStart));
+        byteBuffer = mappedWindow;
+        position = windowEnd;
+        filledAtleastOnce = true;
+        this.headerLengthInByteBuffer = 0;
+        return true;
+    }
+
+    /*
+     * The contents of the mapped window are valid only while the physical file is not being
+     * changed: the transaction may truncate the file below the window, or start writing the
+     * physical file directly (heavy-write optimization). In such cases, the unread mapped
+     * contents are dropped and the next read goes through refillBuffer again.
+     */
+    private void discardMappedContentIfStale() {
+        if (mappedWindow == null) {
+            return;
+        }
+        boolean fileChanging = vvf.isUsingHeavyWriteOptimization();
+        if (byteBuffer == mappedWindow && (fileChanging || vvf.getMappedToThePhysicalFileTill() < position)) {
+            position -= byteBuffer.remaining();
+            byteBuffer = cachedWritableByteBuffer;
+            byteBuffer.clear();
+            byteBuffer.limit(0);
+        }
+        if (fileChanging) {
+            useMemoryMappedReads = false;
+            mappedWindow = null;
+        }
+    }
+
     public boolean isClosed() {
         return closed;
     }
@@ -91,6 +91,82 @@ public class NativeXAFileOutputStream implements XAFileOutputStream {
         }
     }
 
+    public void write(ByteBuffer src) throws ClosedStreamException, NoTransactionAssociatedException {
+        try {
+            asynchronousRollbackLock.lock();
+            checkIfCanContinue();
+            writeByteBuffer(src);
+        } finally {
+            asynchronousRollbackLock.unlock();
+        }
+    }
+
+    public void write(ByteBuffer[] srcs) throws ClosedStreamException, NoTransactionAssociatedException {
+        try {
+            asynchronousRollbackLock.lock();
+            checkIfCanContinue();
+            for (ByteBuffer src : srcs) {
+                writeByteBuffer(src);
+            }
+        } finally {
+            asynchronousRollbackLock.unlock();
+        }
+    }
+
+    /*
+     * Contents smaller than the stream's buffer are copied into it as usual. Larger contents are
+     * copied in one go into a Buffer of their own (of the same kind, direct or not, as the source),
+     * which is submitted to the GatheringDiskWriter as a separate log entry, instead of being
+     * chopped into the stream's buffer-fulls. In the heavy-write mode, everything goes through
+     * the stream's buffer, which is written directly to the file.
+     */
+    private void writeByteBuffer(ByteBuffer src) {
+        if (heavyWrite || src.remaining() < xaFileSystem.getConfiguredBufferSize()) {
+            while (src.hasRemaining()) {
+                int lenToWriteNow = Math.min(byteBuffer.remaining(), src.remaining());
+                ByteBuffer slice = src.duplicate();
+                slice.limit(slice.position() + lenToWriteNow);
+                byteBuffer.put(slice);
+                src.position(src.position() + lenToWriteNow);
+                filePosition += lenToWriteNow;
+                if (byteBuffer.remaining() == 0) {
+                    submitBuffer();
+                    setUpNewBuffer();
+                }
+            }
+            return;
+        }
+        if (byteBuffer.position() > buffer.getHeaderLength()) {
+            submitBuffer();
+            allocateByteBuffer();
+        }
+        while (src.hasRemaining()) {
+            int contentLength = Math.min(src.remaining(), NativeXAFileSystem.FILE_CHANNEL_MAX_TRANSFER);
+            byte header[] = TransactionLogEntry.getLogEntry(xid, destination, filePosition, contentLength,
+                    TransactionLogEntry.FILE_APPEND);
+            Buffer extent = new Buffer(header.length + contentLength, src.isDirect(), xaFileSystem);
+            ByteBuffer extentBytes = extent.getBuffer();
+            extentBytes.put(header);
+            ByteBuffer slice = src.duplicate();
+            slice.limit(slice.position() + contentLength);
+            extentBytes.put(slice);
+            src.position(src.position() + contentLength);
+            extentBytes.flip();
+            extent.setHeaderLength(header.length);
+            extent.setFileContentPosition(filePosition);
+            extent.setFileContentLength(contentLength);
+            try {
+                vvf.appendContentBuffer(extent);
+            } catch (IOException ioe) {
+                xaFileSystem.notifySystemFailure(ioe);
+            }
+            theGatheringDiskWriter.submitBuffer(extent, xid);
+            filePosition += contentLength;
+        }
+        byteBuffer.clear();
+        writeHeaderForNewContent();
+    }
+
     public void flush() throws ClosedStreamException, NoTransactionAssociatedException {
         try {
             asynchronousRollbackLock.lock();
@@ -133,13 +209,17 @@ public class NativeXAFileOutputStream implements XAFileOutputStream {
             this.byteBuffer.clear();
         } else {
             allocateByteBuffer();
-            byte temp[] = TransactionLogEntry.getLogEntry(xid, destination, filePosition, 21, TransactionLogEntry.FILE_APPEND);
-            byteBuffer.put(temp);
-            buffer.setFileContentPosition(filePosition);
-            buffer.setHeaderLength(temp.length);
+            writeHeaderForNewContent();
         }
     }
 
+    private void writeHeaderForNewContent() {
+        byte temp[] = TransactionLogEntry.getLogEntry(xid, destination, filePosition, 21, TransactionLogEntry.FILE_APPEND);
+        byteBuffer.put(temp);
+        buffer.setFileContentPosition(filePosition);
+        buffer.setHeaderLength(temp.length);
+    }
+
     private void submitBuffer() {
         try {
             if (heavyWrite) {
@@ -164,6 +244,9 @@ public class NativeXAFileOutputStream implements XAFileOutputStream {
 
     private void checkIfCanContinue() throws NoTransactionAssociatedException, ClosedStreamException {
         owningSession.checkIfCanContinue();
+        if (closed) {
+            throw new ClosedStreamException();
+        }
     }
 
     public boolean isClosed() {
@@ -12,6 +12,7 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
 import org.xadisk.filesystem.Buffer;
@@ -301,33 +302,18 @@ public class VirtualViewFile {
         if (this.mappedToThePhysicalFileTill > newLength) {
             this.mappedToThePhysicalFileTill = newLength;
         }
-        boolean needToTruncatePartially = false;
-        int removeCompleteBuffersFromIndex = -1;
-        for (int i = 0; i < virtualViewContentBuffers.size(); i++) {
-            Buffer buffer = virtualViewContentBuffers.get(i);
-            if (newLength <= buffer.getFileContentPosition()) {
-                removeCompleteBuffersFromIndex = i;
-                break;
-            }
+        int lastBufferBeforeNewLength = indexOfLastBufferStartingAtOrBefore(newLength - 1);
+        if (lastBufferBeforeNewLength >= 0) {
+            Buffer buffer = virtualViewContentBuffers.get(lastBufferBeforeNewLength);
             long fileLengthUptoThisBuffer = buffer.getFileContentPosition() + buffer.getFileContentLength();
             if (newLength < fileLengthUptoThisBuffer) {
-                needToTruncatePartially = true;
-                removeCompleteBuffersFromIndex = i + 1;
-                break;
-            }
-        }
-        if (needToTruncatePartially) {
-            Buffer partiallyTruncatedBuffer = virtualViewContentBuffers.get(removeCompleteBuffersFromIndex - 1);
-            Buffer virtualCopy = partiallyTruncatedBuffer.createReadOnlyClone();
-            int effectiveContentLengthInBuffer = (int) (newLength - virtualCopy.getFileContentPosition());
-            virtualCopy.setFileContentLength(effectiveContentLengthInBuffer);
-            virtualViewContentBuffers.set(removeCompleteBuffersFromIndex - 1, virtualCopy);
-        }
-        if (virtualViewContentBuffers.size() > 0) {
-            for (int j = virtualViewContentBuffers.size() - 1; j >= removeCompleteBuffersFromIndex; j--) {
-                virtualViewContentBuffers.remove(j);
+                Buffer virtualCopy = buffer.createReadOnlyClone();
+                int effectiveContentLengthInBuffer = (int) (newLength - virtualCopy.getFileContentPosition());
+                virtualCopy.setFileContentLength(effectiveContentLengthInBuffer);
+                virtualViewContentBuffers.set(lastBufferBeforeNewLength, virtualCopy);
             }
         }
+        virtualViewContentBuffers.subList(lastBufferBeforeNewLength + 1, virtualViewContentBuffers.size()).clear();
     }
 
     int fillUpContentsFromChannel(ByteBuffer buffer, long filePosition) throws IOException {
@@ -338,17 +324,45 @@ public class VirtualViewFile {
         return n;
     }
 
+    long transferContentsFromChannel(long filePosition, long count, WritableByteChannel target) throws IOException {
+        return fileViewChannel.transferTo(filePosition, count, target);
+    }
+
     Buffer getInMemoryContentBuffer(long position) {
-        for (Buffer buffer : virtualViewContentBuffers) {
-            long beginIndex = buffer.getFileContentPosition();
-            long endIndex = beginIndex + buffer.getFileContentLength() - 1;
-            if (beginIndex <= position && endIndex >= position) {
-                return buffer;
-            }
+        int index = indexOfLastBufferStartingAtOrBefore(position);
+        if (index < 0) {
+            return null;
+        }
+        Buffer buffer = virtualViewContentBuffers.get(index);
+        long endIndex = buffer.getFileContentPosition() + buffer.getFileContentLength() - 1;
+        if (endIndex >= position) {
+            return buffer;
         }
         return null;
     }
 
+    /*
+     * The content buffers are always kept in the order of their file positions, and do not
+     * overlap (appends go at the end, truncate cuts the tail, and the original contents
+     * backed-up due to a physical truncate go at the beginning). So, we can binary search
+     * over them instead of scanning the whole list for every read/truncate.
+     */
+    private int indexOfLastBufferStartingAtOrBefore(long position) {
+        int low = 0;
+        int high = virtualViewContentBuffers.size() - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (virtualViewContentBuffers.get(mid).getFileContentPosition() <= position) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
     void appendContentBuffer(Buffer buffer) throws IOException {
         if (usingHeavyWriteOptimization) {
             fileViewChannel.position(length);
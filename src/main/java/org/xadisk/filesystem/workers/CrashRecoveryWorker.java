@@ -11,12 +11,19 @@ import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 import javax.resource.spi.work.Work;
 import javax.resource.spi.work.WorkManager;
@@ -35,6 +42,7 @@ public class CrashRecoveryWorker implements Work {
     private final NativeXAFileSystem xaFileSystem;
     private final HashMap<TransactionInformation, ArrayList<Long>> transactionLogPositions = new HashMap<TransactionInformation, ArrayList<Long>>(1000);
     private final HashMap<Integer, FileChannel> logChannels = new HashMap<Integer, FileChannel>(5);
+    private final HashSet<Integer> legacyLogs = new HashSet<Integer>(5);
     private final HashSet<TransactionInformation> preparedInDoubtTransactions = new HashSet<TransactionInformation>(1000);
     private final HashSet<TransactionInformation> onePhaseCommittingTransactions = new HashSet<TransactionInformation>(1000);
     private final HashSet<TransactionInformation> heavyWriteTransactionsForRollback = new HashSet<TransactionInformation>(1000);
@@ -51,6 +59,12 @@ public class CrashRecoveryWorker implements Work {
     private final HashMap<TransactionInformation, Integer> transactionsLatestCheckPoint = new HashMap<TransactionInformation, Integer>(1000);
     private final ArrayList<EndPointActivation> remoteActivations = new ArrayList<EndPointActivation>();
     private final AtomicInteger distanceFromRecoveryCompletion = new AtomicInteger(0);
+    private long recoveryStartTime;
+    private int numLogsScanned = 0;
+    private long numLogBytesScanned = 0;
+    private long numLogEntriesScanned = 0;
+    private long logsScanTime = 0;
+    private volatile long recoveryTime = -1;
 
     public CrashRecoveryWorker(NativeXAFileSystem xaFileSystem) {
         this.xaFileSystem = xaFileSystem;
@@ -59,9 +73,14 @@ public class CrashRecoveryWorker implements Work {
     private void collectLogFileNamesToProcess() throws IOException {
         String logsDir = xaFileSystem.getTransactionLogsDir();
         String logNames[] = FileIOUtility.listDirectoryContents(Paths.get(logsDir));
+        String logFileNamePrefix = new File(xaFileSystem.getTransactionLogFileBaseName()).getName() + "_";
 
         for (int i = 0; i < logNames.length; i++) {
-            int logIndex = Integer.parseInt(logNames[i].split("_")[1]);
+            if (!logNames[i].startsWith(logFileNamePrefix)) {
+                //free segments kept for reuse.
+                continue;
+            }
+            int logIndex = Integer.parseInt(logNames[i].substring(logFileNamePrefix.length()));
             logChannels.put(logIndex, new FileInputStream(logsDir + File.separator + logNames[i]).getChannel());
         }
     }
@@ -76,7 +95,13 @@ public class CrashRecoveryWorker implements Work {
             int logIndex = (Integer) iter.next();
             FileChannel logFC = (FileChannel) logChannels.get(logIndex);
             logFC.close();
-            xaFileSystem.createDurableDiskSession().deleteFileDurably(new File(xaFileSystem.getTransactionLogFileBaseName() + "_" + logIndex));
+            File logFile = new File(xaFileSystem.getTransactionLogFileBaseName() + "_" + logIndex);
+            if (legacyLogs.contains(logIndex)) {
+                //neither of the segment size nor with a segment header; not worth reusing.
+                xaFileSystem.createDurableDiskSession().deleteFileDurably(logFile);
+            } else {
+                xaFileSystem.getTransactionLogSegments().releaseSegment(logFile);
+            }
         }
     }
 
@@ -90,25 +115,68 @@ public class CrashRecoveryWorker implements Work {
         //Changes to THIS object will be made in this method using the booting thread and later used
         //by the worker thread; but that is not a problem as the worker thread would be created after
         //completion of this method; so changes would be reflected across probable different "processors".
+        recoveryStartTime = System.currentTimeMillis();
         collectLogFileNamesToProcess();
-        for (FileChannel logCh : logChannels.values()) {
-            if (released) {
-                return;
+        ArrayList<LogScan> logScans = scanLogsInParallel();
+        if (released) {
+            return;
+        }
+        //the outcome of a transaction depends on the order of its entries, so the logs' results are
+        //merged in the order of the logs.
+        for (LogScan logScan : logScans) {
+            for (TransactionLogEntry logEntry : logScan.transactionStatusEntries) {
+                applyTransactionStatusEntry(logEntry);
             }
-            findInCompleteTransactions(logCh.position(0));
         }
-        for (Integer logIndex : logChannels.keySet()) {
-            if (released) {
-                return;
+        for (LogScan logScan : logScans) {
+            if (logScan.legacyFormat) {
+                legacyLogs.add(logScan.logIndex);
             }
-            collectTransactionLogPositions(logChannels.get(logIndex).position(0), logIndex);
+            collectTransactionLogPositions(logScan);
+            numLogEntriesScanned += logScan.numEntries;
+            numLogBytesScanned += logScan.validLength;
         }
+        numLogsScanned = logScans.size();
+        logsScanTime = System.currentTimeMillis() - recoveryStartTime;
 
         distanceFromRecoveryCompletion.set(preparedInDoubtTransactions.size()
                 + onePhaseCommittingTransactions.size() + eventsDequeuePrepared.size()
                 + heavyWriteTransactionsForRollback.size());
     }
 
+    /*
+     * Each log is scanned, exactly once, by a task of its own. The logs are independent of each other
+     * until their results are merged.
+     */
+    private ArrayList<LogScan> scanLogsInParallel() throws IOException {
+        ArrayList<Integer> logIndices = new ArrayList<Integer>(logChannels.keySet());
+        Collections.sort(logIndices);
+        ArrayList<LogScan> logScans = new ArrayList<LogScan>(logIndices.size());
+        if (logIndices.isEmpty()) {
+            return logScans;
+        }
+        for (Integer logIndex : logIndices) {
+            logScans.add(new LogScan(logIndex));
+        }
+        ForkJoinPool scanPool = new ForkJoinPool(Math.min(logIndices.size(), Runtime.getRuntime().availableProcessors()));
+        try {
+            for (Future<LogScan> scanned : scanPool.invokeAll(logScans)) {
+                scanned.get();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while scanning the transaction logs.", ie);
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof IOException) {
+                throw (IOException) ee.getCause();
+            }
+            throw new IOException(ee.getCause());
+        } finally {
+            scanPool.shutdown();
+        }
+        return logScans;
+    }
+
     public void run() {
         try {
             registerRemoteEndpoints();
@@ -129,102 +197,85 @@ public class CrashRecoveryWorker implements Work {
             xaFileSystem.notifyRecoveryComplete();
             cleanLogFiles();
             logFilesCleaned = true;
+            recoveryTime = System.currentTimeMillis() - recoveryStartTime;
         }
     }
 
-    private void findInCompleteTransactions(FileChannel logFC) throws IOException {
-        TransactionLogEntry logEntry = null;
-        while (true) {
-            try {
-                logEntry = TransactionLogEntry.getNextTransactionLogEntry(logFC,
-                        logFC.position(), false);
-            } catch (EOFException eofe) {
-                return;
-            }
-            if (logEntry == null) {
-                continue;
-            }
-            byte operationType = logEntry.getOperationType();
-            TransactionInformation xid = logEntry.getXid();
-            switch (operationType) {
-                case TransactionLogEntry.COMMIT_BEGINS:
-                    onePhaseCommittingTransactions.add(xid);
-                    preparedInDoubtTransactions.remove(xid);
-                    heavyWriteTransactionsForRollback.remove(xid);
-                    eventsDequeuePrepared.remove(xid);
-                    break;
-                case TransactionLogEntry.TXN_COMMIT_DONE:
-                    onePhaseCommittingTransactions.remove(xid);
-                    preparedInDoubtTransactions.remove(xid);
-                    heavyWriteTransactionsForRollback.remove(xid);
-                    committedTransactions.add(xid);
-                    eventsDequeuePrepared.remove(xid);
-                    ArrayList<FileSystemStateChangeEvent> events = eventsEnqueuePreparedOnly.remove(xid);
-                    if (events != null) {
-                        eventsEnqueueCommittedNotDequeued.addAll(events);
-                    }
-                    break;
-                case TransactionLogEntry.TXN_ROLLBACK_DONE:
-                    onePhaseCommittingTransactions.remove(xid);
-                    preparedInDoubtTransactions.remove(xid);
-                    heavyWriteTransactionsForRollback.remove(xid);
-                    eventsDequeuePrepared.remove(xid);
-                    eventsEnqueuePreparedOnly.remove(xid);
-                    break;
-                case TransactionLogEntry.PREPARE_COMPLETES:
-                    preparedInDoubtTransactions.add(xid);
-                    heavyWriteTransactionsForRollback.remove(xid);
-                    break;
-                case TransactionLogEntry.TXN_USES_UNDO_LOGS:
-                    heavyWriteTransactionsForRollback.add(xid);
-                    break;
-                case TransactionLogEntry.EVENT_ENQUEUE:
-                    eventsEnqueuePreparedOnly.put(xid, logEntry.getEventList());
-                    break;
-                case TransactionLogEntry.EVENT_DEQUEUE:
-                    eventsDequeueCommitted.add(logEntry.getEventList().get(0));
-                    break;
-                case TransactionLogEntry.PREPARE_COMPLETES_FOR_EVENT_DEQUEUE:
-                    eventsDequeuePrepared.put(xid, logEntry.getEventList().get(0));
-                    break;
-                case TransactionLogEntry.REMOTE_ENDPOINT_ACTIVATES:
-                    //we need not preserve the txn logs for these entries because we are now calling
-                    //the epActivation again, so another log will get created.
-                    remoteActivations.add(logEntry.getRemoteActivation(xaFileSystem));
-                    break;
-                case TransactionLogEntry.REMOTE_ENDPOINT_DEACTIVATES:
-                    remoteActivations.remove(logEntry.getRemoteActivation(xaFileSystem));
-                    break;
-            }
+    private void applyTransactionStatusEntry(TransactionLogEntry logEntry) {
+        byte operationType = logEntry.getOperationType();
+        TransactionInformation xid = logEntry.getXid();
+        switch (operationType) {
+            case TransactionLogEntry.COMMIT_BEGINS:
+                onePhaseCommittingTransactions.add(xid);
+                preparedInDoubtTransactions.remove(xid);
+                heavyWriteTransactionsForRollback.remove(xid);
+                eventsDequeuePrepared.remove(xid);
+                break;
+            case TransactionLogEntry.TXN_COMMIT_DONE:
+                onePhaseCommittingTransactions.remove(xid);
+                preparedInDoubtTransactions.remove(xid);
+                heavyWriteTransactionsForRollback.remove(xid);
+                committedTransactions.add(xid);
+                eventsDequeuePrepared.remove(xid);
+                ArrayList<FileSystemStateChangeEvent> events = eventsEnqueuePreparedOnly.remove(xid);
+                if (events != null) {
+                    eventsEnqueueCommittedNotDequeued.addAll(events);
+                }
+                break;
+            case TransactionLogEntry.TXN_ROLLBACK_DONE:
+                onePhaseCommittingTransactions.remove(xid);
+                preparedInDoubtTransactions.remove(xid);
+                heavyWriteTransactionsForRollback.remove(xid);
+                eventsDequeuePrepared.remove(xid);
+                eventsEnqueuePreparedOnly.remove(xid);
+                break;
+            case TransactionLogEntry.PREPARE_COMPLETES:
+                preparedInDoubtTransactions.add(xid);
+                heavyWriteTransactionsForRollback.remove(xid);
+                break;
+            case TransactionLogEntry.TXN_USES_UNDO_LOGS:
+                heavyWriteTransactionsForRollback.add(xid);
+                break;
+            case TransactionLogEntry.EVENT_ENQUEUE:
+                eventsEnqueuePreparedOnly.put(xid, logEntry.getEventList());
+                break;
+            case TransactionLogEntry.EVENT_DEQUEUE:
+                eventsDequeueCommitted.add(logEntry.getEventList().get(0));
+                break;
+            case TransactionLogEntry.PREPARE_COMPLETES_FOR_EVENT_DEQUEUE:
+                eventsDequeuePrepared.put(xid, logEntry.getEventList().get(0));
+                break;
+            case TransactionLogEntry.REMOTE_ENDPOINT_ACTIVATES:
+                //we need not preserve the txn logs for these entries because we are now calling
+                //the epActivation again, so another log will get created.
+                remoteActivations.add(logEntry.getRemoteActivation(xaFileSystem));
+                break;
+            case TransactionLogEntry.REMOTE_ENDPOINT_DEACTIVATES:
+                remoteActivations.remove(logEntry.getRemoteActivation(xaFileSystem));
+                break;
         }
     }
 
-    private void collectTransactionLogPositions(FileChannel logFC, int logIndex)
-            throws IOException {
-        TransactionLogEntry logEntry = null;
-        while (true) {
-            long filePositionAtBuffersBeginning = logFC.position();
-            try {
-                logEntry = TransactionLogEntry.getNextTransactionLogEntry(logFC,
-                        filePositionAtBuffersBeginning, false);
-            } catch (EOFException oefe) {
-                return;
-            }
-            TransactionInformation xid = logEntry.getXid();
+    private void collectTransactionLogPositions(LogScan logScan) {
+        for (Map.Entry<TransactionInformation, TransactionEntries> entry : logScan.transactionEntries.entrySet()) {
+            TransactionInformation xid = entry.getKey();
+            TransactionEntries transactionEntries = entry.getValue();
             if (onePhaseCommittingTransactions.contains(xid) || preparedInDoubtTransactions.contains(xid)) {
-                if (logEntry.isRedoLogEntry() || logEntry.isUndoLogEntry()) {
-                    addLogPositionToTransaction(xid, logIndex, filePositionAtBuffersBeginning);
+                for (int i = 0; i < transactionEntries.positions.size(); i++) {
+                    addLogPositionToTransaction(xid, logScan.logIndex, transactionEntries.positions.get(i));
                 }
-                if (logEntry.getOperationType() == TransactionLogEntry.CHECKPOINT_AVOIDING_COPY_OR_MOVE_REDO) {
-                    updateTransactionsLatestCheckPoint(xid, logEntry.getCheckPointPosition());
+                if (transactionEntries.latestCheckPoint != -1) {
+                    updateTransactionsLatestCheckPoint(xid, transactionEntries.latestCheckPoint);
                 }
-                if (logEntry.getOperationType() == TransactionLogEntry.FILES_ALREADY_ONDISK) {
-                    transactionsAndFilesWithLatestViewOnDisk.put(xid, logEntry.getFileList());
+                if (transactionEntries.filesWithLatestViewOnDisk != null) {
+                    transactionsAndFilesWithLatestViewOnDisk.put(xid, transactionEntries.filesWithLatestViewOnDisk);
                 }
             }
             if (heavyWriteTransactionsForRollback.contains(xid)) {
-                if (logEntry.isUndoLogEntry()) {
-                    addLogPositionToTransaction(xid, logIndex, filePositionAtBuffersBeginning);
+                for (int i = 0; i < transactionEntries.positions.size(); i++) {
+                    if (transactionEntries.isUndo.get(i)) {
+                        addLogPositionToTransaction(xid, logScan.logIndex, transactionEntries.positions.get(i));
+                    }
                 }
             }
         }
@@ -293,6 +344,13 @@ public class CrashRecoveryWorker implements Work {
         return logPositions;
     }
 
+    /*
+     * Tells whether the log was written by a release before 1.3, in the older format of the log entries.
+     */
+    public boolean isLegacyLog(int logIndex) {
+        return legacyLogs.contains(logIndex);
+    }
+
     public int getTransactionsLatestCheckPoint(TransactionInformation xid) {
         Integer latestCheckPoint = transactionsLatestCheckPoint.get(xid);
         return latestCheckPoint == null ? -1 : latestCheckPoint;
@@ -319,6 +377,142 @@ public class CrashRecoveryWorker implements Work {
         return transactionsAndFilesWithLatestViewOnDisk.get(xid);
     }
 
+    public int getNumLogsScanned() {
+        return numLogsScanned;
+    }
+
+    public long getNumLogBytesScanned() {
+        return numLogBytesScanned;
+    }
+
+    public long getNumLogEntriesScanned() {
+        return numLogEntriesScanned;
+    }
+
+    /*
+     * Time (in milliseconds) taken, during the boot, to scan the logs and find the transactions to recover.
+     */
+    public long getLogsScanTime() {
+        return logsScanTime;
+    }
+
+    /*
+     * Time (in milliseconds) from the beginning of the recovery till all the transactions found in the logs
+     * were completed; -1 if the recovery is not yet complete.
+     */
+    public long getRecoveryTime() {
+        return recoveryTime;
+    }
+
+    public String getRecoveryStatistics() {
+        return "Recovery scanned " + numLogsScanned + " transaction log(s), " + numLogEntriesScanned
+                + " entries in " + numLogBytesScanned + " bytes, in " + logsScanTime + " ms; found "
+                + onePhaseCommittingTransactions.size() + " committing, " + preparedInDoubtTransactions.size()
+                + " prepared and " + heavyWriteTransactionsForRollback.size() + " to-be-rolled-back transaction(s).";
+    }
+
+    /*
+     * Scans a single log, once, recording the entries which decide the outcome of transactions and,
+     * for every transaction, the positions of its redo/undo entries; which of those positions are
+     * needed is known only after the results from all the logs are merged.
+     */
+    private class LogScan implements Callable<LogScan> {
+
+        private final int logIndex;
+        private final ArrayList<TransactionLogEntry> transactionStatusEntries = new ArrayList<TransactionLogEntry>();
+        private final HashMap<TransactionInformation, TransactionEntries> transactionEntries =
+                new HashMap<TransactionInformation, TransactionEntries>();
+        private long validLength;
+        private long numEntries = 0;
+        private boolean legacyFormat = false;
+
+        private LogScan(int logIndex) {
+            this.logIndex = logIndex;
+        }
+
+        /*
+         * For a sealed log, the length till which it holds entries is known from the log's header and
+         * only the entries' headers are verified; otherwise, the log is scanned till the first entry
+         * which is not intact (possibly torn in the crash) and the entries' contents are verified too.
+         * A log left by a release before 1.3 has no header, and its entries are read in their older format
+         * till the end of the log.
+         */
+        public LogScan call() throws IOException {
+            FileChannel logFC = logChannels.get(logIndex);
+            int logGeneration = TransactionLogSegments.readSegmentGeneration(logFC);
+            long sealedLength = TransactionLogSegments.readSealedLength(logFC);
+            if (logGeneration == -1) {
+                //the log was never written to.
+                validLength = 0;
+                return this;
+            }
+            legacyFormat = logGeneration == TransactionLogSegments.LEGACY_LOG_GENERATION;
+            validLength = legacyFormat ? 0 : TransactionLogSegments.SEGMENT_HEADER_LENGTH;
+            boolean verifyContents = sealedLength == 0;
+            ByteBuffer headerBuffer = ByteBuffer.allocate(500);
+            while (!released) {
+                long entryPosition = validLength;
+                if (!verifyContents && entryPosition >= sealedLength) {
+                    break;
+                }
+                TransactionLogEntry logEntry;
+                try {
+                    if (legacyFormat) {
+                        logEntry = TransactionLogEntry.getNextLegacyTransactionLogEntry(logFC, entryPosition, headerBuffer);
+                    } else {
+                        logEntry = TransactionLogEntry.getNextTransactionLogEntry(logFC,
+                                entryPosition, logGeneration, verifyContents, headerBuffer);
+                    }
+                } catch (EOFException eofe) {
+                    break;
+                }
+                validLength = logFC.position();
+                numEntries++;
+                if (logEntry.isTransactionStatusEntry()) {
+                    transactionStatusEntries.add(logEntry);
+                }
+                TransactionInformation xid = logEntry.getXid();
+                if (xid == null) {
+                    continue;
+                }
+                byte operationType = logEntry.getOperationType();
+                if (logEntry.isRedoLogEntry() || logEntry.isUndoLogEntry()) {
+                    getTransactionEntries(xid).addPosition(entryPosition, logEntry.isUndoLogEntry());
+                }
+                if (operationType == TransactionLogEntry.CHECKPOINT_AVOIDING_COPY_OR_MOVE_REDO) {
+                    TransactionEntries entries = getTransactionEntries(xid);
+                    entries.latestCheckPoint = Math.max(entries.latestCheckPoint, logEntry.getCheckPointPosition());
+                }
+                if (operationType == TransactionLogEntry.FILES_ALREADY_ONDISK) {
+                    getTransactionEntries(xid).filesWithLatestViewOnDisk = logEntry.getFileList();
+                }
+            }
+            return this;
+        }
+
+        private TransactionEntries getTransactionEntries(TransactionInformation xid) {
+            TransactionEntries entries = transactionEntries.get(xid);
+            if (entries == null) {
+                entries = new TransactionEntries();
+                transactionEntries.put(xid, entries);
+            }
+            return entries;
+        }
+    }
+
+    private static class TransactionEntries {
+
+        private final ArrayList<Long> positions = new ArrayList<Long>();
+        private final ArrayList<Boolean> isUndo = new ArrayList<Boolean>();
+        private int latestCheckPoint = -1;
+        private HashSet<File> filesWithLatestViewOnDisk;
+
+        private void addPosition(long position, boolean undo) {
+            positions.add(position);
+            isUndo.add(undo);
+        }
+    }
+
     private static class TransactionCompleter implements Work {
 
         private NativeSession session;
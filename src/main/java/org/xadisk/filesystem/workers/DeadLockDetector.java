@@ -7,11 +7,9 @@
 package org.xadisk.filesystem.workers;
 
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.Stack;
 import org.xadisk.bridge.proxies.impl.RemoteTransactionInformation;
 import org.xadisk.filesystem.NativeConcurrencyControl;
-import org.xadisk.filesystem.NativeLock;
 import org.xadisk.filesystem.NativeXAFileSystem;
 import org.xadisk.filesystem.ResourceDependencyGraph;
 import org.xadisk.filesystem.TransactionInformation;
@@ -59,18 +57,7 @@ public class DeadLockDetector extends TimedWorker {
         nodes = rdg.getNodes();
         for (int i = 0; i < nodes.length; i++) {
             ResourceDependencyGraph.Node node = nodes[i];
-            NativeLock resource = node.getResourceWaitingFor();
-            if (resource == null) {
-                continue;
-            }
-            TransactionInformation holders[];
-            try {
-                resource.startSynchBlock();
-                HashSet<TransactionInformation> holdersSet = resource.getHolders();
-                holders = holdersSet.toArray(new TransactionInformation[0]);
-            } finally {
-                resource.endSynchBlock();
-            }
+            TransactionInformation holders[] = node.getHoldersWaitedOn().toArray(new TransactionInformation[0]);
             for (int j = 0; j < holders.length; j++) {
                 ResourceDependencyGraph.Node neighbor;
                 if (holders[j] instanceof RemoteTransactionInformation) {
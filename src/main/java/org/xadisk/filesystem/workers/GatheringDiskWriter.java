@@ -7,9 +7,10 @@
 package org.xadisk.filesystem.workers;
 
 import org.xadisk.filesystem.pools.PooledBuffer;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
@@ -18,8 +19,11 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
 import org.xadisk.connector.inbound.EndPointActivation;
 import org.xadisk.filesystem.Buffer;
 import org.xadisk.filesystem.FileSystemStateChangeEvent;
@@ -31,6 +35,8 @@ import org.xadisk.filesystem.utilities.TransactionLogsUtility;
 
 public class GatheringDiskWriter extends EventWorker {
 
+    private static final int MAX_COALESCED_APPEND_LENGTH = NativeXAFileSystem.FILE_CHANNEL_MAX_TRANSFER;
+    private static final int UNDO_CONTENT_COPY_CHUNK_SIZE = 65536;
     private final int cumulativeBufferSizeForDiskWrite;
     private final AtomicInteger cumulativeBufferSize = new AtomicInteger(0);
     private FileChannel transactionLogChannel;
@@ -41,19 +47,35 @@ public class GatheringDiskWriter extends EventWorker {
     private final ReentrantLock transactionLogLock = new ReentrantLock(false);
     private final String transactionLogBaseName;
     private int currentLogIndex;
+    private int currentLogGeneration;
+    private final TransactionLogSegments transactionLogSegments;
     private final HashMap<Integer, Integer> transactionLogsAndOpenTransactions = new HashMap<Integer, Integer>(2);
     private final HashMap<TransactionInformation, ArrayList<Integer>> transactionsAndLogsOccupied = new HashMap<TransactionInformation, ArrayList<Integer>>(1000);
     private final long maxNonPooledBufferSize;
+    private final boolean enableGroupCommit;
+    private final long groupCommitMaxWaitNanos;
+    private final int groupCommitMaxBatchSize;
+    private final ReentrantLock groupCommitLock = new ReentrantLock(false);
+    private final Condition groupCommitRequestArrived = groupCommitLock.newCondition();
+    private final Condition groupCommitBatchWritten = groupCommitLock.newCondition();
+    private final ArrayList<ForceRequest> pendingForceRequests = new ArrayList<ForceRequest>(100);
+    private boolean groupCommitFlushInProgress = false;
 
     public GatheringDiskWriter(int cumulativeBufferSizeForDiskWrite, long transactionLogFileMaxSize,
             long maxNonPooledBufferSize,
-            String transactionLogBaseName, NativeXAFileSystem theXAFileSystem)
+            String transactionLogBaseName, boolean enableGroupCommit, int groupCommitMaxWait,
+            int groupCommitMaxBatchSize, TransactionLogSegments transactionLogSegments,
+            NativeXAFileSystem theXAFileSystem)
             throws IOException {
+        this.transactionLogSegments = transactionLogSegments;
         this.cumulativeBufferSizeForDiskWrite = cumulativeBufferSizeForDiskWrite;
         this.xaFileSystem = theXAFileSystem;
         this.transactionLogFileMaxSize = transactionLogFileMaxSize;
         this.transactionLogBaseName = transactionLogBaseName;
         this.maxNonPooledBufferSize = maxNonPooledBufferSize;
+        this.enableGroupCommit = enableGroupCommit;
+        this.groupCommitMaxWaitNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(groupCommitMaxWait, 0));
+        this.groupCommitMaxBatchSize = Math.max(groupCommitMaxBatchSize, 1);
     }
 
     public void initialize() throws IOException {
@@ -70,10 +92,23 @@ public class GatheringDiskWriter extends EventWorker {
         if (currentTransactionLog == null) {
             throw new IOException("System has reached its limit on number of transaction logs.");
         }
-        this.transactionLogChannel = new FileOutputStream(currentTransactionLog, false).getChannel();
+        openTransactionLog(currentTransactionLog);
+    }
+
+    private void openTransactionLog(File transactionLog) throws IOException {
+        this.currentLogGeneration = transactionLogSegments.prepareSegment(transactionLog);
+        this.transactionLogChannel = new RandomAccessFile(transactionLog, "rw").getChannel();
+        this.transactionLogChannel.position(TransactionLogSegments.SEGMENT_HEADER_LENGTH);
     }
 
     public void deInitialize() throws IOException {
+        try {
+            transactionLogLock.lock();
+            TransactionLogSegments.sealSegment(transactionLogChannel);
+            transactionLogChannel.force(false);
+        } finally {
+            transactionLogLock.unlock();
+        }
         this.transactionLogChannel.close();
     }
 
@@ -127,53 +162,53 @@ public class GatheringDiskWriter extends EventWorker {
     }
 
     private void writeBuffersToTransactionLog(Buffer buffersArray[], TransactionInformation xids[], int offset) throws IOException {
-        ByteBuffer byteBufferArray[] = new ByteBuffer[buffersArray.length];
         long sizeToWriteNow = 0;
         int canProcessTill = buffersArray.length - 1;
         for (int i = offset; i < buffersArray.length; i++) {
-            byteBufferArray[i] = buffersArray[i].getBuffer();
-            if (sizeToWriteNow + byteBufferArray[i].remaining() > transactionLogFileMaxSize) {
+            int sizeOfCurrent = buffersArray[i].getBuffer().remaining();
+            if (sizeToWriteNow + sizeOfCurrent > transactionLogFileMaxSize) {
                 canProcessTill = i - 1;
                 break;
             }
-            sizeToWriteNow += byteBufferArray[i].remaining();
+            sizeToWriteNow += sizeOfCurrent;
         }
         ensureLogFileCapacity(sizeToWriteNow);
         long entryPosition = transactionLogChannel.position();
+        ArrayList<ByteBuffer> byteBuffersToWrite = new ArrayList<ByteBuffer>(canProcessTill - offset + 1);
         ArrayList<Integer> buffersToMakeOnDisk = new ArrayList<Integer>(1000);
-        boolean makeCurrentOnDisk;
+        boolean makeOnDisk[] = new boolean[buffersArray.length];
         for (int i = offset; i <= canProcessTill; i++) {
-            byteBufferArray[i] = buffersArray[i].getBuffer();
-            if (buffersArray[i] instanceof PooledBuffer) {
-                makeCurrentOnDisk = false;
-            } else {
-                if (xaFileSystem.getTotalNonPooledBufferSize() < maxNonPooledBufferSize * 3 / 4) {
-                    makeCurrentOnDisk = false;
-                } else if (xaFileSystem.getTotalNonPooledBufferSize() < maxNonPooledBufferSize) {
-                    if (byteBufferArray[i].remaining() < 1000) {
-                        makeCurrentOnDisk = false;
-                    } else {
-                        makeCurrentOnDisk = true;
-                    }
+            makeOnDisk[i] = shouldMakeOnDisk(buffersArray[i]);
+        }
+        int i = offset;
+        while (i <= canProcessTill) {
+            int runEnd = findEndOfCoalescableAppends(buffersArray, xids, makeOnDisk, i, canProcessTill);
+            if (runEnd == i) {
+                ByteBuffer byteBuffer = buffersArray[i].getBuffer();
+                TransactionLogEntry.prepareForLog(byteBuffer, currentLogGeneration);
+                if (makeOnDisk[i]) {
+                    addLogPositionToTransaction(xids[i], currentLogIndex, entryPosition);
+                    buffersToMakeOnDisk.add(i);
+                    buffersArray[i].setOnDiskInfo(new OnDiskInfo(currentLogIndex, entryPosition));
                 } else {
-                    makeCurrentOnDisk = true;
+                    //in both cases:if/else, we need to do the below tracking for log-usages.
+                    TransactionLogsUtility.trackTransactionLogsUsage(xids[i], transactionsAndLogsOccupied,
+                            transactionLogsAndOpenTransactions, currentLogIndex);
+                    addInMemoryBufferToTransaction(xids[i], buffersArray[i]);
                 }
-            }
-            if (makeCurrentOnDisk) {
-                addLogPositionToTransaction(xids[i], currentLogIndex, entryPosition);
-                buffersToMakeOnDisk.add(i);
-                buffersArray[i].setOnDiskInfo(new OnDiskInfo(currentLogIndex, entryPosition));
+                byteBuffersToWrite.add(byteBuffer);
+                entryPosition += byteBuffer.remaining();
             } else {
-                //in both cases:if/else, we need to do the below tracking for log-usages.
-                TransactionLogsUtility.trackTransactionLogsUsage(xids[i], transactionsAndLogsOccupied,
-                        transactionLogsAndOpenTransactions, currentLogIndex);
-                addInMemoryBufferToTransaction(xids[i], buffersArray[i]);
+                entryPosition = addCoalescedAppends(buffersArray, xids, i, runEnd, entryPosition, byteBuffersToWrite,
+                        buffersToMakeOnDisk);
             }
-            entryPosition += byteBufferArray[i].remaining();
+            i = runEnd + 1;
         }
+        ByteBuffer byteBufferArray[] = byteBuffersToWrite.toArray(new ByteBuffer[0]);
+        long sizeToWrite = entryPosition - transactionLogChannel.position();
         long n = 0;
-        while (n < sizeToWriteNow) {
-            n += transactionLogChannel.write(byteBufferArray, offset, canProcessTill - offset + 1);
+        while (n < sizeToWrite) {
+            n += transactionLogChannel.write(byteBufferArray);
         }
 
         for (Integer indices : buffersToMakeOnDisk) {
@@ -186,6 +221,82 @@ public class GatheringDiskWriter extends EventWorker {
         }
     }
 
+    private boolean shouldMakeOnDisk(Buffer buffer) {
+        if (buffer instanceof PooledBuffer) {
+            return false;
+        }
+        if (xaFileSystem.getTotalNonPooledBufferSize() < maxNonPooledBufferSize * 3 / 4) {
+            return false;
+        } else if (xaFileSystem.getTotalNonPooledBufferSize() < maxNonPooledBufferSize) {
+            return buffer.getBuffer().remaining() >= 1000;
+        } else {
+            return true;
+        }
+    }
+
+    /*
+     * Contiguous appends to the same file, by the same transaction, are written as a single
+     * FILE_APPEND entry (one header followed by all the contents). This keeps the logs smaller and
+     * the redo transfers bigger. We only merge buffers being made on-disk: the session then gets
+     * one log position per entry written, exactly as the recovery finds them in the log, so that the
+     * check-points (indices into those positions) declared during commit hold for the recovery too.
+     * A buffer kept in-memory is replayed from memory, and so needs a position of its own.
+     */
+    private int findEndOfCoalescableAppends(Buffer buffersArray[], TransactionInformation xids[], boolean makeOnDisk[],
+            int from, int till) {
+        int runEnd = from;
+        if (!makeOnDisk[from]) {
+            return runEnd;
+        }
+        long totalContentLength = buffersArray[from].getFileContentLength();
+        while (runEnd < till) {
+            Buffer current = buffersArray[runEnd];
+            Buffer next = buffersArray[runEnd + 1];
+            if (xids[runEnd + 1] != xids[from] || !makeOnDisk[runEnd + 1]
+                    || current.getHeaderLength() == 0 || next.getHeaderLength() == 0
+                    || current.getFileContentPosition() + current.getFileContentLength() != next.getFileContentPosition()
+                    || totalContentLength + next.getFileContentLength() > MAX_COALESCED_APPEND_LENGTH
+                    || !TransactionLogEntry.isAppendToSameFile(current.getBuffer(), current.getHeaderLength(),
+                    next.getBuffer(), next.getHeaderLength())) {
+                break;
+            }
+            totalContentLength += next.getFileContentLength();
+            runEnd++;
+        }
+        return runEnd;
+    }
+
+    private long addCoalescedAppends(Buffer buffersArray[], TransactionInformation xids[], int from, int till,
+            long entryPosition, ArrayList<ByteBuffer> byteBuffersToWrite, ArrayList<Integer> buffersToMakeOnDisk) {
+        int totalContentLength = 0;
+        for (int j = from; j <= till; j++) {
+            totalContentLength += buffersArray[j].getFileContentLength();
+        }
+        Buffer first = buffersArray[from];
+        byte header[] = TransactionLogEntry.getCoalescedAppendHeader(first.getBuffer(), first.getHeaderLength(),
+                totalContentLength);
+        ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+        byteBuffersToWrite.add(headerBuffer);
+        CRC32 contentChecksum = new CRC32();
+        addLogPositionToTransaction(xids[from], currentLogIndex, entryPosition);
+        long contentPosition = entryPosition + header.length;
+        for (int j = from; j <= till; j++) {
+            Buffer buffer = buffersArray[j];
+            ByteBuffer content = buffer.getBuffer().duplicate();
+            content.position(buffer.getHeaderLength());
+            contentChecksum.update(content);
+            content.position(buffer.getHeaderLength());
+            buffersToMakeOnDisk.add(j);
+            //the contents of this buffer are at "location + headerLength" in the log, same as for
+            //an un-merged entry.
+            buffer.setOnDiskInfo(new OnDiskInfo(currentLogIndex, contentPosition - buffer.getHeaderLength()));
+            byteBuffersToWrite.add(content);
+            contentPosition += content.remaining();
+        }
+        TransactionLogEntry.prepareForLog(headerBuffer, currentLogGeneration, (int) contentChecksum.getValue());
+        return contentPosition;
+    }
+
     private void addLogPositionToTransaction(TransactionInformation xid, int logFileIndex, long localPosition) {
         xid.getOwningSession().addLogPositionToTransaction(logFileIndex, localPosition);
         TransactionLogsUtility.trackTransactionLogsUsage(xid, transactionsAndLogsOccupied, transactionLogsAndOpenTransactions, logFileIndex);
@@ -278,19 +389,36 @@ public class GatheringDiskWriter extends EventWorker {
             ensureLogFileCapacity(totalLogSizeRequiredForThisRequest);
             logPosition[0] = currentLogIndex;
             logPosition[1] = transactionLogChannel.position();
-            while (n < headerSize) {
-                n += transactionLogChannel.write(logEntryHeader);
-            }
+            CRC32 contentChecksum = new CRC32();
             if (contentLength > 0) {
-                n = 0;
-                long startingPosition = transactionLogChannel.position();
+                //the contents are copied through our own buffer, instead of a transferFrom, so that their
+                //checksum can be computed on the way; the header (carrying the checksum) is written after them.
+                transactionLogChannel.position(logPosition[1] + headerSize);
                 contents.position(contentPosition);
+                ByteBuffer chunk = ByteBuffer.allocateDirect((int) Math.min(contentLength, UNDO_CONTENT_COPY_CHUNK_SIZE));
                 while (n < contentLength) {
-                    n += transactionLogChannel.transferFrom(contents, startingPosition + n,
-                            NativeXAFileSystem.maxTransferToChannel(contentLength - n));
+                    chunk.clear();
+                    chunk.limit((int) Math.min(chunk.capacity(), contentLength - n));
+                    while (chunk.hasRemaining()) {
+                        if (contents.read(chunk) == -1) {
+                            throw new EOFException();
+                        }
+                    }
+                    chunk.flip();
+                    contentChecksum.update(chunk);
+                    chunk.rewind();
+                    while (chunk.hasRemaining()) {
+                        transactionLogChannel.write(chunk);
+                    }
+                    n += chunk.limit();
                 }
-                transactionLogChannel.position(startingPosition + n);
             }
+            TransactionLogEntry.prepareForLog(logEntryHeader, currentLogGeneration, (int) contentChecksum.getValue());
+            n = 0;
+            while (n < headerSize) {
+                n += transactionLogChannel.write(logEntryHeader, logPosition[1] + n);
+            }
+            transactionLogChannel.position(logPosition[1] + headerSize + Math.max(contentLength, 0));
             transactionLogChannel.force(false);
             addLogPositionToTransaction(xid, (int) logPosition[0], logPosition[1]);
             return logPosition;
@@ -300,11 +428,20 @@ public class GatheringDiskWriter extends EventWorker {
     }
 
     private void forceWrite(TransactionInformation xid, ByteBuffer buffer) throws IOException {
+        if (enableGroupCommit) {
+            forceWriteInGroup(new ForceRequest(xid, buffer));
+        } else {
+            writeAndForce(xid, buffer);
+        }
+    }
+
+    private void writeAndForce(TransactionInformation xid, ByteBuffer buffer) throws IOException {
         try {
             transactionLogLock.lock();
             long n = 0;
             long sizeToWrite = buffer.remaining();
             ensureLogFileCapacity(sizeToWrite);
+            TransactionLogEntry.prepareForLog(buffer, currentLogGeneration);
             while (n < sizeToWrite) {
                 n += transactionLogChannel.write(buffer);
             }
@@ -319,11 +456,99 @@ public class GatheringDiskWriter extends EventWorker {
         }
     }
 
+    /*
+     * Group commit: the calling thread queues its request; if no other thread is currently
+     * writing a group, it becomes the writer for all the requests queued so far (optionally after
+     * waiting for groupCommitMaxWait), otherwise it waits until some writer has taken care of its
+     * request. Each group is written with a single gathering write and a single force.
+     */
+    private void forceWriteInGroup(ForceRequest request) throws IOException {
+        try {
+            groupCommitLock.lock();
+            pendingForceRequests.add(request);
+            if (pendingForceRequests.size() >= groupCommitMaxBatchSize) {
+                groupCommitRequestArrived.signal();
+            }
+            while (!request.completed) {
+                if (groupCommitFlushInProgress) {
+                    groupCommitBatchWritten.awaitUninterruptibly();
+                    continue;
+                }
+                groupCommitFlushInProgress = true;
+                waitForGroupToFill();
+                int batchSize = Math.min(pendingForceRequests.size(), groupCommitMaxBatchSize);
+                ArrayList<ForceRequest> batch = new ArrayList<ForceRequest>(pendingForceRequests.subList(0, batchSize));
+                pendingForceRequests.subList(0, batchSize).clear();
+                groupCommitLock.unlock();
+                IOException failure = null;
+                try {
+                    writeAndForceGroup(batch);
+                } catch (IOException ioe) {
+                    failure = ioe;
+                } finally {
+                    groupCommitLock.lock();
+                    for (ForceRequest written : batch) {
+                        written.failure = failure;
+                        written.completed = true;
+                    }
+                    groupCommitFlushInProgress = false;
+                    groupCommitBatchWritten.signalAll();
+                }
+            }
+        } finally {
+            groupCommitLock.unlock();
+        }
+        if (request.failure != null) {
+            throw request.failure;
+        }
+    }
+
+    private void waitForGroupToFill() {
+        long nanosRemaining = groupCommitMaxWaitNanos;
+        while (nanosRemaining > 0 && pendingForceRequests.size() < groupCommitMaxBatchSize) {
+            try {
+                nanosRemaining = groupCommitRequestArrived.awaitNanos(nanosRemaining);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void writeAndForceGroup(ArrayList<ForceRequest> batch) throws IOException {
+        try {
+            transactionLogLock.lock();
+            ByteBuffer buffers[] = new ByteBuffer[batch.size()];
+            long sizeToWrite = 0;
+            for (int i = 0; i < buffers.length; i++) {
+                buffers[i] = batch.get(i).buffer;
+                sizeToWrite += buffers[i].remaining();
+            }
+            ensureLogFileCapacity(sizeToWrite);
+            for (ByteBuffer buffer : buffers) {
+                TransactionLogEntry.prepareForLog(buffer, currentLogGeneration);
+            }
+            long n = 0;
+            while (n < sizeToWrite) {
+                n += transactionLogChannel.write(buffers);
+            }
+            transactionLogChannel.force(false);
+            for (ForceRequest request : batch) {
+                if (request.xid != null) {
+                    TransactionLogsUtility.trackTransactionLogsUsage(request.xid, transactionsAndLogsOccupied,
+                            transactionLogsAndOpenTransactions, currentLogIndex);
+                }
+            }
+        } finally {
+            transactionLogLock.unlock();
+        }
+    }
+
     public void cleanupTransactionInfo(TransactionInformation xid) throws IOException {
         try {
             transactionLogLock.lock();
             TransactionLogsUtility.deleteLogsIfPossible(xid, transactionsAndLogsOccupied, transactionLogsAndOpenTransactions,
-                    currentLogIndex, transactionLogBaseName, xaFileSystem.createDurableDiskSession());
+                    currentLogIndex, transactionLogBaseName, transactionLogSegments);
             transactionsAndLogsOccupied.remove(xid);
         } finally {
             transactionLogLock.unlock();
@@ -331,7 +556,8 @@ public class GatheringDiskWriter extends EventWorker {
     }
 
     private void ensureLogFileCapacity(long sizeToWriteNow) throws IOException {
-        if (transactionLogChannel.size() + sizeToWriteNow > transactionLogFileMaxSize) {
+        //the log may be a recycled (full-size) segment, so we look at the position and not the size.
+        if (transactionLogChannel.position() + sizeToWriteNow > transactionLogFileMaxSize) {
             File nextTransactionLog = null;
             for (int i = currentLogIndex + 1; i < Integer.MAX_VALUE; i++) {
                 File f = new File(transactionLogBaseName + "_" + i);
@@ -339,12 +565,12 @@ public class GatheringDiskWriter extends EventWorker {
                     continue;
                 }
                 nextTransactionLog = f;
+                TransactionLogSegments.sealSegment(transactionLogChannel);
                 transactionLogChannel.force(false);
                 transactionLogChannel.close();
-                transactionLogChannel =
-                        new FileOutputStream(nextTransactionLog, true).getChannel();
+                openTransactionLog(nextTransactionLog);
                 TransactionLogsUtility.deleteLastLogIfPossible(currentLogIndex, transactionLogsAndOpenTransactions,
-                        transactionLogBaseName, xaFileSystem.createDurableDiskSession());
+                        transactionLogBaseName, transactionLogSegments);
                 currentLogIndex = i;
                 recordAllActivationsInNewLog();
                 break;
@@ -384,7 +610,9 @@ public class GatheringDiskWriter extends EventWorker {
             //that it also includes activations in the log we are deleting because
             //once the current log got created all activation onwards get anyway persisted in the
             //current log.
-            recordEndPointActivation(activation);
+            //we write directly here, and not via group commit, as we may ourselves be the group writer.
+            writeAndForce(null, ByteBuffer.wrap(TransactionLogEntry.getLogEntry(activation,
+                    TransactionLogEntry.REMOTE_ENDPOINT_ACTIVATES)));
         }
     }
 
@@ -397,4 +625,17 @@ public class GatheringDiskWriter extends EventWorker {
     public void run() {
         super.run();
     }
+
+    private static class ForceRequest {
+
+        private final TransactionInformation xid;
+        private final ByteBuffer buffer;
+        private boolean completed = false;
+        private IOException failure;
+
+        private ForceRequest(TransactionInformation xid, ByteBuffer buffer) {
+            this.xid = xid;
+            this.buffer = buffer;
+        }
+    }
 }
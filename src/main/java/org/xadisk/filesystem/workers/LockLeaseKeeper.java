@@ -0,0 +1,49 @@
+/*
+ Copyright © 2010-2014, Nitin Verma (project owner for XADisk https://xadisk.dev.java.net/). All rights reserved.
+
+ This source code is being made available to the public under the terms specified in the license
+ "Eclipse Public License 1.0" located at http://www.opensource.org/licenses/eclipse-1.0.php.
+ */
+package org.xadisk.filesystem.workers;
+
+import javax.resource.spi.work.Work;
+import org.xadisk.bridge.proxies.impl.LockLeases;
+import org.xadisk.filesystem.NativeXAFileSystem;
+
+/*
+ * Runs on a cluster slave; waits for the master to recall the slave's lock leases, and gives those up
+ * as soon as they get recalled (along with the ones remaining unused). Each wait is bounded by
+ * RECALL_WAIT_TIME, so that the unused leases get checked, and a release gets noticed, in time.
+ */
+public class LockLeaseKeeper implements Work {
+
+    private static final long RECALL_WAIT_TIME = 1000;
+    private final LockLeases leases;
+    private final NativeXAFileSystem xaFileSystem;
+    private volatile boolean released = false;
+
+    public LockLeaseKeeper(LockLeases leases, NativeXAFileSystem xaFileSystem) {
+        this.leases = leases;
+        this.xaFileSystem = xaFileSystem;
+    }
+
+    public void release() {
+        released = true;
+    }
+
+    public void run() {
+        try {
+            while (!released) {
+                leases.awaitRecalls(RECALL_WAIT_TIME);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (Throwable t) {
+            if (!released) {
+                xaFileSystem.notifySystemFailure(t);
+            }
+        } finally {
+            leases.stopAwaitingRecalls();
+        }
+    }
+}
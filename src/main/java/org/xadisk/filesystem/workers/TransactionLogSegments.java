@@ -0,0 +1,298 @@
+/*
+ Copyright © 2010-2014, Nitin Verma (project owner for XADisk https://xadisk.dev.java.net/). All rights reserved.
+
+ This source code is being made available to the public under the terms specified in the license
+ "Eclipse Public License 1.0" located at http://www.opensource.org/licenses/eclipse-1.0.php.
+ */
+package org.xadisk.filesystem.workers;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.concurrent.locks.ReentrantLock;
+import org.xadisk.filesystem.DurableDiskSession;
+import org.xadisk.filesystem.NativeXAFileSystem;
+import org.xadisk.filesystem.utilities.FileIOUtility;
+import org.xadisk.filesystem.utilities.MiscUtils;
+
+/*
+ * Hands out the files (segments) for the transaction log, and takes them back once they are no
+ * longer required.
+ * Each segment begins with a small header carrying a generation number, and every entry written
+ * to the segment carries the same generation. This lets a segment be reused: the entries left
+ * over from its earlier use carry an older generation and are ignored during recovery.
+ * The header also carries the version of the format of the log entries and, once the segment has
+ * been filled and closed (sealed), the position till which the segment holds entries. Recovery
+ * trusts the entries of a sealed segment after checking only their headers, while the unsealed
+ * segment (the one in use at the time of a crash) has its entries' contents verified too.
+ * When recycling is enabled, released segments are kept (up to a few) for reuse instead of being
+ * deleted, and this worker keeps a zero-filled segment of the full log size ready in the background,
+ * so that a log switch neither creates nor grows a file.
+ */
+public class TransactionLogSegments extends EventWorker {
+
+    public static final int SEGMENT_HEADER_LENGTH = 20;
+    /*
+     * The generation reported for a log written by a release before 1.3, which has no segment header
+     * (the generations of segments start from 1).
+     */
+    public static final int LEGACY_LOG_GENERATION = 0;
+    private static final int SEGMENT_MAGIC = 0x58414453;
+    private static final int LOG_FORMAT_VERSION = 1;
+    private static final int SEALED_LENGTH_OFFSET = 12;
+    private static final String FREE_SEGMENT_SUFFIX = ".free_";
+    private static final int MAX_FREE_SEGMENTS = 2;
+    private static final String PREALLOCATION_SUFFIX = ".tmp";
+    private static final int PREALLOCATION_CHUNK_SIZE = 1024 * 1024;
+    private final String transactionLogBaseName;
+    private final long segmentSize;
+    private final boolean recycleSegments;
+    private final NativeXAFileSystem xaFileSystem;
+    private final ReentrantLock segmentsLock = new ReentrantLock(false);
+    private final LinkedList<File> freeSegments = new LinkedList<File>();
+    private int nextGeneration = 1;
+    private int nextFreeSegmentNumber = 0;
+    private volatile boolean released = false;
+
+    public TransactionLogSegments(String transactionLogBaseName, long segmentSize, boolean recycleSegments,
+            NativeXAFileSystem xaFileSystem) {
+        this.transactionLogBaseName = transactionLogBaseName;
+        this.segmentSize = segmentSize;
+        this.recycleSegments = recycleSegments;
+        this.xaFileSystem = xaFileSystem;
+    }
+
+    public void initialize() throws IOException {
+        File logsDir = new File(transactionLogBaseName).getParentFile();
+        String logFileNamePrefix = new File(transactionLogBaseName).getName() + "_";
+        String freeSegmentNamePrefix = new File(transactionLogBaseName).getName() + FREE_SEGMENT_SUFFIX;
+        int maxGeneration = 0;
+        for (String name : logsDir.list()) {
+            File segment = new File(logsDir, name);
+            if (name.startsWith(freeSegmentNamePrefix) && name.endsWith(PREALLOCATION_SUFFIX)) {
+                //preallocation was interrupted.
+                xaFileSystem.createDurableDiskSession().deleteFileDurably(segment);
+            } else if (name.startsWith(freeSegmentNamePrefix)) {
+                int freeSegmentNumber = Integer.parseInt(name.substring(freeSegmentNamePrefix.length()));
+                nextFreeSegmentNumber = Math.max(nextFreeSegmentNumber, freeSegmentNumber + 1);
+                maxGeneration = Math.max(maxGeneration, readSegmentGeneration(segment));
+                if (recycleSegments && freeSegments.size() < MAX_FREE_SEGMENTS) {
+                    freeSegments.add(segment);
+                } else {
+                    xaFileSystem.createDurableDiskSession().deleteFileDurably(segment);
+                }
+            } else if (name.startsWith(logFileNamePrefix)) {
+                maxGeneration = Math.max(maxGeneration, readSegmentGeneration(segment));
+            }
+        }
+        nextGeneration = maxGeneration + 1;
+        if (recycleSegments && freeSegments.isEmpty()) {
+            raiseEvent();
+        }
+    }
+
+    /*
+     * Makes the given log file a fresh segment, either by renaming a free segment to it or by
+     * creating it, with the segment header written (and forced). Returns the generation of the segment.
+     * A free segment gets its new header before it is renamed, so that a log file never carries the
+     * header (and so, the entries) of the segment's earlier use, even after a crash in between.
+     */
+    public int prepareSegment(File logFile) throws IOException {
+        File freeSegment = null;
+        int generation;
+        try {
+            segmentsLock.lock();
+            generation = nextGeneration++;
+            if (!freeSegments.isEmpty()) {
+                freeSegment = freeSegments.removeFirst();
+            }
+        } finally {
+            segmentsLock.unlock();
+        }
+        DurableDiskSession diskSession = xaFileSystem.createDurableDiskSession();
+        if (freeSegment == null) {
+            diskSession.createFile(logFile);
+        }
+        RandomAccessFile segment = new RandomAccessFile(freeSegment == null ? logFile : freeSegment, "rw");
+        try {
+            ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_LENGTH);
+            header.putInt(SEGMENT_MAGIC);
+            header.putInt(LOG_FORMAT_VERSION);
+            header.putInt(generation);
+            header.putLong(0);
+            header.flip();
+            FileChannel segmentChannel = segment.getChannel();
+            while (header.hasRemaining()) {
+                segmentChannel.write(header, header.position());
+            }
+            segmentChannel.force(false);
+        } finally {
+            MiscUtils.closeAll(segment);
+        }
+        if (freeSegment != null) {
+            diskSession.renameTo(freeSegment, logFile);
+        }
+        diskSession.forceToDisk();
+        if (recycleSegments) {
+            raiseEvent();
+        }
+        return generation;
+    }
+
+    /*
+     * Called when a log file is no longer required. With recycling, the file is kept as a free
+     * segment (if we don't have enough of those already), else it is deleted.
+     */
+    public void releaseSegment(File logFile) throws IOException {
+        DurableDiskSession diskSession = xaFileSystem.createDurableDiskSession();
+        try {
+            segmentsLock.lock();
+            if (recycleSegments && freeSegments.size() < MAX_FREE_SEGMENTS) {
+                File freeSegment = getNextFreeSegmentName();
+                diskSession.renameTo(logFile, freeSegment);
+                diskSession.forceToDisk();
+                freeSegments.add(freeSegment);
+                return;
+            }
+        } finally {
+            segmentsLock.unlock();
+        }
+        diskSession.deleteFileDurably(logFile);
+    }
+
+    /*
+     * Records, in the header of the segment, the position till which it holds entries. The caller
+     * forces the segment afterwards.
+     */
+    public static void sealSegment(FileChannel segmentChannel) throws IOException {
+        ByteBuffer sealedLength = ByteBuffer.allocate(8);
+        sealedLength.putLong(segmentChannel.position());
+        sealedLength.flip();
+        while (sealedLength.hasRemaining()) {
+            segmentChannel.write(sealedLength, SEALED_LENGTH_OFFSET + sealedLength.position());
+        }
+    }
+
+    /*
+     * Returns the generation from the header of the segment; -1 if the segment is empty (it was never
+     * written to), or LEGACY_LOG_GENERATION if it has no header (it is a log written by an older release).
+     */
+    public static int readSegmentGeneration(FileChannel segmentChannel) throws IOException {
+        if (segmentChannel.size() == 0) {
+            return -1;
+        }
+        ByteBuffer header = readSegmentHeader(segmentChannel);
+        return header == null ? LEGACY_LOG_GENERATION : header.getInt(8);
+    }
+
+    /*
+     * Returns the position till which the (sealed) segment holds entries, or 0 if the segment isn't sealed.
+     */
+    public static long readSealedLength(FileChannel segmentChannel) throws IOException {
+        ByteBuffer header = readSegmentHeader(segmentChannel);
+        return header == null ? 0 : header.getLong(SEALED_LENGTH_OFFSET);
+    }
+
+    private static ByteBuffer readSegmentHeader(FileChannel segmentChannel) throws IOException {
+        if (segmentChannel.size() < SEGMENT_HEADER_LENGTH) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_LENGTH);
+        segmentChannel.position(0);
+        FileIOUtility.readFromChannel(segmentChannel, header, 0, SEGMENT_HEADER_LENGTH);
+        if (header.getInt(0) != SEGMENT_MAGIC) {
+            return null;
+        }
+        if (header.getInt(4) != LOG_FORMAT_VERSION) {
+            throw new IOException("The transaction log is of an unsupported format version: " + header.getInt(4));
+        }
+        return header;
+    }
+
+    private static int readSegmentGeneration(File segment) throws IOException {
+        FileInputStream fis = new FileInputStream(segment);
+        try {
+            return readSegmentGeneration(fis.getChannel());
+        } finally {
+            MiscUtils.closeAll(fis);
+        }
+    }
+
+    private File getNextFreeSegmentName() {
+        return new File(transactionLogBaseName + FREE_SEGMENT_SUFFIX + nextFreeSegmentNumber++);
+    }
+
+    @Override
+    void processEvent() {
+        try {
+            File freeSegment;
+            try {
+                segmentsLock.lock();
+                if (!freeSegments.isEmpty()) {
+                    return;
+                }
+                freeSegment = getNextFreeSegmentName();
+            } finally {
+                segmentsLock.unlock();
+            }
+            File preallocatedSegment = new File(freeSegment.getAbsolutePath() + PREALLOCATION_SUFFIX);
+            if (!preallocate(preallocatedSegment)) {
+                return;
+            }
+            DurableDiskSession diskSession = xaFileSystem.createDurableDiskSession();
+            diskSession.renameTo(preallocatedSegment, freeSegment);
+            diskSession.forceToDisk();
+            try {
+                segmentsLock.lock();
+                freeSegments.add(freeSegment);
+            } finally {
+                segmentsLock.unlock();
+            }
+        } catch (Throwable t) {
+            xaFileSystem.notifySystemFailure(t);
+        }
+    }
+
+    /*
+     * Writes real zeroes (rather than just setting the length) so that the file-system allocates the
+     * blocks now, and later writes to the log need not update the file's size or block-map.
+     */
+    private boolean preallocate(File segmentFile) throws IOException {
+        RandomAccessFile segment = new RandomAccessFile(segmentFile, "rw");
+        try {
+            FileChannel segmentChannel = segment.getChannel();
+            segmentChannel.truncate(0);
+            ByteBuffer zeroes = ByteBuffer.allocateDirect((int) Math.min(PREALLOCATION_CHUNK_SIZE, segmentSize));
+            long position = 0;
+            while (position < segmentSize) {
+                if (released) {
+                    return false;
+                }
+                zeroes.clear();
+                zeroes.limit((int) Math.min(zeroes.capacity(), segmentSize - position));
+                while (zeroes.hasRemaining()) {
+                    position += segmentChannel.write(zeroes, position);
+                }
+            }
+            segmentChannel.force(true);
+            return true;
+        } finally {
+            MiscUtils.closeAll(segment);
+        }
+    }
+
+    @Override
+    public void release() {
+        released = true;
+        super.release();
+    }
+
+    @Override
+    public void run() {
+        super.run();
+    }
+}
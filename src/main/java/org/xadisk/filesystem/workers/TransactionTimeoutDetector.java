@@ -6,48 +6,155 @@
  */
 package org.xadisk.filesystem.workers;
 
+import java.util.Iterator;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.resource.spi.work.Work;
 import org.xadisk.filesystem.NativeSession;
 import org.xadisk.filesystem.NativeXAFileSystem;
 import org.xadisk.filesystem.ResourceDependencyGraph.Node;
-import org.xadisk.filesystem.TransactionInformation;
 import org.xadisk.filesystem.exceptions.TransactionTimeoutException;
 
-public class TransactionTimeoutDetector extends TimedWorker {
+/*
+ * Each session with a timeout schedules a deadline here when it is created (and again whenever its timeout
+ * is changed), and cancels it on completion. The deadlines are kept in a DelayQueue, and this worker wakes up
+ * only when the earliest of them is due, to roll back its transaction; there is no periodic scan over all the
+ * sessions.
+ * A cancelled deadline is left in the queue (removal from the middle of the queue is a linear scan) and is
+ * ignored when it becomes due; the queue is purged of such deadlines if they (roughly) outnumber the live ones.
+ * A cancelled deadline drops its session, so that a completed session isn't held till its deadline would have
+ * been due. A cancelled deadline is discarded (and uncounted) exactly once, either by a purge or by this worker.
+ */
+public class TransactionTimeoutDetector implements Work {
 
+    private static final int MIN_CANCELLED_DEADLINES_FOR_PURGE = 1000;
     private final NativeXAFileSystem xaFileSystem;
+    private final DelayQueue<Deadline> deadlines = new DelayQueue<Deadline>();
+    private final AtomicInteger cancelledDeadlines = new AtomicInteger(0);
+    private final AtomicBoolean purging = new AtomicBoolean(false);
+    private volatile boolean released = false;
 
-    public TransactionTimeoutDetector(int frequency, NativeXAFileSystem xaFileSystem) {
-        super(frequency);
+    public TransactionTimeoutDetector(NativeXAFileSystem xaFileSystem) {
         this.xaFileSystem = xaFileSystem;
     }
 
-    @Override
-    void doWorkOnce() {
-        try {
-            NativeSession sessions[] = xaFileSystem.getAllSessions();
-            for (int i = 0; i < sessions.length; i++) {
-                NativeSession session = sessions[i];
-                long timeoutValue = session.getTransactionTimeout() * 1000;
-                long birthTime = session.getTimeOfEntryToTransaction();
-                long timeNow = System.currentTimeMillis();
-                if (timeoutValue > 0 && timeNow - birthTime > timeoutValue) {
-                    xaFileSystem.getConcurrencyControl().interruptTransactionIfWaitingForResourceLock(session.getXid(),
-                            Node.INTERRUPTED_DUE_TO_TIMEOUT);
-                    session.rollbackAsynchronously(new TransactionTimeoutException());
-                }
+    /*
+     * The session's transaction gets rolled back at the given time (in milliseconds, as from
+     * System.currentTimeMillis), unless the returned deadline is cancelled before that.
+     */
+    public Deadline scheduleTimeout(NativeSession session, long dueTime) {
+        Deadline deadline = new Deadline(session, dueTime);
+        deadlines.offer(deadline);
+        return deadline;
+    }
+
+    public void cancelTimeout(Deadline deadline) {
+        if (!deadline.cancel()) {
+            return;
+        }
+        int cancelled = cancelledDeadlines.incrementAndGet();
+        if (cancelled >= MIN_CANCELLED_DEADLINES_FOR_PURGE && cancelled > deadlines.size() / 2
+                && purging.compareAndSet(false, true)) {
+            try {
+                purgeCancelledDeadlines();
+            } finally {
+                purging.set(false);
+            }
+        }
+    }
+
+    private void purgeCancelledDeadlines() {
+        Iterator<Deadline> iter = deadlines.iterator();
+        while (iter.hasNext()) {
+            if (iter.next().discard()) {
+                iter.remove();
+                cancelledDeadlines.decrementAndGet();
             }
-        } catch (Throwable t) {
-            xaFileSystem.notifySystemFailure(t);
         }
     }
 
-    @Override
     public void release() {
-        super.release();
+        released = true;
+        deadlines.offer(new Deadline(null, 0));
     }
 
-    @Override
     public void run() {
-        super.run();
+        while (!released) {
+            Deadline deadline;
+            try {
+                deadline = deadlines.take();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (!deadline.fire()) {
+                if (deadline.discard()) {
+                    cancelledDeadlines.decrementAndGet();
+                }
+                continue;
+            }
+            NativeSession session = deadline.session;
+            if (session == null) {
+                //see release().
+                continue;
+            }
+            try {
+                xaFileSystem.getConcurrencyControl().interruptTransactionIfWaitingForResourceLock(session.getXid(),
+                        Node.INTERRUPTED_DUE_TO_TIMEOUT);
+                session.rollbackAsynchronously(new TransactionTimeoutException());
+            } catch (Throwable t) {
+                xaFileSystem.notifySystemFailure(t);
+            }
+        }
+    }
+
+    public static class Deadline implements Delayed {
+
+        private static final int ARMED = 0;
+        private static final int CANCELLED = 1;
+        private static final int FIRED = 2;
+        private static final int DISCARDED = 3;
+        private volatile NativeSession session;
+        private final long dueTime;
+        private final AtomicInteger state = new AtomicInteger(ARMED);
+
+        private Deadline(NativeSession session, long dueTime) {
+            this.session = session;
+            this.dueTime = dueTime;
+        }
+
+        private boolean cancel() {
+            if (!state.compareAndSet(ARMED, CANCELLED)) {
+                return false;
+            }
+            session = null;
+            return true;
+        }
+
+        /*
+         * Once this succeeds, the session can't be dropped by a cancel.
+         */
+        private boolean fire() {
+            return state.compareAndSet(ARMED, FIRED);
+        }
+
+        /*
+         * Succeeds only once for a cancelled deadline, for the one removing it from the queue.
+         */
+        private boolean discard() {
+            return state.compareAndSet(CANCELLED, DISCARDED);
+        }
+
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueTime - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        public int compareTo(Delayed other) {
+            long otherDueTime = ((Deadline) other).dueTime;
+            return dueTime < otherDueTime ? -1 : (dueTime == otherDueTime ? 0 : 1);
+        }
     }
 }
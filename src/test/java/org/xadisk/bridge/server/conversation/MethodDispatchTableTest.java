@@ -0,0 +1,64 @@
+package org.xadisk.bridge.server.conversation;
+
+import org.junit.Test;
+import org.xadisk.bridge.proxies.facilitators.RemoteInvocationCodec;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class MethodDispatchTableTest {
+
+    @Test
+    public void overloads_dispatched_by_argument_types() throws Exception {
+        // Given
+        MethodDispatchTable table = MethodDispatchTable.forClass(Target.class);
+        short getFileLength = RemoteInvocationCodec.getMethodId("getFileLength");
+        File file = new File("foo.txt");
+
+        // When
+        MethodDispatchTable.Entry withoutLocking = table.find(getFileLength, new Class<?>[]{File.class});
+        MethodDispatchTable.Entry withLocking = table.find(getFileLength, new Class<?>[]{File.class, boolean.class});
+
+        // Then
+        assertThat(withoutLocking.invoke(new Target(), new Object[]{file}), is((Object) 7L));
+        assertThat(withLocking.invoke(new Target(), new Object[]{file, true}), is((Object) 8L));
+        assertThat(table.find(getFileLength, new Class<?>[]{File.class, Boolean.class}), is(nullValue()));
+        assertThat(table.find(RemoteInvocationCodec.getMethodId("commit"), new Class<?>[0]), is(nullValue()));
+        assertThat(MethodDispatchTable.forClass(Target.class), is(table));
+    }
+
+    @Test
+    public void exceptions_of_method_wrapped_as_by_reflection() throws Exception {
+        // Given
+        MethodDispatchTable table = MethodDispatchTable.forClass(Target.class);
+        MethodDispatchTable.Entry close = table.find(RemoteInvocationCodec.getMethodId("close"), new Class<?>[0]);
+
+        // When
+        try {
+            close.invoke(new Target(), new Object[0]);
+            throw new AssertionError("The exception thrown by the method was expected.");
+        } catch (InvocationTargetException ite) {
+            // Then
+            assertThat(ite.getCause().getMessage(), is("closed"));
+        }
+    }
+
+    public static class Target {
+
+        public long getFileLength(File f) {
+            return 7L;
+        }
+
+        public long getFileLength(File f, boolean lockExclusively) {
+            return lockExclusively ? 8L : 9L;
+        }
+
+        public void close() {
+            throw new IllegalStateException("closed");
+        }
+    }
+}
@@ -1,46 +1,25 @@
 package org.xadisk.tests.correctness;
 
-import org.junit.After;
-import org.junit.Before;
 import org.junit.Test;
 import org.xadisk.bridge.proxies.interfaces.Session;
+import org.xadisk.bridge.proxies.interfaces.XAFileInputStream;
+import org.xadisk.bridge.proxies.interfaces.XAFileOutputStream;
 import org.xadisk.bridge.proxies.interfaces.XAFileSystem;
-import org.xadisk.bridge.proxies.interfaces.XAFileSystemProxy;
 import org.xadisk.filesystem.exceptions.*;
 import org.xadisk.filesystem.standalone.StandaloneFileSystemConfiguration;
-import org.xadisk.filesystem.utilities.FileIOUtility;
 
 import java.io.File;
-import java.io.IOException;
-import java.nio.file.Paths;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.hamcrest.core.Is.is;
 import static org.junit.Assert.assertThat;
 
-public class BasicIOOperationsTest {
-    private static final String SEPARATOR = File.separator;
-    private static final String CURRENT_WORKING_DIRECTORY = System.getProperty("user.dir") + SEPARATOR + "target" + SEPARATOR + "XADisk";
-    private static final String TMP_DIRECTORY = CURRENT_WORKING_DIRECTORY + SEPARATOR + "tmp" + SEPARATOR;
-    private static final String XA_DISK_SYSTEM_DIRECTORY = CURRENT_WORKING_DIRECTORY + SEPARATOR + "xa";
-
-    @Before
-    public void setupTest() {
-        new File(TMP_DIRECTORY).mkdirs();
-    }
-
-    @After
-    public void shutdownXaDisk() throws IOException {
-        final XAFileSystem localXaFileSystem = XAFileSystemProxy.getNativeXAFileSystemReference("local");
-        if (localXaFileSystem != null) {
-            try {
-                localXaFileSystem.shutdown();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-        // Delete test files/directories
-        FileIOUtility.deleteDirectoryRecursively(Paths.get(CURRENT_WORKING_DIRECTORY));
-    }
+public class BasicIOOperationsTest extends NativeXAFileSystemFixture {
 
     /**
      * Checking for file existence for a non-existing file inside a non-existing parent directory
@@ -48,9 +27,7 @@ public class BasicIOOperationsTest {
      */
     @Test
     public void fileExists_on_file_in_nonexisting_dir() throws InterruptedException, NoTransactionAssociatedException, InsufficientPermissionOnFileException, LockingFailedException {
-        StandaloneFileSystemConfiguration configuration = new StandaloneFileSystemConfiguration(XA_DISK_SYSTEM_DIRECTORY, "local");
-        XAFileSystem xafs = XAFileSystemProxy.bootNativeXAFileSystem(configuration);
-        xafs.waitForBootup(-1);
+        XAFileSystem xafs = boot(newConfiguration());
         Session xaSession = xafs.createSessionForLocalTransaction();
         boolean existResult = xaSession.fileExists(new File(CURRENT_WORKING_DIRECTORY, "non-existing-dir/non-existing-file.txt"));
         assertThat(existResult, is(false));
@@ -62,9 +39,7 @@ public class BasicIOOperationsTest {
      */
     @Test
     public void createFile_in_nonexisting_dir() throws InterruptedException, XAApplicationException {
-        StandaloneFileSystemConfiguration configuration = new StandaloneFileSystemConfiguration(XA_DISK_SYSTEM_DIRECTORY, "local");
-        XAFileSystem xafs = XAFileSystemProxy.bootNativeXAFileSystem(configuration);
-        xafs.waitForBootup(-1);
+        XAFileSystem xafs = boot(newConfiguration());
         Session xaSession = xafs.createSessionForLocalTransaction();
 
         final File nonExistingDir = new File(CURRENT_WORKING_DIRECTORY, "non-existing-dir");
@@ -86,9 +61,7 @@ public class BasicIOOperationsTest {
      */
     @Test
     public void fileExists_on_file_in_tracked_session_dir() throws InterruptedException, NoTransactionAssociatedException, InsufficientPermissionOnFileException, LockingFailedException, FileAlreadyExistsException, FileNotExistsException {
-        StandaloneFileSystemConfiguration configuration = new StandaloneFileSystemConfiguration(XA_DISK_SYSTEM_DIRECTORY, "local");
-        XAFileSystem xafs = XAFileSystemProxy.bootNativeXAFileSystem(configuration);
-        xafs.waitForBootup(-1);
+        XAFileSystem xafs = boot(newConfiguration());
         Session xaSession = xafs.createSessionForLocalTransaction();
 
         // Create "tracked" (i.e. non-committed) representations of "dir_A", "dir_B" and "foo.txt"
@@ -97,4 +70,238 @@ public class BasicIOOperationsTest {
         boolean existResult = xaSession.fileExists(new File(CURRENT_WORKING_DIRECTORY, "dir_A/dir_C/bar.txt"));
         assertThat(existResult, is(false));
     }
+
+    /**
+     * With group commit enabled, concurrently committing transactions share the forces of the transaction
+     * log; all of them must still complete and have their changes applied.
+     */
+    @Test
+    public void createFile_concurrently_with_group_commit() throws Exception {
+        StandaloneFileSystemConfiguration configuration = newConfiguration();
+        configuration.setEnableGroupCommit(true);
+        configuration.setGroupCommitMaxWait(500);
+        configuration.setGroupCommitMaxBatchSize(4);
+        final XAFileSystem xafs = boot(configuration);
+
+        final int numThreads = 10;
+        final AtomicInteger failures = new AtomicInteger(0);
+        Thread committers[] = new Thread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            final File file = new File(TMP_DIRECTORY, "groupCommit_" + i + ".txt");
+            committers[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        Session xaSession = xafs.createSessionForLocalTransaction();
+                        xaSession.createFile(file, false);
+                        xaSession.commit();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+            committers[i].start();
+        }
+        for (Thread committer : committers) {
+            committer.join();
+        }
+
+        assertThat(failures.get(), is(0));
+        for (int i = 0; i < numThreads; i++) {
+            assertThat(new File(TMP_DIRECTORY, "groupCommit_" + i + ".txt").exists(), is(true));
+        }
+    }
+
+    /**
+     * A transaction appending many small chunks to a file must have all of them applied, in order, at commit;
+     * the redo entries for the file are applied through a single channel kept open during the commit.
+     */
+    @Test
+    public void appendFile_many_chunks_then_commit() throws Exception {
+        XAFileSystem xafs = boot(newConfiguration());
+
+        final File file = new File(TMP_DIRECTORY, "manyAppends.txt");
+        Session xaSession = xafs.createSessionForLocalTransaction();
+        xaSession.createFile(file, false);
+        XAFileOutputStream xafos = xaSession.createXAFileOutputStream(file, false);
+        final int numChunks = 3000;
+        byte chunk[] = new byte[1000];
+        for (int i = 0; i < numChunks; i++) {
+            Arrays.fill(chunk, (byte) i);
+            xafos.write(chunk);
+        }
+        xafos.close();
+        xaSession.commit();
+
+        assertThat(file.length(), is((long) numChunks * chunk.length));
+        byte content[] = Files.readAllBytes(file.toPath());
+        for (int i = 0; i < numChunks; i++) {
+            assertThat(content[i * chunk.length], is((byte) i));
+            assertThat(content[(i + 1) * chunk.length - 1], is((byte) i));
+        }
+    }
+
+    /**
+     * Truncating a file written as many small buffers, in the middle of a buffer and then at the
+     * current length, must keep exactly the content before the truncation point visible to random reads.
+     */
+    @Test
+    public void truncateFile_many_buffers_then_random_reads() throws Exception {
+        XAFileSystem xafs = boot(newConfiguration());
+
+        final File file = new File(TMP_DIRECTORY, "manyBuffersTruncated.txt");
+        Session xaSession = xafs.createSessionForLocalTransaction();
+        xaSession.createFile(file, false);
+        XAFileOutputStream xafos = xaSession.createXAFileOutputStream(file, false);
+        final int numChunks = 200;
+        byte chunk[] = new byte[10];
+        for (int i = 0; i < numChunks; i++) {
+            Arrays.fill(chunk, (byte) i);
+            xafos.write(chunk);
+            xafos.flush();
+        }
+        xafos.close();
+
+        final long newLength = 1005;
+        xaSession.truncateFile(file, newLength);
+        xaSession.truncateFile(file, newLength);
+        assertThat(xaSession.getFileLength(file), is(newLength));
+
+        XAFileInputStream xafis = xaSession.createXAFileInputStream(file);
+        for (long position = newLength - 1; position >= 0; position -= 7) {
+            xafis.position(position);
+            assertThat(xafis.read(), is((int) (position / chunk.length)));
+        }
+        xafis.position(newLength);
+        assertThat(xafis.read(), is(-1));
+        xafis.close();
+        xaSession.commit();
+
+        assertThat(file.length(), is(newLength));
+    }
+
+    /**
+     * With memory-mapped reads enabled, the committed content of a file must be read correctly across
+     * many mapped windows, including after seeking backwards and after truncating the file in the
+     * same transaction.
+     */
+    @Test
+    public void readFile_with_memory_mapped_reads() throws Exception {
+        final File file = new File(TMP_DIRECTORY, "mappedReads.txt");
+        final int fileLength = 1000000;
+        byte content[] = new byte[fileLength];
+        for (int i = 0; i < fileLength; i++) {
+            content[i] = (byte) (i % 251);
+        }
+        Files.write(file.toPath(), content);
+
+        StandaloneFileSystemConfiguration configuration = newConfiguration();
+        configuration.setEnableMemoryMappedReads(true);
+        configuration.setMemoryMappedReadWindowSize(65536);
+        XAFileSystem xafs = boot(configuration);
+
+        Session xaSession = xafs.createSessionForLocalTransaction();
+        XAFileInputStream xafis = xaSession.createXAFileInputStream(file);
+        byte readContent[] = new byte[fileLength];
+        int totalRead = 0;
+        int numRead;
+        while ((numRead = xafis.read(readContent, totalRead, Math.min(5000, fileLength - totalRead))) > 0) {
+            totalRead += numRead;
+        }
+        assertThat(totalRead, is(fileLength));
+        assertThat(Arrays.equals(readContent, content), is(true));
+
+        xafis.position(70000);
+        assertThat(xafis.read(), is(70000 % 251));
+        xafis.position(69000);
+        assertThat(xafis.read(), is(69000 % 251));
+
+        final long newLength = 69500;
+        xaSession.truncateFile(file, newLength);
+        assertThat(xafis.read(), is(69001 % 251));
+        xafis.skip(newLength - 69002 - 1);
+        assertThat(xafis.read(), is((int) ((newLength - 1) % 251)));
+        assertThat(xafis.read(), is(-1));
+        xafis.close();
+        xaSession.rollback();
+    }
+
+    /**
+     * Transferring a file to a channel must deliver both its committed content (from the physical file)
+     * and the content appended by the current transaction (from the in-memory buffers), in order.
+     */
+    @Test
+    public void transferTo_committed_and_appended_content() throws Exception {
+        final File file = new File(TMP_DIRECTORY, "transferSource.txt");
+        final File target = new File(TMP_DIRECTORY, "transferTarget.txt");
+        final int committedLength = 300000;
+        final int appendedLength = 50000;
+        byte content[] = new byte[committedLength + appendedLength];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i % 253);
+        }
+        Files.write(file.toPath(), Arrays.copyOfRange(content, 0, committedLength));
+
+        XAFileSystem xafs = boot(newConfiguration());
+
+        Session xaSession = xafs.createSessionForLocalTransaction();
+        XAFileOutputStream xafos = xaSession.createXAFileOutputStream(file, false);
+        xafos.write(content, committedLength, appendedLength);
+        xafos.close();
+
+        XAFileInputStream xafis = xaSession.createXAFileInputStream(file);
+        assertThat(xafis.read(), is(0));
+        FileChannel targetChannel = new FileOutputStream(target).getChannel();
+        long transferred = xafis.transferTo(targetChannel, content.length);
+        targetChannel.close();
+        assertThat(transferred, is((long) content.length - 1));
+        assertThat(xafis.read(), is(-1));
+        assertThat(xafis.position(), is((long) content.length));
+        xafis.close();
+        xaSession.rollback();
+
+        assertThat(Arrays.equals(Files.readAllBytes(target.toPath()), Arrays.copyOfRange(content, 1, content.length)),
+                is(true));
+    }
+
+    /**
+     * Small and large (direct) ByteBuffers, written singly and in a gathering write, must be appended
+     * in order, visible inside the transaction and applied to the file at commit.
+     */
+    @Test
+    public void appendFile_with_byte_buffers() throws Exception {
+        XAFileSystem xafs = boot(newConfiguration());
+
+        byte content[] = new byte[300000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i % 249);
+        }
+        ByteBuffer largeDirect = ByteBuffer.allocateDirect(200000);
+        largeDirect.put(content, 1000, 200000);
+        largeDirect.flip();
+
+        final File file = new File(TMP_DIRECTORY, "byteBufferAppends.txt");
+        Session xaSession = xafs.createSessionForLocalTransaction();
+        xaSession.createFile(file, false);
+        XAFileOutputStream xafos = xaSession.createXAFileOutputStream(file, false);
+        xafos.write(ByteBuffer.wrap(content, 0, 1000));
+        xafos.write(largeDirect);
+        xafos.write(new ByteBuffer[]{ByteBuffer.wrap(content, 201000, 50), ByteBuffer.wrap(content, 201050, 98950)});
+        xafos.close();
+        assertThat(largeDirect.hasRemaining(), is(false));
+
+        XAFileInputStream xafis = xaSession.createXAFileInputStream(file);
+        byte readContent[] = new byte[content.length];
+        int totalRead = 0;
+        int numRead;
+        while ((numRead = xafis.read(readContent, totalRead, readContent.length - totalRead)) > 0) {
+            totalRead += numRead;
+        }
+        xafis.close();
+        assertThat(totalRead, is(content.length));
+        assertThat(Arrays.equals(readContent, content), is(true));
+        xaSession.commit();
+
+        assertThat(Arrays.equals(Files.readAllBytes(file.toPath()), content), is(true));
+    }
 }
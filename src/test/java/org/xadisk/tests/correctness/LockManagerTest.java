@@ -0,0 +1,406 @@
+package org.xadisk.tests.correctness;
+
+import org.junit.Test;
+import org.xadisk.bridge.proxies.interfaces.Session;
+import org.xadisk.bridge.proxies.interfaces.XAFileSystem;
+import org.xadisk.bridge.proxies.interfaces.XAFileSystemProxy;
+import org.xadisk.filesystem.ConcurrencyControl;
+import org.xadisk.filesystem.Lock;
+import org.xadisk.filesystem.NativeXAFileSystem;
+import org.xadisk.filesystem.TransactionInformation;
+import org.xadisk.filesystem.exceptions.*;
+import org.xadisk.filesystem.standalone.StandaloneFileSystemConfiguration;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * The locking of files and directories by transactions.
+ */
+public class LockManagerTest extends NativeXAFileSystemFixture {
+
+    /**
+     * Shared locks taken without waiting must still keep out an exclusive request until all of them are
+     * released, and the last remaining holder must be able to upgrade its lock to exclusive.
+     */
+    @Test
+    public void shared_locks_then_upgrade_and_exclusive() throws Exception {
+        StandaloneFileSystemConfiguration configuration = newConfiguration();
+        configuration.setLockTimeOut(200);
+        XAFileSystem xafs = boot(configuration);
+        File file = new File(TMP_DIRECTORY, "sharedLocks.txt");
+        Session session = xafs.createSessionForLocalTransaction();
+        session.createFile(file, false);
+        session.commit();
+
+        Session reader1 = xafs.createSessionForLocalTransaction();
+        Session reader2 = xafs.createSessionForLocalTransaction();
+        assertThat(reader1.getFileLength(file, false), is(0L));
+        assertThat(reader2.getFileLength(file, false), is(0L));
+        assertThat(isLockTimedOut(xafs, file, true), is(true));
+
+        reader2.commit();
+        assertThat(reader1.getFileLength(file, true), is(0L));
+        assertThat(isLockTimedOut(xafs, file, false), is(true));
+
+        reader1.commit();
+        assertThat(isLockTimedOut(xafs, file, true), is(false));
+    }
+
+    /**
+     * A pin on a directory (taken for moving it) must be seen by lock requests for files deep inside it, also
+     * when the nodes for those paths were resolved (and cached) before the pin was taken.
+     */
+    @Test
+    public void pinned_ancestor_seen_through_resolved_paths() throws Exception {
+        XAFileSystem xafs = boot(newConfiguration());
+        File top = new File(TMP_DIRECTORY, "pinned");
+        File deepDirectory = new File(top, "a" + SEPARATOR + "b" + SEPARATOR + "c");
+        File deepFile = new File(deepDirectory, "deep.txt");
+        assertThat(deepDirectory.mkdirs(), is(true));
+        assertThat(deepFile.createNewFile(), is(true));
+
+        Session reader = xafs.createSessionForLocalTransaction();
+        assertThat(reader.getFileLength(deepFile, false), is(0L));
+        reader.commit();
+
+        Session mover = xafs.createSessionForLocalTransaction();
+        mover.moveFile(new File(top, "a"), new File(top, "moved"));
+        Session blocked = xafs.createSessionForLocalTransaction();
+        try {
+            blocked.getFileLength(deepFile, false);
+            throw new AssertionError("Lock over a file inside a pinned directory was granted.");
+        } catch (AncestorPinnedException ape) {
+            assertThat(ape.getAncestorPath(), is(new File(top, "a").getAbsolutePath()));
+        } finally {
+            blocked.rollback();
+        }
+        mover.commit();
+        assertThat(new File(top, "moved" + SEPARATOR + "b" + SEPARATOR + "c" + SEPARATOR + "deep.txt").exists(), is(true));
+    }
+
+    /**
+     * Two transactions waiting for each other's exclusive lock must be resolved as soon as the second
+     * one starts waiting, well within the lock timeout and without waiting for the periodic deadlock detector.
+     */
+    @Test
+    public void deadlock_detected_when_wait_begins() throws Exception {
+        StandaloneFileSystemConfiguration configuration = newConfiguration();
+        configuration.setLockTimeOut(60000);
+        final XAFileSystem xafs = boot(configuration);
+        final File files[] = {new File(TMP_DIRECTORY, "deadlock0.txt"), new File(TMP_DIRECTORY, "deadlock1.txt")};
+        assertThat(files[0].createNewFile(), is(true));
+        assertThat(files[1].createNewFile(), is(true));
+
+        final AtomicInteger victims = new AtomicInteger(0);
+        final AtomicInteger failures = new AtomicInteger(0);
+        final CountDownLatch bothLocked = new CountDownLatch(2);
+        Thread transactions[] = new Thread[2];
+        for (int i = 0; i < 2; i++) {
+            final int first = i;
+            transactions[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        Session session = xafs.createSessionForLocalTransaction();
+                        session.getFileLength(files[first], true);
+                        bothLocked.countDown();
+                        bothLocked.await();
+                        try {
+                            session.getFileLength(files[1 - first], true);
+                            session.commit();
+                        } catch (TransactionRolledbackException tre) {
+                            if (tre.getCause() instanceof DeadLockVictimizedException) {
+                                victims.incrementAndGet();
+                            }
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+            transactions[i].start();
+        }
+        long start = System.currentTimeMillis();
+        for (Thread transaction : transactions) {
+            transaction.join();
+        }
+        assertThat(failures.get(), is(0));
+        assertThat(victims.get(), is(1));
+        assertThat(System.currentTimeMillis() - start < 10000, is(true));
+    }
+
+    /**
+     * Moving a directory must fail while another transaction holds a lock on a file deep inside it, and must
+     * succeed once that transaction completes, even though none of the nodes in between were ever locked.
+     */
+    @Test
+    public void directory_move_conflicts_with_locks_in_subtree() throws Exception {
+        XAFileSystem xafs = boot(newConfiguration());
+        File top = new File(TMP_DIRECTORY, "subtree");
+        File deepFile = new File(top, "a" + SEPARATOR + "b" + SEPARATOR + "c" + SEPARATOR + "deep.txt");
+        assertThat(deepFile.getParentFile().mkdirs(), is(true));
+        assertThat(deepFile.createNewFile(), is(true));
+
+        Session reader = xafs.createSessionForLocalTransaction();
+        assertThat(reader.getFileLength(deepFile, false), is(0L));
+
+        Session mover = xafs.createSessionForLocalTransaction();
+        try {
+            mover.moveFile(new File(top, "a"), new File(top, "moved"));
+            throw new AssertionError("A directory with a file locked by another transaction was moved.");
+        } catch (DirectoryPinningFailedException dpfe) {
+            //expected.
+        } finally {
+            mover.rollback();
+        }
+        reader.commit();
+
+        mover = xafs.createSessionForLocalTransaction();
+        mover.moveFile(new File(top, "a"), new File(top, "moved"));
+        mover.commit();
+        assertThat(new File(top, "moved" + SEPARATOR + "b" + SEPARATOR + "c" + SEPARATOR + "deep.txt").exists(), is(true));
+    }
+
+    /**
+     * Once a transaction holds more locks inside a directory than the lock escalation threshold, they are
+     * replaced by a lock over the directory: a shared one keeps out only the exclusive requests of others and
+     * an exclusive one keeps out all of them, until the transaction completes.
+     */
+    @Test
+    public void lock_escalation_for_many_files_in_directory() throws Exception {
+        StandaloneFileSystemConfiguration configuration = newConfiguration();
+        configuration.setLockTimeOut(200);
+        configuration.setLockEscalationThreshold(3);
+        final XAFileSystem xafs = boot(configuration);
+        File directory = new File(TMP_DIRECTORY, "escalation");
+        assertThat(directory.mkdirs(), is(true));
+        final File files[] = new File[5];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = new File(directory, i + ".txt");
+            assertThat(files[i].createNewFile(), is(true));
+        }
+
+        Session reader = xafs.createSessionForLocalTransaction();
+        for (int i = 0; i < 4; i++) {
+            assertThat(reader.getFileLength(files[i], false), is(0L));
+        }
+        assertThat(isLockTimedOut(xafs, files[4], false), is(false));
+        assertThat(isLockTimedOut(xafs, files[0], true), is(true));
+        assertThat(isLockTimedOut(xafs, files[4], true), is(true));
+        reader.commit();
+        assertThat(isLockTimedOut(xafs, files[4], true), is(false));
+
+        Session writer = xafs.createSessionForLocalTransaction();
+        for (int i = 0; i < 4; i++) {
+            assertThat(writer.getFileLength(files[i], true), is(0L));
+        }
+        assertThat(isLockTimedOut(xafs, files[4], false), is(true));
+        assertThat(writer.getFileLength(files[4], true), is(0L));
+
+        final AtomicLong waitedLength = new AtomicLong(-1);
+        Thread waiter = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Session session = xafs.createSessionForLocalTransaction();
+                    session.setFileLockWaitTimeout(60000);
+                    waitedLength.set(session.getFileLength(files[0], false));
+                    session.commit();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        waiter.start();
+        Thread.sleep(200);
+        writer.commit();
+        waiter.join();
+        assertThat(waitedLength.get(), is(0L));
+    }
+
+    /**
+     * A batch of locks is acquired completely or not at all: when one of them cannot be granted, the ones
+     * acquired till then are released, and an upgraded one goes back to shared mode.
+     */
+    @Test
+    public void batch_lock_acquisition_is_all_or_nothing() throws Exception {
+        XAFileSystem xafs = boot(newConfiguration());
+        File files[] = {new File(TMP_DIRECTORY, "batchC.txt"), new File(TMP_DIRECTORY, "batchA.txt"),
+            new File(TMP_DIRECTORY, "batchB.txt")};
+        ConcurrencyControl concurrencyControl = NativeXAFileSystem.getXAFileSystem("local").getConcurrencyControl();
+        TransactionInformation xid1 = TransactionInformation.getXidInstanceForLocalTransaction(-1);
+        TransactionInformation xid2 = TransactionInformation.getXidInstanceForLocalTransaction(-2);
+        TransactionInformation xid3 = TransactionInformation.getXidInstanceForLocalTransaction(-3);
+
+        Lock sharedLock = concurrencyControl.acquireFileLock(xid1, files[2], 200, false);
+        Lock blockingLock = concurrencyControl.acquireFileLock(xid2, files[0], 200, true);
+        try {
+            concurrencyControl.acquireFileLocks(xid1, files, 200, new boolean[]{false, true, true});
+            throw new AssertionError("A batch of locks was granted with one of the files locked by another transaction.");
+        } catch (LockingTimedOutException ltoe) {
+            //expected.
+        }
+        assertThat(isFileLockTimedOut(concurrencyControl, xid3, files[1], true), is(false));
+        assertThat(isFileLockTimedOut(concurrencyControl, xid3, files[2], false), is(false));
+        assertThat(isFileLockTimedOut(concurrencyControl, xid3, files[2], true), is(true));
+
+        concurrencyControl.releaseLock(xid2, blockingLock);
+        Lock locks[] = concurrencyControl.acquireFileLocks(xid1, files, 200, new boolean[]{false, true, true});
+        assertThat(locks[2], is(sharedLock));
+        assertThat(locks[2].isExclusive(), is(true));
+        assertThat(locks[0].isExclusive(), is(false));
+        assertThat(isFileLockTimedOut(concurrencyControl, xid3, files[0], false), is(false));
+        assertThat(isFileLockTimedOut(concurrencyControl, xid3, files[1], false), is(true));
+        concurrencyControl.releaseLocks(xid1, locks);
+        for (File file : files) {
+            assertThat(isFileLockTimedOut(concurrencyControl, xid3, file, true), is(false));
+        }
+    }
+
+    /**
+     * A cluster slave with lock leases enabled takes a lease over a directory after a few shared locks in it,
+     * and gives the lease up (after taking its transactions' locks at the master) as soon as an exclusive
+     * request at the master has to wait for it.
+     */
+    @Test
+    public void lock_lease_recalled_by_exclusive_request_at_master() throws Exception {
+        StandaloneFileSystemConfiguration configurationMaster = newConfiguration();
+        configurationMaster.setEnableClusterMode(true);
+        configurationMaster.setServerAddress("localhost");
+        configurationMaster.setServerPort(9997);
+        configurationMaster.setLockTimeOut(200);
+        XAFileSystem master = boot(configurationMaster);
+        StandaloneFileSystemConfiguration configurationSlave = new StandaloneFileSystemConfiguration(XA_DISK_SYSTEM_DIRECTORY + "Slave", "leaseSlave");
+        configurationSlave.setEnableClusterMode(true);
+        configurationSlave.setClusterMasterAddress("localhost");
+        configurationSlave.setClusterMasterPort(9997);
+        configurationSlave.setEnableClusterLockLeases(true);
+        configurationSlave.setLockTimeOut(200);
+        XAFileSystem slave = XAFileSystemProxy.bootNativeXAFileSystem(configurationSlave);
+        try {
+            slave.waitForBootup(-1);
+            File directory = new File(TMP_DIRECTORY, "leased");
+            assertThat(directory.mkdirs(), is(true));
+            File files[] = new File[10];
+            for (int i = 0; i < files.length; i++) {
+                files[i] = new File(directory, i + ".txt");
+                assertThat(files[i].createNewFile(), is(true));
+            }
+
+            ConcurrencyControl concurrencyControl = NativeXAFileSystem.getXAFileSystem("local").getConcurrencyControl();
+            TransactionInformation xid1 = TransactionInformation.getXidInstanceForLocalTransaction(-1);
+            TransactionInformation xid2 = TransactionInformation.getXidInstanceForLocalTransaction(-2);
+            Session reader = slave.createSessionForLocalTransaction();
+            for (int i = 0; i < files.length - 1; i++) {
+                assertThat(reader.getFileLength(files[i], false), is(0L));
+            }
+
+            long start = System.currentTimeMillis();
+            Lock exclusiveLock = concurrencyControl.acquireFileLock(xid1, files[9], 10000, true);
+            assertThat(System.currentTimeMillis() - start < 500, is(true));
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName profilerName = new ObjectName("org.xadisk:type=LockContentionProfiler,instance=\"local\"");
+            String report[] = (String[]) mbeanServer.invoke(profilerName, "reportHottestPaths", new Object[]{10},
+                    new String[]{int.class.getName()});
+            assertThat(report.length, is(1));
+            assertThat(report[0].startsWith(directory.getAbsolutePath() + " [subtree] waits=1 "), is(true));
+            assertThat(isFileLockTimedOut(concurrencyControl, xid2, files[8], true), is(true));
+            reader.commit();
+            assertThat(isFileLockTimedOut(concurrencyControl, xid2, files[8], true), is(false));
+            assertThat(isLockTimedOut(slave, files[9], false), is(true));
+            concurrencyControl.releaseLock(xid1, exclusiveLock);
+            assertThat(isLockTimedOut(slave, files[9], false), is(false));
+        } finally {
+            slave.shutdown();
+        }
+    }
+
+    /**
+     * A transaction is rolled back when its timeout is due (not at the next periodic check), also when it is
+     * waiting for a lock at that time; a transaction completing before its timeout is left alone.
+     */
+    @Test
+    public void transaction_rolled_back_when_timeout_is_due() throws Exception {
+        XAFileSystem xafs = boot(newConfiguration());
+        File file = new File(TMP_DIRECTORY, "timeout.txt");
+        assertThat(file.createNewFile(), is(true));
+
+        Session shortLived = xafs.createSessionForLocalTransaction();
+        shortLived.setTransactionTimeout(1);
+        assertThat(shortLived.getFileLength(file, true), is(0L));
+        shortLived.commit();
+
+        Session holder = xafs.createSessionForLocalTransaction();
+        assertThat(holder.getFileLength(file, true), is(0L));
+        long start = System.currentTimeMillis();
+        Session waiter = xafs.createSessionForLocalTransaction();
+        waiter.setTransactionTimeout(1);
+        waiter.setFileLockWaitTimeout(60000);
+        try {
+            waiter.getFileLength(file, false);
+            throw new AssertionError("The transaction was expected to time out.");
+        } catch (TransactionRolledbackException tre) {
+            //expected.
+        }
+        long waited = System.currentTimeMillis() - start;
+        assertThat(waited >= 1000 && waited < 1500, is(true));
+        holder.commit();
+    }
+
+    /**
+     * The waits for locks get recorded per path and lock mode, and are published over JMX.
+     */
+    @Test
+    public void lock_waits_published_by_contention_profiler() throws Exception {
+        StandaloneFileSystemConfiguration configuration = newConfiguration();
+        configuration.setLockTimeOut(200);
+        XAFileSystem xafs = boot(configuration);
+        File file = new File(TMP_DIRECTORY, "contended.txt");
+        assertThat(file.createNewFile(), is(true));
+
+        Session holder = xafs.createSessionForLocalTransaction();
+        assertThat(holder.getFileLength(file, true), is(0L));
+        assertThat(isLockTimedOut(xafs, file, false), is(true));
+        holder.commit();
+
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName profilerName = new ObjectName("org.xadisk:type=LockContentionProfiler,instance=\"local\"");
+        assertThat((Long) mbeanServer.getAttribute(profilerName, "Waits"), is(1L));
+        assertThat((Long) mbeanServer.getAttribute(profilerName, "Timeouts"), is(1L));
+        String report[] = (String[]) mbeanServer.invoke(profilerName, "reportHottestPaths", new Object[]{10},
+                new String[]{int.class.getName()});
+        assertThat(report.length, is(1));
+        assertThat(report[0].startsWith(file.getAbsolutePath() + " [shared] waits=1 "), is(true));
+        assertThat(report[0].contains(" timeouts=1 "), is(true));
+    }
+
+    private static boolean isLockTimedOut(XAFileSystem xafs, File file, boolean exclusive) throws Exception {
+        Session session = xafs.createSessionForLocalTransaction();
+        try {
+            session.getFileLength(file, exclusive);
+            return false;
+        } catch (LockingTimedOutException ltoe) {
+            return true;
+        } finally {
+            session.rollback();
+        }
+    }
+
+    private static boolean isFileLockTimedOut(ConcurrencyControl concurrencyControl, TransactionInformation xid,
+            File file, boolean exclusive) throws Exception {
+        try {
+            concurrencyControl.releaseLock(xid, concurrencyControl.acquireFileLock(xid, file, 200, exclusive));
+            return false;
+        } catch (LockingTimedOutException ltoe) {
+            return true;
+        }
+    }
+}
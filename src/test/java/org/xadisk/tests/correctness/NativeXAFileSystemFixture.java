@@ -0,0 +1,77 @@
+package org.xadisk.tests.correctness;
+
+import org.junit.After;
+import org.junit.Before;
+import org.xadisk.bridge.proxies.interfaces.XAFileSystem;
+import org.xadisk.bridge.proxies.interfaces.XAFileSystemProxy;
+import org.xadisk.filesystem.standalone.StandaloneFileSystemConfiguration;
+import org.xadisk.filesystem.utilities.FileIOUtility;
+
+import javax.transaction.xa.Xid;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+
+/**
+ * The setup shared by the tests booting a native XADisk instance ("local") of their own: the instance and
+ * all the files the test created are gone after each test.
+ */
+public abstract class NativeXAFileSystemFixture {
+    static final String SEPARATOR = File.separator;
+    static final String CURRENT_WORKING_DIRECTORY = System.getProperty("user.dir") + SEPARATOR + "target" + SEPARATOR + "XADisk";
+    static final String TMP_DIRECTORY = CURRENT_WORKING_DIRECTORY + SEPARATOR + "tmp" + SEPARATOR;
+    static final String XA_DISK_SYSTEM_DIRECTORY = CURRENT_WORKING_DIRECTORY + SEPARATOR + "xa";
+
+    @Before
+    public void setupTest() {
+        new File(TMP_DIRECTORY).mkdirs();
+    }
+
+    @After
+    public void shutdownXaDisk() throws IOException {
+        final XAFileSystem localXaFileSystem = XAFileSystemProxy.getNativeXAFileSystemReference("local");
+        if (localXaFileSystem != null) {
+            try {
+                localXaFileSystem.shutdown();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        // Delete test files/directories
+        FileIOUtility.deleteDirectoryRecursively(Paths.get(CURRENT_WORKING_DIRECTORY));
+    }
+
+    static StandaloneFileSystemConfiguration newConfiguration() {
+        return new StandaloneFileSystemConfiguration(XA_DISK_SYSTEM_DIRECTORY, "local");
+    }
+
+    /**
+     * Boots the instance and waits for the bootup (including the recovery) to complete.
+     */
+    static XAFileSystem boot(StandaloneFileSystemConfiguration configuration) throws InterruptedException {
+        XAFileSystem xafs = XAFileSystemProxy.bootNativeXAFileSystem(configuration);
+        xafs.waitForBootup(-1);
+        return xafs;
+    }
+
+    static class TestXid implements Xid {
+
+        private final byte globalTransactionId[];
+
+        TestXid(int id) {
+            this.globalTransactionId = new byte[]{(byte) id};
+        }
+
+        public int getFormatId() {
+            return 1;
+        }
+
+        public byte[] getGlobalTransactionId() {
+            return globalTransactionId;
+        }
+
+        public byte[] getBranchQualifier() {
+            return new byte[]{1};
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package org.xadisk.tests.correctness;
+
+import org.junit.Test;
+import org.xadisk.bridge.proxies.impl.RemoteXAFileSystem;
+import org.xadisk.bridge.proxies.interfaces.Session;
+import org.xadisk.bridge.proxies.interfaces.XAFileInputStream;
+import org.xadisk.bridge.proxies.interfaces.XAFileOutputStream;
+import org.xadisk.bridge.proxies.interfaces.XAFileSystem;
+import org.xadisk.bridge.proxies.interfaces.XAFileSystemProxy;
+import org.xadisk.bridge.proxies.interfaces.XASession;
+import org.xadisk.filesystem.exceptions.*;
+import org.xadisk.filesystem.standalone.StandaloneFileSystemConfiguration;
+
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Invocations by clients over the remote references to an XADisk instance (booted with remote invocations
+ * enabled, on a port of its own for each test).
+ */
+public class RemoteInvocationTest extends NativeXAFileSystemFixture {
+
+    private static StandaloneFileSystemConfiguration newRemoteConfiguration(int serverPort) {
+        StandaloneFileSystemConfiguration configuration = newConfiguration();
+        configuration.setEnableRemoteInvocations(true);
+        configuration.setServerAddress("localhost");
+        configuration.setServerPort(serverPort);
+        return configuration;
+    }
+
+    /**
+     * Sessions, streams, their return values and the exceptions they throw all make it across the remote
+     * invocations of a client.
+     */
+    @Test
+    public void remote_session_reads_writes_and_reports_errors() throws Exception {
+        boot(newRemoteConfiguration(9996));
+        XAFileSystem remoteXafs = XAFileSystemProxy.getRemoteXAFileSystemReference("localhost", 9996);
+        try {
+            File directory = new File(TMP_DIRECTORY, "remote");
+            File file = new File(directory, "file.txt");
+            Session session = remoteXafs.createSessionForLocalTransaction();
+            session.createFile(directory, true);
+            session.createFile(file, false);
+            XAFileOutputStream xaos = session.createXAFileOutputStream(file, false);
+            xaos.write("hello remote".getBytes("UTF-8"));
+            xaos.close();
+            assertThat(session.fileExists(file), is(true));
+            assertThat(Arrays.asList(session.listFiles(directory)), is(Arrays.asList("file.txt")));
+            assertThat(session.getFileLength(file), is(12L));
+
+            XAFileInputStream xais = session.createXAFileInputStream(file);
+            byte buffer[] = new byte[64];
+            int read = xais.read(buffer);
+            assertThat(new String(buffer, 0, read, "UTF-8"), is("hello remote"));
+            assertThat(xais.read(buffer), is(-1));
+            xais.close();
+            try {
+                session.createXAFileInputStream(new File(directory, "missing.txt"));
+                throw new AssertionError("The file was expected to be reported as missing.");
+            } catch (FileNotExistsException fnee) {
+                //expected.
+            }
+            session.commit();
+            assertThat(new String(Files.readAllBytes(file.toPath()), "UTF-8"), is("hello remote"));
+        } finally {
+            remoteXafs.shutdown();
+        }
+    }
+
+    /**
+     * With reading ahead enabled, a remote input stream serves reads, skips and positioning from the contents
+     * read ahead, stays coherent with the stream at the server, and discards those contents (resuming at the
+     * same position) once the session modifies a file.
+     */
+    @Test
+    public void remote_input_stream_reads_ahead() throws Exception {
+        boot(newRemoteConfiguration(9995));
+        RemoteXAFileSystem remoteXafs = (RemoteXAFileSystem) XAFileSystemProxy.getRemoteXAFileSystemReference("localhost", 9995);
+        remoteXafs.setStreamReadAheadSize(16384);
+        try {
+            File file = new File(TMP_DIRECTORY, "readAhead.dat");
+            byte contents[] = new byte[50000];
+            for (int i = 0; i < contents.length; i++) {
+                contents[i] = (byte) (i * 31);
+            }
+            Files.write(file.toPath(), contents);
+
+            Session session = remoteXafs.createSessionForLocalTransaction();
+            XAFileInputStream xais = session.createXAFileInputStream(file);
+            assertThat(xais.read(), is(contents[0] & 0xFF));
+            assertThat(xais.available() > 0, is(true));
+            byte buffer[] = new byte[100];
+            assertThat(xais.read(buffer), is(100));
+            assertThat(Arrays.equals(buffer, Arrays.copyOfRange(contents, 1, 101)), is(true));
+            assertThat(xais.position(), is(101L));
+            assertThat(xais.skip(1000), is(1000L));
+            assertThat(xais.read(), is(contents[1101] & 0xFF));
+            xais.position(40000);
+            assertThat(xais.read(), is(contents[40000] & 0xFF));
+            xais.position(10);
+            assertThat(xais.read(), is(contents[10] & 0xFF));
+            assertThat(xais.position(), is(11L));
+
+            int position = 11;
+            int read;
+            while ((read = xais.read(buffer)) != -1) {
+                assertThat(Arrays.equals(Arrays.copyOf(buffer, read), Arrays.copyOfRange(contents, position, position + read)), is(true));
+                position += read;
+            }
+            assertThat(position, is(contents.length));
+            assertThat(xais.position(), is((long) contents.length));
+
+            xais.position(100);
+            assertThat(xais.read(), is(contents[100] & 0xFF));
+            session.createFile(new File(TMP_DIRECTORY, "other.dat"), false);
+            session.truncateFile(new File(TMP_DIRECTORY, "other.dat"), 0);
+            assertThat(xais.position(), is(101L));
+            assertThat(xais.read(buffer), is(100));
+            assertThat(Arrays.equals(buffer, Arrays.copyOfRange(contents, 101, 201)), is(true));
+            xais.close();
+            session.rollback();
+        } finally {
+            remoteXafs.shutdown();
+        }
+    }
+
+    /**
+     * With writing behind enabled, a remote output stream buffers the writes and sends them later (before the
+     * next operation of the session), in order; a write failing after it was sent gets reported by the next
+     * operation on the stream.
+     */
+    @Test
+    public void remote_output_stream_writes_behind() throws Exception {
+        boot(newRemoteConfiguration(9994));
+        RemoteXAFileSystem remoteXafs = (RemoteXAFileSystem) XAFileSystemProxy.getRemoteXAFileSystemReference("localhost", 9994);
+        remoteXafs.setStreamWriteBehindSize(4096);
+        try {
+            File file = new File(TMP_DIRECTORY, "writeBehind.dat");
+            byte contents[] = new byte[50000];
+            for (int i = 0; i < contents.length; i++) {
+                contents[i] = (byte) (i * 31);
+            }
+            Session session = remoteXafs.createSessionForLocalTransaction();
+            session.createFile(file, false);
+            XAFileOutputStream xaos = session.createXAFileOutputStream(file, false);
+            int written = 0;
+            while (written < 1000) {
+                xaos.write(contents[written++]);
+            }
+            while (written < 30000) {
+                xaos.write(contents, written, 100);
+                written += 100;
+            }
+            xaos.write(Arrays.copyOfRange(contents, written, 40000));
+            written = 40000;
+            xaos.flush();
+            assertThat(session.getFileLength(file), is(40000L));
+            xaos.write(contents, written, contents.length - written);
+            xaos.close();
+            session.commit();
+            assertThat(Arrays.equals(Files.readAllBytes(file.toPath()), contents), is(true));
+
+            session = remoteXafs.createSessionForLocalTransaction();
+            session.setTransactionTimeout(1);
+            xaos = session.createXAFileOutputStream(file, false);
+            xaos.write(contents, 0, 100);
+            Thread.sleep(1500);
+            xaos.write(contents, 0, 5000);
+            try {
+                xaos.flush();
+                throw new AssertionError("The write after the transaction timed out was expected to fail.");
+            } catch (NoTransactionAssociatedException ntae) {
+                //expected.
+            }
+        } finally {
+            remoteXafs.shutdown();
+        }
+    }
+
+    /**
+     * In an XA transaction, the transaction manager prepares the transaction through a session proxy other
+     * than the one the application wrote through; a write-behind failing must still fail the prepare, and
+     * roll the transaction back.
+     */
+    @Test
+    public void remote_xa_prepare_fails_on_failed_write_behind() throws Exception {
+        boot(newRemoteConfiguration(9992));
+        RemoteXAFileSystem remoteXafs = (RemoteXAFileSystem) XAFileSystemProxy.getRemoteXAFileSystemReference("localhost", 9992);
+        remoteXafs.setStreamWriteBehindSize(4096);
+        try {
+            File file = new File(TMP_DIRECTORY, "xaWriteBehind.dat");
+            Files.write(file.toPath(), "before".getBytes("UTF-8"));
+            XASession xaSession = remoteXafs.createSessionForXATransaction();
+            XAResource xar = xaSession.getXAResource();
+            TestXid xid = new TestXid(9);
+            xar.start(xid, XAResource.TMNOFLAGS);
+            XAFileOutputStream xaos = xaSession.createXAFileOutputStream(file, false);
+            //another stream over the same file, which closes the stream at the server.
+            xaSession.createXAFileOutputStream(file, false).close();
+            xaos.write("lost".getBytes("UTF-8"));
+            xar.end(xid, XAResource.TMSUCCESS);
+            try {
+                xar.prepare(xid);
+                throw new AssertionError("The prepare was expected to fail, as the write behind it failed.");
+            } catch (XAException xae) {
+                assertThat(xae.getCause() instanceof TransactionRolledbackException, is(true));
+                assertThat(xae.getCause().getCause() instanceof ClosedStreamException, is(true));
+            }
+            assertThat(new String(Files.readAllBytes(file.toPath()), "UTF-8"), is("before"));
+
+            xid = new TestXid(10);
+            xar.start(xid, XAResource.TMNOFLAGS);
+            xaos = xaSession.createXAFileOutputStream(file, false);
+            xaos.write("after".getBytes("UTF-8"));
+            xar.end(xid, XAResource.TMSUCCESS);
+            xar.commit(xid, true);
+            assertThat(new String(Files.readAllBytes(file.toPath()), "UTF-8"), is("beforeafter"));
+        } finally {
+            remoteXafs.shutdown();
+        }
+    }
+
+    /**
+     * The remote references to a server share a few connections; a call waiting long at the server (here,
+     * for a lock) must not hold up the calls of the other references over the same connection, and the
+     * end of one reference's conversation must not disturb the others.
+     */
+    @Test
+    public void remote_references_share_connections() throws Exception {
+        StandaloneFileSystemConfiguration configuration = newRemoteConfiguration(9993);
+        configuration.setLockTimeOut(5000);
+        boot(configuration);
+        //more references than the connections kept per server, so that each connection gets shared.
+        final XAFileSystem remoteXafs[] = new XAFileSystem[9];
+        for (int i = 0; i < remoteXafs.length; i++) {
+            remoteXafs[i] = XAFileSystemProxy.getRemoteXAFileSystemReference("localhost", 9993);
+        }
+        try {
+            File lockedDirectory = new File(TMP_DIRECTORY, "locked");
+            File freeDirectory = new File(TMP_DIRECTORY, "free");
+            Session setup = remoteXafs[0].createSessionForLocalTransaction();
+            setup.createFile(lockedDirectory, true);
+            setup.createFile(freeDirectory, true);
+            setup.commit();
+            final File lockedFile = new File(lockedDirectory, "locked.txt");
+            Session lockHolder = remoteXafs[0].createSessionForLocalTransaction();
+            lockHolder.createFile(lockedFile, false);
+            final CountDownLatch waiterDone = new CountDownLatch(1);
+            final AtomicInteger failures = new AtomicInteger(0);
+            Thread waiter = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        Session session = remoteXafs[1].createSessionForLocalTransaction();
+                        XAFileInputStream xais = session.createXAFileInputStream(lockedFile);
+                        xais.close();
+                        session.commit();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        failures.incrementAndGet();
+                    } finally {
+                        waiterDone.countDown();
+                    }
+                }
+            });
+            waiter.start();
+            Thread.sleep(200);
+            for (int i = 2; i < remoteXafs.length; i++) {
+                Session session = remoteXafs[i].createSessionForLocalTransaction();
+                session.createFile(new File(freeDirectory, "free_" + i + ".txt"), false);
+                assertThat(session.fileExists(new File(freeDirectory, "free_" + i + ".txt")), is(true));
+                session.commit();
+            }
+            assertThat(waiterDone.getCount(), is(1L));
+            lockHolder.commit();
+            waiter.join();
+            assertThat(failures.get(), is(0));
+
+            for (int i = 1; i < remoteXafs.length; i++) {
+                remoteXafs[i].shutdown();
+            }
+            Session session = remoteXafs[0].createSessionForLocalTransaction();
+            assertThat(session.fileExists(lockedFile), is(true));
+            session.commit();
+        } finally {
+            remoteXafs[0].shutdown();
+        }
+    }
+}
@@ -0,0 +1,377 @@
+package org.xadisk.tests.correctness;
+
+import org.junit.Test;
+import org.xadisk.bridge.proxies.interfaces.Session;
+import org.xadisk.bridge.proxies.interfaces.XAFileOutputStream;
+import org.xadisk.bridge.proxies.interfaces.XAFileSystem;
+import org.xadisk.bridge.proxies.interfaces.XAFileSystemProxy;
+import org.xadisk.bridge.proxies.interfaces.XASession;
+import org.xadisk.filesystem.NativeXAFileSystem;
+import org.xadisk.filesystem.TransactionInformation;
+import org.xadisk.filesystem.TransactionLogEntry;
+import org.xadisk.filesystem.standalone.StandaloneFileSystemConfiguration;
+
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Writing of the transaction logs, and the recovery from them at bootup.
+ */
+public class TransactionLogRecoveryTest extends NativeXAFileSystemFixture {
+
+    /**
+     * A prepared transaction which appended many contiguous chunks to a file is committed after a reboot
+     * purely from the transaction logs, where those chunks are stored as coalesced append entries (only
+     * the chunks made on-disk, as all are here, get coalesced).
+     */
+    @Test
+    public void appendFile_many_chunks_prepare_reboot_then_commit() throws Exception {
+        StandaloneFileSystemConfiguration configuration = newConfiguration();
+        configuration.setDirectBufferPoolSize(0);
+        configuration.setNonDirectBufferPoolSize(0);
+        configuration.setMaxNonPooledBufferSize(0L);
+        XAFileSystem xafs = boot(configuration);
+
+        final File file = new File(TMP_DIRECTORY, "manyAppendsRecovered.txt");
+        XASession xaSession = xafs.createSessionForXATransaction();
+        XAResource xar = xaSession.getXAResource();
+        Xid xid = new TestXid(1);
+        xar.start(xid, XAResource.TMNOFLAGS);
+        xaSession.createFile(file, false);
+        XAFileOutputStream xafos = xaSession.createXAFileOutputStream(file, false);
+        final int numChunks = 500;
+        byte chunk[] = new byte[999];
+        for (int i = 0; i < numChunks; i++) {
+            Arrays.fill(chunk, (byte) i);
+            xafos.write(chunk);
+        }
+        xafos.close();
+        xar.end(xid, XAResource.TMSUCCESS);
+        xar.prepare(xid);
+        xafs.shutdown();
+
+        xafs = XAFileSystemProxy.bootNativeXAFileSystem(configuration);
+        xar = xafs.getXAResourceForRecovery();
+        Xid preparedXids[] = xar.recover(XAResource.TMSTARTRSCAN | XAResource.TMENDRSCAN);
+        assertThat(preparedXids.length, is(1));
+        xar.commit(preparedXids[0], false);
+        xafs.waitForBootup(-1);
+
+        assertThat(file.length(), is((long) numChunks * chunk.length));
+        byte content[] = Files.readAllBytes(file.toPath());
+        for (int i = 0; i < numChunks; i++) {
+            assertThat(content[i * chunk.length], is((byte) i));
+            assertThat(content[(i + 1) * chunk.length - 1], is((byte) i));
+        }
+    }
+
+    /**
+     * A transaction which appended many contiguous chunks (kept in memory) to a file, then moved a directory
+     * and then created another file, crashes right after the check-point declared for the directory move
+     * during its commit. The recovery must resume from that check-point, and still create the other file.
+     */
+    @Test
+    public void appendFile_many_chunks_crash_after_checkpoint_then_recover() throws Exception {
+        StandaloneFileSystemConfiguration configuration = newConfiguration();
+        XAFileSystem xafs = boot(configuration);
+
+        File appendedFile = new File(TMP_DIRECTORY, "appendedBeforeCheckPoint.txt");
+        File movedDirectory = new File(TMP_DIRECTORY, "movedDirectory");
+        File destDirectory = new File(TMP_DIRECTORY, "destDirectory");
+        File createdFile = new File(TMP_DIRECTORY, "createdAfterCheckPoint.txt");
+        assertThat(new File(movedDirectory, "child.txt").getParentFile().mkdirs(), is(true));
+        assertThat(new File(movedDirectory, "child.txt").createNewFile(), is(true));
+        Session session = xafs.createSessionForLocalTransaction();
+        session.createFile(appendedFile, false);
+        XAFileOutputStream xafos = session.createXAFileOutputStream(appendedFile, false);
+        final int numChunks = 500;
+        byte chunk[] = new byte[999];
+        for (int i = 0; i < numChunks; i++) {
+            Arrays.fill(chunk, (byte) i);
+            xafos.write(chunk);
+        }
+        xafos.close();
+        session.moveFile(movedDirectory, destDirectory);
+        session.createFile(createdFile, false);
+        xafos = session.createXAFileOutputStream(createdFile, false);
+        xafos.write("created".getBytes("UTF-8"));
+        xafos.close();
+        session.commit();
+        xafs.shutdown();
+
+        //unseal the log, drop its entries after the last check-point and undo the changes made after
+        //that check-point, as if the system had crashed right after declaring it.
+        File log = new File(XA_DISK_SYSTEM_DIRECTORY + SEPARATOR + "txnlogs" + SEPARATOR + "xadisk.log_0");
+        FileChannel logChannel = new RandomAccessFile(log, "rw").getChannel();
+        try {
+            logChannel.write(ByteBuffer.allocate(8), 12);
+            ByteBuffer entryLengths = ByteBuffer.allocate(9);
+            long position = 20;
+            long endOfLastCheckPoint = -1;
+            while (position < logChannel.size()) {
+                entryLengths.clear();
+                logChannel.read(entryLengths, position);
+                position += entryLengths.getInt(0) + entryLengths.getInt(4);
+                if (entryLengths.get(8) == TransactionLogEntry.CHECKPOINT_AVOIDING_COPY_OR_MOVE_REDO) {
+                    endOfLastCheckPoint = position;
+                }
+            }
+            assertThat(endOfLastCheckPoint > 0, is(true));
+            logChannel.truncate(endOfLastCheckPoint);
+        } finally {
+            logChannel.close();
+        }
+        assertThat(createdFile.delete(), is(true));
+
+        boot(configuration);
+
+        assertThat(new File(destDirectory, "child.txt").exists(), is(true));
+        assertThat(movedDirectory.exists(), is(false));
+        assertThat(new String(Files.readAllBytes(createdFile.toPath()), "UTF-8"), is("created"));
+        byte content[] = Files.readAllBytes(appendedFile.toPath());
+        assertThat(content.length, is(numChunks * chunk.length));
+        for (int i = 0; i < numChunks; i++) {
+            assertThat(content[i * chunk.length], is((byte) i));
+            assertThat(content[(i + 1) * chunk.length - 1], is((byte) i));
+        }
+    }
+
+    /**
+     * With small, preallocated and recycled transaction logs, a prepared transaction written over
+     * several (partly reused) logs is recovered after a reboot, ignoring the older entries left in
+     * the reused logs.
+     */
+    @Test
+    public void preallocated_recycled_logs_prepare_reboot_then_commit() throws Exception {
+        StandaloneFileSystemConfiguration configuration = newConfiguration();
+        configuration.setTransactionLogFileMaxSize(65536L);
+        configuration.setCumulativeBufferSizeForDiskWrite(8192);
+        configuration.setPreallocateTransactionLogs(true);
+        XAFileSystem xafs = boot(configuration);
+
+        byte chunk[] = new byte[999];
+        for (int t = 0; t < 20; t++) {
+            File file = new File(TMP_DIRECTORY, "committed" + t + ".txt");
+            Session session = xafs.createSessionForLocalTransaction();
+            session.createFile(file, false);
+            XAFileOutputStream xafos = session.createXAFileOutputStream(file, false);
+            for (int i = 0; i < 30; i++) {
+                Arrays.fill(chunk, (byte) t);
+                xafos.write(chunk);
+            }
+            xafos.close();
+            session.commit();
+            assertThat(file.length(), is(30L * chunk.length));
+        }
+
+        final File file = new File(TMP_DIRECTORY, "recoveredFromRecycledLogs.txt");
+        XASession xaSession = xafs.createSessionForXATransaction();
+        XAResource xar = xaSession.getXAResource();
+        Xid xid = new TestXid(2);
+        xar.start(xid, XAResource.TMNOFLAGS);
+        xaSession.createFile(file, false);
+        XAFileOutputStream xafos = xaSession.createXAFileOutputStream(file, false);
+        final int numChunks = 300;
+        for (int i = 0; i < numChunks; i++) {
+            Arrays.fill(chunk, (byte) i);
+            xafos.write(chunk);
+        }
+        xafos.close();
+        xar.end(xid, XAResource.TMSUCCESS);
+        xar.prepare(xid);
+        xafs.shutdown();
+
+        xafs = XAFileSystemProxy.bootNativeXAFileSystem(configuration);
+        xar = xafs.getXAResourceForRecovery();
+        Xid preparedXids[] = xar.recover(XAResource.TMSTARTRSCAN | XAResource.TMENDRSCAN);
+        assertThat(preparedXids.length, is(1));
+        xar.commit(preparedXids[0], false);
+        xafs.waitForBootup(-1);
+
+        assertThat(file.length(), is((long) numChunks * chunk.length));
+        byte content[] = Files.readAllBytes(file.toPath());
+        for (int i = 0; i < numChunks; i++) {
+            assertThat(content[i * chunk.length], is((byte) i));
+            assertThat(content[(i + 1) * chunk.length - 1], is((byte) i));
+        }
+    }
+
+    /**
+     * A torn entry at the end of an unsealed transaction log (here, a copy of an append entry of the
+     * prepared transaction with a corrupted content byte) must be detected by its checksum and ignored
+     * by the recovery.
+     */
+    @Test
+    public void torn_log_entry_ignored_during_recovery() throws Exception {
+        StandaloneFileSystemConfiguration configuration = newConfiguration();
+        XAFileSystem xafs = boot(configuration);
+
+        final File file = new File(TMP_DIRECTORY, "tornLogEntry.txt");
+        XASession xaSession = xafs.createSessionForXATransaction();
+        XAResource xar = xaSession.getXAResource();
+        Xid xid = new TestXid(3);
+        xar.start(xid, XAResource.TMNOFLAGS);
+        xaSession.createFile(file, false);
+        XAFileOutputStream xafos = xaSession.createXAFileOutputStream(file, false);
+        byte chunk[] = new byte[999];
+        for (int i = 0; i < 50; i++) {
+            Arrays.fill(chunk, (byte) i);
+            xafos.write(chunk);
+        }
+        xafos.close();
+        xar.end(xid, XAResource.TMSUCCESS);
+        xar.prepare(xid);
+        xafs.shutdown();
+
+        //unseal the log (as if the system had crashed) and append the torn entry to it.
+        File log = new File(XA_DISK_SYSTEM_DIRECTORY + SEPARATOR + "txnlogs" + SEPARATOR + "xadisk.log_0");
+        FileChannel logChannel = new RandomAccessFile(log, "rw").getChannel();
+        try {
+            logChannel.write(ByteBuffer.allocate(8), 12);
+            ByteBuffer entryLengths = ByteBuffer.allocate(9);
+            long position = 20;
+            while (true) {
+                entryLengths.clear();
+                logChannel.read(entryLengths, position);
+                if (entryLengths.get(8) == 2 && entryLengths.getInt(4) > 0) {
+                    break;
+                }
+                position += entryLengths.getInt(0) + entryLengths.getInt(4);
+            }
+            ByteBuffer tornEntry = ByteBuffer.allocate(entryLengths.getInt(0) + entryLengths.getInt(4));
+            logChannel.read(tornEntry, position);
+            tornEntry.put(tornEntry.limit() - 1, (byte) 111);
+            tornEntry.flip();
+            logChannel.write(tornEntry, logChannel.size());
+        } finally {
+            logChannel.close();
+        }
+
+        xafs = XAFileSystemProxy.bootNativeXAFileSystem(configuration);
+        xar = xafs.getXAResourceForRecovery();
+        Xid preparedXids[] = xar.recover(XAResource.TMSTARTRSCAN | XAResource.TMENDRSCAN);
+        assertThat(preparedXids.length, is(1));
+        xar.commit(preparedXids[0], false);
+        xafs.waitForBootup(-1);
+
+        byte content[] = Files.readAllBytes(file.toPath());
+        assertThat(content.length, is(50 * chunk.length));
+        for (int i = 0; i < content.length; i++) {
+            assertThat(content[i], is((byte) (i / chunk.length)));
+        }
+    }
+
+    /**
+     * Prepared transactions with entries interleaved across many transaction logs are all found by the
+     * (per-log, parallel) recovery scan and committed from the merged log positions.
+     */
+    @Test
+    public void many_logs_prepare_reboot_then_commit_all() throws Exception {
+        StandaloneFileSystemConfiguration configuration = newConfiguration();
+        configuration.setTransactionLogFileMaxSize(32768L);
+        configuration.setCumulativeBufferSizeForDiskWrite(4096);
+        XAFileSystem xafs = boot(configuration);
+
+        final int numTransactions = 4;
+        final int numChunks = 100;
+        byte chunk[] = new byte[999];
+        XAResource xars[] = new XAResource[numTransactions];
+        XAFileOutputStream xafoss[] = new XAFileOutputStream[numTransactions];
+        for (int t = 0; t < numTransactions; t++) {
+            XASession xaSession = xafs.createSessionForXATransaction();
+            xars[t] = xaSession.getXAResource();
+            xars[t].start(new TestXid(10 + t), XAResource.TMNOFLAGS);
+            File file = new File(TMP_DIRECTORY, "manyLogs" + t + ".txt");
+            xaSession.createFile(file, false);
+            xafoss[t] = xaSession.createXAFileOutputStream(file, false);
+        }
+        for (int i = 0; i < numChunks; i++) {
+            for (int t = 0; t < numTransactions; t++) {
+                Arrays.fill(chunk, (byte) (i + t));
+                xafoss[t].write(chunk);
+            }
+        }
+        for (int t = 0; t < numTransactions; t++) {
+            xafoss[t].close();
+            xars[t].end(new TestXid(10 + t), XAResource.TMSUCCESS);
+            xars[t].prepare(new TestXid(10 + t));
+        }
+        xafs.shutdown();
+
+        xafs = XAFileSystemProxy.bootNativeXAFileSystem(configuration);
+        assertThat(NativeXAFileSystem.getXAFileSystem("local").getRecoveryWorker().getNumLogsScanned() > 1, is(true));
+        XAResource xar = xafs.getXAResourceForRecovery();
+        Xid preparedXids[] = xar.recover(XAResource.TMSTARTRSCAN | XAResource.TMENDRSCAN);
+        assertThat(preparedXids.length, is(numTransactions));
+        for (Xid preparedXid : preparedXids) {
+            xar.commit(preparedXid, false);
+        }
+        xafs.waitForBootup(-1);
+
+        for (int t = 0; t < numTransactions; t++) {
+            byte content[] = Files.readAllBytes(new File(TMP_DIRECTORY, "manyLogs" + t + ".txt").toPath());
+            assertThat(content.length, is(numChunks * chunk.length));
+            for (int i = 0; i < numChunks; i++) {
+                assertThat(content[i * chunk.length], is((byte) (i + t)));
+                assertThat(content[(i + 1) * chunk.length - 1], is((byte) (i + t)));
+            }
+        }
+    }
+
+    /**
+     * A transaction log left by the previous release (without a segment header, and without the generation
+     * and the checksums in its entries) is recovered from after an upgrade: the transaction which had begun
+     * committing gets its changes applied, and the log is removed (not kept for reuse) afterwards.
+     */
+    @Test
+    public void legacy_log_with_committing_transaction_recovered() throws Exception {
+        File file = new File(TMP_DIRECTORY, "legacyLog.txt");
+        Files.write(file.toPath(), "committed".getBytes("UTF-8"));
+        byte appended[] = " and recovered".getBytes("UTF-8");
+        TransactionInformation xid = TransactionInformation.getXidInstanceForLocalTransaction(1);
+        File legacyLog = new File(XA_DISK_SYSTEM_DIRECTORY + SEPARATOR + "txnlogs" + SEPARATOR + "xadisk.log_0");
+        assertThat(legacyLog.getParentFile().mkdirs(), is(true));
+        FileOutputStream legacyLogStream = new FileOutputStream(legacyLog);
+        try {
+            legacyLogStream.write(toLegacyFormat(TransactionLogEntry.getLogEntry(xid, file.getAbsolutePath(),
+                    9, appended.length, TransactionLogEntry.FILE_APPEND)));
+            legacyLogStream.write(appended);
+            legacyLogStream.write(toLegacyFormat(TransactionLogEntry.getLogEntry(xid, new HashSet<File>())));
+            legacyLogStream.write(toLegacyFormat(TransactionLogEntry.getLogEntry(xid, TransactionLogEntry.COMMIT_BEGINS)));
+        } finally {
+            legacyLogStream.close();
+        }
+
+        boot(newConfiguration());
+        assertThat(NativeXAFileSystem.getXAFileSystem("local").getRecoveryWorker().getNumLogEntriesScanned(), is(3L));
+        assertThat(new String(Files.readAllBytes(file.toPath()), "UTF-8"), is("committed and recovered"));
+        //the logs are cleaned up right after the recovery completes.
+        for (int i = 0; i < 100 && legacyLog.exists(); i++) {
+            Thread.sleep(50);
+        }
+        assertThat(legacyLog.exists(), is(false));
+        assertThat(legacyLog.getParentFile().list().length, is(1));
+    }
+
+    /*
+     * Drops the generation and the checksums, which follow the operation-type, from the entry's header.
+     */
+    private static byte[] toLegacyFormat(byte entryHeader[]) {
+        ByteBuffer legacyEntryHeader = ByteBuffer.allocate(entryHeader.length - 12);
+        legacyEntryHeader.put(entryHeader, 0, 9);
+        legacyEntryHeader.put(entryHeader, 21, entryHeader.length - 21);
+        legacyEntryHeader.putInt(0, legacyEntryHeader.capacity());
+        return legacyEntryHeader.array();
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ Copyright © 2010-2014, Nitin Verma (project owner for XADisk https://xadisk.dev.java.net/). All rights reserved.
+
+ This source code is being made available to the public under the terms specified in the license
+ "Eclipse Public License 1.0" located at http://www.opensource.org/licenses/eclipse-1.0.php.
+ */
+package org.xadisk.tests.performance;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import org.xadisk.bridge.proxies.interfaces.XAFileSystemProxy;
+import org.xadisk.filesystem.ConcurrencyControl;
+import org.xadisk.filesystem.Lock;
+import org.xadisk.filesystem.NativeXAFileSystem;
+import org.xadisk.filesystem.TransactionInformation;
+import org.xadisk.filesystem.standalone.StandaloneFileSystemConfiguration;
+import org.xadisk.tests.correctness.TestUtility;
+
+/**
+ * Measures the throughput of lock acquire/release pairs on the concurrency control, with
+ * a varying number of threads, for shared locks on a few "hot" files and for exclusive
+ * locks on a file per thread (both being uncontended cases).
+ *
+ * Note that these performance tests are "under construction". Your suggestions about
+ * writing these tests, setting up the system and taking measurements are always welcome.
+ * Thanks.
+ */
+public class LockThroughputAppraiser {
+    private static final String SEPARATOR = File.separator;
+    private static final String CURRENT_WORKING_DIRECTORY = System.getProperty("user.dir") + SEPARATOR + "target" + SEPARATOR + "XADisk";
+    private static final String TMP_DIRECTORY = CURRENT_WORKING_DIRECTORY + SEPARATOR + "tmp" + SEPARATOR;
+    private static final String XA_DISK_SYSTEM_DIRECTORY = CURRENT_WORKING_DIRECTORY + SEPARATOR + "xadiskPerformance";
+
+    private static final int THREAD_COUNTS[] = {1, 2, 4, 8, 16};
+    private static final int HOT_FILES = 4;
+    private static final int WARMUP_ITERATIONS = 200000;
+    private static final int MEASURED_ITERATIONS = 1000000;
+
+    public static void main(String args[]) {
+        try {
+            TestUtility.cleanupDirectory(new File(XA_DISK_SYSTEM_DIRECTORY));
+            StandaloneFileSystemConfiguration configuration =
+                    new StandaloneFileSystemConfiguration(XA_DISK_SYSTEM_DIRECTORY, "lockThroughput");
+            configuration.setTransactionTimeout(Integer.MAX_VALUE);
+            XAFileSystemProxy.bootNativeXAFileSystem(configuration).waitForBootup(-1);
+            NativeXAFileSystem xafs = NativeXAFileSystem.getXAFileSystem("lockThroughput");
+            ConcurrencyControl concurrencyControl = xafs.getConcurrencyControl();
+
+            File hotFiles[] = new File[HOT_FILES];
+            for (int i = 0; i < HOT_FILES; i++) {
+                hotFiles[i] = new File(TMP_DIRECTORY + "hot" + SEPARATOR + "index" + i);
+            }
+            for (int threads : THREAD_COUNTS) {
+                long sharedOps = measure(concurrencyControl, threads, hotFiles, false);
+                File ownFiles[] = new File[threads];
+                for (int i = 0; i < threads; i++) {
+                    ownFiles[i] = new File(TMP_DIRECTORY + "own" + SEPARATOR + "file" + i);
+                }
+                long exclusiveOps = measure(concurrencyControl, threads, ownFiles, true);
+                System.out.println("Threads: " + threads + ", shared acquire/release per second: " + sharedOps
+                        + ", exclusive acquire/release per second: " + exclusiveOps);
+            }
+
+            xafs.shutdown();
+        } catch (Throwable t) {
+            t.printStackTrace();
+        }
+    }
+
+    private static long measure(final ConcurrencyControl concurrencyControl, int threads, final File files[],
+            final boolean exclusive) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicLong failures = new AtomicLong(0);
+        for (int i = 0; i < threads; i++) {
+            final int threadIndex = i;
+            new Thread(new Runnable() {
+
+                public void run() {
+                    TransactionInformation xid = TransactionInformation.getXidInstanceForLocalTransaction(
+                            System.nanoTime() + threadIndex);
+                    try {
+                        lockUnlock(concurrencyControl, xid, files, threadIndex, exclusive, WARMUP_ITERATIONS);
+                        start.await();
+                        lockUnlock(concurrencyControl, xid, files, threadIndex, exclusive, MEASURED_ITERATIONS);
+                    } catch (Throwable t) {
+                        failures.incrementAndGet();
+                        t.printStackTrace();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        long startTime = System.nanoTime();
+        start.countDown();
+        done.await();
+        long timeTaken = System.nanoTime() - startTime;
+        if (failures.get() > 0) {
+            return -1;
+        }
+        return (long) threads * MEASURED_ITERATIONS * 1000000000L / timeTaken;
+    }
+
+    private static void lockUnlock(ConcurrencyControl concurrencyControl, TransactionInformation xid, File files[],
+            int threadIndex, boolean exclusive, int iterations) throws Exception {
+        for (int i = 0; i < iterations; i++) {
+            File file = exclusive ? files[threadIndex] : files[(threadIndex + i) % files.length];
+            Lock lock = concurrencyControl.acquireFileLock(xid, file, 0, exclusive);
+            concurrencyControl.releaseLock(xid, lock);
+        }
+    }
+}
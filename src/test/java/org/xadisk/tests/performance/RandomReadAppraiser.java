@@ -0,0 +1,93 @@
+/*
+ Copyright © 2010-2014, Nitin Verma (project owner for XADisk https://xadisk.dev.java.net/). All rights reserved.
+
+ This source code is being made available to the public under the terms specified in the license
+ "Eclipse Public License 1.0" located at http://www.opensource.org/licenses/eclipse-1.0.php.
+ */
+package org.xadisk.tests.performance;
+
+import java.io.File;
+import java.util.Random;
+import org.xadisk.bridge.proxies.interfaces.Session;
+import org.xadisk.bridge.proxies.interfaces.XAFileInputStream;
+import org.xadisk.bridge.proxies.interfaces.XAFileOutputStream;
+import org.xadisk.bridge.proxies.interfaces.XAFileSystem;
+import org.xadisk.bridge.proxies.interfaces.XAFileSystemProxy;
+import org.xadisk.filesystem.standalone.StandaloneFileSystemConfiguration;
+import org.xadisk.filesystem.utilities.FileIOUtility;
+import org.xadisk.tests.correctness.TestUtility;
+
+/**
+ * Measures the latency of random reads, inside a transaction, from a file whose (uncommitted)
+ * content is held in a varying number of content buffers of the transaction's view.
+ *
+ * Note that these performance tests are "under construction". Your suggestions about
+ * writing these tests, setting up the system and taking measurements are always welcome.
+ * Thanks.
+ */
+public class RandomReadAppraiser {
+    private static final String SEPARATOR = File.separator;
+    private static final String CURRENT_WORKING_DIRECTORY = System.getProperty("user.dir") + SEPARATOR + "target" + SEPARATOR + "XADisk";
+    private static final String TMP_DIRECTORY = CURRENT_WORKING_DIRECTORY + SEPARATOR + "tmp" + SEPARATOR;
+    private static final String XA_DISK_SYSTEM_DIRECTORY = CURRENT_WORKING_DIRECTORY + SEPARATOR + "xadiskPerformance";
+
+    private static final int CHUNK_SIZE = 100;
+    private static final int BUFFER_COUNTS[] = {10, 100, 1000, 10000, 50000};
+    private static final int WARMUP_READS = 20000;
+    private static final int MEASURED_READS = 100000;
+
+    public static void main(String args[]) {
+        try {
+            TestUtility.cleanupDirectory(new File(XA_DISK_SYSTEM_DIRECTORY));
+            StandaloneFileSystemConfiguration configuration =
+                    new StandaloneFileSystemConfiguration(XA_DISK_SYSTEM_DIRECTORY, "randomRead");
+            configuration.setTransactionTimeout(Integer.MAX_VALUE);
+            configuration.setBufferPoolRelieverInterval(Integer.MAX_VALUE);
+            configuration.setMaxNonPooledBufferSize(1024L * 1024 * 1024);
+            XAFileSystem xafs = XAFileSystemProxy.bootNativeXAFileSystem(configuration);
+            xafs.waitForBootup(-1);
+
+            File testDirectory = new File(TMP_DIRECTORY + "randomRead");
+            FileIOUtility.deleteDirectoryRecursively(testDirectory.toPath());
+            testDirectory.mkdirs();
+
+            for (int bufferCount : BUFFER_COUNTS) {
+                File file = new File(testDirectory, bufferCount + "");
+                Session session = xafs.createSessionForLocalTransaction();
+                session.createFile(file, false);
+                XAFileOutputStream xafos = session.createXAFileOutputStream(file, false);
+                byte chunk[] = new byte[CHUNK_SIZE];
+                for (int i = 0; i < bufferCount; i++) {
+                    xafos.write(chunk);
+                    xafos.flush();
+                }
+                xafos.close();
+
+                XAFileInputStream xafis = session.createXAFileInputStream(file);
+                Random random = new Random(bufferCount);
+                long fileLength = (long) bufferCount * CHUNK_SIZE;
+                randomReads(xafis, random, fileLength, WARMUP_READS);
+                long start = System.nanoTime();
+                randomReads(xafis, random, fileLength, MEASURED_READS);
+                long timeTaken = System.nanoTime() - start;
+                xafis.close();
+                session.rollback();
+
+                System.out.println("Content buffers: " + bufferCount + ", average random read latency (ns): "
+                        + (timeTaken / MEASURED_READS));
+            }
+
+            xafs.shutdown();
+        } catch (Throwable t) {
+            t.printStackTrace();
+        }
+    }
+
+    private static void randomReads(XAFileInputStream xafis, Random random, long fileLength, int numReads)
+            throws Exception {
+        for (int i = 0; i < numReads; i++) {
+            xafis.position((long) (random.nextDouble() * fileLength));
+            xafis.read();
+        }
+    }
+}
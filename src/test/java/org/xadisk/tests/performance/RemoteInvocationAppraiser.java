@@ -0,0 +1,214 @@
+/*
+ Copyright © 2010-2014, Nitin Verma (project owner for XADisk https://xadisk.dev.java.net/). All rights reserved.
+
+ This source code is being made available to the public under the terms specified in the license
+ "Eclipse Public License 1.0" located at http://www.opensource.org/licenses/eclipse-1.0.php.
+ */
+package org.xadisk.tests.performance;
+
+import java.io.File;
+import java.util.concurrent.CyclicBarrier;
+import org.xadisk.bridge.proxies.impl.RemoteXAFileSystem;
+import org.xadisk.bridge.proxies.interfaces.Session;
+import org.xadisk.bridge.proxies.interfaces.XAFileInputStream;
+import org.xadisk.bridge.proxies.interfaces.XAFileOutputStream;
+import org.xadisk.bridge.proxies.interfaces.XAFileSystem;
+import org.xadisk.bridge.proxies.interfaces.XAFileSystemProxy;
+import org.xadisk.filesystem.standalone.StandaloneFileSystemConfiguration;
+import org.xadisk.tests.correctness.TestUtility;
+
+/**
+ * Measures the rate of remote invocations a single client thread gets over the loopback
+ * interface, for small calls (fileExists) and for reads and writes of a few sizes through
+ * the remote streams; the reads are measured again with the streams reading ahead, and the
+ * writes with the streams writing behind. The small calls are measured again from many threads,
+ * each with a remote reference of its own (the references share a few connections).
+ *
+ * Note that these performance tests are "under construction". Your suggestions about
+ * writing these tests, setting up the system and taking measurements are always welcome.
+ * Thanks.
+ */
+public class RemoteInvocationAppraiser {
+    private static final String SEPARATOR = File.separator;
+    private static final String CURRENT_WORKING_DIRECTORY = System.getProperty("user.dir") + SEPARATOR + "target" + SEPARATOR + "XADisk";
+    private static final String TMP_DIRECTORY = CURRENT_WORKING_DIRECTORY + SEPARATOR + "tmp" + SEPARATOR;
+    private static final String XA_DISK_SYSTEM_DIRECTORY = CURRENT_WORKING_DIRECTORY + SEPARATOR + "xadiskPerformance";
+
+    private static final int SERVER_PORT = 9990;
+    private static final int IO_SIZES[] = {16, 1024, 16384};
+    private static final long FILE_SIZE = 4 * 1024 * 1024;
+    private static final int READ_AHEAD_SIZE = 65536;
+    private static final int WRITE_BEHIND_SIZE = 65536;
+    private static final int CONCURRENT_REFERENCES = 32;
+    private static final int WARMUP_ITERATIONS = 20000;
+    private static final int MEASURED_ITERATIONS = 50000;
+
+    public static void main(String args[]) {
+        try {
+            TestUtility.cleanupDirectory(new File(XA_DISK_SYSTEM_DIRECTORY));
+            TestUtility.cleanupDirectory(new File(TMP_DIRECTORY));
+            new File(TMP_DIRECTORY).mkdirs();
+            StandaloneFileSystemConfiguration configuration =
+                    new StandaloneFileSystemConfiguration(XA_DISK_SYSTEM_DIRECTORY, "remoteInvocation");
+            configuration.setTransactionTimeout(Integer.MAX_VALUE);
+            configuration.setEnableRemoteInvocations(true);
+            configuration.setServerAddress("localhost");
+            configuration.setServerPort(SERVER_PORT);
+            XAFileSystem nativeXafs = XAFileSystemProxy.bootNativeXAFileSystem(configuration);
+            nativeXafs.waitForBootup(-1);
+            XAFileSystem remoteXafs = XAFileSystemProxy.getRemoteXAFileSystemReference("localhost", SERVER_PORT);
+
+            File file = new File(TMP_DIRECTORY, "remoteInvocation.dat");
+            Session session = remoteXafs.createSessionForLocalTransaction();
+            session.setTransactionTimeout(Integer.MAX_VALUE);
+            session.createFile(file, false);
+            session.commit();
+
+            fileExists(remoteXafs, file, WARMUP_ITERATIONS);
+            long timeTaken = fileExists(remoteXafs, file, MEASURED_ITERATIONS);
+            System.out.println("fileExists calls per second: " + MEASURED_ITERATIONS * 1000000000L / timeTaken);
+            for (int ioSize : IO_SIZES) {
+                write(remoteXafs, file, ioSize, WARMUP_ITERATIONS);
+                timeTaken = write(remoteXafs, file, ioSize, MEASURED_ITERATIONS);
+                System.out.println("Writes of " + ioSize + " bytes per second: "
+                        + MEASURED_ITERATIONS * 1000000000L / timeTaken);
+                read(remoteXafs, file, ioSize, WARMUP_ITERATIONS);
+                timeTaken = read(remoteXafs, file, ioSize, MEASURED_ITERATIONS);
+                System.out.println("Reads of " + ioSize + " bytes per second: "
+                        + MEASURED_ITERATIONS * 1000000000L / timeTaken);
+            }
+
+            readSingleBytes(remoteXafs, file, WARMUP_ITERATIONS);
+            timeTaken = readSingleBytes(remoteXafs, file, MEASURED_ITERATIONS);
+            System.out.println("Single byte reads per second: " + MEASURED_ITERATIONS * 1000000000L / timeTaken);
+
+            ((RemoteXAFileSystem) remoteXafs).setStreamReadAheadSize(READ_AHEAD_SIZE);
+            for (int ioSize : IO_SIZES) {
+                read(remoteXafs, file, ioSize, WARMUP_ITERATIONS);
+                timeTaken = read(remoteXafs, file, ioSize, MEASURED_ITERATIONS);
+                System.out.println("Reads of " + ioSize + " bytes per second, reading ahead: "
+                        + MEASURED_ITERATIONS * 1000000000L / timeTaken);
+            }
+            readSingleBytes(remoteXafs, file, WARMUP_ITERATIONS);
+            timeTaken = readSingleBytes(remoteXafs, file, MEASURED_ITERATIONS);
+            System.out.println("Single byte reads per second, reading ahead: "
+                    + MEASURED_ITERATIONS * 1000000000L / timeTaken);
+
+            ((RemoteXAFileSystem) remoteXafs).setStreamWriteBehindSize(WRITE_BEHIND_SIZE);
+            for (int ioSize : IO_SIZES) {
+                write(remoteXafs, file, ioSize, WARMUP_ITERATIONS);
+                timeTaken = write(remoteXafs, file, ioSize, MEASURED_ITERATIONS);
+                System.out.println("Writes of " + ioSize + " bytes per second, writing behind: "
+                        + MEASURED_ITERATIONS * 1000000000L / timeTaken);
+            }
+
+            timeTaken = fileExistsConcurrently(file, MEASURED_ITERATIONS / CONCURRENT_REFERENCES);
+            System.out.println("fileExists calls per second, from " + CONCURRENT_REFERENCES + " references: "
+                    + MEASURED_ITERATIONS / CONCURRENT_REFERENCES * CONCURRENT_REFERENCES * 1000000000L / timeTaken);
+
+            remoteXafs.shutdown();
+            nativeXafs.shutdown();
+        } catch (Throwable t) {
+            t.printStackTrace();
+        }
+    }
+
+    private static long fileExists(XAFileSystem xafs, File file, int iterations) throws Exception {
+        Session session = xafs.createSessionForLocalTransaction();
+        session.setTransactionTimeout(Integer.MAX_VALUE);
+        long startTime = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            session.fileExists(file);
+        }
+        long timeTaken = System.nanoTime() - startTime;
+        session.commit();
+        return timeTaken;
+    }
+
+    private static long fileExistsConcurrently(final File file, final int iterationsPerReference) throws Exception {
+        final CyclicBarrier barrier = new CyclicBarrier(CONCURRENT_REFERENCES + 1);
+        Thread threads[] = new Thread[CONCURRENT_REFERENCES];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        XAFileSystem remoteXafs = XAFileSystemProxy.getRemoteXAFileSystemReference("localhost", SERVER_PORT);
+                        fileExists(remoteXafs, file, WARMUP_ITERATIONS / CONCURRENT_REFERENCES);
+                        barrier.await();
+                        fileExists(remoteXafs, file, iterationsPerReference);
+                        barrier.await();
+                        remoteXafs.shutdown();
+                    } catch (Throwable t) {
+                        t.printStackTrace();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        barrier.await();
+        long startTime = System.nanoTime();
+        barrier.await();
+        long timeTaken = System.nanoTime() - startTime;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return timeTaken;
+    }
+
+    private static long write(XAFileSystem xafs, File file, int ioSize, int iterations) throws Exception {
+        byte buffer[] = new byte[ioSize];
+        Session session = xafs.createSessionForLocalTransaction();
+        session.setTransactionTimeout(Integer.MAX_VALUE);
+        session.truncateFile(file, 0);
+        XAFileOutputStream xaos = session.createXAFileOutputStream(file, true);
+        long written = 0;
+        long startTime = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            if (written + ioSize > FILE_SIZE) {
+                xaos.close();
+                session.truncateFile(file, 0);
+                xaos = session.createXAFileOutputStream(file, true);
+                written = 0;
+            }
+            xaos.write(buffer);
+            written += ioSize;
+        }
+        xaos.close();
+        long timeTaken = System.nanoTime() - startTime;
+        session.commit();
+        return timeTaken;
+    }
+
+    private static long readSingleBytes(XAFileSystem xafs, File file, int iterations) throws Exception {
+        Session session = xafs.createSessionForLocalTransaction();
+        session.setTransactionTimeout(Integer.MAX_VALUE);
+        XAFileInputStream xais = session.createXAFileInputStream(file);
+        long startTime = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            if (xais.read() == -1) {
+                xais.position(0);
+            }
+        }
+        xais.close();
+        long timeTaken = System.nanoTime() - startTime;
+        session.commit();
+        return timeTaken;
+    }
+
+    private static long read(XAFileSystem xafs, File file, int ioSize, int iterations) throws Exception {
+        byte buffer[] = new byte[ioSize];
+        Session session = xafs.createSessionForLocalTransaction();
+        session.setTransactionTimeout(Integer.MAX_VALUE);
+        XAFileInputStream xais = session.createXAFileInputStream(file);
+        long startTime = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            if (xais.read(buffer) == -1) {
+                xais.position(0);
+            }
+        }
+        xais.close();
+        long timeTaken = System.nanoTime() - startTime;
+        session.commit();
+        return timeTaken;
+    }
+}